@@ -0,0 +1,716 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The standard benchmark suite for the protocol and game hot paths. This
+ * times, using {@link MicroBenchmark}:
+ * <ul>
+ *   <li>{@link ServerGame#makeMove} over whole games, including the win and
+ *   draw checks after every move;</li>
+ *   <li>the same games recorded in a {@link GameJournal}, and recovering
+ *   the games in progress from a journal of one million records;</li>
+ *   <li>encoding and decoding every packet type through the framed
+ *   codec;</li>
+ *   <li>{@link Server#doToAllClients} broadcasting a player update to 100,
+ *   1000 and 10000 clients;</li>
+ *   <li>{@link LobbyModel#playerEnter} in lobbies of 100, 1000 and 10000
+ *   players;</li>
+ *   <li>{@link Leaderboard#update} followed by {@link Leaderboard#getRank},
+ *   and {@link Leaderboard#getTop}, on leaderboards of 100, 1000 and 10000
+ *   players;</li>
+ *   <li>a churn of score changes sent to 1000 clients, as lobby updates
+ *   with and without coalescing in the send queues, and as roster deltas.
+ *   This also prints the depth of the send queues and the bytes sent for
+ *   each round of churn.</li>
+ * </ul>
+ * Every client is simulated in-process, with no sockets. The results can be
+ * written to a JSON file, in the format of JMH's JSON output, so that they
+ * can be compared between releases.
+ * <p>
+ * Usage: {@code java BenchmarkSuite [results.json] [iteration ms]}
+ *
+ * @author Tom Galvin
+ */
+public class BenchmarkSuite {
+    /**
+     * Reads the fields of a packet, as the receiving side of the connection
+     * would after reading its packet ID.
+     */
+    @FunctionalInterface
+    private interface PacketReader {
+        /**
+         * Read the fields of one packet.
+         *
+         * @param in The payload of the packet, after its packet ID.
+         * @return Any value computed from the fields.
+         */
+        public int read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * The sizes of the server and of the lobby to benchmark at.
+     */
+    private static final int[] POPULATIONS = { 100, 1000, 10000 };
+
+    /**
+     * The number of clients connected during the churn benchmark.
+     */
+    private static final int CHURN_CLIENTS = 1000;
+
+    /**
+     * The number of players whose scores change during each round of the
+     * churn benchmark.
+     */
+    private static final int CHURN_PLAYERS = 20;
+
+    /**
+     * The number of times each player's score changes during each round of
+     * the churn benchmark, before the send queues are drained.
+     */
+    private static final int CHURN_CHANGES = 10;
+
+    /**
+     * The number of games in progress in the journal recovered by the
+     * recovery benchmark.
+     */
+    private static final int JOURNAL_GAMES = 10000;
+
+    /**
+     * The number of moves made in each game in progress in the journal
+     * recovered by the recovery benchmark. With the record of each game
+     * beginning, the journal holds one million records.
+     */
+    private static final int JOURNAL_MOVES = 99;
+
+    /**
+     * A game on a 3x3 board, given as the moves made in turn starting with
+     * cross, which cross wins along the top row.
+     */
+    private static final int[][] WON_GAME = {
+        { 0, 0 }, { 0, 1 }, { 1, 0 }, { 1, 1 }, { 2, 0 }
+    };
+
+    /**
+     * A game on a 3x3 board, given as the moves made in turn starting with
+     * cross, which fills the board without either side winning.
+     */
+    private static final int[][] DRAWN_GAME = {
+        { 0, 0 }, { 1, 0 }, { 2, 0 }, { 1, 1 }, { 0, 1 },
+        { 0, 2 }, { 2, 1 }, { 2, 2 }, { 1, 2 }
+    };
+
+    /**
+     * A game on a 15x15 board, given as the moves made in turn starting with
+     * cross, which cross wins with five in a row.
+     */
+    private static final int[][] GOMOKU_GAME = {
+        { 3, 7 }, { 3, 9 }, { 4, 7 }, { 4, 9 }, { 5, 7 },
+        { 5, 9 }, { 6, 7 }, { 6, 9 }, { 7, 7 }
+    };
+
+    private MicroBenchmark harness;
+    private List<String> packetNames;
+    private List<PacketWriter> packetWriters;
+    private List<PacketReader> packetReaders;
+
+    /**
+     * Create a new BenchmarkSuite.
+     *
+     * @param harness The harness with which to run every benchmark.
+     */
+    public BenchmarkSuite(MicroBenchmark harness) {
+        this.harness = harness;
+        this.packetNames = new ArrayList<String>();
+        this.packetWriters = new ArrayList<PacketWriter>();
+        this.packetReaders = new ArrayList<PacketReader>();
+    }
+
+    public static void main(String... args) throws Exception {
+        String jsonPath = args.length > 0 ? args[0] : null;
+        long iterationMillis = args.length > 1 ? Long.parseLong(args[1]) : 200;
+
+        PrintStream console = System.out;
+        MicroBenchmark harness = new MicroBenchmark(3, 5, iterationMillis, console);
+        BenchmarkSuite suite = new BenchmarkSuite(harness);
+
+        // The server logs every game and connection to the standard output,
+        // which would drown out the results.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            suite.runGameBenchmarks();
+            suite.runJournalBenchmarks();
+            suite.runPacketBenchmarks();
+            for(int clients : POPULATIONS) {
+                suite.runBroadcastBenchmark(clients);
+            }
+            for(int players : POPULATIONS) {
+                suite.runLobbyBenchmark(players);
+            }
+            for(int players : POPULATIONS) {
+                suite.runLeaderboardBenchmark(players);
+            }
+            suite.runChurnBenchmark(false, false, console);
+            suite.runChurnBenchmark(false, true, console);
+            suite.runChurnBenchmark(true, true, console);
+        } finally {
+            System.setOut(console);
+        }
+
+        if(jsonPath != null) {
+            try(PrintStream json = new PrintStream(new FileOutputStream(jsonPath))) {
+                harness.writeJson(json);
+            }
+            console.println("Wrote results to " + jsonPath + ".");
+        }
+    }
+
+    /**
+     * Time whole games played through {@link ServerGame#makeMove}.
+     */
+    public void runGameBenchmarks() throws Exception {
+        Server server = createServer();
+        ServerThread[] players = connectClients(server, 2);
+        ServerThread nought = players[0], cross = players[1];
+
+        harness.run("ServerGame.makeMove [won, 3x3]",
+                () -> playGame(server, nought, cross, 3, 3, WON_GAME));
+        harness.run("ServerGame.makeMove [drawn, 3x3]",
+                () -> playGame(server, nought, cross, 3, 3, DRAWN_GAME));
+        harness.run("ServerGame.makeMove [won, 15x15]",
+                () -> playGame(server, nought, cross, 15, 5, GOMOKU_GAME));
+    }
+
+    /**
+     * Time whole games played through {@link ServerGame#makeMove} while
+     * being recorded in a journal, and recovering the games in progress
+     * from a journal after a restart.
+     */
+    public void runJournalBenchmarks() throws Exception {
+        Path directory = Files.createTempDirectory("tictac2-journal");
+        Path path = directory.resolve("games.journal");
+        try {
+            Server server = createServer("--journal=" + path);
+            server.openStores();
+            ServerThread[] players = connectClients(server, 2);
+            ServerThread nought = players[0], cross = players[1];
+            harness.run("ServerGame.makeMove [won, 3x3, journaled]",
+                    () -> playGame(server, nought, cross, 3, 3, WON_GAME));
+            harness.run("ServerGame.makeMove [won, 15x15, journaled]",
+                    () -> playGame(server, nought, cross, 15, 5, GOMOKU_GAME));
+            server.closeStores();
+            Files.delete(path);
+
+            int[][] moves = unfinishedGame(15, 5, JOURNAL_MOVES);
+            GameJournal journal = GameJournal.open(path, 10, server.getLog());
+            for(int gameID = 0; gameID < JOURNAL_GAMES; gameID++) {
+                journal.begin(gameID, 15, 5, "nought" + gameID, "cross" + gameID);
+                for(int[] move : moves) {
+                    journal.move(gameID, move[0], move[1]);
+                }
+            }
+            journal.close();
+            harness.run(String.format(
+                        "Server.openStores [%d journal records]",
+                        JOURNAL_GAMES * (JOURNAL_MOVES + 1)), () -> {
+                Server restarted = createServer("--journal=" + path);
+                if(!restarted.openStores()) {
+                    throw new IllegalStateException("The benchmark journal could not be opened.");
+                }
+                restarted.closeStores();
+                return restarted.getGameCount();
+            });
+        } finally {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Find moves which fill part of a board, made in turn starting with
+     * cross, without either side winning.
+     *
+     * @param boardSize The width and height of the game board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @param moveCount The number of moves to find.
+     * @return The moves, each as its X and Y co-ordinates.
+     */
+    private static int[][] unfinishedGame(int boardSize, int winLength, int moveCount) {
+        Board board = Board.create(boardSize, winLength);
+        int[][] moves = new int[moveCount][];
+        int found = 0;
+        for(int cell = 0; found < moveCount; cell = (cell + 1) % (boardSize * boardSize)) {
+            int x = cell % boardSize, y = cell / boardSize;
+            if(board.getTile(x, y) != Game.TILE_SPACE) {
+                continue;
+            }
+            board.setTile(x, y, found % 2 == 0 ? Game.TILE_CROSS : Game.TILE_NOUGHT);
+            if(board.isWinningMove(x, y) || board.isFull()) {
+                board.setTile(x, y, Game.TILE_SPACE);
+            } else {
+                moves[found++] = new int[] { x, y };
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Play one game through to the end, discarding every packet it sends.
+     *
+     * @param server The server hosting the game.
+     * @param nought The player playing as nought.
+     * @param cross The player playing as cross, who moves first.
+     * @param boardSize The width and height of the game board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @param moves The moves made in turn, starting with cross.
+     * @return The number of packets sent during the game.
+     */
+    private static int playGame(
+            Server server,
+            ServerThread nought,
+            ServerThread cross,
+            int boardSize,
+            int winLength,
+            int[][] moves) {
+        ServerGame game = server.createGame(nought, cross, boardSize, winLength);
+        game.begin();
+        for(int i = 0; i < moves.length; i++) {
+            game.makeMove(i % 2 == 0 ? cross : nought, moves[i][0], moves[i][1]);
+        }
+        if(game.isInProgress()) {
+            throw new IllegalStateException("The benchmark game did not finish.");
+        }
+        return drain(nought) + drain(cross);
+    }
+
+    /**
+     * Time encoding and decoding every packet type through the framed codec.
+     */
+    public void runPacketBenchmarks() throws Exception {
+        addClientPackets();
+        addServerPackets();
+
+        ByteBufferOutputStream buffer = new ByteBufferOutputStream(256);
+        DataOutputStream bufferStream = new DataOutputStream(buffer);
+        PacketCodec encoder = new FramedPacketCodec();
+        PacketCodec decoder = new FramedPacketCodec();
+
+        for(int i = 0; i < packetNames.size(); i++) {
+            PacketWriter writer = packetWriters.get(i);
+            PacketReader reader = packetReaders.get(i);
+
+            harness.run("encode " + packetNames.get(i), () -> {
+                buffer.clear();
+                encoder.writePacket(writer, bufferStream);
+                return buffer.size();
+            });
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            encoder.writePacket(writer, new DataOutputStream(encoded));
+            ByteBuffer frame = ByteBuffer.wrap(encoded.toByteArray());
+
+            harness.run("decode " + packetNames.get(i), () -> {
+                frame.position(0);
+                int packetID = decoder.decodePacket(frame);
+                return packetID + reader.read(decoder.getPayload());
+            });
+        }
+    }
+
+    /**
+     * Add a sample of every packet sent by the client, written as
+     * {@link Client} writes them and read as {@link ServerThread} reads
+     * them, with every extension in use.
+     */
+    private void addClientPackets() {
+        addPacket("CLIENT_CONNECT", o -> {
+            o.writeInt(Packet.CLIENT_CONNECT);
+            o.writeInt(Packet.PROTOCOL_VERSION);
+            o.writeUTF("player0");
+            o.writeInt(Packet.SUPPORTED_EXTENSIONS);
+        }, i -> i.readInt() + i.readUTF().length() + i.readInt());
+        addPacket("CLIENT_REQUEST_SEND", o -> {
+            o.writeInt(Packet.CLIENT_REQUEST_SEND);
+            o.writeUTF("player1");
+            o.writeInt(15);
+            o.writeInt(5);
+        }, i -> i.readUTF().length() + i.readInt() + i.readInt());
+        addPacket("CLIENT_REQUEST_RESPOND", o -> {
+            o.writeInt(Packet.CLIENT_REQUEST_RESPOND);
+            o.writeInt(1000);
+            o.writeBoolean(true);
+        }, i -> i.readInt() + (i.readBoolean() ? 1 : 0));
+        addPacket("CLIENT_PLAYER_GET_LIST", o -> {
+            o.writeInt(Packet.CLIENT_PLAYER_GET_LIST);
+        }, i -> 0);
+        addPacket("CLIENT_ROSTER_QUERY", o -> {
+            o.writeInt(Packet.CLIENT_ROSTER_QUERY);
+            o.writeUTF("");
+            o.writeUTF("player0");
+            o.writeInt(Roster.PAGE_LIMIT);
+        }, i -> i.readUTF().length() + i.readUTF().length() + i.readInt());
+        addPacket("CLIENT_ROSTER_SUBSCRIBE", o -> {
+            o.writeInt(Packet.CLIENT_ROSTER_SUBSCRIBE);
+            o.writeLong(1000);
+        }, i -> (int)i.readLong());
+        addPacket("CLIENT_LOBBY_GET_LIST", o -> {
+            o.writeInt(Packet.CLIENT_LOBBY_GET_LIST);
+        }, i -> 0);
+        addPacket("CLIENT_LOBBY_JOIN", o -> {
+            o.writeInt(Packet.CLIENT_LOBBY_JOIN);
+            o.writeUTF("lobby0");
+        }, i -> i.readUTF().length());
+        addPacket("CLIENT_LOBBY_LEAVE", o -> {
+            o.writeInt(Packet.CLIENT_LOBBY_LEAVE);
+        }, i -> 0);
+        addPacket("CLIENT_GAME_MOVE",
+                o -> MoveEncoding.writeClientMove(o, true, 1000, 3, 1, 2),
+                i -> MoveEncoding.readGameID(i, true) + MoveEncoding.readMove(i));
+        addPacket("CLIENT_GAME_FORFEIT", o -> {
+            o.writeInt(Packet.CLIENT_GAME_FORFEIT);
+            o.writeInt(1000);
+        }, i -> i.readInt());
+    }
+
+    /**
+     * Add a sample of every packet sent by the server, written by a
+     * simulated {@link ServerThread} and read as {@link Client} reads them,
+     * with every extension in use.
+     */
+    private void addServerPackets() {
+        // The samples are taken from the send queue without being sent, so a
+        // later lobby update must not be coalesced into an earlier sample.
+        Server server = createServer("--coalesce-lobby=false");
+        ServerThread[] players = connectClients(server, 2);
+        ServerThread player = players[0], opponent = players[1];
+        ServerGame game = server.createGame(player, opponent);
+        drain(player);
+
+        addPacket("SERVER_STATUS", o -> {
+            o.writeInt(Packet.SERVER_STATUS);
+            o.writeBoolean(true);
+            o.writeUTF("player0");
+            o.writeInt(Packet.SUPPORTED_EXTENSIONS);
+        }, i -> (i.readBoolean() ? 1 : 0) + i.readUTF().length() + i.readInt());
+
+        player.sendMessage(null, "Your score is now 1.", "Score", -1);
+        addPacket("SERVER_MESSAGE", player.pollPacket(),
+                i -> i.readInt() + i.readUTF().length() + i.readUTF().length() + i.readInt());
+
+        player.sendGameRequestSent(game, opponent.getNickname());
+        addPacket("SERVER_REQUEST_SENT", player.pollPacket(),
+                i -> i.readInt() + i.readUTF().length());
+
+        player.sendGameRequestReceived(game, opponent.getNickname());
+        addPacket("SERVER_REQUEST_RECEIVED", player.pollPacket(),
+                i -> i.readInt() + i.readUTF().length() + i.readInt() + i.readInt());
+
+        player.sendPlayerUpdate(opponent);
+        addPacket("SERVER_PLAYER_UPDATE", player.pollPacket(),
+                i -> i.readUTF().length() + i.readInt());
+
+        player.sendPlayerLeave(opponent);
+        addPacket("SERVER_PLAYER_LEAVE", player.pollPacket(),
+                i -> i.readUTF().length());
+
+        player.sendRosterPage("", "", Roster.PAGE_LIMIT);
+        addPacket("SERVER_ROSTER_PAGE", player.pollPacket(), i -> {
+            int read = (int)i.readLong() + (i.readBoolean() ? 1 : 0);
+            int count = i.readInt();
+            for(int n = 0; n < count; n++) {
+                read += i.readUTF().length() + i.readInt();
+            }
+            return read;
+        });
+
+        // A delta is only sent once, so subscribe afresh before writing each
+        // sample of it.
+        Roster roster = server.getDefaultLobby().getRoster();
+        long before = roster.getVersion();
+        opponent.setScore(1);
+        server.broadcastRatings();
+        addPacket("SERVER_ROSTER_DELTA", o -> {
+            roster.subscribe(player, before);
+            roster.writeDelta(o, player);
+        }, i -> {
+            int read = (int)(i.readLong() + i.readLong()) + (i.readBoolean() ? 1 : 0);
+            int count = i.readInt();
+            for(int n = 0; n < count; n++) {
+                boolean left = i.readBoolean();
+                read += i.readUTF().length();
+                if(!left) {
+                    read += i.readInt();
+                }
+            }
+            return read;
+        });
+
+        player.sendLobbyList(server.getLobbies());
+        addPacket("SERVER_LOBBY_LIST", player.pollPacket(), i -> {
+            int count = i.readInt();
+            int read = count;
+            for(int n = 0; n < count; n++) {
+                read += i.readInt() + i.readUTF().length() + i.readInt();
+            }
+            return read;
+        });
+
+        player.sendLobbyJoined(server.getDefaultLobby());
+        addPacket("SERVER_LOBBY_JOINED", player.pollPacket(),
+                i -> i.readInt() + i.readUTF().length());
+
+        player.sendGameBegin(game, opponent, Game.TILE_NOUGHT);
+        addPacket("SERVER_GAME_BEGIN", player.pollPacket(),
+                i -> i.readInt() + i.readUTF().length() + i.readInt() + i.readInt() + i.readInt());
+
+        player.sendGameMove(game, 1, 2, Game.TILE_CROSS);
+        addPacket("SERVER_GAME_MOVE", player.pollPacket(),
+                i -> MoveEncoding.readGameID(i, true) + MoveEncoding.readMove(i));
+
+        player.sendGameUpdate(game, true, Game.GAME_IN_PROGRESS);
+        addPacket("SERVER_GAME_UPDATE", player.pollPacket(),
+                i -> MoveEncoding.readGameID(i, true) + i.readUnsignedByte());
+    }
+
+    /**
+     * Add a packet to the packet benchmarks.
+     *
+     * @param name The name of the packet type.
+     * @param writer The writer of a sample packet.
+     * @param reader The reader of the fields of the sample packet.
+     */
+    private void addPacket(String name, PacketWriter writer, PacketReader reader) {
+        packetNames.add(name);
+        packetWriters.add(writer);
+        packetReaders.add(reader);
+    }
+
+    /**
+     * Time broadcasting a player update to every client of a server, and
+     * draining it from their send queues.
+     *
+     * @param clientCount The number of clients connected to the server.
+     */
+    public void runBroadcastBenchmark(int clientCount) throws Exception {
+        Server server = createServer();
+        ServerThread[] clients = connectClients(server, clientCount);
+        ServerThread subject = clients[0];
+
+        harness.run(String.format("Server.doToAllClients [clients=%d]", clientCount), () -> {
+            server.doToAllClients(t -> t.sendPlayerUpdate(subject));
+            int packets = 0;
+            for(ServerThread client : clients) {
+                packets += drain(client);
+            }
+            return packets;
+        });
+    }
+
+    /**
+     * Time a round of churn, in which several players' scores change
+     * repeatedly before the send queues of every client are drained, as
+     * happens when the send loops fall behind a burst of finished games.
+     * The send queue depth and bytes sent for one round are then printed.
+     *
+     * @param roster Whether the clients are subscribed to the roster, rather
+     * than being sent lobby updates.
+     * @param coalesce Whether lobby updates are coalesced.
+     * @param report The stream to print the send queue depth and bytes
+     * sent to.
+     */
+    public void runChurnBenchmark(
+            boolean roster,
+            boolean coalesce,
+            PrintStream report) throws Exception {
+        Server server = createServer("--coalesce-lobby=" + coalesce);
+        ServerThread[] clients;
+        String name;
+        if(roster) {
+            clients = connectClients(server, CHURN_CLIENTS, Packet.SUPPORTED_EXTENSIONS);
+            for(ServerThread client : clients) {
+                Roster lobbyRoster = server.getDefaultLobby().getRoster();
+                lobbyRoster.subscribe(client, lobbyRoster.getVersion());
+            }
+            name = "roster";
+        } else {
+            clients = connectClients(
+                    server,
+                    CHURN_CLIENTS,
+                    Packet.SUPPORTED_EXTENSIONS & ~Packet.EXTENSION_ROSTER);
+            name = "coalesce=" + coalesce;
+        }
+        ByteBufferOutputStream buffer = new ByteBufferOutputStream(4096);
+        DataOutputStream bufferStream = new DataOutputStream(buffer);
+        long[] round = new long[2];
+
+        harness.run(String.format(
+                    "Server.playerUpdate churn [clients=%d, %s]",
+                    CHURN_CLIENTS,
+                    name
+                    ), () -> {
+            for(int change = 0; change < CHURN_CHANGES; change++) {
+                for(int i = 0; i < CHURN_PLAYERS; i++) {
+                    clients[i].setScore(clients[i].getScore() + 1);
+                }
+            }
+            server.broadcastRatings();
+            long depth = 0, bytes = 0;
+            for(ServerThread client : clients) {
+                depth += client.getSendQueueDepth();
+                PacketWriter writer;
+                while((writer = client.pollPacket()) != null) {
+                    buffer.clear();
+                    client.getCodec().writePacket(writer, bufferStream);
+                    bytes += buffer.size();
+                }
+            }
+            round[0] = depth;
+            round[1] = bytes;
+            return (int)depth;
+        });
+
+        report.println(String.format(
+                    "  per round: %d score changes, %.1f packets queued per client, %d bytes sent",
+                    CHURN_PLAYERS * CHURN_CHANGES,
+                    round[0] / (double)CHURN_CLIENTS,
+                    round[1]
+                    ));
+    }
+
+    /**
+     * Time updating the score of players already in a lobby table.
+     *
+     * @param playerCount The number of players in the lobby.
+     */
+    public void runLobbyBenchmark(int playerCount) throws Exception {
+        Lobby lobby = new Lobby(0, null);
+        LobbyModel model = new LobbyModel(null, lobby);
+        String[] nicknames = new String[playerCount];
+        for(int i = 0; i < playerCount; i++) {
+            nicknames[i] = "player" + i;
+            lobby.addPlayer(nicknames[i], 0);
+        }
+
+        int[] next = { 0 };
+        harness.run(String.format("LobbyModel.playerEnter [players=%d]", playerCount), () -> {
+            // Step through the players out of order, so that the updated
+            // player is not always at the same position in the table.
+            int i = next[0] = (next[0] + 7919) % playerCount;
+            model.playerEnter(nicknames[i], i);
+            return i;
+        });
+    }
+
+    /**
+     * Time changing the score of a player on the leaderboard and finding
+     * their new rank, and reading the top of the leaderboard.
+     *
+     * @param playerCount The number of players on the leaderboard.
+     */
+    public void runLeaderboardBenchmark(int playerCount) throws Exception {
+        Leaderboard leaderboard = new Leaderboard();
+        String[] nicknames = new String[playerCount];
+        for(int i = 0; i < playerCount; i++) {
+            nicknames[i] = "player" + i;
+            leaderboard.add(nicknames[i], EloRating.INITIAL_RATING + i % 800 - 400);
+        }
+
+        int[] next = { 0, 0 };
+        harness.run(String.format("Leaderboard.update+getRank [players=%d]", playerCount), () -> {
+            int i = next[0] = (next[0] + 7919) % playerCount;
+            // Alternately win and lose, so that scores stay in range.
+            int change = next[1]++ % 2 == 0 ? 16 : -16;
+            leaderboard.update(nicknames[i], leaderboard.getScore(nicknames[i]) + change);
+            return leaderboard.getRank(nicknames[i]);
+        });
+        harness.run(String.format("Leaderboard.getTop [players=%d]", playerCount), () -> {
+            return leaderboard.getTop(Leaderboard.MAX_TOP).size();
+        });
+    }
+
+    /**
+     * Create a server for simulated clients, with the given options. Every
+     * change to a lobby or game runs on the thread which made it, so that
+     * the packets it sends are queued by the time it returns.
+     *
+     * @param options The options of the server, other than the port.
+     * @return The new server, which is not started.
+     */
+    private static Server createServer(String... options) {
+        String[] args = new String[options.length + 3];
+        args[0] = "0";
+        args[1] = "--lobby-shards=0";
+        args[2] = "--game-threads=0";
+        System.arraycopy(options, 0, args, 3, options.length);
+        return new Server(ServerOptions.parse(args));
+    }
+
+    /**
+     * Connect simulated clients to a server, with every extension in use.
+     *
+     * @param server The server to connect the clients to.
+     * @param clientCount The number of clients to connect.
+     * @return The server threads of the clients.
+     */
+    private static ServerThread[] connectClients(Server server, int clientCount) {
+        return connectClients(server, clientCount, Packet.SUPPORTED_EXTENSIONS);
+    }
+
+    /**
+     * Connect simulated clients to a server, with the given extensions in
+     * use.
+     *
+     * @param server The server to connect the clients to.
+     * @param clientCount The number of clients to connect.
+     * @param extensions The extensions used by the clients, as EXTENSION_*
+     * flags in {@link Packet}.
+     * @return The server threads of the clients.
+     */
+    private static ServerThread[] connectClients(
+            Server server,
+            int clientCount,
+            int extensions) {
+        ServerThread[] clients = new ServerThread[clientCount];
+        for(int i = 0; i < clientCount; i++) {
+            clients[i] = new ServerThread(
+                    server,
+                    "player" + i,
+                    0,
+                    new FramedPacketCodec(),
+                    (NioConnection)null);
+            clients[i].setExtensions(extensions);
+            clients[i].connected();
+            // Every connection is announced to every client before it, and
+            // the client is told which lobby it joined, so drain as they go
+            // to keep the send queues short.
+            for(int j = 0; j <= i; j++) {
+                drain(clients[j]);
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * Discard every packet queued for a simulated client.
+     *
+     * @param client The client whose send queue to drain.
+     * @return The number of packets discarded.
+     */
+    private static int drain(ServerThread client) {
+        int packets = 0;
+        while(client.pollPacket() != null) {
+            packets++;
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * The state of a 3x3 tic-tac-toe board, shared by the server and the client.
+ * Each side's tiles are stored as a 9-bit mask in a single {@code int}, with
+ * the tile at (x, y) in bit {@code y * 3 + x}. Checking for a win is then a
+ * handful of mask comparisons against the 8 possible lines, and checking for
+ * a full board is a single comparison.
+ *
+ * @author Tom Galvin
+ */
+public class BitBoard implements Board {
+    /**
+     * The width and height of the board.
+     */
+    public static final int SIZE = 3;
+
+    /**
+     * The mask with a bit set for every cell on the board.
+     */
+    public static final int FULL = 0x1FF;
+
+    /**
+     * The masks of the 8 lines which win the game: the three rows, the three
+     * columns, and the two diagonals.
+     */
+    private static final int[] LINES = {
+        0x007, 0x038, 0x1C0, // rows
+        0x049, 0x092, 0x124, // columns
+        0x111, 0x054         // diagonals
+    };
+
+    private int noughts;
+    private int crosses;
+
+    /**
+     * Create a new, empty board.
+     */
+    public BitBoard() {
+        this.noughts = 0;
+        this.crosses = 0;
+    }
+
+    /**
+     * Get the bit representing the given cell.
+     *
+     * @param x The X co-ordinate (between 0 and 2).
+     * @param y The Y co-ordinate (between 0 and 2).
+     * @return The mask with only the bit of the given cell set.
+     */
+    private static int bit(int x, int y) {
+        return 1 << (y * SIZE + x);
+    }
+
+    @Override
+    public int getSize() {
+        return SIZE;
+    }
+
+    @Override
+    public int getWinLength() {
+        return SIZE;
+    }
+
+    @Override
+    public boolean isOnBoard(int x, int y) {
+        return x >= 0 && x < SIZE && y >= 0 && y < SIZE;
+    }
+
+    @Override
+    public int getTile(int x, int y) {
+        int bit = bit(x, y);
+        if((noughts & bit) != 0) {
+            return Game.TILE_NOUGHT;
+        } else if((crosses & bit) != 0) {
+            return Game.TILE_CROSS;
+        } else {
+            return Game.TILE_SPACE;
+        }
+    }
+
+    @Override
+    public void setTile(int x, int y, int tile) {
+        int bit = bit(x, y);
+        noughts &= ~bit;
+        crosses &= ~bit;
+        if(tile == Game.TILE_NOUGHT) {
+            noughts |= bit;
+        } else if(tile == Game.TILE_CROSS) {
+            crosses |= bit;
+        }
+    }
+
+    /**
+     * Get the mask of the tiles placed by the given side.
+     *
+     * @param tile The side, as TILE_NOUGHT or TILE_CROSS.
+     * @return The 9-bit mask of that side's tiles.
+     */
+    public int getMask(int tile) {
+        return tile == Game.TILE_NOUGHT ? noughts : crosses;
+    }
+
+    /**
+     * Determines whether the given side has a complete line.
+     *
+     * @param tile The side to check, as TILE_NOUGHT or TILE_CROSS.
+     * @return {@code true} if the side has three in a row.
+     */
+    public boolean isWon(int tile) {
+        return isWinningMask(getMask(tile));
+    }
+
+    /**
+     * Determines whether the tile at the given location is part of a winning
+     * line. As the whole of a side's lines can be checked in a few mask
+     * comparisons, this simply checks the side of that tile.
+     *
+     * @param x The X co-ordinate of the last placed tile.
+     * @param y The Y co-ordinate of the last placed tile.
+     * @return {@code true} if the tile's side has three in a row.
+     */
+    @Override
+    public boolean isWinningMove(int x, int y) {
+        int tile = getTile(x, y);
+        return tile != Game.TILE_SPACE && isWon(tile);
+    }
+
+    /**
+     * Determines whether either side has a complete line.
+     *
+     * @return {@code true} if either side has three in a row.
+     */
+    public boolean hasWinner() {
+        return isWinningMask(noughts) || isWinningMask(crosses);
+    }
+
+    @Override
+    public boolean isFull() {
+        return (noughts | crosses) == FULL;
+    }
+
+    /**
+     * Determines whether the given mask contains a complete line.
+     *
+     * @param mask The 9-bit mask of one side's tiles.
+     * @return {@code true} if the mask contains three in a row.
+     */
+    public static boolean isWinningMask(int mask) {
+        for(int line : LINES) {
+            if((mask & line) == line) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
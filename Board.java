@@ -0,0 +1,115 @@
+/**
+ * The state of a square game board on which two sides take turns to place
+ * tiles, aiming to get a given number of tiles in a row. This is shared by
+ * the server and the client.
+ *
+ * @author Tom Galvin
+ */
+public interface Board {
+    /**
+     * The smallest supported board size and win length.
+     */
+    public static final int MIN_SIZE = 3;
+
+    /**
+     * The largest supported board size.
+     */
+    public static final int MAX_SIZE = 19;
+
+    /**
+     * Create a new, empty board of the given variant, using the most compact
+     * representation available for it.
+     *
+     * @param size The width and height of the board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @return The new board.
+     * @throws IllegalArgumentException If the variant is not supported.
+     */
+    public static Board create(int size, int winLength) {
+        if(!isValidVariant(size, winLength)) {
+            throw new IllegalArgumentException(String.format(
+                        "A %dx%d board with %d in a row is not supported.",
+                        size, size, winLength
+                        ));
+        }
+        if(size == BitBoard.SIZE && winLength == BitBoard.SIZE) {
+            return new BitBoard();
+        } else {
+            return new PackedBoard(size, winLength);
+        }
+    }
+
+    /**
+     * Determines whether a board variant is supported.
+     *
+     * @param size The width and height of the board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @return {@code true} if the variant is supported.
+     */
+    public static boolean isValidVariant(int size, int winLength) {
+        return size >= MIN_SIZE && size <= MAX_SIZE &&
+               winLength >= MIN_SIZE && winLength <= size;
+    }
+
+    /**
+     * Get the width and height of this board.
+     *
+     * @return The size of this board.
+     */
+    public int getSize();
+
+    /**
+     * Get the number of tiles in a row needed to win on this board.
+     *
+     * @return The win length of this board.
+     */
+    public int getWinLength();
+
+    /**
+     * Determines whether the given co-ordinate is on this board.
+     *
+     * @param x The X co-ordinate.
+     * @param y The Y co-ordinate.
+     * @return {@code true} if both co-ordinates are between 0 and the size
+     * of the board (exclusive).
+     */
+    public boolean isOnBoard(int x, int y);
+
+    /**
+     * Get the value of the given tile.
+     *
+     * @param x The X co-ordinate.
+     * @param y The Y co-ordinate.
+     * @return The value of the tile, as one of the TILE_* constants in
+     * {@link Game}.
+     */
+    public int getTile(int x, int y);
+
+    /**
+     * Set the value of the given tile.
+     *
+     * @param x The X co-ordinate.
+     * @param y The Y co-ordinate.
+     * @param tile The new value of the tile, as one of the TILE_* constants
+     * in {@link Game}.
+     */
+    public void setTile(int x, int y, int tile);
+
+    /**
+     * Determines whether the tile at the given location is part of a winning
+     * line. Checking this after every move is sufficient to detect a win, so
+     * only the lines through the last placed tile need to be checked.
+     *
+     * @param x The X co-ordinate of the last placed tile.
+     * @param y The Y co-ordinate of the last placed tile.
+     * @return {@code true} if the tile completes a line of the win length.
+     */
+    public boolean isWinningMove(int x, int y);
+
+    /**
+     * Determines whether every cell of this board is occupied.
+     *
+     * @return {@code true} if this board is full.
+     */
+    public boolean isFull();
+}
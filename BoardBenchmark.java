@@ -0,0 +1,151 @@
+import java.util.Random;
+
+/**
+ * Compares the {@link BitBoard} game engine against the original board
+ * implementation, which stored the board in an {@code int[3][3]} and
+ * scanned every line of it after each move, and against the general
+ * {@link PackedBoard} engine playing the same 3x3 games.
+ *
+ * @author Tom Galvin
+ */
+public class BoardBenchmark {
+    /**
+     * The number of random games to cycle through, each given as the order
+     * in which its cells are filled.
+     */
+    private static final int GAME_COUNT = 1024;
+
+    private int[][] games;
+    private int nextGame;
+
+    /**
+     * Create a new BoardBenchmark with the given random seed.
+     *
+     * @param seed The seed of the random games.
+     */
+    public BoardBenchmark(long seed) {
+        Random random = new Random(seed);
+        games = new int[GAME_COUNT][9];
+        for(int[] game : games) {
+            for(int i = 0; i < 9; i++) {
+                int j = random.nextInt(i + 1);
+                game[i] = game[j];
+                game[j] = i;
+            }
+        }
+        nextGame = 0;
+    }
+
+    public static void main(String... args) throws Exception {
+        BoardBenchmark benchmark = new BoardBenchmark(1);
+        MicroBenchmark harness = new MicroBenchmark(3, 5, 500);
+        harness.run("int[3][3] board: play game", benchmark::playLegacyGame);
+        harness.run("BitBoard: play game", benchmark::playBitBoardGame);
+        harness.run("PackedBoard: play game", benchmark::playPackedBoardGame);
+    }
+
+    /**
+     * Play the next random game on a new array board, checking for a win
+     * and a full board after every move as the server did originally.
+     *
+     * @return The number of moves played.
+     */
+    public int playLegacyGame() {
+        int[] order = games[nextGame++ & (GAME_COUNT - 1)];
+        int[][] board = new int[3][3];
+        for(int i = 0; i < 3; i++) {
+            for(int j = 0; j < 3; j++) {
+                board[i][j] = Game.TILE_SPACE;
+            }
+        }
+        for(int move = 0; move < 9; move++) {
+            int cell = order[move];
+            board[cell % 3][cell / 3] = move % 2 == 0 ? Game.TILE_CROSS : Game.TILE_NOUGHT;
+            if(isLegacyGameWon(board) || isLegacyBoardFull(board)) {
+                return move + 1;
+            }
+        }
+        return 9;
+    }
+
+    /**
+     * Play the next random game on a new {@link BitBoard}, checking for a
+     * win and a full board after every move as the server does.
+     *
+     * @return The number of moves played.
+     */
+    public int playBitBoardGame() {
+        int[] order = games[nextGame++ & (GAME_COUNT - 1)];
+        BitBoard board = new BitBoard();
+        for(int move = 0; move < 9; move++) {
+            int cell = order[move];
+            int tile = move % 2 == 0 ? Game.TILE_CROSS : Game.TILE_NOUGHT;
+            board.setTile(cell % 3, cell / 3, tile);
+            if(board.isWon(tile) || board.isFull()) {
+                return move + 1;
+            }
+        }
+        return 9;
+    }
+
+    /**
+     * Play the next random game on a new 3x3 {@link PackedBoard}, checking
+     * the lines through every move for a win as the server does on larger
+     * boards.
+     *
+     * @return The number of moves played.
+     */
+    public int playPackedBoardGame() {
+        int[] order = games[nextGame++ & (GAME_COUNT - 1)];
+        PackedBoard board = new PackedBoard(3, 3);
+        for(int move = 0; move < 9; move++) {
+            int cell = order[move];
+            int tile = move % 2 == 0 ? Game.TILE_CROSS : Game.TILE_NOUGHT;
+            board.setTile(cell % 3, cell / 3, tile);
+            if(board.isWinningMove(cell % 3, cell / 3) || board.isFull()) {
+                return move + 1;
+            }
+        }
+        return 9;
+    }
+
+    /**
+     * The original win check of {@link ServerGame}.
+     *
+     * @param gameBoard The board to check.
+     * @return Whether the board is in a winning state.
+     */
+    private static boolean isLegacyGameWon(int[][] gameBoard) {
+        for(int x = 0; x < 3; x++) {
+            if(gameBoard[x][0] != Game.TILE_SPACE &&
+                    gameBoard[x][0] == gameBoard[x][1] && gameBoard[x][1] == gameBoard[x][2]) {
+                return true;
+            }
+        }
+        for(int y = 0; y < 3; y++) {
+            if(gameBoard[0][y] != Game.TILE_SPACE &&
+                    gameBoard[0][y] == gameBoard[1][y] && gameBoard[1][y] == gameBoard[2][y]) {
+                return true;
+            }
+        }
+        return gameBoard[0][0] != Game.TILE_SPACE &&
+               gameBoard[0][0] == gameBoard[1][1] && gameBoard[1][1] == gameBoard[2][2] ||
+               gameBoard[0][2] != Game.TILE_SPACE &&
+               gameBoard[0][2] == gameBoard[1][1] && gameBoard[1][1] == gameBoard[2][0];
+    }
+
+    /**
+     * The original full-board check of {@link ServerGame}.
+     *
+     * @param gameBoard The board to check.
+     * @return Whether the board is full.
+     */
+    private static boolean isLegacyBoardFull(int[][] gameBoard) {
+        for(int i = 0; i < 3; i++) {
+            for(int j = 0; j < 3; j++) {
+                if(gameBoard[i][j] == Game.TILE_SPACE) return false;
+            }
+        }
+        return true;
+    }
+}
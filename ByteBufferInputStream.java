@@ -0,0 +1,85 @@
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream which reads from a window of a {@link java.nio.ByteBuffer}.
+ * The window can be moved with {@link #reset(ByteBuffer, int, int)}, so that
+ * one stream (and one {@link java.io.DataInputStream} wrapping it) can be
+ * reused to decode every packet received on a connection without allocating.
+ *
+ * @author Tom Galvin
+ */
+public class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    /**
+     * Create a new, empty ByteBufferInputStream.
+     */
+    public ByteBufferInputStream() {
+        this.buffer = null;
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /**
+     * Point this stream at a new window of the given buffer. The position
+     * and limit of the buffer itself are not changed by reading.
+     *
+     * @param buffer The buffer to read from.
+     * @param offset The absolute index of the first byte to read.
+     * @param length The number of bytes which can be read.
+     */
+    public void reset(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Get the absolute index, in the underlying buffer, of the next byte to
+     * be read.
+     *
+     * @return The index of the next byte to be read.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public int read() {
+        if(position >= limit) {
+            return -1;
+        }
+        return buffer.get(position++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if(length == 0) {
+            return 0;
+        }
+        int available = limit - position;
+        if(available <= 0) {
+            return -1;
+        }
+        int count = Math.min(length, available);
+        for(int i = 0; i < count; i++) {
+            bytes[offset + i] = buffer.get(position++);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int)Math.max(0, Math.min(n, limit - position));
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+}
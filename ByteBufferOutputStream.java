@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream which writes into a reusable, growable
+ * {@link java.nio.ByteBuffer}. The buffered bytes can then be written to a
+ * channel in as few calls as possible.
+ *
+ * @author Tom Galvin
+ */
+public class ByteBufferOutputStream extends OutputStream {
+    private ByteBuffer buffer;
+
+    /**
+     * Create a new ByteBufferOutputStream.
+     *
+     * @param initialCapacity The initial capacity of the buffer, in bytes.
+     */
+    public ByteBufferOutputStream(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Ensure there is room in the buffer for at least the given number of
+     * extra bytes, growing it if necessary.
+     *
+     * @param length The number of bytes about to be written.
+     */
+    private void ensureRemaining(int length) {
+        if(buffer.remaining() < length) {
+            int capacity = buffer.capacity();
+            while(capacity - buffer.position() < length) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Get the number of bytes currently buffered.
+     *
+     * @return The number of buffered bytes.
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Discard every buffered byte.
+     */
+    public void clear() {
+        buffer.clear();
+    }
+
+    /**
+     * Get the {@code int} written at the given index of the buffer.
+     *
+     * @param index The index of the first byte of the {@code int}.
+     * @return The {@code int} at the given index.
+     */
+    public int getInt(int index) {
+        return buffer.getInt(index);
+    }
+
+    /**
+     * Copy the buffered bytes, from the given index onwards, to the given
+     * stream. The buffer itself is left unchanged.
+     *
+     * @param outputStream The stream to copy to.
+     * @param offset The index of the first byte to copy.
+     */
+    public void copyTo(OutputStream outputStream, int offset) throws IOException {
+        outputStream.write(buffer.array(), offset, buffer.position() - offset);
+    }
+
+    /**
+     * Write as many buffered bytes as possible to the given channel, keeping
+     * any bytes that could not be written for the next call.
+     *
+     * @param channel The channel to write to.
+     * @return The number of bytes written.
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        try {
+            return channel.write(buffer);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Write every buffered byte to the given stream in a single call, and
+     * empty the buffer.
+     *
+     * @param outputStream The stream to write to.
+     * @return The number of bytes written.
+     */
+    public int writeTo(OutputStream outputStream) throws IOException {
+        int length = buffer.position();
+        try {
+            outputStream.write(buffer.array(), 0, length);
+            outputStream.flush();
+        } finally {
+            buffer.clear();
+        }
+        return length;
+    }
+}
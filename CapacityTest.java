@@ -0,0 +1,400 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many clients one JVM can hold with each way the server can
+ * run its clients: the blocking engine on platform threads, the blocking
+ * engine on virtual threads, and the NIO engine.
+ * <p>
+ * For each mode, a server is started in this process, and idle clients are
+ * connected to it in steps. An idle client completes the CLIENT_CONNECT
+ * handshake and then sends nothing, as a player sitting in the lobby would.
+ * After each step, the live platform threads and the heap in use after a
+ * garbage collection are reported, until every idle client has connected
+ * or the server can hold no more. With the idle clients still connected, a
+ * {@link LoadGenerator} then plays games between active bots on the same
+ * server and reports their throughput and move latency.
+ * <p>
+ * The client ends of the idle connections are in the same process, so the
+ * heap per client includes a socket on each end, and each connection takes
+ * two file descriptors from the process's limit. Threads and heap left over
+ * from one mode can take a while to be freed, so for the cleanest figures,
+ * measure one mode per run with {@code --modes}.
+ * <p>
+ * Usage: {@code java CapacityTest [options]}; see {@link #printUsage()}.
+ *
+ * @author Tom Galvin
+ */
+public class CapacityTest {
+    /**
+     * The longest time to wait for a step of idle clients to be registered
+     * by the server, in milliseconds.
+     */
+    private static final long STEP_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * The longest time to wait for the server to start listening, in
+     * milliseconds.
+     */
+    private static final long START_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The blocking engine, with a platform thread for each client's reader
+     * and sender.
+     */
+    private static final String MODE_PLATFORM = "platform";
+
+    /**
+     * The blocking engine, with a virtual thread for each client's reader
+     * and sender.
+     */
+    private static final String MODE_VIRTUAL = "virtual";
+
+    /**
+     * The NIO engine, with a fixed pool of event loop threads.
+     */
+    private static final String MODE_NIO = "nio";
+
+    private String[] modes = { MODE_PLATFORM, MODE_VIRTUAL, MODE_NIO };
+    private int idleCount = 5000;
+    private int stepSize = 1000;
+    private int botCount = 100;
+    private int durationSeconds = 10;
+    private int port = 9450;
+
+    public static void main(String... args) throws Exception {
+        CapacityTest test;
+        try {
+            test = parse(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    /**
+     * Parse the command-line arguments of the capacity test, which are all
+     * options of the form {@code --name=value}.
+     *
+     * @param args The command-line arguments.
+     * @return The capacity test with the parsed options.
+     * @throws IllegalArgumentException If the arguments are not valid.
+     */
+    public static CapacityTest parse(String... args) {
+        CapacityTest test = new CapacityTest();
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch(name) {
+                case "modes":
+                    test.modes = value.split(",");
+                    for(String mode : test.modes) {
+                        if(!mode.equals(MODE_PLATFORM) && !mode.equals(MODE_VIRTUAL) && !mode.equals(MODE_NIO)) {
+                            throw new IllegalArgumentException("Unknown mode: " + mode);
+                        }
+                    }
+                    break;
+                case "idle":
+                    test.idleCount = parseInt(name, value);
+                    break;
+                case "step":
+                    test.stepSize = parseInt(name, value);
+                    break;
+                case "bots":
+                    test.botCount = parseInt(name, value);
+                    break;
+                case "duration":
+                    test.durationSeconds = parseInt(name, value);
+                    break;
+                case "port":
+                    test.port = parseInt(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if(test.idleCount < 0) {
+            throw new IllegalArgumentException("The number of idle clients cannot be negative.");
+        }
+        if(test.stepSize < 1) {
+            throw new IllegalArgumentException("Each step must connect at least one client.");
+        }
+        if(test.botCount < 0 || test.botCount % 2 != 0) {
+            throw new IllegalArgumentException("The bots play in pairs, so their number must be even.");
+        }
+        if(test.durationSeconds < 1) {
+            throw new IllegalArgumentException("The active bots must play for at least one second.");
+        }
+        return test;
+    }
+
+    /**
+     * Print the usage of the capacity test's command-line options to the
+     * standard output.
+     */
+    public static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println();
+        System.out.println("java CapacityTest [options]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("--modes=<modes>: A comma-separated list of the modes to measure, out of");
+        System.out.println("                 platform, virtual and nio (default all three). Virtual");
+        System.out.println("                 threads are skipped on JDKs older than 21.");
+        System.out.println("--idle=<n>: The most idle clients to connect (default 5000).");
+        System.out.println("--step=<n>: The number of idle clients connected in each step (default 1000).");
+        System.out.println("--bots=<n>: The number of active bots to play games once the idle clients");
+        System.out.println("            have connected, or 0 for none (default 100).");
+        System.out.println("--duration=<s>: The number of seconds the active bots play for (default 10).");
+        System.out.println("--port=<n>: The port of the first server; each mode uses the next port");
+        System.out.println("            (default 9450).");
+    }
+
+    /**
+     * Parse an integer option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The parsed value.
+     */
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(
+                        "The value of %s must be a number, but was %s.",
+                        name,
+                        value
+                        ));
+        }
+    }
+
+    /**
+     * Measure every chosen mode in turn.
+     */
+    public void run() throws Exception {
+        for(int i = 0; i < modes.length; i++) {
+            String mode = modes[i];
+            System.out.println();
+            System.out.println("=== " + describe(mode) + " ===");
+            if(mode.equals(MODE_VIRTUAL) && !ClientThreadFactory.isVirtualSupported()) {
+                System.out.println("Skipped: virtual threads require JDK 21 or newer.");
+                continue;
+            }
+            measure(mode, port + i);
+        }
+    }
+
+    /**
+     * Measure the idle and active capacity of one mode.
+     *
+     * @param mode The mode, as one of the MODE_* constants.
+     * @param modePort The port on which to start the server.
+     */
+    private void measure(String mode, int modePort) throws Exception {
+        List<String> args = new ArrayList<String>();
+        args.add(Integer.toString(modePort));
+        args.add("--log-level=off");
+        if(mode.equals(MODE_NIO)) {
+            args.add("--engine=nio");
+        } else {
+            args.add("--threads=" + mode);
+        }
+        Server server = new Server(ServerOptions.parse(args.toArray(new String[0])));
+        Thread serverThread = new Thread(server, "capacity-server");
+        serverThread.start();
+
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            if(!awaitListening(modePort)) {
+                System.out.println("The server did not start.");
+                return;
+            }
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            awaitSettled(threads);
+            long baseHeap = usedHeap();
+            System.out.println(String.format(
+                        "%8s %9s %10s %12s %10s",
+                        "idle", "threads", "heap MB", "KB/client", "step s"));
+            System.out.println(String.format(
+                        "%8d %9d %10.1f %12s %10s",
+                        0,
+                        threads.getThreadCount(),
+                        baseHeap / 1048576.0,
+                        "-",
+                        "-"));
+            String stopReason = null;
+            while(idle.size() < idleCount && stopReason == null) {
+                int target = Math.min(idleCount, idle.size() + stepSize);
+                long stepStart = System.nanoTime();
+                try {
+                    while(idle.size() < target) {
+                        idle.add(connectIdle(modePort, "idle" + idle.size()));
+                    }
+                } catch(IOException | OutOfMemoryError e) {
+                    stopReason = "the client could not open connection " + (idle.size() + 1) + ": " + e;
+                }
+                if(!awaitClients(server, serverThread, idle.size())) {
+                    stopReason = String.format(
+                            "the server only registered %d of %d clients%s",
+                            server.getClientCount(),
+                            idle.size(),
+                            serverThread.isAlive() ? "" : ", and its accept thread has died");
+                }
+                long heap = usedHeap();
+                System.out.println(String.format(
+                            "%8d %9d %10.1f %12.2f %10.2f",
+                            server.getClientCount(),
+                            threads.getThreadCount(),
+                            heap / 1048576.0,
+                            (heap - baseHeap) / 1024.0 / Math.max(1, server.getClientCount()),
+                            (System.nanoTime() - stepStart) / 1e9));
+            }
+            if(stopReason != null) {
+                System.out.println("Stopped early: " + stopReason + ".");
+            }
+
+            if(botCount > 0 && serverThread.isAlive()) {
+                System.out.println();
+                System.out.println(String.format(
+                            "Playing with %d active bots alongside %d idle clients:",
+                            botCount,
+                            server.getClientCount()));
+                LoadGenerator.parse(
+                        "localhost",
+                        Integer.toString(modePort),
+                        "--bots=" + botCount,
+                        "--duration=" + durationSeconds).run();
+            }
+        } finally {
+            for(Socket socket : idle) {
+                try {
+                    socket.close();
+                } catch(IOException e) {
+                    // The connection is being discarded anyway.
+                }
+            }
+            server.stop();
+            serverThread.join(START_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Connect an idle client, which completes the handshake and then sends
+     * nothing more.
+     *
+     * @param modePort The port of the server.
+     * @param nickname The nickname of the client.
+     * @return The socket of the client.
+     */
+    private static Socket connectIdle(int modePort, String nickname) throws IOException {
+        Socket socket = new Socket("localhost", modePort);
+        // The handshake is unframed, so it is written directly.
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(Packet.CLIENT_CONNECT);
+        out.writeInt(Packet.PROTOCOL_VERSION);
+        out.writeUTF(nickname);
+        out.writeInt(Packet.SUPPORTED_EXTENSIONS);
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * Wait for the server to accept connections.
+     *
+     * @param modePort The port of the server.
+     * @return {@code true} if the server is listening.
+     */
+    private static boolean awaitListening(int modePort) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while(System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", modePort).close();
+                return true;
+            } catch(IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for the server to register the given number of clients.
+     *
+     * @param server The server.
+     * @param serverThread The thread running the server.
+     * @param count The number of clients expected.
+     * @return {@code true} if the server registered every client in time.
+     */
+    private static boolean awaitClients(Server server, Thread serverThread, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STEP_TIMEOUT_MILLIS;
+        while(server.getClientCount() < count) {
+            if(!serverThread.isAlive() || System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the threads left over from measuring an earlier mode to end,
+     * so that they are not counted against this one.
+     *
+     * @param threads The thread bean of this process.
+     */
+    private static void awaitSettled(ThreadMXBean threads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        int count = threads.getThreadCount();
+        while(System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+            int now = threads.getThreadCount();
+            if(now == count) {
+                return;
+            }
+            count = now;
+        }
+    }
+
+    /**
+     * Get the heap in use after a garbage collection.
+     *
+     * @return The heap in use, in bytes.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Describe a mode for the report.
+     *
+     * @param mode The mode, as one of the MODE_* constants.
+     * @return The description.
+     */
+    private static String describe(String mode) {
+        switch(mode) {
+            case MODE_PLATFORM:
+                return "blocking engine, platform threads";
+            case MODE_VIRTUAL:
+                return "blocking engine, virtual threads";
+            default:
+                return "nio engine";
+        }
+    }
+}
@@ -2,6 +2,7 @@ import java.io.*;
 import java.net.*;
 import java.util.HashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
 
@@ -28,18 +29,51 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
      * efficient) methods for ease of use and implementation.
      */
     private LinkedBlockingQueue<PacketWriter> sendQueue;
+    private FlushStatistics flushStatistics;
+
+    /**
+     * The codec used for every packet after the handshake. The handshake
+     * itself is always unframed.
+     */
+    private PacketCodec codec;
+
+    /**
+     * The protocol extensions accepted by the server, as EXTENSION_*
+     * constants in {@link Packet}.
+     */
+    private int extensions;
+
+    /**
+     * The version of the server's roster which the lobby is in sync with,
+     * or -1 while the roster is being read for the first time.
+     */
+    private long rosterVersion;
+
+    /**
+     * The version of the first page of the roster, while the roster is
+     * being read a page at a time.
+     */
+    private long firstPageVersion;
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
 
+    private ThreadFactory threadFactory;
     private Thread sendThread;
 
-    private boolean running = true;
+    private volatile boolean running = true;
 
     /**
      * Disconnects the client from the server.
      */
     public void disconnect() {
         running = false;
+        try {
+            if(socket != null) {
+                socket.close();
+            }
+        } catch(IOException e) {
+            // The socket is being discarded anyway.
+        }
     }
 
     public static void main(String... args) {
@@ -68,13 +102,81 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
      * @param port The port on which the server listens.
      */
     public Client(String localNickname, String hostName, int port) {
+        this(localNickname, hostName, port, Thread::new);
+    }
+
+    /**
+     * Create a new Client object instance, whose send thread is created by
+     * the given thread factory.
+     *
+     * @param localNickname The local nickname with which to connect to the server.
+     * @param hostName The hostname of the server.
+     * @param port The port on which the server listens.
+     * @param threadFactory The factory which creates the send thread.
+     */
+    protected Client(String localNickname, String hostName, int port, ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
         this.localNickname = localNickname;
         this.hostName = hostName;
         this.port = port;
 
         this.games = new HashMap<Integer, Game>();
+        this.rosterVersion = -1;
+        this.firstPageVersion = -1;
 
         this.sendQueue = new LinkedBlockingQueue<PacketWriter>();
+        this.flushStatistics = new FlushStatistics();
+        this.codec = new FramedPacketCodec();
+    }
+
+    /**
+     * Get the statistics of the packets and bytes written to the server.
+     *
+     * @return The flush statistics of this client.
+     */
+    public FlushStatistics getFlushStatistics() {
+        return flushStatistics;
+    }
+
+    /**
+     * Get the lobby of the server this client is connected to.
+     *
+     * @return The lobby, or {@code null} if the client has not connected.
+     */
+    public Lobby getLobby() {
+        return lobby;
+    }
+
+    /**
+     * Open the user interface of the lobby, once the client has connected.
+     * The lobby will be notified of everything that happens afterwards,
+     * including the games which are started.
+     *
+     * @param lobby The lobby of the server.
+     */
+    protected void openLobby(Lobby lobby) {
+        LobbyPanel.openLobby(localNickname, lobby);
+    }
+
+    /**
+     * Stop the client after it has disconnected or failed. By default, this
+     * exits the application.
+     *
+     * @param status The exit status.
+     */
+    protected void exit(int status) {
+        System.exit(status);
+    }
+
+    /**
+     * Determines whether the server accepted the given protocol extension.
+     *
+     * @param extension The flag of the extension, as an EXTENSION_* constant
+     * in {@link Packet}.
+     * @return {@code true} if the extension is in use.
+     */
+    private boolean hasExtension(int extension) {
+        return (extensions & extension) != 0;
     }
 
     /**
@@ -104,22 +206,25 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
 
                 lobby = new Lobby(0, this);
 
-                sendThread = new Thread(() -> runSendThread());
-                sendThread.start();
-
+                // The handshake is unframed, so is written directly rather
+                // than through the send thread.
                 sendInitialConnectionData(localNickname);
 
+                sendThread = threadFactory.newThread(() -> runSendThread());
+                sendThread.start();
+
                 int welcomePacketID = inputStream.readInt();
                 if(welcomePacketID != Packet.SERVER_STATUS) {
                     lobby.messageReceived(
                             "Invalid welcome packet from server.",
                             "Connection Error",
                             JOptionPane.ERROR_MESSAGE);
-                    System.exit(1);
+                    exit(1);
+                    return;
                 }
 
                 hasStarted = true;
-                LobbyPanel.openLobby(localNickname, lobby);
+                openLobby(lobby);
                 handlePacket(inputStream, welcomePacketID);
 
                 // Normally, player update packets are only sent by the server
@@ -131,8 +236,8 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
                 getInitialPlayers(lobby);
 
                 while(socket.isConnected() && running) {
-                    int packetID = inputStream.readInt();
-                    handlePacket(inputStream, packetID);
+                    int packetID = codec.readPacket(inputStream);
+                    handlePacket(codec.getPayload(), packetID);
                 }
 
                 if(running) {
@@ -171,7 +276,7 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
         } catch(Exception e) {
             e.printStackTrace();
         } finally {
-            System.exit(1);
+            exit(1);
         }
     }
 
@@ -195,9 +300,13 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
                             "Server Error",
                             JOptionPane.ERROR_MESSAGE
                             );
-                    System.exit(1);
+                    exit(1);
+                    break;
                 }
                 String serverNickname = i.readUTF();
+                // The client always requests extensions, so the server
+                // always says which of them it accepted.
+                extensions = i.readInt();
                 if(!serverNickname.equals(localNickname)) {
                     lobby.messageReceived(
                             String.format("The nickname %s is taken or not allowed.\n" +
@@ -219,7 +328,12 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
             case Packet.SERVER_REQUEST_RECEIVED: {
                 int gameID = i.readInt();
                 String opponentNickname = i.readUTF();
-                lobby.gameRequestReceived(opponentNickname, gameID);
+                int boardSize = BitBoard.SIZE, winLength = BitBoard.SIZE;
+                if(hasExtension(Packet.EXTENSION_BOARD_VARIANTS)) {
+                    boardSize = i.readInt();
+                    winLength = i.readInt();
+                }
+                lobby.gameRequestReceived(opponentNickname, gameID, boardSize, winLength);
                 break;
             }
             case Packet.SERVER_PLAYER_UPDATE: {
@@ -233,25 +347,152 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
                 lobby.removePlayer(nickname);
                 break;
             }
+            case Packet.SERVER_ROSTER_PAGE: {
+                long version = i.readLong();
+                boolean more = i.readBoolean();
+                int count = i.readInt();
+                if(firstPageVersion == -1) {
+                    firstPageVersion = version;
+                }
+                String nickname = "";
+                for(int n = 0; n < count; n++) {
+                    nickname = i.readUTF();
+                    int score = i.readInt();
+                    if(!nickname.equals(localNickname)) {
+                        lobby.addPlayer(nickname, score);
+                    }
+                }
+                if(more) {
+                    queryRoster(nickname);
+                } else {
+                    // Changes made while the pages were read are sent in the
+                    // first delta, as it is from the version of the first
+                    // page.
+                    long from = firstPageVersion;
+                    firstPageVersion = -1;
+                    rosterVersion = from;
+                    sendQueue.add(o -> {
+                        o.writeInt(Packet.CLIENT_ROSTER_SUBSCRIBE);
+                        o.writeLong(from);
+                    });
+                }
+                break;
+            }
+            case Packet.SERVER_ROSTER_DELTA: {
+                long from = i.readLong();
+                long to = i.readLong();
+                boolean reset = i.readBoolean();
+                int count = i.readInt();
+                if(reset || from != rosterVersion) {
+                    // The lobby can no longer be brought up to date, so
+                    // read the roster again.
+                    for(String nickname : lobby.getPlayers()) {
+                        lobby.removePlayer(nickname);
+                    }
+                    rosterVersion = -1;
+                    queryRoster("");
+                    break;
+                }
+                for(int n = 0; n < count; n++) {
+                    boolean left = i.readBoolean();
+                    String nickname = i.readUTF();
+                    if(left) {
+                        lobby.removePlayer(nickname);
+                    } else {
+                        int score = i.readInt();
+                        if(!nickname.equals(localNickname)) {
+                            lobby.addPlayer(nickname, score);
+                        }
+                    }
+                }
+                rosterVersion = to;
+                break;
+            }
+            case Packet.SERVER_LOBBY_LIST: {
+                int count = i.readInt();
+                String[] names = new String[count];
+                int[] playerCounts = new int[count];
+                for(int n = 0; n < count; n++) {
+                    i.readInt(); // lobby ID
+                    names[n] = i.readUTF();
+                    playerCounts[n] = i.readInt();
+                }
+                lobby.lobbyListReceived(names, playerCounts);
+                break;
+            }
+            case Packet.SERVER_LOBBY_JOINED: {
+                int lobbyID = i.readInt();
+                String name = i.readUTF();
+                if(lobby.lobbyJoined(lobbyID, name)) {
+                    // The roster of the new lobby is read from the start.
+                    rosterVersion = -1;
+                    firstPageVersion = -1;
+                    getInitialPlayers(lobby);
+                }
+                break;
+            }
+            case Packet.SERVER_MATCH_STATUS: {
+                boolean queued = i.readBoolean();
+                int boardSize = i.readInt();
+                int winLength = i.readInt();
+                lobby.matchStatusReceived(queued, boardSize, winLength);
+                break;
+            }
+            case Packet.SERVER_LEADERBOARD: {
+                int playerCount = i.readInt();
+                int rank = i.readInt();
+                int count = i.readInt();
+                String[] nicknames = new String[count];
+                int[] scores = new int[count];
+                for(int n = 0; n < count; n++) {
+                    nicknames[n] = i.readUTF();
+                    scores[n] = i.readInt();
+                }
+                lobby.leaderboardReceived(playerCount, rank, nicknames, scores);
+                break;
+            }
+            case Packet.SERVER_LEADERBOARD_RANK: {
+                String nickname = i.readUTF();
+                int rank = i.readInt();
+                int score = i.readInt();
+                lobby.rankReceived(nickname, rank, score);
+                break;
+            }
             case Packet.SERVER_GAME_BEGIN: {
                 int gameID = i.readInt();
                 String opponentNickname = i.readUTF();
                 int playingAs = i.readInt();
+                int boardSize = BitBoard.SIZE, winLength = BitBoard.SIZE;
+                if(hasExtension(Packet.EXTENSION_BOARD_VARIANTS)) {
+                    boardSize = i.readInt();
+                    winLength = i.readInt();
+                }
 
                 Game game = new Game(
                         this,
                         opponentNickname,
                         playingAs,
-                        gameID
+                        gameID,
+                        boardSize,
+                        winLength
                         );
                 games.put(gameID, game);
-                GamePanel.openGame(game);
+                lobby.gameStarted(game);
                 break;
             }
             case Packet.SERVER_GAME_UPDATE: {
-                int gameID = i.readInt();
-                boolean canMove = i.readBoolean();
-                int state = i.readInt();
+                boolean compact = hasExtension(Packet.EXTENSION_COMPACT_MOVES);
+                int gameID = MoveEncoding.readGameID(i, compact);
+                boolean canMove;
+                int state;
+                if(compact) {
+                    int update = i.readUnsignedByte();
+                    canMove = MoveEncoding.updateCanMove(update);
+                    state = MoveEncoding.updateState(update);
+                } else {
+                    canMove = i.readBoolean();
+                    state = i.readInt();
+                }
                 if(games.containsKey(gameID)) {
                     Game game = games.get(gameID);
                     game.setCanMove(canMove);
@@ -260,12 +501,23 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
                 break;
             }
             case Packet.SERVER_GAME_MOVE: {
-                int gameID = i.readInt();
-                int x = i.readInt();
-                int y = i.readInt();
-                int tileValue = i.readInt();
-                if(games.containsKey(gameID)) {
-                    games.get(gameID).setTileValue(x, y, tileValue);
+                boolean compact = hasExtension(Packet.EXTENSION_COMPACT_MOVES);
+                int gameID = MoveEncoding.readGameID(i, compact);
+                Game game = games.get(gameID);
+                int x, y, tileValue;
+                if(compact) {
+                    int move = MoveEncoding.readMove(i);
+                    int boardSize = game != null ? game.getBoardSize() : BitBoard.SIZE;
+                    x = MoveEncoding.moveX(move, boardSize);
+                    y = MoveEncoding.moveY(move, boardSize);
+                    tileValue = MoveEncoding.moveTile(move);
+                } else {
+                    x = i.readInt();
+                    y = i.readInt();
+                    tileValue = i.readInt();
+                }
+                if(game != null) {
+                    game.setTileValue(x, y, tileValue);
                 }
                 break;
             }
@@ -282,6 +534,10 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
                 }
                 break;
             }
+            default: {
+                // Packets from a newer server are framed, so can be skipped.
+                break;
+            }
         }
     }
 
@@ -292,25 +548,41 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
      * keep similar concerns together in the same class.
      */
     private void runSendThread() {
+        PacketBatcher batcher = new PacketBatcher(
+                sendQueue,
+                codec,
+                outputStream,
+                flushStatistics);
         try {
             while(running && socket.isConnected()) {
-                PacketWriter writer = sendQueue.take();
-                writer.writePacket(outputStream);
+                batcher.sendBatch();
             }
         } catch(IOException e) {
             System.out.println("IOException in Send Thread.");
             e.printStackTrace();
         } catch(InterruptedException e) {
             System.out.println("Interrupted in Send Thread.");
-            System.exit(255);
+            exit(255);
         }
     }
 
     @Override
-    public void sendGameRequest(Lobby lobby, String nickname) {
+    public void sendGameRequest(Lobby lobby, String nickname, int boardSize, int winLength) {
+        boolean variants = hasExtension(Packet.EXTENSION_BOARD_VARIANTS);
+        if(!variants && (boardSize != BitBoard.SIZE || winLength != BitBoard.SIZE)) {
+            lobby.messageReceived(
+                    "This server only supports games on a 3x3 board.",
+                    "Challenge",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         sendQueue.add(o -> {
             o.writeInt(Packet.CLIENT_REQUEST_SEND);
             o.writeUTF(nickname);
+            if(variants) {
+                o.writeInt(boardSize);
+                o.writeInt(winLength);
+            }
         });
     }
 
@@ -325,36 +597,119 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
 
     @Override
     public void getInitialPlayers(Lobby lobby) {
+        if(hasExtension(Packet.EXTENSION_ROSTER)) {
+            queryRoster("");
+            return;
+        }
         sendQueue.add(o -> {
             o.writeInt(Packet.CLIENT_PLAYER_GET_LIST);
         });
     }
 
+    @Override
+    public void getLobbies(Lobby lobby) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_LOBBY_GET_LIST);
+        });
+    }
+
+    @Override
+    public void joinLobby(Lobby lobby, String name) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_LOBBY_JOIN);
+            o.writeUTF(name);
+        });
+    }
+
+    @Override
+    public void leaveLobby(Lobby lobby) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_LOBBY_LEAVE);
+        });
+    }
+
+    @Override
+    public void queueForMatch(Lobby lobby, int boardSize, int winLength) {
+        if(!hasExtension(Packet.EXTENSION_BOARD_VARIANTS) &&
+           (boardSize != BitBoard.SIZE || winLength != BitBoard.SIZE)) {
+            lobby.messageReceived(
+                    "This server only supports games on a 3x3 board.",
+                    "Find Match",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_MATCH_QUEUE);
+            o.writeInt(boardSize);
+            o.writeInt(winLength);
+        });
+    }
+
+    @Override
+    public void leaveMatchQueue(Lobby lobby) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_MATCH_LEAVE);
+        });
+    }
+
+    @Override
+    public void requestLeaderboard(Lobby lobby, int count) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_LEADERBOARD_GET);
+            o.writeInt(count);
+        });
+    }
+
+    @Override
+    public void requestRank(Lobby lobby, String nickname) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_LEADERBOARD_RANK);
+            o.writeUTF(nickname);
+        });
+    }
+
+    /**
+     * Request the next page of the roster of the server lobby.
+     *
+     * @param after The nickname of the last player of the previous page, or
+     * an empty string for the first page.
+     */
+    private void queryRoster(String after) {
+        sendQueue.add(o -> {
+            o.writeInt(Packet.CLIENT_ROSTER_QUERY);
+            o.writeUTF("");
+            o.writeUTF(after);
+            o.writeInt(Roster.PAGE_LIMIT);
+        });
+    }
+
     /**
      * Sends a packet with initial data about the connection to the
      * server, including the desired nickname, version information,
      * and reserved space for any future protocol expansions (good
-     * practice).
+     * practice). This packet is always unframed, so it is written
+     * straight to the output stream rather than being queued.
      *
      * @param nickname The desired username specified by the client.
      */
-    public void sendInitialConnectionData(String nickname) {
-        sendQueue.add(o -> {
-            o.writeInt(Packet.CLIENT_CONNECT);
-            o.writeInt(Packet.PROTOCOL_VERSION); // protocol identifier
-            o.writeUTF(nickname);
-            o.writeInt(0); // reserved
-        });
+    public void sendInitialConnectionData(String nickname) throws IOException {
+        outputStream.writeInt(Packet.CLIENT_CONNECT);
+        outputStream.writeInt(Packet.PROTOCOL_VERSION); // protocol identifier
+        outputStream.writeUTF(nickname);
+        outputStream.writeInt(Packet.SUPPORTED_EXTENSIONS); // requested extensions
+        outputStream.flush();
     }
 
     @Override
     public void makeMove(Game game, int x, int y) {
-        sendQueue.add(o -> {
-            o.writeInt(Packet.CLIENT_GAME_MOVE);
-            o.writeInt(game.getGameID());
-            o.writeInt(x);
-            o.writeInt(y);
-        });
+        boolean compact = hasExtension(Packet.EXTENSION_COMPACT_MOVES);
+        sendQueue.add(o -> MoveEncoding.writeClientMove(
+                    o,
+                    compact,
+                    game.getGameID(),
+                    game.getBoardSize(),
+                    x,
+                    y));
     }
 
     @Override
@@ -367,6 +722,6 @@ public class Client implements Runnable, LobbyProvider, GameProvider {
 
     @Override
     public void remove(Game game) {
-        games.remove(game);
+        removeGame(game);
     }
 }
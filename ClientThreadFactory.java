@@ -0,0 +1,93 @@
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by the blocking server engine to read from and
+ * send to each connected client. These may either be ordinary platform
+ * threads, or (on JDK 21 and newer) virtual threads, in which case the
+ * number of connected clients is limited by the heap rather than by the
+ * number of threads the operating system will allow.
+ *
+ * @author Tom Galvin
+ */
+public class ClientThreadFactory implements ThreadFactory {
+    /**
+     * The system property which makes the JDK print a stack trace whenever a
+     * virtual thread blocks while pinned to its carrier thread (for example,
+     * while inside a {@code synchronized} block).
+     */
+    private static final String TRACE_PINNED_THREADS = "jdk.tracePinnedThreads";
+
+    private ThreadFactory factory;
+    private boolean virtual;
+
+    /**
+     * Create a new ClientThreadFactory.
+     *
+     * @param virtual {@code true} to create virtual threads; {@code false}
+     * to create platform threads.
+     * @throws IllegalStateException If virtual threads were requested, but
+     * are not supported by the running JDK.
+     */
+    public ClientThreadFactory(boolean virtual) {
+        this.virtual = virtual;
+        if(virtual) {
+            // Report any blocking call on the client threads which pins the
+            // carrier thread, unless the user has configured this already.
+            // This must be set before the first virtual thread is created.
+            if(System.getProperty(TRACE_PINNED_THREADS) == null) {
+                System.setProperty(TRACE_PINNED_THREADS, "short");
+            }
+            this.factory = createVirtualThreadFactory();
+            if(this.factory == null) {
+                throw new IllegalStateException(
+                        "Virtual threads are not supported by this JDK (JDK 21 or newer is required).");
+            }
+        } else {
+            this.factory = Thread::new;
+        }
+    }
+
+    /**
+     * Determines whether the running JDK supports virtual threads.
+     *
+     * @return {@code true} if virtual threads can be created.
+     */
+    public static boolean isVirtualSupported() {
+        return createVirtualThreadFactory() != null;
+    }
+
+    /**
+     * Create a factory of virtual threads. This is done reflectively so that
+     * the server still compiles and runs, with platform threads, on JDKs
+     * older than 21.
+     *
+     * @return A factory of virtual threads, or {@code null} if the running
+     * JDK does not support them.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass
+                .getMethod("name", String.class, long.class)
+                .invoke(builder, "client-", 0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch(ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Determines whether this factory creates virtual threads.
+     *
+     * @return {@code true} if this factory creates virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return factory.newThread(runnable);
+    }
+}
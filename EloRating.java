@@ -0,0 +1,97 @@
+/**
+ * Rates players by the Elo system, so that a player's score says how likely
+ * they are to beat another player rather than just how many games they have
+ * won.
+ * <p>
+ * Each player has a rating, starting at {@link #INITIAL_RATING}. A player
+ * rated 400 above another is expected to score ten times as much against
+ * them, where a win scores 1, a draw scores a half and a loss scores 0.
+ * After each game, both players' ratings move by {@link #K_FACTOR} times the
+ * difference between what the first player scored and what they were
+ * expected to score: up for the player who did better than expected, and
+ * down by the same amount for the other, so that no rating is made or lost
+ * overall.
+ * <p>
+ * A player may be in several games at once, so results are recorded one at
+ * a time, and each update reads and writes both players' ratings under the
+ * same lock.
+ *
+ * @author Tom Galvin
+ */
+public class EloRating {
+    /**
+     * The rating of a player with no stored score.
+     */
+    public static final int INITIAL_RATING = 1500;
+
+    /**
+     * The most a rating can change by after a single game.
+     */
+    public static final int K_FACTOR = 32;
+
+    /**
+     * The score of a player who won.
+     */
+    public static final double WIN = 1.0;
+
+    /**
+     * The score of a player who drew.
+     */
+    public static final double DRAW = 0.5;
+
+    /**
+     * The score of a player who lost.
+     */
+    public static final double LOSS = 0.0;
+
+    private final Object lock = new Object();
+
+    /**
+     * Update the ratings of both players of a finished game, and store them
+     * if the server keeps scores.
+     *
+     * @param first One player of the game.
+     * @param second The other player of the game.
+     * @param firstScore What the first player scored, as {@link #WIN},
+     * {@link #DRAW} or {@link #LOSS}.
+     * @return The change in the first player's rating. The second player's
+     * rating changed by the negation of this. If both players are the same,
+     * neither rating changes, and this is 0.
+     */
+    public int recordResult(ServerThread first, ServerThread second, double firstScore) {
+        if(first == second) {
+            return 0;
+        }
+        synchronized(lock) {
+            int firstRating = first.getScore(), secondRating = second.getScore();
+            int change = getChange(firstRating, secondRating, firstScore);
+            first.setScore(firstRating + change);
+            second.setScore(secondRating - change);
+            return change;
+        }
+    }
+
+    /**
+     * Get the score a player is expected to make against another.
+     *
+     * @param rating The rating of the player.
+     * @param opponentRating The rating of their opponent.
+     * @return The expected score, between 0 and 1.
+     */
+    public static double getExpectedScore(int rating, int opponentRating) {
+        return 1.0 / (1.0 + Math.pow(10.0, (opponentRating - rating) / 400.0));
+    }
+
+    /**
+     * Get the change in a player's rating after a game.
+     *
+     * @param rating The rating of the player before the game.
+     * @param opponentRating The rating of their opponent before the game.
+     * @param score What the player scored, as {@link #WIN}, {@link #DRAW}
+     * or {@link #LOSS}.
+     * @return The amount to add to the player's rating.
+     */
+    public static int getChange(int rating, int opponentRating, double score) {
+        return (int)Math.round(K_FACTOR * (score - getExpectedScore(rating, opponentRating)));
+    }
+}
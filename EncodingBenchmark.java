@@ -0,0 +1,224 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Compares the number of bytes sent on the wire with and without the
+ * compact move encoding ({@link Packet#EXTENSION_COMPACT_MOVES}). This plays
+ * a simulated round-robin tournament through the real server game logic,
+ * with every player simulated in-process, and counts the bytes of every
+ * framed packet sent by the clients and by the server.
+ *
+ * @author Tom Galvin
+ */
+public class EncodingBenchmark {
+    private Map<Integer, long[]> clientPackets;
+    private Map<Integer, long[]> serverPackets;
+    private ByteBufferOutputStream probe;
+    private DataOutputStream probeStream;
+    private ByteBufferOutputStream frame;
+    private DataOutputStream frameStream;
+    private PacketCodec codec;
+
+    /**
+     * Create a new, empty EncodingBenchmark.
+     */
+    public EncodingBenchmark() {
+        this.clientPackets = new TreeMap<Integer, long[]>();
+        this.serverPackets = new TreeMap<Integer, long[]>();
+        this.probe = new ByteBufferOutputStream(256);
+        this.probeStream = new DataOutputStream(probe);
+        this.frame = new ByteBufferOutputStream(256);
+        this.frameStream = new DataOutputStream(frame);
+        this.codec = new FramedPacketCodec();
+    }
+
+    public static void main(String... args) throws IOException {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        EncodingBenchmark original = new EncodingBenchmark();
+        EncodingBenchmark compact = new EncodingBenchmark();
+        int games = original.runTournament(players, seed, 0);
+        compact.runTournament(players, seed, Packet.EXTENSION_COMPACT_MOVES);
+
+        System.out.println(String.format(
+                    "Round-robin tournament of %d players, %d games (seed %d).",
+                    players,
+                    games,
+                    seed
+                    ));
+        System.out.println();
+        System.out.println("Client to server:");
+        printComparison(original.clientPackets, compact.clientPackets, games);
+        System.out.println();
+        System.out.println("Server to clients:");
+        printComparison(original.serverPackets, compact.serverPackets, games);
+    }
+
+    /**
+     * Play every player against every other player twice, once as each
+     * side, making random moves.
+     *
+     * @param playerCount The number of players in the tournament.
+     * @param seed The seed of the random moves.
+     * @param extensions The protocol extensions used by every player.
+     * @return The number of games played.
+     */
+    public int runTournament(int playerCount, long seed, int extensions) throws IOException {
+        Random random = new Random(seed);
+        // Lobby changes and moves run on this thread, so that the packets
+        // they send can be drained straight away.
+        Server server = new Server(ServerOptions.parse("0", "--lobby-shards=0", "--game-threads=0"));
+        boolean compact = (extensions & Packet.EXTENSION_COMPACT_MOVES) != 0;
+
+        // The game logic logs every game to the standard output, which
+        // would drown out the results.
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            ServerThread[] players = new ServerThread[playerCount];
+            for(int i = 0; i < playerCount; i++) {
+                players[i] = new ServerThread(
+                        server,
+                        "player" + i,
+                        0,
+                        new FramedPacketCodec(),
+                        (NioConnection)null);
+                players[i].setExtensions(extensions);
+                players[i].connected();
+            }
+            drain(players);
+
+            int games = 0;
+            for(int i = 0; i < playerCount; i++) {
+                for(int j = 0; j < playerCount; j++) {
+                    if(i != j) {
+                        playGame(server, players[i], players[j], compact, random);
+                        drain(players);
+                        games++;
+                    }
+                }
+            }
+            return games;
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Play one game with random moves.
+     *
+     * @param server The server hosting the game.
+     * @param nought The player playing as nought.
+     * @param cross The player playing as cross, who moves first.
+     * @param compact Whether the players use the compact encoding.
+     * @param random The source of the random moves.
+     */
+    private void playGame(
+            Server server,
+            ServerThread nought,
+            ServerThread cross,
+            boolean compact,
+            Random random) throws IOException {
+        ServerGame game = server.createGame(nought, cross);
+        int gameID = game.getGameID();
+        game.begin();
+
+        ArrayList<Integer> freeCells = new ArrayList<Integer>();
+        for(int cell = 0; cell < 9; cell++) {
+            freeCells.add(cell);
+        }
+
+        ServerThread player = cross;
+        while(server.getGame(gameID) != null) {
+            int cell = freeCells.remove(random.nextInt(freeCells.size()));
+            int x = cell % 3, y = cell / 3;
+            count(clientPackets, o -> MoveEncoding.writeClientMove(o, compact, gameID, BitBoard.SIZE, x, y));
+            game.makeMove(player, x, y);
+            player = player == cross ? nought : cross;
+        }
+    }
+
+    /**
+     * Count every packet queued for the given players.
+     *
+     * @param players The players whose send queues to drain.
+     */
+    private void drain(ServerThread[] players) throws IOException {
+        for(ServerThread player : players) {
+            PacketWriter writer;
+            while((writer = player.pollPacket()) != null) {
+                count(serverPackets, writer);
+            }
+        }
+    }
+
+    /**
+     * Count the framed size of one packet.
+     *
+     * @param packets The tally of packet counts and bytes, by packet ID.
+     * @param writer The writer of the packet.
+     */
+    private void count(Map<Integer, long[]> packets, PacketWriter writer) throws IOException {
+        probe.clear();
+        writer.writePacket(probeStream);
+        int packetID = probe.getInt(0);
+
+        frame.clear();
+        codec.writePacket(writer, frameStream);
+
+        long[] tally = packets.get(packetID);
+        if(tally == null) {
+            packets.put(packetID, tally = new long[2]);
+        }
+        tally[0]++;
+        tally[1] += frame.size();
+    }
+
+    /**
+     * Print the byte counts of both encodings side by side.
+     *
+     * @param original The tally of the original encoding.
+     * @param compact The tally of the compact encoding.
+     * @param games The number of games played.
+     */
+    private static void printComparison(
+            Map<Integer, long[]> original,
+            Map<Integer, long[]> compact,
+            int games) {
+        System.out.println(String.format(
+                    "%10s %10s %14s %14s %8s",
+                    "packet ID", "count", "original (B)", "compact (B)", "saving"));
+        long originalTotal = 0, compactTotal = 0;
+        for(Map.Entry<Integer, long[]> entry : original.entrySet()) {
+            long[] originalTally = entry.getValue();
+            long[] compactTally = compact.get(entry.getKey());
+            originalTotal += originalTally[1];
+            compactTotal += compactTally[1];
+            System.out.println(String.format(
+                        "%10d %10d %14d %14d %7.1f%%",
+                        entry.getKey(),
+                        originalTally[0],
+                        originalTally[1],
+                        compactTally[1],
+                        100.0 * (originalTally[1] - compactTally[1]) / originalTally[1]));
+        }
+        System.out.println(String.format(
+                    "%10s %10s %14d %14d %7.1f%%",
+                    "total", "",
+                    originalTotal,
+                    compactTotal,
+                    100.0 * (originalTotal - compactTotal) / originalTotal));
+        System.out.println(String.format(
+                    "%10s %10s %14.1f %14.1f",
+                    "per game", "",
+                    (double)originalTotal / games,
+                    (double)compactTotal / games));
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the packets and bytes written by send loops, so that the
+ * coalescing of queued packets into batches can be observed. One instance
+ * may be shared by the send loops of many connections.
+ *
+ * @author Tom Galvin
+ */
+public class FlushStatistics {
+    private LongAdder flushes;
+    private LongAdder packets;
+    private LongAdder bytes;
+
+    /**
+     * Create a new, zeroed set of flush statistics.
+     */
+    public FlushStatistics() {
+        this.flushes = new LongAdder();
+        this.packets = new LongAdder();
+        this.bytes = new LongAdder();
+    }
+
+    /**
+     * Record that a batch of packets was written to the network in a single
+     * write call.
+     *
+     * @param packetCount The number of packets in the batch.
+     * @param byteCount The number of bytes written.
+     */
+    public void recordFlush(int packetCount, int byteCount) {
+        flushes.increment();
+        packets.add(packetCount);
+        bytes.add(byteCount);
+    }
+
+    /**
+     * Get the number of write calls made.
+     *
+     * @return The number of write calls made.
+     */
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * Get the number of packets written.
+     *
+     * @return The number of packets written.
+     */
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    /**
+     * Get the number of bytes written.
+     *
+     * @return The number of bytes written.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Get the average number of packets written by each write call.
+     *
+     * @return The average number of packets per flush, or 0 if nothing has
+     * been written yet.
+     */
+    public double getPacketsPerFlush() {
+        long flushCount = getFlushes();
+        return flushCount == 0 ? 0 : (double)getPackets() / flushCount;
+    }
+
+    /**
+     * Get the average number of bytes written by each write call.
+     *
+     * @return The average number of bytes per write call, or 0 if nothing
+     * has been written yet.
+     */
+    public double getBytesPerFlush() {
+        long flushCount = getFlushes();
+        return flushCount == 0 ? 0 : (double)getBytes() / flushCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d packets, %d bytes in %d writes (%.2f packets/write, %.1f bytes/write)",
+                getPackets(),
+                getBytes(),
+                getFlushes(),
+                getPacketsPerFlush(),
+                getBytesPerFlush()
+                );
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The framed tictac2 wire format (protocol version 2). Each packet is sent
+ * as a frame made up of:
+ * <ul>
+ *   <li>the length of the rest of the frame, as a {@link VarInt};</li>
+ *   <li>the packet ID, as a {@link VarInt};</li>
+ *   <li>the fields of the packet, encoded as in the unframed format.</li>
+ * </ul>
+ * As every frame carries its own length, a reader can allocate room for a
+ * whole packet as soon as the length prefix arrives, and can skip packets
+ * with IDs it does not understand without losing its place in the stream.
+ *
+ * @author Tom Galvin
+ */
+public class FramedPacketCodec implements PacketCodec {
+    /**
+     * The largest frame length which will be accepted, to stop a broken or
+     * malicious peer from making the reader allocate huge buffers.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private ByteBufferOutputStream scratch;
+    private DataOutputStream scratchStream;
+    private ByteBuffer frame;
+    private ByteBufferInputStream payloadStream;
+    private DataInputStream payload;
+    private int pendingLength;
+    private int packetLength;
+
+    /**
+     * Create a new FramedPacketCodec.
+     */
+    public FramedPacketCodec() {
+        this.scratch = new ByteBufferOutputStream(256);
+        this.scratchStream = new DataOutputStream(scratch);
+        this.frame = ByteBuffer.allocate(256);
+        this.payloadStream = new ByteBufferInputStream();
+        this.payload = new DataInputStream(payloadStream);
+        this.pendingLength = 0;
+        this.packetLength = 0;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return Packet.PROTOCOL_VERSION;
+    }
+
+    @Override
+    public int writePacket(PacketWriter writer, DataOutputStream out) throws IOException {
+        // The packet writer puts the packet ID in front of the fields as an
+        // int, so write the packet into a scratch buffer first, and then
+        // re-encode the ID as a VarInt behind the length prefix.
+        scratch.clear();
+        writer.writePacket(scratchStream);
+        if(scratch.size() == 0) {
+            // A writer which writes nothing (such as the one used to wake a
+            // send thread when its client leaves) sends no packet at all.
+            return NO_PACKET;
+        }
+        int packetID = scratch.getInt(0);
+        int fieldsLength = scratch.size() - 4;
+
+        VarInt.write(out, VarInt.size(packetID) + fieldsLength);
+        VarInt.write(out, packetID);
+        scratch.copyTo(out, 4);
+        return packetID;
+    }
+
+    @Override
+    public int readPacket(DataInputStream in) throws IOException {
+        int length = checkFrameLength(VarInt.read(in));
+        if(frame.capacity() < length) {
+            frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+        }
+        in.readFully(frame.array(), 0, length);
+        packetLength = VarInt.size(length) + length;
+        payloadStream.reset(frame, 0, length);
+        return VarInt.read(payload);
+    }
+
+    @Override
+    public int decodePacket(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int length = VarInt.peek(buffer, start, buffer.limit());
+        if(length == -1) {
+            pendingLength = 0;
+            return NO_PACKET;
+        }
+        checkFrameLength(length);
+
+        int headerLength = VarInt.size(length);
+        int end = start + headerLength + length;
+        if(end > buffer.limit()) {
+            pendingLength = headerLength + length;
+            return NO_PACKET;
+        }
+        pendingLength = 0;
+        packetLength = headerLength + length;
+        payloadStream.reset(buffer, start + headerLength, length);
+        buffer.position(end);
+        return VarInt.read(payload);
+    }
+
+    @Override
+    public int getPendingLength() {
+        return pendingLength;
+    }
+
+    @Override
+    public int getPacketLength() {
+        return packetLength;
+    }
+
+    @Override
+    public DataInputStream getPayload() {
+        return payload;
+    }
+
+    /**
+     * Check that a received frame length is valid.
+     *
+     * @param length The length of the frame after its length prefix.
+     * @return The given length.
+     * @throws ProtocolException If the length is not valid.
+     */
+    private static int checkFrameLength(int length) throws ProtocolException {
+        if(length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException(String.format(
+                        "Invalid frame length: %d",
+                        length
+                        ));
+        }
+        return length;
+    }
+}
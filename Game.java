@@ -24,7 +24,7 @@ public class Game {
     private String remotePlayerNickname;
     private int gameID;
 
-    private int[][] gameBoard;
+    private Board gameBoard;
     private int gameStatus;
 
     /**
@@ -57,12 +57,16 @@ public class Game {
      * @param localPlayer The tile (nought or cross) that the local player is
      * @param gameID The ID used to identify this game over the network.
      * currently playing.
+     * @param boardSize The width and height of the game board.
+     * @param winLength The number of tiles in a row needed to win.
      */
     public Game(
             GameProvider provider,
             String remotePlayerNickname,
             int localPlayer,
-            int gameID) {
+            int gameID,
+            int boardSize,
+            int winLength) {
         this.provider = provider;
         this.remotePlayerNickname = remotePlayerNickname;
         this.localPlayer = localPlayer;
@@ -71,13 +75,25 @@ public class Game {
         this.canMove = false;
         this.gameStatus = Game.GAME_IN_PROGRESS;
         this.observers = new ArrayList<GameObserver>();
-        this.gameBoard = new int[3][3];
+        this.gameBoard = Board.create(boardSize, winLength);
+    }
 
-        for(int y = 0; y < 3; y++) {
-            for(int x = 0; x < 3; x++) {
-                gameBoard[x][y] = Game.TILE_SPACE;
-            }
-        }
+    /**
+     * Gets the width and height of the board of this game.
+     *
+     * @return The size of the game board.
+     */
+    public int getBoardSize() {
+        return gameBoard.getSize();
+    }
+
+    /**
+     * Gets the number of tiles in a row needed to win this game.
+     *
+     * @return The win length of this game.
+     */
+    public int getWinLength() {
+        return gameBoard.getWinLength();
     }
 
     /**
@@ -173,21 +189,20 @@ public class Game {
     /**
      * Get the value of a given tile.
      *
-     * @param x The X co-ordinate (between 0 and 2).
-     * @param y The Y co-ordinate (between 0 and 2).
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
      * @return The value of the tile. This will be one of the TILE_* constants.
      */
     public int getTileValue(int x, int y) {
-        if(x >= 0 && x < 3 &&
-           y >= 0 && y < 3) {
-            return gameBoard[x][y];
+        if(gameBoard.isOnBoard(x, y)) {
+            return gameBoard.getTile(x, y);
         } else {
             throw new IllegalArgumentException(
                     String.format(
                         "The given tile co-ordinate (%d, %d) is not " +
                         "within the boundaries of the game board (both " +
-                        "indices must be between 0 and 2 inclusive).",
-                        x, y
+                        "indices must be between 0 and %d inclusive).",
+                        x, y, gameBoard.getSize() - 1
                         )
                     );
         }
@@ -196,17 +211,16 @@ public class Game {
     /**
      * Sets the value of the given tile on the board.
      *
-     * @param x The X co-ordinate (between 0 and 2).
-     * @param y The Y co-ordinate (between 0 and 2).
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
      * @param value The value of the tile. This will be one of the TILE_* constants.
      */
     public void setTileValue(int x, int y, int value) {
-        if(x >= 0 && x < 3 &&
-           y >= 0 && y < 3) {
+        if(gameBoard.isOnBoard(x, y)) {
             if(value == Game.TILE_SPACE ||
                value == Game.TILE_NOUGHT ||
                value == Game.TILE_CROSS) {
-                gameBoard[x][y] = value;
+                gameBoard.setTile(x, y, value);
                 for(GameObserver observer : observers) {
                     observer.gameTileChanged(x, y, value);
                 }
@@ -223,8 +237,8 @@ public class Game {
                     String.format(
                         "The given tile co-ordinate (%d, %d) is not " +
                         "within the boundaries of the game board (both " +
-                        "indices must be between 0 and 2 inclusive).",
-                        x, y
+                        "indices must be between 0 and %d inclusive).",
+                        x, y, gameBoard.getSize() - 1
                         )
                     );
         }
@@ -233,8 +247,8 @@ public class Game {
     /**
      * Makes a move by the player at the specified location.
      *
-     * @param x The X co-ordinate (between 0 and 2).
-     * @param y The Y co-ordinate (between 0 and 2).
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
      */
     public void makeMove(int x, int y) {
         provider.makeMove(this, x, y);
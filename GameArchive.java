@@ -0,0 +1,782 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The archive of every finished game, with its players, result and moves,
+ * kept for analysis. The archive is read back with
+ * {@link GameArchiveReader}.
+ * <p>
+ * Finished games are queued in memory, and one background thread writes
+ * them out in blocks of up to {@link #BLOCK_GAMES} games, at most every
+ * {@link #BLOCK_INTERVAL} milliseconds. Each day's games, by UTC, go into
+ * their own file in the archive directory, named
+ * {@code games-<yyyy-mm-dd>.archive}. If the background thread falls too
+ * far behind, further games are dropped rather than held in memory.
+ * <p>
+ * A block is laid out by column rather than by game, so that similar values
+ * sit together and compress well, and then compressed with Deflate. Its
+ * columns are, in order:
+ * <ul>
+ *   <li>the dictionary of nicknames in the block, as a varint count followed
+ *   by each nickname as a varint length and UTF-8 bytes;</li>
+ *   <li>the ID of each game, as the zigzag varint difference from the
+ *   previous game's;</li>
+ *   <li>the time each game ended, as the zigzag varint difference in
+ *   milliseconds from the first end time of the block;</li>
+ *   <li>the nickname of nought, and then of cross, in each game, as varint
+ *   indices into the dictionary;</li>
+ *   <li>the board size and win length of each game, as bytes;</li>
+ *   <li>the result of each game, as a RESULT_* constant in a byte;</li>
+ *   <li>the number of moves in each game, as a varint;</li>
+ *   <li>the moves of each game in turn, starting with cross, each as the
+ *   index {@code y * size + x} of its cell. On boards of up to 16 cells,
+ *   two moves are packed into each byte, high nibble first; on boards of up
+ *   to 256 cells, each move is a byte; and otherwise each move is a
+ *   short.</li>
+ * </ul>
+ * <p>
+ * A file starts with a header of {@link #MAGIC} and {@link #FORMAT}. Each
+ * block is preceded by its compressed size, uncompressed size and game
+ * count as ints, its first and last end times as longs, and the CRC-32 of
+ * its compressed bytes as an int. When a file is closed, an index of its
+ * blocks is written after the last block: an int of -1, the number of
+ * blocks as an int, and for each block its position and size as longs, its
+ * game count as an int, and its first and last end times as longs. This is
+ * followed by the position of the index and {@link #MAGIC}, as longs. A
+ * file which was not closed has no index, and its blocks are found by
+ * reading each block's header in turn.
+ *
+ * @author Tom Galvin
+ */
+public class GameArchive {
+    /**
+     * The first eight bytes of a game archive, being "TT2ARCHV" in ASCII.
+     */
+    public static final long MAGIC = 0x5454324152434856L;
+
+    /**
+     * The version of the archive format, written after {@link #MAGIC}.
+     */
+    public static final int FORMAT = 1;
+
+    /**
+     * The most games written in one block.
+     */
+    public static final int BLOCK_GAMES = 8192;
+
+    /**
+     * The longest time, in milliseconds, that a finished game waits before
+     * being written.
+     */
+    public static final int BLOCK_INTERVAL = 10000;
+
+    /**
+     * A game won by cross.
+     */
+    public static final int RESULT_CROSS_WON = 0;
+
+    /**
+     * A game won by nought.
+     */
+    public static final int RESULT_NOUGHT_WON = 1;
+
+    /**
+     * A game which filled its board without either side winning.
+     */
+    public static final int RESULT_DRAWN = 2;
+
+    /**
+     * A game terminated early, by a player forfeiting or disconnecting.
+     */
+    public static final int RESULT_TERMINATED = 3;
+
+    static final int HEADER_SIZE = 12;
+    static final int BLOCK_HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY_SIZE = 36;
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * The most games waiting to be written, past which further games are
+     * dropped.
+     */
+    private static final int MAX_QUEUED = 64 * BLOCK_GAMES;
+
+    /**
+     * One finished game, as it is archived.
+     */
+    public static class ArchivedGame {
+        private int gameID;
+        private long endTime;
+        private String noughtNickname;
+        private String crossNickname;
+        private int boardSize;
+        private int winLength;
+        private int result;
+        private short[] moves;
+
+        /**
+         * Create a new ArchivedGame.
+         *
+         * @param gameID The ID of the game.
+         * @param endTime The time the game ended, in milliseconds since the
+         * epoch.
+         * @param noughtNickname The nickname of the player playing as
+         * nought.
+         * @param crossNickname The nickname of the player playing as cross.
+         * @param boardSize The width and height of the game board.
+         * @param winLength The number of tiles in a row needed to win.
+         * @param result The result of the game, as a RESULT_* constant.
+         * @param moves The moves made in turn, starting with cross, each as
+         * the index {@code y * boardSize + x} of its cell.
+         */
+        public ArchivedGame(
+                int gameID,
+                long endTime,
+                String noughtNickname,
+                String crossNickname,
+                int boardSize,
+                int winLength,
+                int result,
+                short[] moves) {
+            this.gameID = gameID;
+            this.endTime = endTime;
+            this.noughtNickname = noughtNickname;
+            this.crossNickname = crossNickname;
+            this.boardSize = boardSize;
+            this.winLength = winLength;
+            this.result = result;
+            this.moves = moves;
+        }
+
+        /**
+         * Get the ID of the game.
+         *
+         * @return The ID of the game.
+         */
+        public int getGameID() {
+            return gameID;
+        }
+
+        /**
+         * Get the time the game ended.
+         *
+         * @return The end time, in milliseconds since the epoch.
+         */
+        public long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * Get the nickname of the player playing as nought.
+         *
+         * @return The nickname of nought.
+         */
+        public String getNoughtNickname() {
+            return noughtNickname;
+        }
+
+        /**
+         * Get the nickname of the player playing as cross.
+         *
+         * @return The nickname of cross.
+         */
+        public String getCrossNickname() {
+            return crossNickname;
+        }
+
+        /**
+         * Get the width and height of the board of the game.
+         *
+         * @return The size of the game board.
+         */
+        public int getBoardSize() {
+            return boardSize;
+        }
+
+        /**
+         * Get the number of tiles in a row needed to win the game.
+         *
+         * @return The win length of the game.
+         */
+        public int getWinLength() {
+            return winLength;
+        }
+
+        /**
+         * Get the result of the game.
+         *
+         * @return The result, as a RESULT_* constant.
+         */
+        public int getResult() {
+            return result;
+        }
+
+        /**
+         * Get the moves made in the game.
+         *
+         * @return The moves made in turn, starting with cross, each as the
+         * index {@code y * boardSize + x} of its cell.
+         */
+        public short[] getMoves() {
+            return moves;
+        }
+    }
+
+    /**
+     * The position and summary of one block in an archive file.
+     */
+    public static class BlockInfo {
+        private long position;
+        private long size;
+        private int gameCount;
+        private long firstEndTime;
+        private long lastEndTime;
+
+        /**
+         * Create a new BlockInfo.
+         *
+         * @param position The position of the block's header in the file.
+         * @param size The size of the block, including its header.
+         * @param gameCount The number of games in the block.
+         * @param firstEndTime The earliest end time of a game in the block.
+         * @param lastEndTime The latest end time of a game in the block.
+         */
+        public BlockInfo(long position, long size, int gameCount, long firstEndTime, long lastEndTime) {
+            this.position = position;
+            this.size = size;
+            this.gameCount = gameCount;
+            this.firstEndTime = firstEndTime;
+            this.lastEndTime = lastEndTime;
+        }
+
+        /**
+         * Get the position of the block's header in the file.
+         *
+         * @return The position of the block.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Get the size of the block in the file, including its header.
+         *
+         * @return The size of the block in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the number of games in the block.
+         *
+         * @return The number of games.
+         */
+        public int getGameCount() {
+            return gameCount;
+        }
+
+        /**
+         * Get the earliest end time of a game in the block.
+         *
+         * @return The first end time, in milliseconds since the epoch.
+         */
+        public long getFirstEndTime() {
+            return firstEndTime;
+        }
+
+        /**
+         * Get the latest end time of a game in the block.
+         *
+         * @return The last end time, in milliseconds since the epoch.
+         */
+        public long getLastEndTime() {
+            return lastEndTime;
+        }
+    }
+
+    private Path directory;
+    private ServerLog log;
+    private ConcurrentLinkedQueue<ArchivedGame> queue;
+    private AtomicInteger queued;
+    private AtomicLong dropped;
+
+    /**
+     * The file being written, the day whose games it holds, its blocks, and
+     * the position after its last block. These are only used by the
+     * background thread.
+     */
+    private FileChannel channel;
+    private LocalDate day;
+    private List<BlockInfo> blocks;
+    private long end;
+    private Deflater deflater;
+    private CRC32 checksum;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    /**
+     * Create a new GameArchive, which is not yet started.
+     *
+     * @param directory The directory in which to keep the archive files.
+     * @param log The server log, to which failed writes are reported.
+     */
+    private GameArchive(Path directory, ServerLog log) {
+        this.directory = directory;
+        this.log = log;
+        this.queue = new ConcurrentLinkedQueue<ArchivedGame>();
+        this.queued = new AtomicInteger(0);
+        this.dropped = new AtomicLong(0);
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.checksum = new CRC32();
+    }
+
+    /**
+     * Open the archive in the given directory, creating the directory if it
+     * does not exist, and start the background thread which writes to it.
+     *
+     * @param directory The directory in which to keep the archive files.
+     * @param log The server log, to which failed writes are reported.
+     * @return The opened archive.
+     * @throws IOException If the directory cannot be created.
+     */
+    public static GameArchive open(Path directory, ServerLog log) throws IOException {
+        Files.createDirectories(directory);
+        GameArchive archive = new GameArchive(directory, log);
+        archive.running = true;
+        archive.writerThread = new Thread(() -> archive.runWriter(), "archive-writer");
+        archive.writerThread.setDaemon(true);
+        archive.writerThread.start();
+        return archive;
+    }
+
+    /**
+     * Get the path of the archive file holding the games which ended on the
+     * given day.
+     *
+     * @param directory The directory in which the archive files are kept.
+     * @param day The day, in UTC.
+     * @return The path of the archive file.
+     */
+    public static Path getPath(Path directory, LocalDate day) {
+        return directory.resolve("games-" + day + ".archive");
+    }
+
+    /**
+     * Queue a finished game to be archived. This returns straight away; the
+     * game is written by the background thread.
+     *
+     * @param game The finished game.
+     */
+    public void add(ArchivedGame game) {
+        int count = queued.incrementAndGet();
+        if(count > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(game);
+        if(count == BLOCK_GAMES) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Stop the background thread, once it has written every queued game,
+     * and close the archive.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The main body of the background thread, which writes the queued games
+     * at a fixed interval until the archive is closed.
+     */
+    private void runWriter() {
+        while(running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(BLOCK_INTERVAL));
+            writeQueued();
+        }
+        writeQueued();
+        try {
+            closeFile();
+        } catch(IOException e) {
+            log.error("archive.close_failed", e);
+        }
+        deflater.end();
+    }
+
+    /**
+     * Write every queued game, in blocks which each hold games from only one
+     * day.
+     */
+    private void writeQueued() {
+        long droppedGames = dropped.getAndSet(0);
+        if(droppedGames > 0) {
+            log.log(ServerLog.LEVEL_WARN, "archive.dropped", "games", Long.toString(droppedGames));
+        }
+        List<ArchivedGame> block = new ArrayList<ArchivedGame>();
+        LocalDate blockDay = null;
+        try {
+            ArchivedGame game;
+            while((game = queue.poll()) != null) {
+                queued.decrementAndGet();
+                LocalDate gameDay = dayOf(game.getEndTime());
+                if(block.size() == BLOCK_GAMES || (blockDay != null && !gameDay.equals(blockDay))) {
+                    writeBlock(blockDay, block);
+                    block.clear();
+                }
+                blockDay = gameDay;
+                block.add(game);
+            }
+            if(!block.isEmpty()) {
+                writeBlock(blockDay, block);
+            }
+            if(channel != null) {
+                channel.force(false);
+            }
+        } catch(IOException e) {
+            log.error("archive.write_failed", e);
+        }
+    }
+
+    /**
+     * Get the day, in UTC, of a time.
+     *
+     * @param time The time, in milliseconds since the epoch.
+     * @return The day of the time.
+     */
+    private static LocalDate dayOf(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    /**
+     * Encode, compress and write one block of games to the file of their
+     * day.
+     *
+     * @param blockDay The day on which the games ended.
+     * @param games The games in the block.
+     */
+    private void writeBlock(LocalDate blockDay, List<ArchivedGame> games) throws IOException {
+        if(!blockDay.equals(day)) {
+            closeFile();
+            openFile(blockDay);
+        }
+
+        long firstEndTime = Long.MAX_VALUE, lastEndTime = Long.MIN_VALUE;
+        for(ArchivedGame game : games) {
+            firstEndTime = Math.min(firstEndTime, game.getEndTime());
+            lastEndTime = Math.max(lastEndTime, game.getEndTime());
+        }
+        byte[] raw = encode(games, firstEndTime);
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] chunk = new byte[1 << 16];
+        while(!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            compressed.write(chunk, 0, length);
+        }
+        byte[] data = compressed.toByteArray();
+        checksum.reset();
+        checksum.update(data);
+
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE)
+            .putInt(data.length)
+            .putInt(raw.length)
+            .putInt(games.size())
+            .putLong(firstEndTime)
+            .putLong(lastEndTime)
+            .putInt((int)checksum.getValue());
+        header.flip();
+        writeFully(header, end);
+        writeFully(ByteBuffer.wrap(data), end + BLOCK_HEADER_SIZE);
+        long size = BLOCK_HEADER_SIZE + data.length;
+        blocks.add(new BlockInfo(end, size, games.size(), firstEndTime, lastEndTime));
+        end += size;
+    }
+
+    /**
+     * Lay out a block of games by column.
+     *
+     * @param games The games in the block.
+     * @param firstEndTime The earliest end time of the games.
+     * @return The uncompressed block.
+     */
+    private static byte[] encode(List<ArchivedGame> games, long firstEndTime) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> nicknames = new ArrayList<String>();
+        int[] noughts = new int[games.size()];
+        int[] crosses = new int[games.size()];
+        int moveCount = 0;
+        for(int i = 0; i < games.size(); i++) {
+            ArchivedGame game = games.get(i);
+            noughts[i] = dictionary.computeIfAbsent(game.getNoughtNickname(), n -> {
+                nicknames.add(n);
+                return nicknames.size() - 1;
+            });
+            crosses[i] = dictionary.computeIfAbsent(game.getCrossNickname(), n -> {
+                nicknames.add(n);
+                return nicknames.size() - 1;
+            });
+            moveCount += game.getMoves().length;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(games.size() * 16 + moveCount * 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        VarInt.write(out, nicknames.size());
+        for(String nickname : nicknames) {
+            byte[] utf = nickname.getBytes(StandardCharsets.UTF_8);
+            VarInt.write(out, utf.length);
+            out.write(utf);
+        }
+        int previousID = 0;
+        for(ArchivedGame game : games) {
+            VarInt.write(out, zigzag(game.getGameID() - previousID));
+            previousID = game.getGameID();
+        }
+        for(ArchivedGame game : games) {
+            VarInt.write(out, zigzag((int)(game.getEndTime() - firstEndTime)));
+        }
+        for(int nought : noughts) {
+            VarInt.write(out, nought);
+        }
+        for(int cross : crosses) {
+            VarInt.write(out, cross);
+        }
+        for(ArchivedGame game : games) {
+            out.writeByte(game.getBoardSize());
+            out.writeByte(game.getWinLength());
+        }
+        for(ArchivedGame game : games) {
+            out.writeByte(game.getResult());
+        }
+        for(ArchivedGame game : games) {
+            VarInt.write(out, game.getMoves().length);
+        }
+        for(ArchivedGame game : games) {
+            short[] moves = game.getMoves();
+            int cells = game.getBoardSize() * game.getBoardSize();
+            if(cells <= 16) {
+                for(int i = 0; i < moves.length; i += 2) {
+                    int low = i + 1 < moves.length ? moves[i + 1] : 0;
+                    out.writeByte((moves[i] << 4) | low);
+                }
+            } else if(cells <= 256) {
+                for(short move : moves) {
+                    out.writeByte(move);
+                }
+            } else {
+                for(short move : moves) {
+                    out.writeShort(move);
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Map a signed value onto an unsigned one, so that small negative values
+     * take as few bytes as small positive ones when written as a varint.
+     *
+     * @param value The signed value.
+     * @return The zigzag-encoded value.
+     */
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Open the archive file of a day for appending, reading the index of any
+     * blocks already in it.
+     *
+     * @param fileDay The day whose games the file holds.
+     */
+    private void openFile(LocalDate fileDay) throws IOException {
+        Path path = getPath(directory, fileDay);
+        channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        day = fileDay;
+        if(channel.size() == 0) {
+            blocks = new ArrayList<BlockInfo>();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putInt(FORMAT);
+            header.flip();
+            writeFully(header, 0);
+            end = HEADER_SIZE;
+        } else {
+            // The index, or any partly written block, is written over by the
+            // next block.
+            blocks = readIndex(channel, path);
+            end = blocks.isEmpty() ?
+                HEADER_SIZE :
+                blocks.get(blocks.size() - 1).getPosition() + blocks.get(blocks.size() - 1).getSize();
+            channel.truncate(end);
+        }
+    }
+
+    /**
+     * Write the index of the current file after its last block, and close
+     * it.
+     */
+    private void closeFile() throws IOException {
+        if(channel == null) {
+            return;
+        }
+        ByteBuffer index = ByteBuffer.allocate(8 + blocks.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        index.putInt(-1).putInt(blocks.size());
+        for(BlockInfo block : blocks) {
+            index.putLong(block.getPosition())
+                .putLong(block.getSize())
+                .putInt(block.getGameCount())
+                .putLong(block.getFirstEndTime())
+                .putLong(block.getLastEndTime());
+        }
+        index.putLong(end).putLong(MAGIC);
+        index.flip();
+        writeFully(index, end);
+        channel.force(true);
+        channel.close();
+        channel = null;
+        day = null;
+    }
+
+    /**
+     * Write the whole of a buffer to the current file.
+     *
+     * @param buffer The bytes to write.
+     * @param position The position in the file to write them at.
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Read the index of the blocks in an archive file. If the file has no
+     * index, as it was not closed, every block is read to check it, up to
+     * the first which is incomplete or corrupt.
+     *
+     * @param channel The archive file.
+     * @param path The path of the file, for error messages.
+     * @return The blocks in the file, in order.
+     * @throws IOException If the file cannot be read, or is not a game
+     * archive.
+     */
+    static List<BlockInfo> readIndex(FileChannel channel, Path path) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if(!readFully(channel, header, 0) || header.getLong(0) != MAGIC) {
+            throw new IOException("Not a game archive: " + path);
+        }
+        if(header.getInt(8) != FORMAT) {
+            throw new IOException(String.format(
+                        "Unsupported game archive format %d: %s",
+                        header.getInt(8),
+                        path));
+        }
+
+        List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        if(size >= HEADER_SIZE + 8 + TRAILER_SIZE &&
+           readFully(channel, trailer, size - TRAILER_SIZE) &&
+           trailer.getLong(8) == MAGIC &&
+           trailer.getLong(0) >= HEADER_SIZE &&
+           trailer.getLong(0) <= size - TRAILER_SIZE - 8) {
+            long indexPosition = trailer.getLong(0);
+            ByteBuffer index = ByteBuffer.allocate((int)(size - TRAILER_SIZE - indexPosition));
+            if(readFully(channel, index, indexPosition) && index.getInt(0) == -1) {
+                int count = index.getInt(4);
+                index.position(8);
+                for(int i = 0; i < count; i++) {
+                    blocks.add(new BlockInfo(
+                                index.getLong(),
+                                index.getLong(),
+                                index.getInt(),
+                                index.getLong(),
+                                index.getLong()));
+                }
+                return blocks;
+            }
+        }
+
+        CRC32 checksum = new CRC32();
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long position = HEADER_SIZE;
+        while(readFully(channel, blockHeader.clear(), position)) {
+            int compressedSize = blockHeader.getInt(0);
+            if(compressedSize <= 0 || position + BLOCK_HEADER_SIZE + compressedSize > size) {
+                break;
+            }
+            ByteBuffer data = ByteBuffer.allocate(compressedSize);
+            readFully(channel, data, position + BLOCK_HEADER_SIZE);
+            checksum.reset();
+            checksum.update(data.array());
+            if((int)checksum.getValue() != blockHeader.getInt(28)) {
+                break;
+            }
+            blocks.add(new BlockInfo(
+                        position,
+                        BLOCK_HEADER_SIZE + compressedSize,
+                        blockHeader.getInt(8),
+                        blockHeader.getLong(12),
+                        blockHeader.getLong(20)));
+            position += BLOCK_HEADER_SIZE + compressedSize;
+        }
+        return blocks;
+    }
+
+    /**
+     * Read from a file until the buffer is full.
+     *
+     * @param channel The file to read from.
+     * @param buffer The buffer to fill.
+     * @param position The position in the file to read from.
+     * @return {@code false} if the end of the file was reached first.
+     */
+    static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read == -1) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+}
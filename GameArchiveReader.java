@@ -0,0 +1,323 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the games back out of one file of a {@link GameArchive}.
+ * <p>
+ * The blocks of the file are listed by its index, so each block can be read
+ * on its own, such as to read only the games which ended within a given
+ * time. Every block is independent of the others, and reading a block
+ * touches no shared state, so a whole file is read fastest by reading its
+ * blocks in parallel.
+ * <p>
+ * Usage: {@code java GameArchiveReader <archive file>...}, which reads
+ * every game in the given files and prints how many there were, their
+ * results and how fast they were read.
+ *
+ * @author Tom Galvin
+ */
+public class GameArchiveReader implements Closeable {
+    private Path path;
+    private FileChannel channel;
+    private List<GameArchive.BlockInfo> blocks;
+
+    /**
+     * Open an archive file and read its index.
+     *
+     * @param path The path of the archive file.
+     * @throws IOException If the file cannot be read, or is not a game
+     * archive.
+     */
+    public GameArchiveReader(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.blocks = GameArchive.readIndex(channel, path);
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the blocks in the file.
+     *
+     * @return The blocks, in the order they were written.
+     */
+    public List<GameArchive.BlockInfo> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Get the number of games in the file.
+     *
+     * @return The number of games.
+     */
+    public long getGameCount() {
+        long games = 0;
+        for(GameArchive.BlockInfo block : blocks) {
+            games += block.getGameCount();
+        }
+        return games;
+    }
+
+    /**
+     * Read every game in the file, one block after another.
+     *
+     * @param consumer Given each game, in the order they were written.
+     * @throws IOException If a block cannot be read, or is corrupt.
+     */
+    public void scan(Consumer<GameArchive.ArchivedGame> consumer) throws IOException {
+        for(GameArchive.BlockInfo block : blocks) {
+            readBlock(block, consumer);
+        }
+    }
+
+    /**
+     * Read every game in one block of the file. This may be called from
+     * several threads at once.
+     *
+     * @param block The block to read, from {@link #getBlocks()}.
+     * @param consumer Given each game in the block, in the order they were
+     * written.
+     * @throws IOException If the block cannot be read, or is corrupt.
+     */
+    public void readBlock(
+            GameArchive.BlockInfo block,
+            Consumer<GameArchive.ArchivedGame> consumer) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int)block.getSize());
+        if(!GameArchive.readFully(channel, data, block.getPosition())) {
+            throw corrupt(block, "it is cut short");
+        }
+        int compressedSize = data.getInt(0);
+        int rawSize = data.getInt(4);
+        int gameCount = data.getInt(8);
+        long firstEndTime = data.getLong(12);
+        if(compressedSize != block.getSize() - GameArchive.BLOCK_HEADER_SIZE || rawSize < 0) {
+            throw corrupt(block, "its header does not match the index");
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), GameArchive.BLOCK_HEADER_SIZE, compressedSize);
+        if((int)checksum.getValue() != data.getInt(28)) {
+            throw corrupt(block, "its checksum does not match");
+        }
+
+        byte[] raw = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data.array(), GameArchive.BLOCK_HEADER_SIZE, compressedSize);
+            int inflated = 0;
+            while(inflated < rawSize && !inflater.finished()) {
+                int length = inflater.inflate(raw, inflated, rawSize - inflated);
+                if(length == 0 && inflater.needsInput()) {
+                    break;
+                }
+                inflated += length;
+            }
+            if(inflated != rawSize) {
+                throw corrupt(block, "it decompresses to the wrong size");
+            }
+        } catch(DataFormatException e) {
+            throw corrupt(block, e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        try {
+            decode(ByteBuffer.wrap(raw), gameCount, firstEndTime, consumer);
+        } catch(RuntimeException e) {
+            throw corrupt(block, e.toString());
+        }
+    }
+
+    /**
+     * Decode the columns of an uncompressed block into games.
+     *
+     * @param in The uncompressed block.
+     * @param gameCount The number of games in the block.
+     * @param firstEndTime The earliest end time of the games.
+     * @param consumer Given each game in the block.
+     */
+    private static void decode(
+            ByteBuffer in,
+            int gameCount,
+            long firstEndTime,
+            Consumer<GameArchive.ArchivedGame> consumer) {
+        String[] dictionary = new String[readVarInt(in)];
+        for(int i = 0; i < dictionary.length; i++) {
+            int length = readVarInt(in);
+            dictionary[i] = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        }
+        int[] gameIDs = new int[gameCount];
+        int gameID = 0;
+        for(int i = 0; i < gameCount; i++) {
+            gameID += unzigzag(readVarInt(in));
+            gameIDs[i] = gameID;
+        }
+        long[] endTimes = new long[gameCount];
+        for(int i = 0; i < gameCount; i++) {
+            endTimes[i] = firstEndTime + unzigzag(readVarInt(in));
+        }
+        int[] noughts = new int[gameCount];
+        for(int i = 0; i < gameCount; i++) {
+            noughts[i] = readVarInt(in);
+        }
+        int[] crosses = new int[gameCount];
+        for(int i = 0; i < gameCount; i++) {
+            crosses[i] = readVarInt(in);
+        }
+        int[] boardSizes = new int[gameCount];
+        int[] winLengths = new int[gameCount];
+        for(int i = 0; i < gameCount; i++) {
+            boardSizes[i] = in.get();
+            winLengths[i] = in.get();
+        }
+        int[] results = new int[gameCount];
+        for(int i = 0; i < gameCount; i++) {
+            results[i] = in.get();
+        }
+        int[] moveCounts = new int[gameCount];
+        for(int i = 0; i < gameCount; i++) {
+            moveCounts[i] = readVarInt(in);
+        }
+        for(int i = 0; i < gameCount; i++) {
+            short[] moves = new short[moveCounts[i]];
+            int cells = boardSizes[i] * boardSizes[i];
+            if(cells <= 16) {
+                for(int j = 0; j < moves.length; j += 2) {
+                    int packed = in.get() & 0xFF;
+                    moves[j] = (short)(packed >>> 4);
+                    if(j + 1 < moves.length) {
+                        moves[j + 1] = (short)(packed & 0xF);
+                    }
+                }
+            } else if(cells <= 256) {
+                for(int j = 0; j < moves.length; j++) {
+                    moves[j] = (short)(in.get() & 0xFF);
+                }
+            } else {
+                for(int j = 0; j < moves.length; j++) {
+                    moves[j] = in.getShort();
+                }
+            }
+            consumer.accept(new GameArchive.ArchivedGame(
+                        gameIDs[i],
+                        endTimes[i],
+                        dictionary[noughts[i]],
+                        dictionary[crosses[i]],
+                        boardSizes[i],
+                        winLengths[i],
+                        results[i],
+                        moves));
+        }
+    }
+
+    /**
+     * Read a varint, in the format of {@link VarInt}, from a buffer.
+     *
+     * @param in The buffer to read from.
+     * @return The value read.
+     */
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("A varint is too long.");
+    }
+
+    /**
+     * Undo {@link GameArchive#zigzag}.
+     *
+     * @param value The zigzag-encoded value.
+     * @return The signed value.
+     */
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Create the exception thrown when a block cannot be read.
+     *
+     * @param block The block which cannot be read.
+     * @param reason Why the block cannot be read.
+     * @return The exception.
+     */
+    private IOException corrupt(GameArchive.BlockInfo block, String reason) {
+        return new IOException(String.format(
+                    "The block at %d of %s is corrupt, as %s.",
+                    block.getPosition(),
+                    path,
+                    reason));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String... args) throws Exception {
+        if(args.length == 0) {
+            System.out.println("Usage:");
+            System.out.println();
+            System.out.println("java GameArchiveReader <archive file>...");
+            return;
+        }
+        LongAdder games = new LongAdder();
+        LongAdder moves = new LongAdder();
+        LongAdder[] results = new LongAdder[4];
+        for(int i = 0; i < results.length; i++) {
+            results[i] = new LongAdder();
+        }
+        long bytes = 0;
+        long start = System.nanoTime();
+        for(String arg : args) {
+            try(GameArchiveReader reader = new GameArchiveReader(Paths.get(arg))) {
+                bytes += reader.channel.size();
+                reader.getBlocks().parallelStream().forEach(block -> {
+                    try {
+                        reader.readBlock(block, game -> {
+                            games.increment();
+                            moves.add(game.getMoves().length);
+                            results[game.getResult()].increment();
+                        });
+                    } catch(IOException e) {
+                        System.out.println(e.getMessage());
+                    }
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(
+                    "Read %d games with %d moves from %.1f MB in %.2f s (%.1f MB/s, %.0f games/s).",
+                    games.sum(),
+                    moves.sum(),
+                    bytes / 1e6,
+                    seconds,
+                    bytes / 1e6 / seconds,
+                    games.sum() / seconds));
+        System.out.println(String.format(
+                    "Cross won %d, nought won %d, drawn %d, terminated %d.",
+                    results[GameArchive.RESULT_CROSS_WON].sum(),
+                    results[GameArchive.RESULT_NOUGHT_WON].sum(),
+                    results[GameArchive.RESULT_DRAWN].sum(),
+                    results[GameArchive.RESULT_TERMINATED].sum()));
+    }
+}
@@ -0,0 +1,658 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead journal of the games in progress on the server, from
+ * which they are recovered after the server restarts.
+ * <p>
+ * Every game appends a record to the journal when it begins, for each move
+ * made in it, and when it ends, before the players are told. Appending a
+ * record only copies it into a buffer in memory. One background thread
+ * takes everything in the buffer at a fixed interval, writes it to the file
+ * as one batch, and forces it to disk, so the cost of forcing the file is
+ * shared by every move made within the interval. If the server dies, the
+ * moves of at most the last interval are lost, and those games resume from
+ * the move before.
+ * <p>
+ * The background thread also keeps the records of every game still in
+ * progress. Once the journal has grown large, and mostly holds games which
+ * have ended, it is compacted, by writing the records of the games in
+ * progress to a new file and moving it over the journal. The journal is
+ * also compacted whenever it is opened. A compacted journal starts with a
+ * checkpoint of the highest game ID ever journalled, so that the IDs of
+ * games which have ended are not given out again after a restart, even if
+ * no game was in progress.
+ * <p>
+ * The file starts with a header of {@link #MAGIC} and {@link #FORMAT},
+ * after which each batch is its length as an int, its records, and the
+ * CRC-32 of its records as an int. A batch which was only partly written
+ * before a crash fails its checksum, and it and everything after it are
+ * discarded. Each record starts with its type, as a RECORD_* constant, and
+ * the ID of its game as an int:
+ * <ul>
+ *   <li>{@link #RECORD_BEGIN} is followed by the board size and win length
+ *   as bytes, and the nicknames of nought and cross as a short length and
+ *   UTF-8 bytes;</li>
+ *   <li>{@link #RECORD_MOVE} is followed by the X and Y co-ordinates of the
+ *   move as bytes;</li>
+ *   <li>{@link #RECORD_END} is followed by nothing;</li>
+ *   <li>{@link #RECORD_CHECKPOINT} is followed by nothing, and its game ID
+ *   is the highest game ID journalled before it.</li>
+ * </ul>
+ * Journals in {@link #FORMAT_NO_CHECKPOINT} are read in the same way, and
+ * are rewritten in the current format when they are opened.
+ *
+ * @author Tom Galvin
+ */
+public class GameJournal {
+    /**
+     * The first eight bytes of a game journal, being "TT2GAMES" in ASCII.
+     */
+    public static final long MAGIC = 0x54543247414d4553L;
+
+    /**
+     * The version of the journal format, written after {@link #MAGIC}.
+     */
+    public static final int FORMAT = 2;
+
+    /**
+     * The journal format from before {@link #RECORD_CHECKPOINT}, which holds
+     * every other record in the same layout.
+     */
+    public static final int FORMAT_NO_CHECKPOINT = 1;
+
+    /**
+     * A game beginning between two players.
+     */
+    public static final byte RECORD_BEGIN = 1;
+
+    /**
+     * A move made in a game, by whichever player's turn it was.
+     */
+    public static final byte RECORD_MOVE = 2;
+
+    /**
+     * A game ending, for any reason.
+     */
+    public static final byte RECORD_END = 3;
+
+    /**
+     * The highest game ID journalled so far, written when the journal is
+     * compacted, as the games which had it may have ended.
+     */
+    public static final byte RECORD_CHECKPOINT = 4;
+
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * The number of bytes waiting in the buffer at which the background
+     * thread is woken early, rather than at its next interval.
+     */
+    private static final int WAKE_SIZE = 1 << 20;
+
+    /**
+     * The smallest size of journal, in bytes, which is compacted while the
+     * server is running. It is only compacted once it is also four times
+     * larger than the records of the games in progress.
+     */
+    private static final long COMPACT_SIZE = 64L << 20;
+
+    /**
+     * A game recovered from the journal, which was in progress when the
+     * server stopped.
+     */
+    public static class RecoveredGame {
+        private int gameID;
+        private int boardSize;
+        private int winLength;
+        private String noughtNickname;
+        private String crossNickname;
+        private List<int[]> moves;
+
+        /**
+         * Create a new RecoveredGame with no moves.
+         */
+        private RecoveredGame(
+                int gameID,
+                int boardSize,
+                int winLength,
+                String noughtNickname,
+                String crossNickname) {
+            this.gameID = gameID;
+            this.boardSize = boardSize;
+            this.winLength = winLength;
+            this.noughtNickname = noughtNickname;
+            this.crossNickname = crossNickname;
+            this.moves = new ArrayList<int[]>();
+        }
+
+        /**
+         * Get the ID of the game.
+         *
+         * @return The ID of the game.
+         */
+        public int getGameID() {
+            return gameID;
+        }
+
+        /**
+         * Get the width and height of the board of the game.
+         *
+         * @return The size of the game board.
+         */
+        public int getBoardSize() {
+            return boardSize;
+        }
+
+        /**
+         * Get the number of tiles in a row needed to win the game.
+         *
+         * @return The win length of the game.
+         */
+        public int getWinLength() {
+            return winLength;
+        }
+
+        /**
+         * Get the nickname of the player playing as nought.
+         *
+         * @return The nickname of nought.
+         */
+        public String getNoughtNickname() {
+            return noughtNickname;
+        }
+
+        /**
+         * Get the nickname of the player playing as cross.
+         *
+         * @return The nickname of cross.
+         */
+        public String getCrossNickname() {
+            return crossNickname;
+        }
+
+        /**
+         * Get the moves made in the game, in turn starting with cross.
+         *
+         * @return The moves, each as its X and Y co-ordinates.
+         */
+        public List<int[]> getMoves() {
+            return moves;
+        }
+    }
+
+    private Path path;
+    private ServerLog log;
+    private long flushIntervalNanos;
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * The records appended since the last batch was taken. This is guarded
+     * by the journal's lock.
+     */
+    private ByteBuffer pending;
+
+    /**
+     * The batch being written by the background thread, which is swapped
+     * with {@link #pending} to take a batch.
+     */
+    private ByteBuffer writing;
+
+    /**
+     * The records of every game in progress, by game ID, and their total
+     * size. These are only used by the thread opening the journal, and then
+     * by the background thread.
+     */
+    private Map<Integer, ByteArrayOutputStream> live;
+    private long liveSize;
+    private int lastGameID;
+    private List<RecoveredGame> recovered;
+    private CRC32 checksum;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    /**
+     * Create a new GameJournal, which is not yet read or started.
+     *
+     * @param path The path of the journal.
+     * @param flushIntervalMillis The time between batches, in milliseconds.
+     * @param log The server log, to which failed writes are reported.
+     */
+    private GameJournal(Path path, long flushIntervalMillis, ServerLog log) {
+        this.path = path;
+        this.log = log;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.pending = ByteBuffer.allocate(1 << 16);
+        this.writing = ByteBuffer.allocate(1 << 16);
+        this.live = new HashMap<Integer, ByteArrayOutputStream>();
+        this.checksum = new CRC32();
+    }
+
+    /**
+     * Open the journal at the given path, creating it if it does not exist,
+     * recover the games in progress from it, compact it, and start the
+     * background thread which writes to it.
+     *
+     * @param path The path of the journal.
+     * @param flushIntervalMillis The time between batches, in milliseconds.
+     * @param log The server log, to which failed writes are reported.
+     * @return The opened journal.
+     * @throws IOException If the journal cannot be opened, or is not a game
+     * journal.
+     */
+    public static GameJournal open(Path path, long flushIntervalMillis, ServerLog log) throws IOException {
+        GameJournal journal = new GameJournal(path, flushIntervalMillis, log);
+        journal.load();
+        journal.running = true;
+        journal.writerThread = new Thread(() -> journal.runWriter(), "journal-writer");
+        journal.writerThread.setDaemon(true);
+        journal.writerThread.start();
+        return journal;
+    }
+
+    /**
+     * Get the games which were in progress when the journal was last
+     * closed, or when the server last stopped.
+     *
+     * @return The recovered games, in order of game ID.
+     */
+    public List<RecoveredGame> getRecoveredGames() {
+        return recovered;
+    }
+
+    /**
+     * Get the highest ID of any game in the journal when it was opened,
+     * including games which had ended before it was last compacted. New
+     * games should be given higher IDs.
+     *
+     * @return The highest game ID in the journal, or 0 if it was empty.
+     */
+    public int getLastGameID() {
+        return lastGameID;
+    }
+
+    /**
+     * Append a record of a game beginning.
+     *
+     * @param gameID The ID of the game.
+     * @param boardSize The width and height of the game board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @param noughtNickname The nickname of the player playing as nought.
+     * @param crossNickname The nickname of the player playing as cross.
+     */
+    public void begin(
+            int gameID,
+            int boardSize,
+            int winLength,
+            String noughtNickname,
+            String crossNickname) {
+        byte[] nought = noughtNickname.getBytes(StandardCharsets.UTF_8);
+        byte[] cross = crossNickname.getBytes(StandardCharsets.UTF_8);
+        synchronized(this) {
+            ensureRoom(11 + nought.length + cross.length);
+            pending.put(RECORD_BEGIN)
+                .putInt(gameID)
+                .put((byte)boardSize)
+                .put((byte)winLength)
+                .putShort((short)nought.length)
+                .put(nought)
+                .putShort((short)cross.length)
+                .put(cross);
+        }
+    }
+
+    /**
+     * Append a record of a move made in a game.
+     *
+     * @param gameID The ID of the game.
+     * @param x The X co-ordinate of the move.
+     * @param y The Y co-ordinate of the move.
+     */
+    public synchronized void move(int gameID, int x, int y) {
+        ensureRoom(7);
+        pending.put(RECORD_MOVE).putInt(gameID).put((byte)x).put((byte)y);
+    }
+
+    /**
+     * Append a record of a game ending.
+     *
+     * @param gameID The ID of the game.
+     */
+    public synchronized void end(int gameID) {
+        ensureRoom(5);
+        pending.put(RECORD_END).putInt(gameID);
+    }
+
+    /**
+     * Make sure there is room for a record in the buffer, growing it if
+     * needed, and wake the background thread if the buffer is filling up.
+     * This must be called with the journal's lock held.
+     *
+     * @param recordSize The size of the record in bytes.
+     */
+    private void ensureRoom(int recordSize) {
+        if(pending.remaining() < recordSize) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + recordSize));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        if(pending.position() >= WAKE_SIZE && writerThread != null) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Stop the background thread, once it has written every record, and
+     * close the journal.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Open the journal, replay every batch in it, and compact it.
+     */
+    private void load() throws IOException {
+        channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        size = fileSize;
+        if(fileSize > 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if(!readFully(header, 0) || header.getLong(0) != MAGIC) {
+                throw new IOException("Not a game journal: " + path);
+            }
+            int format = header.getInt(8);
+            if(format != FORMAT && format != FORMAT_NO_CHECKPOINT) {
+                throw new IOException(String.format(
+                            "Unsupported game journal format %d: %s",
+                            header.getInt(8),
+                            path));
+            }
+
+            long position = HEADER_SIZE;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while(readFully(length.clear(), position)) {
+                int batchSize = length.getInt(0);
+                if(batchSize <= 0 || position + 8 + batchSize > fileSize) {
+                    break;
+                }
+                ByteBuffer batch = ByteBuffer.allocate(batchSize + 4);
+                if(!readFully(batch, position + 4)) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update(batch.array(), 0, batchSize);
+                if((int)checksum.getValue() != batch.getInt(batchSize)) {
+                    break;
+                }
+                batch.flip().limit(batchSize);
+                replay(batch);
+                position += 8 + batchSize;
+            }
+        }
+
+        recovered = new ArrayList<RecoveredGame>();
+        for(ByteArrayOutputStream records : live.values()) {
+            recovered.add(decode(ByteBuffer.wrap(records.toByteArray())));
+        }
+        recovered.sort((a, b) -> Integer.compare(a.getGameID(), b.getGameID()));
+        compact();
+    }
+
+    /**
+     * Read from the journal until the buffer is full.
+     *
+     * @param buffer The buffer to fill.
+     * @param position The position in the journal to read from.
+     * @return {@code false} if the end of the journal was reached first.
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read == -1) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * Apply a batch of records to the records of the games in progress. The
+     * batch must be backed by an array.
+     *
+     * @param batch The records, between the buffer's position and limit.
+     */
+    private void replay(ByteBuffer batch) {
+        while(batch.hasRemaining()) {
+            int start = batch.position();
+            byte type = batch.get();
+            int gameID = batch.getInt();
+            if(type == RECORD_BEGIN) {
+                batch.position(batch.position() + 2);
+                batch.position(batch.position() + 2 + (batch.getShort() & 0xFFFF));
+                batch.position(batch.position() + 2 + (batch.getShort() & 0xFFFF));
+                ByteArrayOutputStream records = new ByteArrayOutputStream(64);
+                records.write(batch.array(), batch.arrayOffset() + start, batch.position() - start);
+                ByteArrayOutputStream replaced = live.put(gameID, records);
+                liveSize += records.size() - (replaced == null ? 0 : replaced.size());
+                lastGameID = Math.max(lastGameID, gameID);
+            } else if(type == RECORD_MOVE) {
+                batch.position(batch.position() + 2);
+                ByteArrayOutputStream records = live.get(gameID);
+                if(records != null) {
+                    records.write(batch.array(), batch.arrayOffset() + start, 7);
+                    liveSize += 7;
+                }
+            } else if(type == RECORD_END) {
+                ByteArrayOutputStream records = live.remove(gameID);
+                if(records != null) {
+                    liveSize -= records.size();
+                }
+            } else if(type == RECORD_CHECKPOINT) {
+                lastGameID = Math.max(lastGameID, gameID);
+            } else {
+                // The checksum matched, so this can only be a bug, but the
+                // rest of the batch cannot be read without knowing the size
+                // of this record.
+                ServerLog.Event event = log.begin(ServerLog.LEVEL_ERROR, "journal.corrupt");
+                if(event != null) {
+                    event.with("type", type).with("game", gameID).publish();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decode the records of one game in progress.
+     *
+     * @param records The records of the game, starting with its
+     * {@link #RECORD_BEGIN}.
+     * @return The game.
+     */
+    private static RecoveredGame decode(ByteBuffer records) {
+        records.get();
+        int gameID = records.getInt();
+        int boardSize = records.get();
+        int winLength = records.get();
+        String nought = readString(records);
+        String cross = readString(records);
+        RecoveredGame game = new RecoveredGame(gameID, boardSize, winLength, nought, cross);
+        while(records.hasRemaining()) {
+            records.position(records.position() + 5);
+            game.moves.add(new int[] { records.get(), records.get() });
+        }
+        return game;
+    }
+
+    /**
+     * Read a nickname, written as a short length and UTF-8 bytes.
+     *
+     * @param records The buffer to read from.
+     * @return The nickname.
+     */
+    private static String readString(ByteBuffer records) {
+        int length = records.getShort() & 0xFFFF;
+        String value = new String(
+                records.array(),
+                records.arrayOffset() + records.position(),
+                length,
+                StandardCharsets.UTF_8);
+        records.position(records.position() + length);
+        return value;
+    }
+
+    /**
+     * The main body of the background thread, which writes a batch at a
+     * fixed interval until the journal is closed.
+     */
+    private void runWriter() {
+        while(running) {
+            LockSupport.parkNanos(flushIntervalNanos);
+            flush();
+        }
+        flush();
+        try {
+            channel.close();
+        } catch(IOException e) {
+            log.error("journal.close_failed", e);
+        }
+    }
+
+    /**
+     * Write every record appended since the last batch as one batch, force
+     * it to disk, and compact the journal if it has grown too far.
+     */
+    private void flush() {
+        ByteBuffer batch;
+        synchronized(this) {
+            if(pending.position() == 0) {
+                return;
+            }
+            batch = pending;
+            pending = writing;
+            writing = batch;
+        }
+        batch.flip();
+        try {
+            writeBatch(channel, batch);
+            channel.force(false);
+            batch.rewind();
+            replay(batch);
+            if(size > COMPACT_SIZE && size > 4 * liveSize) {
+                compact();
+            }
+        } catch(IOException e) {
+            log.error("journal.write_failed", e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Write one batch to the end of a journal, framed by its length and
+     * checksum.
+     *
+     * @param out The journal to write to.
+     * @param batch The records of the batch, between the buffer's position
+     * and limit.
+     */
+    private void writeBatch(FileChannel out, ByteBuffer batch) throws IOException {
+        checksum.reset();
+        checksum.update(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+        ByteBuffer[] frame = {
+            ByteBuffer.allocate(4).putInt(0, batch.remaining()),
+            batch,
+            ByteBuffer.allocate(4).putInt(0, (int)checksum.getValue())
+        };
+        long frameSize = 8 + batch.remaining();
+        long written = 0;
+        while(written < frameSize) {
+            written += out.write(frame);
+        }
+        size += frameSize;
+    }
+
+    /**
+     * Write the records of every game in progress to a new journal, and
+     * move it over the current journal.
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        long before = size;
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        size = HEADER_SIZE;
+        try(FileChannel out = FileChannel.open(
+                    compacted,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putInt(FORMAT);
+            header.flip();
+            while(header.hasRemaining()) {
+                out.write(header);
+            }
+            ByteBuffer batch = ByteBuffer.allocate(WAKE_SIZE);
+            batch.put(RECORD_CHECKPOINT).putInt(lastGameID);
+            for(ByteArrayOutputStream records : live.values()) {
+                if(batch.remaining() < records.size() && batch.position() > 0) {
+                    writeBatch(out, batch.flip());
+                    batch.clear();
+                }
+                if(batch.remaining() < records.size()) {
+                    batch = ByteBuffer.allocate(records.size());
+                }
+                batch.put(records.toByteArray());
+            }
+            if(batch.position() > 0) {
+                writeBatch(out, batch.flip());
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(
+                compacted,
+                path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+
+        ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "journal.compacted");
+        if(event != null) {
+            event.with("before", before)
+                .with("after", size)
+                .with("games", live.size())
+                .with("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .publish();
+        }
+    }
+}
@@ -7,8 +7,8 @@ public interface GameObserver {
     /**
      * Invoked when a tile on the game board changes.
      *
-     * @param x The X co-ordinate (between 0 and 2).
-     * @param y The Y co-ordinate (between 0 and 2).
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
      * @param value The new value of this tile. This will be one of the TILE_* constants in {@link Game}.
      */
     public void gameTileChanged(int x, int y, int value);
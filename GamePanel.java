@@ -33,7 +33,9 @@ public class GamePanel extends JPanel implements GameObserver {
                 );
         frame.setVisible(true);
         frame.add(new GamePanel(game, frame));
-        frame.setSize(300, 340);
+        // Give each tile at least 40 pixels on larger boards.
+        int boardPixels = Math.max(300, game.getBoardSize() * 40);
+        frame.setSize(boardPixels, boardPixels + 40);
         frame.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
@@ -67,12 +69,14 @@ public class GamePanel extends JPanel implements GameObserver {
         add(gameStateLabel = new JLabel(
                     "Waiting for game to begin..."
                     ), BorderLayout.SOUTH);
-        add(buttons = new JButtonGrid(3, 3), BorderLayout.CENTER);
-        for(int i = 0; i < 3; i++) {
-            for(int j = 0; j < 3; j++) {
+        int size = game.getBoardSize();
+        float fontSize = size > 3 ? 14f : 24f;
+        add(buttons = new JButtonGrid(size, size), BorderLayout.CENTER);
+        for(int i = 0; i < size; i++) {
+            for(int j = 0; j < size; j++) {
                 final int x = i, y = j;
                 JButton button = buttons.getButton(x, y);
-                button.setFont(button.getFont().deriveFont(24f));
+                button.setFont(button.getFont().deriveFont(fontSize));
                 button.addActionListener(e -> {
                     attemptToMakeMove(x, y);
                 });
@@ -83,8 +87,8 @@ public class GamePanel extends JPanel implements GameObserver {
     /**
      * Attempt to make a move at the given co-ordinate.
      *
-     * @param x The X co-ordinate (between 0 and 2).
-     * @param y The Y co-ordinate (between 0 and 2).
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
      */
     public void attemptToMakeMove(int x, int y) {
         JButton button = buttons.getButton(x, y);
@@ -9,8 +9,8 @@ public interface GameProvider {
      * position on the game board.
      *
      * @param game The game in which the move is being made.
-     * @param x The X co-ordinate (between 0 and 2).
-     * @param y The Y co-ordinate (between 0 and 2).
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
      */
     public void makeMove(Game game, int x, int y);
 
@@ -0,0 +1,400 @@
+import java.util.Random;
+
+/**
+ * Chooses moves on boards too large to solve outright, by an alpha-beta
+ * search bounded by time rather than by depth.
+ * <p>
+ * The search deepens one ply at a time until its time runs out, and plays
+ * the best move of the deepest search it finished. Positions are keyed by
+ * Zobrist hashing, and every search shares one {@link TranspositionTable},
+ * so each deeper search is ordered by the best moves of the last, and one
+ * move of a game reuses the work of the moves before it. Only the empty
+ * cells within two cells of a tile are searched, as a move far from any
+ * other cannot take part in a line soon enough to matter.
+ * <p>
+ * A GameSearch holds no state of its own besides the shared table, so it
+ * may be used by several threads at once.
+ *
+ * @author Tom Galvin
+ */
+public class GameSearch {
+    /**
+     * The score of winning with the last move, less the number of moves
+     * searched to find it, so that a quicker win scores higher.
+     */
+    private static final int WIN = 1000000;
+
+    /**
+     * The deepest the search is ever allowed to go, in plies.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * The number of nodes searched between each check of the time.
+     */
+    private static final int CHECK_INTERVAL = 1024;
+
+    /**
+     * The steps along each of the four directions in which a line can run.
+     */
+    private static final int[][] DIRECTIONS = { { 1, 0 }, { 0, 1 }, { 1, 1 }, { 1, -1 } };
+
+    /**
+     * The Zobrist key of each tile in each cell of the largest board, indexed
+     * by {@code cell * 3 + tile}.
+     */
+    private final long[] cellKeys;
+
+    /**
+     * The Zobrist key of each board variant, indexed by
+     * {@code size * (MAX_SIZE + 1) + winLength}, so that positions on
+     * different variants never share an entry.
+     */
+    private final long[] variantKeys;
+    private final TranspositionTable table;
+
+    /**
+     * Create a new GameSearch.
+     *
+     * @param table The transposition table shared by every search.
+     */
+    public GameSearch(TranspositionTable table) {
+        this.table = table;
+        Random random = new Random(0x7474324CL);
+        this.cellKeys = new long[Board.MAX_SIZE * Board.MAX_SIZE * 3];
+        for(int i = 0; i < cellKeys.length; i++) {
+            cellKeys[i] = random.nextLong();
+        }
+        this.variantKeys = new long[(Board.MAX_SIZE + 1) * (Board.MAX_SIZE + 1)];
+        for(int i = 0; i < variantKeys.length; i++) {
+            variantKeys[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Choose a move for the given player.
+     *
+     * @param board The board of the game, which is left as it was.
+     * @param tile The tile of the player to move.
+     * @param thinkNanos The time to spend searching, in nanoseconds. A move
+     * which wins at once, or blocks the opponent winning at once, is played
+     * without searching.
+     * @return The cell to play, as {@code y * size + x}, or -1 if the board
+     * is full.
+     */
+    public int chooseMove(Board board, int tile, long thinkNanos) {
+        return new Search(board, tile, System.nanoTime() + thinkNanos).run();
+    }
+
+    /**
+     * One search for a move, on its own copy of the board.
+     */
+    private class Search {
+        private int size;
+        private int winLength;
+        private int[] cells;
+        private int tile;
+        private long key;
+        private long deadline;
+        private long nodes;
+        private boolean aborted;
+
+        /**
+         * Create a new Search.
+         *
+         * @param board The board to search from.
+         * @param tile The tile of the player to move.
+         * @param deadline The value of {@link System#nanoTime()} at which
+         * to stop searching.
+         */
+        public Search(Board board, int tile, long deadline) {
+            this.size = board.getSize();
+            this.winLength = board.getWinLength();
+            this.cells = new int[size * size];
+            this.tile = tile;
+            this.deadline = deadline;
+            this.key = variantKeys[size * (Board.MAX_SIZE + 1) + winLength];
+            for(int cell = 0; cell < cells.length; cell++) {
+                cells[cell] = board.getTile(cell % size, cell / size);
+                key ^= cellKeys[cell * 3 + cells[cell]];
+            }
+        }
+
+        /**
+         * Run the search.
+         *
+         * @return The cell to play, or -1 if the board is full.
+         */
+        public int run() {
+            int[] moves = candidates();
+            if(moves.length == 0) {
+                return -1;
+            }
+            int opponent = other(tile);
+            for(int move : moves) {
+                if(wins(move, tile)) {
+                    return move;
+                }
+            }
+            for(int move : moves) {
+                if(wins(move, opponent)) {
+                    return move;
+                }
+            }
+
+            int best = moves[0];
+            int maxDepth = Math.min(MAX_DEPTH, countEmpty());
+            for(int depth = 1; depth <= maxDepth; depth++) {
+                int score = negamax(depth, 0, -WIN - 1, WIN + 1, tile);
+                if(aborted) {
+                    break;
+                }
+                int move = TranspositionTable.getMove(table.get(key));
+                if(move >= 0) {
+                    best = move;
+                }
+                // Once the result is certain, searching deeper cannot change it.
+                if(Math.abs(score) > WIN - MAX_DEPTH) {
+                    break;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Search the position to the given depth.
+         *
+         * @param depth The number of plies left to search.
+         * @param ply The number of plies searched so far.
+         * @param alpha The lowest score the player to move is sure of.
+         * @param beta The highest score the opponent allows.
+         * @param toMove The tile of the player to move.
+         * @return The score of the position for the player to move.
+         */
+        private int negamax(int depth, int ply, int alpha, int beta, int toMove) {
+            if(++nodes % CHECK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+                aborted = true;
+            }
+            if(aborted) {
+                return 0;
+            }
+            if(depth == 0) {
+                return evaluate(toMove);
+            }
+
+            int originalAlpha = alpha;
+            int hashMove = -1;
+            long entry = table.get(key);
+            if(entry != 0) {
+                hashMove = TranspositionTable.getMove(entry);
+                if(TranspositionTable.getDepth(entry) >= depth) {
+                    int score = TranspositionTable.getScore(entry);
+                    int bound = TranspositionTable.getBound(entry);
+                    if(bound == TranspositionTable.EXACT ||
+                       (bound == TranspositionTable.LOWER && score >= beta) ||
+                       (bound == TranspositionTable.UPPER && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+
+            int[] moves = candidates();
+            if(moves.length == 0) {
+                return 0;
+            }
+            // Search the best move of an earlier search first.
+            for(int i = 0; i < moves.length; i++) {
+                if(moves[i] == hashMove) {
+                    moves[i] = moves[0];
+                    moves[0] = hashMove;
+                    break;
+                }
+            }
+
+            int best = -WIN - 1, bestMove = moves[0];
+            for(int move : moves) {
+                int score;
+                place(move, toMove);
+                if(isWin(move)) {
+                    score = WIN - ply - 1;
+                } else {
+                    score = -negamax(depth - 1, ply + 1, -beta, -alpha, other(toMove));
+                }
+                place(move, Game.TILE_SPACE);
+                if(aborted) {
+                    return 0;
+                }
+                if(score > best) {
+                    best = score;
+                    bestMove = move;
+                }
+                if(best > alpha) {
+                    alpha = best;
+                }
+                if(alpha >= beta) {
+                    break;
+                }
+            }
+
+            int bound = best <= originalAlpha ? TranspositionTable.UPPER :
+                        best >= beta ? TranspositionTable.LOWER :
+                        TranspositionTable.EXACT;
+            table.put(key, best, depth, bound, bestMove);
+            return best;
+        }
+
+        /**
+         * Score a position without searching it, by counting the windows of
+         * {@code winLength} cells which only one player has tiles in. Each
+         * such window is worth four times as much for each tile it holds.
+         *
+         * @param toMove The tile of the player to move.
+         * @return The score of the position for the player to move.
+         */
+        private int evaluate(int toMove) {
+            int score = 0;
+            for(int[] direction : DIRECTIONS) {
+                int dx = direction[0], dy = direction[1];
+                for(int y = 0; y < size; y++) {
+                    int endY = y + dy * (winLength - 1);
+                    if(endY < 0 || endY >= size) {
+                        continue;
+                    }
+                    for(int x = 0; x + dx * (winLength - 1) < size; x++) {
+                        int mine = 0, theirs = 0;
+                        for(int i = 0; i < winLength; i++) {
+                            int t = cells[(y + dy * i) * size + x + dx * i];
+                            if(t == toMove) {
+                                mine++;
+                            } else if(t != Game.TILE_SPACE) {
+                                theirs++;
+                            }
+                        }
+                        if(theirs == 0 && mine > 0) {
+                            score += 1 << Math.min(2 * mine, 20);
+                        } else if(mine == 0 && theirs > 0) {
+                            score -= 1 << Math.min(2 * theirs, 20);
+                        }
+                    }
+                }
+            }
+            // Keep the score clear of the scores of won games.
+            return Math.max(-WIN / 2, Math.min(WIN / 2, score));
+        }
+
+        /**
+         * Find the cells worth searching: the empty cells within two cells
+         * of a tile, or the centre of the board if it is empty.
+         *
+         * @return The cells, in the order they are on the board.
+         */
+        private int[] candidates() {
+            int[] found = new int[cells.length];
+            int count = 0;
+            boolean empty = true;
+            for(int cell = 0; cell < cells.length; cell++) {
+                if(cells[cell] != Game.TILE_SPACE) {
+                    empty = false;
+                    continue;
+                }
+                int x = cell % size, y = cell / size;
+                search:
+                for(int ny = Math.max(0, y - 2); ny <= Math.min(size - 1, y + 2); ny++) {
+                    for(int nx = Math.max(0, x - 2); nx <= Math.min(size - 1, x + 2); nx++) {
+                        if(cells[ny * size + nx] != Game.TILE_SPACE) {
+                            found[count++] = cell;
+                            break search;
+                        }
+                    }
+                }
+            }
+            if(empty) {
+                return new int[] { (size / 2) * size + size / 2 };
+            }
+            int[] candidates = new int[count];
+            System.arraycopy(found, 0, candidates, 0, count);
+            return candidates;
+        }
+
+        /**
+         * Place a tile in a cell, or clear it, keeping the key of the
+         * position up to date.
+         *
+         * @param cell The cell.
+         * @param tile The tile to place, or {@code Game.TILE_SPACE} to clear
+         * the cell.
+         */
+        private void place(int cell, int tile) {
+            key ^= cellKeys[cell * 3 + cells[cell]];
+            cells[cell] = tile;
+            key ^= cellKeys[cell * 3 + tile];
+        }
+
+        /**
+         * Determine whether placing a tile in an empty cell would win.
+         *
+         * @param cell The empty cell.
+         * @param tile The tile to place.
+         * @return {@code true} if the tile would complete a line.
+         */
+        private boolean wins(int cell, int tile) {
+            cells[cell] = tile;
+            boolean win = isWin(cell);
+            cells[cell] = Game.TILE_SPACE;
+            return win;
+        }
+
+        /**
+         * Determine whether the tile in a cell is part of a line of
+         * {@code winLength} tiles.
+         *
+         * @param cell The cell.
+         * @return {@code true} if the tile is part of a winning line.
+         */
+        private boolean isWin(int cell) {
+            int tile = cells[cell];
+            int x = cell % size, y = cell / size;
+            for(int[] direction : DIRECTIONS) {
+                int run = 1;
+                for(int sign = -1; sign <= 1; sign += 2) {
+                    int nx = x + direction[0] * sign, ny = y + direction[1] * sign;
+                    while(nx >= 0 && nx < size && ny >= 0 && ny < size &&
+                          cells[ny * size + nx] == tile) {
+                        run++;
+                        nx += direction[0] * sign;
+                        ny += direction[1] * sign;
+                    }
+                }
+                if(run >= winLength) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Count the empty cells on the board.
+         *
+         * @return The number of empty cells.
+         */
+        private int countEmpty() {
+            int empty = 0;
+            for(int t : cells) {
+                if(t == Game.TILE_SPACE) {
+                    empty++;
+                }
+            }
+            return empty;
+        }
+    }
+
+    /**
+     * Get the tile of the other player.
+     *
+     * @param tile The tile of one player.
+     * @return The tile of the other player.
+     */
+    private static int other(int tile) {
+        return tile == Game.TILE_CROSS ? Game.TILE_NOUGHT : Game.TILE_CROSS;
+    }
+}
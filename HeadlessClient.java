@@ -0,0 +1,56 @@
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A client with no user interface, for simulated players. Rather than
+ * opening a window, the lobby is given to an observer, which is notified of
+ * everything happening in the lobby and can act on the client's behalf.
+ * Losing the connection to the server does not exit the application.
+ *
+ * @author Tom Galvin
+ */
+public class HeadlessClient extends Client {
+    private LobbyObserver observer;
+    private volatile boolean connected;
+
+    /**
+     * Create a new HeadlessClient.
+     *
+     * @param nickname The nickname with which to connect to the server.
+     * @param hostName The hostname of the server.
+     * @param port The port on which the server listens.
+     * @param threadFactory The factory which creates the send thread.
+     * @param observer The observer of the lobby, once connected.
+     */
+    public HeadlessClient(
+            String nickname,
+            String hostName,
+            int port,
+            ThreadFactory threadFactory,
+            LobbyObserver observer) {
+        super(nickname, hostName, port, threadFactory);
+        this.observer = observer;
+        this.connected = false;
+    }
+
+    /**
+     * Determines whether this client is connected to the server.
+     *
+     * @return {@code true} if the client has connected, and not yet
+     * disconnected.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    protected void openLobby(Lobby lobby) {
+        lobby.addObserver(observer);
+        connected = true;
+    }
+
+    @Override
+    protected void exit(int status) {
+        connected = false;
+        disconnect();
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds,
+ * which many threads can record into at once without locking. Values are
+ * counted in buckets whose width grows with the value: every power of two
+ * is split into 16 buckets, so any percentile read back is within about 6%
+ * of the true value, while the whole range of a {@code long} takes fewer
+ * than a thousand buckets.
+ *
+ * @author Tom Galvin
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private AtomicLongArray counts;
+    private LongAdder count;
+    private LongAdder sum;
+    private AtomicLong max;
+
+    /**
+     * Create a new, empty LatencyHistogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Get the index of the bucket holding the given value.
+     *
+     * @param value The value, which must not be negative.
+     * @return The index of the bucket.
+     */
+    private static int bucketOf(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the smallest value held by the given bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The smallest value in the bucket.
+     */
+    private static long lowestValueOf(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + subBucket) << shift;
+    }
+
+    /**
+     * Record one value.
+     *
+     * @param value The value to record. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the sum of the values recorded.
+     *
+     * @return The sum of the values recorded.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     *
+     * @return The mean, or 0 if no values have been recorded.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double)sum.sum() / n;
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return The largest value, or 0 if no values have been recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values
+     * fall.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The highest value of the bucket holding the percentile (but no
+     * more than the largest value recorded), or 0 if no values have been
+     * recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= target) {
+                long highest = i + 1 < BUCKETS ? lowestValueOf(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(highest, getMax());
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,237 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The players connected to the server, ranked by score, so that a client can
+ * be told the best players, or the rank of any player, without being sent
+ * every player on the server.
+ * <p>
+ * The leaderboard is kept up to date as players connect, leave and change
+ * score, rather than sorted when asked. Players are held in a tree ordered
+ * by score, so the best players are read off its start in logarithmic time
+ * plus the number read. Alongside the tree, the number of players with each
+ * score is kept in a Fenwick tree, so the number of players with a higher
+ * score than a player, and so their rank, is also found in logarithmic
+ * time. Scores below 0 or above {@link #MAX_SCORE} are counted as 0 or
+ * {@link #MAX_SCORE}, which only affects the ranks of players beyond them.
+ * <p>
+ * Players with the same score share the same rank, and are listed in order
+ * of nickname. Every method locks the leaderboard, as scores change on the
+ * games' threads while clients ask for ranks on their own.
+ *
+ * @author Tom Galvin
+ */
+public class Leaderboard {
+    /**
+     * The highest score which is counted exactly when ranking players.
+     */
+    public static final int MAX_SCORE = (1 << 16) - 1;
+
+    /**
+     * The most players a client may ask for at once.
+     */
+    public static final int MAX_TOP = 100;
+
+    /**
+     * One player on the leaderboard.
+     */
+    public static class Entry implements Comparable<Entry> {
+        private String nickname;
+        private int score;
+
+        /**
+         * Create a new Entry.
+         *
+         * @param nickname The nickname of the player.
+         * @param score The score of the player.
+         */
+        public Entry(String nickname, int score) {
+            this.nickname = nickname;
+            this.score = score;
+        }
+
+        /**
+         * Get the nickname of the player.
+         *
+         * @return The nickname.
+         */
+        public String getNickname() {
+            return nickname;
+        }
+
+        /**
+         * Get the score of the player.
+         *
+         * @return The score.
+         */
+        public int getScore() {
+            return score;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if(score != other.score) {
+                return score > other.score ? -1 : 1;
+            }
+            return nickname.compareTo(other.nickname);
+        }
+    }
+
+    /**
+     * The entry of every player, by nickname.
+     */
+    private HashMap<String, Entry> entries;
+
+    /**
+     * Every entry, from the highest score to the lowest.
+     */
+    private TreeSet<Entry> ranked;
+
+    /**
+     * The Fenwick tree of the number of players with each score, indexed
+     * from 1 by the score plus 1.
+     */
+    private int[] counts;
+
+    /**
+     * Create a new, empty Leaderboard.
+     */
+    public Leaderboard() {
+        this.entries = new HashMap<String, Entry>();
+        this.ranked = new TreeSet<Entry>();
+        this.counts = new int[MAX_SCORE + 2];
+    }
+
+    /**
+     * Add a player to the leaderboard, or change their score if they are
+     * already on it.
+     *
+     * @param nickname The nickname of the player.
+     * @param score The score of the player.
+     */
+    public synchronized void add(String nickname, int score) {
+        remove(nickname);
+        Entry entry = new Entry(nickname, score);
+        entries.put(nickname, entry);
+        ranked.add(entry);
+        count(score, 1);
+    }
+
+    /**
+     * Change the score of a player on the leaderboard. A player who is not
+     * on the leaderboard, such as one who has already left, is not added.
+     *
+     * @param nickname The nickname of the player.
+     * @param score The new score of the player.
+     */
+    public synchronized void update(String nickname, int score) {
+        Entry entry = entries.get(nickname);
+        if(entry != null && entry.score != score) {
+            add(nickname, score);
+        }
+    }
+
+    /**
+     * Take a player off the leaderboard, if they are on it.
+     *
+     * @param nickname The nickname of the player.
+     */
+    public synchronized void remove(String nickname) {
+        Entry entry = entries.remove(nickname);
+        if(entry != null) {
+            ranked.remove(entry);
+            count(entry.score, -1);
+        }
+    }
+
+    /**
+     * Get the number of players on the leaderboard.
+     *
+     * @return The number of players.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the score of a player on the leaderboard.
+     *
+     * @param nickname The nickname of the player.
+     * @return The score of the player, or 0 if they are not on the
+     * leaderboard.
+     */
+    public synchronized int getScore(String nickname) {
+        Entry entry = entries.get(nickname);
+        return entry == null ? 0 : entry.score;
+    }
+
+    /**
+     * Get the rank of a player: one more than the number of players with a
+     * higher score.
+     *
+     * @param nickname The nickname of the player.
+     * @return The rank of the player, from 1, or 0 if they are not on the
+     * leaderboard.
+     */
+    public synchronized int getRank(String nickname) {
+        Entry entry = entries.get(nickname);
+        if(entry == null) {
+            return 0;
+        }
+        return entries.size() - countUpTo(entry.score) + 1;
+    }
+
+    /**
+     * Get the players with the highest scores.
+     *
+     * @param count The most players to get.
+     * @return The players, from the highest score to the lowest.
+     */
+    public synchronized List<Entry> getTop(int count) {
+        List<Entry> top = new ArrayList<Entry>(Math.min(count, entries.size()));
+        Iterator<Entry> it = ranked.iterator();
+        while(top.size() < count && it.hasNext()) {
+            top.add(it.next());
+        }
+        return top;
+    }
+
+    /**
+     * Add to the number of players with a score.
+     *
+     * @param score The score.
+     * @param delta The number of players to add, or -1 to take one away.
+     */
+    private void count(int score, int delta) {
+        for(int i = index(score); i < counts.length; i += i & -i) {
+            counts[i] += delta;
+        }
+    }
+
+    /**
+     * Count the players with a score no higher than the given score.
+     *
+     * @param score The score.
+     * @return The number of players.
+     */
+    private int countUpTo(int score) {
+        int total = 0;
+        for(int i = index(score); i > 0; i -= i & -i) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Get the index of a score in {@link #counts}.
+     *
+     * @param score The score.
+     * @return The index, from 1.
+     */
+    private static int index(int score) {
+        return Math.max(0, Math.min(MAX_SCORE, score)) + 1;
+    }
+}
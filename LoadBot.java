@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.JOptionPane;
+
+/**
+ * A simulated player used by the {@link LoadGenerator}. Each bot connects
+ * with its own {@link HeadlessClient}, and is paired with one other bot:
+ * the challenging bot of a pair keeps challenging its partner to new games
+ * for as long as the load generator is running, and its partner accepts
+ * each challenge. If the load generator spreads the bots over several
+ * lobbies, both bots of a pair first move into the same lobby. If the
+ * load generator uses matchmaking instead, every bot queues for a match,
+ * and queues again after each game, and reports how long it waited to be
+ * paired. Both bots then play the game out with random or ordered
+ * moves, reporting the latency of every move they make.
+ * <p>
+ * Every event is handled on the client's own network thread, so a bot
+ * needs no locking of its own.
+ *
+ * @author Tom Galvin
+ */
+public class LoadBot implements LobbyObserver, GameObserver {
+    private LoadGenerator generator;
+    private HeadlessClient client;
+    private String nickname;
+    private String partnerNickname;
+    private String lobbyName;
+    private Random random;
+
+    /**
+     * Whether this bot is in the lobby it plays in, and so may challenge its
+     * partner once it sees the partner there.
+     */
+    private boolean inLobby;
+    private boolean challenged;
+    private Game game;
+
+    /**
+     * The time at which this bot was told it was queued for a match, or -1
+     * if it is not queued.
+     */
+    private long queuedAt;
+
+    /**
+     * The time at which the last move was sent, or -1 if no move is
+     * waiting to be confirmed by the server.
+     */
+    private long moveSentAt;
+
+    /**
+     * Create a new LoadBot.
+     *
+     * @param generator The load generator to report to.
+     * @param nickname The nickname of this bot.
+     * @param partnerNickname The nickname of the bot which this bot
+     * challenges, or {@code null} if this bot only accepts challenges.
+     * @param lobbyName The name of the lobby this bot plays in, or
+     * {@code null} to stay in the server's default lobby.
+     * @param seed The seed of this bot's random moves.
+     */
+    public LoadBot(
+            LoadGenerator generator,
+            String nickname,
+            String partnerNickname,
+            String lobbyName,
+            long seed) {
+        this.generator = generator;
+        this.nickname = nickname;
+        this.partnerNickname = partnerNickname;
+        this.lobbyName = lobbyName;
+        this.random = new Random(seed);
+
+        this.inLobby = lobbyName == null;
+        this.challenged = false;
+        this.game = null;
+        this.moveSentAt = -1;
+        this.queuedAt = -1;
+    }
+
+    /**
+     * Connect this bot to the server, on a new thread.
+     *
+     * @param hostName The hostname of the server.
+     * @param port The port on which the server listens.
+     * @param threadFactory The factory of the client's threads.
+     */
+    public void connect(String hostName, int port, ThreadFactory threadFactory) {
+        client = new HeadlessClient(nickname, hostName, port, threadFactory, this);
+        threadFactory.newThread(client).start();
+    }
+
+    /**
+     * Close this bot's connection to the server, if it has one.
+     */
+    public void disconnect() {
+        if(client != null) {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Determines whether this bot is connected to the server.
+     *
+     * @return {@code true} if this bot is connected.
+     */
+    public boolean isConnected() {
+        return client != null && client.isConnected();
+    }
+
+    /**
+     * Challenge the partner of this bot to a new game.
+     */
+    private void challenge() {
+        client.getLobby().sendGameRequest(
+                partnerNickname,
+                generator.getBoardSize(),
+                generator.getWinLength());
+    }
+
+    /**
+     * Queue for a match against any other bot.
+     */
+    private void queueForMatch() {
+        client.getLobby().queueForMatch(
+                generator.getBoardSize(),
+                generator.getWinLength());
+    }
+
+    /**
+     * Choose a free cell of the current game's board, and move there.
+     */
+    private void move() {
+        int size = game.getBoardSize();
+        ArrayList<Integer> freeCells = new ArrayList<Integer>();
+        for(int y = 0; y < size; y++) {
+            for(int x = 0; x < size; x++) {
+                if(game.getTileValue(x, y) == Game.TILE_SPACE) {
+                    freeCells.add(y * size + x);
+                }
+            }
+        }
+        if(freeCells.isEmpty()) {
+            return;
+        }
+        int cell = generator.usesRandomMoves() ?
+            freeCells.get(random.nextInt(freeCells.size())) :
+            freeCells.get(0);
+
+        moveSentAt = System.nanoTime();
+        game.makeMove(cell % size, cell / size);
+    }
+
+    @Override
+    public void playerEnter(String nickname, int score) {
+        // Challenge the partner as soon as it is known to be in the lobby.
+        if(inLobby && !challenged && nickname.equals(partnerNickname)) {
+            challenged = true;
+            challenge();
+        }
+    }
+
+    @Override
+    public void playerLeave(String nickname) {
+        // nothing
+    }
+
+    @Override
+    public void gameRequestReceived(int gameID, String sender, int boardSize, int winLength) {
+        // Play only one game at a time, so that every event can be tied to
+        // the current game.
+        client.getLobby().respondToGameRequest(gameID, game == null);
+    }
+
+    @Override
+    public void gameRequestSent(int gameID, String receiver) {
+        if(gameID == -1) {
+            generator.recordError();
+        }
+    }
+
+    @Override
+    public void gameStarted(Game game) {
+        this.game = game;
+        this.moveSentAt = -1;
+        game.addGameObserver(this);
+    }
+
+    @Override
+    public void messageReceived(String message, String title, int messageType) {
+        if(messageType == JOptionPane.ERROR_MESSAGE) {
+            generator.recordError();
+        }
+    }
+
+    @Override
+    public void lobbyListReceived(String[] names, int[] playerCounts) {
+        // nothing
+    }
+
+    @Override
+    public void lobbyJoined(String name) {
+        if(lobbyName != null) {
+            if(name.equals(lobbyName)) {
+                // The partner is challenged once the lobby's players are read.
+                inLobby = true;
+            } else {
+                client.getLobby().joinLobby(lobbyName);
+                return;
+            }
+        }
+        if(generator.usesMatchmaking() && !challenged) {
+            challenged = true;
+            queueForMatch();
+        }
+    }
+
+    @Override
+    public void matchStatusChanged(boolean queued, int boardSize, int winLength) {
+        if(queued) {
+            queuedAt = System.nanoTime();
+        } else if(queuedAt != -1) {
+            generator.recordMatchWait(System.nanoTime() - queuedAt);
+            queuedAt = -1;
+        }
+    }
+
+    @Override
+    public void leaderboardReceived(int playerCount, int rank, String[] nicknames, int[] scores) {
+        // nothing
+    }
+
+    @Override
+    public void rankReceived(String nickname, int rank, int score) {
+        // nothing
+    }
+
+    @Override
+    public void gameTileChanged(int x, int y, int value) {
+        if(game != null && value == game.getLocalPlayer() && moveSentAt != -1) {
+            generator.recordMove(System.nanoTime() - moveSentAt);
+            moveSentAt = -1;
+        }
+    }
+
+    @Override
+    public void gameStateChanged(int state, boolean canMove) {
+        if(game == null) {
+            return;
+        }
+        if(state != Game.GAME_IN_PROGRESS) {
+            // Only cross records a matched game, so that it is counted once.
+            boolean matchedCross = generator.usesMatchmaking() &&
+                                   game.getLocalPlayer() == Game.TILE_CROSS;
+            game.remove();
+            game = null;
+            if(partnerNickname != null) {
+                generator.recordGame();
+                if(generator.isRunning()) {
+                    challenge();
+                }
+            } else if(generator.usesMatchmaking()) {
+                if(matchedCross) {
+                    generator.recordGame();
+                }
+                if(generator.isRunning()) {
+                    queueForMatch();
+                }
+            }
+        } else if(canMove && moveSentAt == -1 && generator.isRunning()) {
+            // Every game update notifies observers twice, so only move if
+            // the last move has been confirmed.
+            move();
+        }
+    }
+
+    @Override
+    public void gameMessageReceived(String message, String title, int messageType) {
+        if(messageType == JOptionPane.ERROR_MESSAGE) {
+            generator.recordError();
+        }
+    }
+}
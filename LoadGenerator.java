@@ -0,0 +1,448 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The standard capacity test for a tictac2 server. This connects a number
+ * of {@link LoadBot}s to the server, each over its own connection, which
+ * challenge each other in pairs and play game after game for a fixed
+ * duration. It then reports the throughput of moves and games, and the
+ * percentiles of the end-to-end move latency: the time from a bot sending
+ * CLIENT_GAME_MOVE to it receiving the SERVER_GAME_MOVE confirming it.
+ *
+ * @author Tom Galvin
+ */
+public class LoadGenerator {
+    /**
+     * The longest time to wait for every bot to connect, in milliseconds.
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * The time between progress reports, in seconds.
+     */
+    private static final int PROGRESS_INTERVAL_SECONDS = 5;
+
+    private String hostName;
+    private int port;
+    private int botCount = 100;
+    private int durationSeconds = 30;
+    private int boardSize = BitBoard.SIZE;
+    private int winLength = BitBoard.SIZE;
+    private boolean randomMoves = true;
+    private long seed = 1;
+    private boolean virtualThreads = false;
+
+    /**
+     * Whether the bots are paired by the server's matchmaker, rather than
+     * in fixed pairs.
+     */
+    private boolean matchmaking = false;
+
+    /**
+     * The number of lobbies the pairs of bots are spread over, or 0 to keep
+     * every bot in the server's default lobby.
+     */
+    private int lobbyCount = 0;
+
+    private volatile boolean running;
+    private volatile boolean recording;
+    private LatencyHistogram moveLatency;
+    private LatencyHistogram matchWaits;
+    private LongAdder games;
+    private LongAdder errors;
+
+    /**
+     * Create a new LoadGenerator with the default options.
+     *
+     * @param hostName The hostname of the server.
+     * @param port The port on which the server listens.
+     */
+    public LoadGenerator(String hostName, int port) {
+        this.hostName = hostName;
+        this.port = port;
+
+        this.running = false;
+        this.recording = false;
+        this.moveLatency = new LatencyHistogram();
+        this.matchWaits = new LatencyHistogram();
+        this.games = new LongAdder();
+        this.errors = new LongAdder();
+    }
+
+    public static void main(String... args) throws InterruptedException {
+        LoadGenerator generator;
+        try {
+            generator = parse(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    /**
+     * Parse the command-line arguments of the load generator. The first two
+     * arguments are the hostname and port of the server, and the rest are
+     * options of the form {@code --name=value}.
+     *
+     * @param args The command-line arguments.
+     * @return The load generator with the parsed options.
+     * @throws IllegalArgumentException If the arguments are not valid.
+     */
+    public static LoadGenerator parse(String... args) {
+        if(args.length < 2) {
+            throw new IllegalArgumentException("The hostname and port must be given.");
+        }
+        LoadGenerator generator = new LoadGenerator(args[0], parseInt("port", args[1]));
+        for(int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch(name) {
+                case "bots":
+                    generator.botCount = parseInt(name, value);
+                    break;
+                case "duration":
+                    generator.durationSeconds = parseInt(name, value);
+                    break;
+                case "board":
+                    generator.boardSize = parseInt(name, value);
+                    break;
+                case "win":
+                    generator.winLength = parseInt(name, value);
+                    break;
+                case "moves":
+                    if(value.equals("random")) {
+                        generator.randomMoves = true;
+                    } else if(value.equals("ordered")) {
+                        generator.randomMoves = false;
+                    } else {
+                        throw new IllegalArgumentException(
+                                "The value of moves must be random or ordered, but was " + value + ".");
+                    }
+                    break;
+                case "lobbies":
+                    generator.lobbyCount = parseInt(name, value);
+                    break;
+                case "seed":
+                    generator.seed = parseInt(name, value);
+                    break;
+                case "threads":
+                    if(value.equals("platform")) {
+                        generator.virtualThreads = false;
+                    } else if(value.equals("virtual")) {
+                        generator.virtualThreads = true;
+                    } else {
+                        throw new IllegalArgumentException(
+                                "The value of threads must be platform or virtual, but was " + value + ".");
+                    }
+                    break;
+                case "matchmaking":
+                    if(value.equals("true")) {
+                        generator.matchmaking = true;
+                    } else if(value.equals("false")) {
+                        generator.matchmaking = false;
+                    } else {
+                        throw new IllegalArgumentException(
+                                "The value of matchmaking must be true or false, but was " + value + ".");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if(generator.lobbyCount < 0 || generator.lobbyCount > Server.MAX_LOBBIES - 1) {
+            throw new IllegalArgumentException(String.format(
+                        "The number of lobbies must be between 0 and %d.",
+                        Server.MAX_LOBBIES - 1
+                        ));
+        }
+        if(generator.botCount < 2) {
+            throw new IllegalArgumentException("At least two bots are needed.");
+        }
+        if(!Board.isValidVariant(generator.boardSize, generator.winLength)) {
+            throw new IllegalArgumentException(String.format(
+                        "A %dx%d board with %d in a row is not supported.",
+                        generator.boardSize,
+                        generator.boardSize,
+                        generator.winLength
+                        ));
+        }
+        return generator;
+    }
+
+    /**
+     * Print the usage of the load generator's command-line options to the
+     * standard output.
+     */
+    public static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println();
+        System.out.println("java LoadGenerator <host> <port> [options]");
+        System.out.println("host: The name of the server machine.");
+        System.out.println("port: The port used on the server machine.");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("--bots=<n>: The number of bots to connect, in challenging pairs (default 100).");
+        System.out.println("--duration=<s>: The number of seconds to measure for (default 30).");
+        System.out.println("--board=<n>: The width and height of the board (default 3).");
+        System.out.println("--win=<n>: The number of tiles in a row needed to win (default 3).");
+        System.out.println("--moves=random|ordered: Whether bots move to a random free cell, or to the");
+        System.out.println("                        first free cell in reading order (default random).");
+        System.out.println("--lobbies=<n>: The number of lobbies the pairs of bots are spread over, or 0");
+        System.out.println("               to keep every bot in the main lobby (default 0).");
+        System.out.println("--seed=<n>: The seed of the random moves (default 1).");
+        System.out.println("--threads=platform|virtual: The type of thread used by each bot (default");
+        System.out.println("                            platform). Virtual threads require JDK 21.");
+        System.out.println("--matchmaking=true|false: Whether the bots queue to be paired by the server's");
+        System.out.println("                          matchmaker after every game, rather than playing in");
+        System.out.println("                          fixed pairs (default false).");
+    }
+
+    /**
+     * Parse an integer option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The parsed value.
+     */
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(
+                        "The value of %s must be a number, but was %s.",
+                        name,
+                        value
+                        ));
+        }
+    }
+
+    /**
+     * Connect the bots, let them play for the configured duration, and
+     * print the results.
+     */
+    public void run() throws InterruptedException {
+        ClientThreadFactory threadFactory = new ClientThreadFactory(virtualThreads);
+        String prefix = "bot" + Long.toString(System.currentTimeMillis() % 1000000, 36) + "-";
+
+        running = true;
+        LoadBot[] bots = new LoadBot[botCount];
+        long connectStart = System.nanoTime();
+        for(int i = 0; i < botCount; i++) {
+            // Every even-numbered bot challenges the bot after it, and both
+            // bots of a pair share a lobby, unless the bots are matched.
+            String partner = !matchmaking && i % 2 == 0 && i + 1 < botCount ? prefix + (i + 1) : null;
+            String lobbyName = lobbyCount == 0 ? null : prefix + "lobby" + (i / 2) % lobbyCount;
+            bots[i] = new LoadBot(this, prefix + i, partner, lobbyName, seed + i);
+            bots[i].connect(hostName, port, threadFactory);
+        }
+
+        int connected = 0;
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while(connected < botCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            connected = countConnected(bots);
+        }
+        System.out.println(String.format(
+                    "Connected %d of %d bots in %.1f s.",
+                    connected,
+                    botCount,
+                    (System.nanoTime() - connectStart) / 1e9
+                    ));
+
+        // Only measure once every bot has connected, so that the results
+        // are not skewed by the ramp-up.
+        recording = true;
+        long start = System.nanoTime();
+        for(int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            if(second % PROGRESS_INTERVAL_SECONDS == 0 && second < durationSeconds) {
+                System.out.println(String.format(
+                            "%4d s: %d moves, %d games, p99 latency %.2f ms",
+                            second,
+                            moveLatency.getCount(),
+                            games.sum(),
+                            moveLatency.getPercentile(99) / 1e6
+                            ));
+            }
+        }
+        recording = false;
+        running = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        printResults(elapsed, countConnected(bots));
+        // Free the connections, in case the server is measured again within
+        // the same process.
+        for(LoadBot bot : bots) {
+            bot.disconnect();
+        }
+    }
+
+    /**
+     * Count the bots which are connected to the server.
+     *
+     * @param bots The bots to count.
+     * @return The number of connected bots.
+     */
+    private static int countConnected(LoadBot[] bots) {
+        int connected = 0;
+        for(LoadBot bot : bots) {
+            if(bot.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Print the results of the measurement to the standard output.
+     *
+     * @param elapsed The duration of the measurement, in seconds.
+     * @param connected The number of bots still connected at the end.
+     */
+    private void printResults(double elapsed, int connected) {
+        long moves = moveLatency.getCount();
+        System.out.println();
+        System.out.println(String.format(
+                    "%d bots (%d still connected) in %d lobbies, %dx%d board with %d in a row, %s moves%s.",
+                    botCount,
+                    connected,
+                    Math.max(lobbyCount, 1),
+                    boardSize,
+                    boardSize,
+                    winLength,
+                    randomMoves ? "random" : "ordered",
+                    matchmaking ? ", matchmaking" : ""
+                    ));
+        System.out.println(String.format("Measured for %.1f s.", elapsed));
+        System.out.println(String.format(
+                    "Games:  %10d (%.1f per second)",
+                    games.sum(),
+                    games.sum() / elapsed));
+        System.out.println(String.format(
+                    "Moves:  %10d (%.1f per second)",
+                    moves,
+                    moves / elapsed));
+        System.out.println(String.format("Errors: %10d", errors.sum()));
+        System.out.println();
+        System.out.println("Move latency (ms):");
+        System.out.println(String.format(
+                    "  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                    moveLatency.getMean() / 1e6,
+                    moveLatency.getPercentile(50) / 1e6,
+                    moveLatency.getPercentile(90) / 1e6,
+                    moveLatency.getPercentile(99) / 1e6,
+                    moveLatency.getPercentile(99.9) / 1e6,
+                    moveLatency.getMax() / 1e6
+                    ));
+        if(matchmaking) {
+            System.out.println();
+            System.out.println("Matchmaking wait (ms):");
+            System.out.println(String.format(
+                        "  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                        matchWaits.getMean() / 1e6,
+                        matchWaits.getPercentile(50) / 1e6,
+                        matchWaits.getPercentile(90) / 1e6,
+                        matchWaits.getPercentile(99) / 1e6,
+                        matchWaits.getPercentile(99.9) / 1e6,
+                        matchWaits.getMax() / 1e6
+                        ));
+        }
+    }
+
+    /**
+     * Determines whether the bots should keep playing.
+     *
+     * @return {@code true} until the measurement has finished.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the width and height of the board the bots play on.
+     *
+     * @return The size of the game board.
+     */
+    public int getBoardSize() {
+        return boardSize;
+    }
+
+    /**
+     * Get the number of tiles in a row needed to win the bots' games.
+     *
+     * @return The win length of the games.
+     */
+    public int getWinLength() {
+        return winLength;
+    }
+
+    /**
+     * Determines whether the bots move to random free cells.
+     *
+     * @return {@code true} for random moves; {@code false} to move to the
+     * first free cell in reading order.
+     */
+    public boolean usesRandomMoves() {
+        return randomMoves;
+    }
+
+    /**
+     * Record a move made by a bot, once the server has confirmed it.
+     *
+     * @param latencyNanos The time from sending the move to receiving its
+     * confirmation, in nanoseconds.
+     */
+    public void recordMove(long latencyNanos) {
+        if(recording) {
+            moveLatency.record(latencyNanos);
+        }
+    }
+
+    /**
+     * Determines whether the bots are paired by the server's matchmaker.
+     *
+     * @return {@code true} if the bots queue for matches; {@code false} if
+     * they play in fixed pairs.
+     */
+    public boolean usesMatchmaking() {
+        return matchmaking;
+    }
+
+    /**
+     * Record the time a bot waited to be paired by the matchmaker.
+     *
+     * @param waitNanos The time from the bot being told it was queued to it
+     * being told it was paired, in nanoseconds.
+     */
+    public void recordMatchWait(long waitNanos) {
+        if(recording) {
+            matchWaits.record(waitNanos);
+        }
+    }
+
+    /**
+     * Record a game finished by a pair of bots. Only the challenging bot of
+     * the pair, or the cross player of a matched pair, records it, so that
+     * each game is counted once.
+     */
+    public void recordGame() {
+        if(recording) {
+            games.increment();
+        }
+    }
+
+    /**
+     * Record an error reported to a bot by the server.
+     */
+    public void recordError() {
+        errors.increment();
+    }
+}
@@ -11,6 +11,7 @@ public class Lobby {
     private LobbyProvider provider;
     private ArrayList<LobbyObserver> observers;
     private int lobbyID;
+    private String name;
 
     /**
      * Initialize a new Lobby with the given lobby ID and lobby provider.
@@ -21,14 +22,15 @@ public class Lobby {
     public Lobby(int lobbyID, LobbyProvider provider) {
         this.provider = provider;
         this.lobbyID = lobbyID;
+        this.name = "";
 
         players = new HashMap<String, Integer>();
         observers = new ArrayList<LobbyObserver>();
     }
 
     /**
-     * Get the ID of this lobby, for identification over the network.
-     * (unused)
+     * Get the ID of the server lobby the local player is in, for
+     * identification over the network.
      *
      * @return the ID of this lobby.
      */
@@ -36,6 +38,16 @@ public class Lobby {
         return lobbyID;
     }
 
+    /**
+     * Get the name of the server lobby the local player is in.
+     *
+     * @return The name of this lobby, or an empty string if the server has
+     * not said yet.
+     */
+    public String getName() {
+        return name;
+    }
+
     /**
      * Add an observer to this lobby, that shall receive notifications when
      * an event occurs in this lobby.
@@ -108,9 +120,157 @@ public class Lobby {
      * Send a game request to the player with the given nickname.
      *
      * @param recipient The nickname of the recipient of the request.
+     * @param boardSize The width and height of the board to play on.
+     * @param winLength The number of tiles in a row needed to win.
+     */
+    public void sendGameRequest(String recipient, int boardSize, int winLength) {
+        provider.sendGameRequest(this, recipient, boardSize, winLength);
+    }
+
+    /**
+     * Request the list of lobbies on the server.
+     */
+    public void requestLobbyList() {
+        provider.getLobbies(this);
+    }
+
+    /**
+     * Move the local player into the server lobby with the given name, which
+     * is created if it does not exist.
+     *
+     * @param name The name of the lobby to join.
+     */
+    public void joinLobby(String name) {
+        provider.joinLobby(this, name);
+    }
+
+    /**
+     * Move the local player back into the server's default lobby.
+     */
+    public void leaveLobby() {
+        provider.leaveLobby(this);
+    }
+
+    /**
+     * Ask the server to pair the local player with another player of a
+     * similar score.
+     *
+     * @param boardSize The width and height of the board to play on.
+     * @param winLength The number of tiles in a row needed to win.
+     */
+    public void queueForMatch(int boardSize, int winLength) {
+        provider.queueForMatch(this, boardSize, winLength);
+    }
+
+    /**
+     * Stop waiting to be paired with another player.
+     */
+    public void leaveMatchQueue() {
+        provider.leaveMatchQueue(this);
+    }
+
+    /**
+     * Ask the server for the players with the highest scores, and the rank
+     * of the local player.
+     *
+     * @param count The most players to get.
+     */
+    public void requestLeaderboard(int count) {
+        provider.requestLeaderboard(this, count);
+    }
+
+    /**
+     * Ask the server for the rank of a player.
+     *
+     * @param nickname The nickname of the player.
+     */
+    public void requestRank(String nickname) {
+        provider.requestRank(this, nickname);
+    }
+
+    /**
+     * Notify every observer of this lobby that the players with the highest
+     * scores have been received.
+     *
+     * @param playerCount The number of players on the server.
+     * @param rank The rank of the local player, from 1.
+     * @param nicknames The nicknames of the players, from the highest score
+     * to the lowest.
+     * @param scores The score of each player.
+     */
+    public void leaderboardReceived(int playerCount, int rank, String[] nicknames, int[] scores) {
+        for(LobbyObserver observer : observers) {
+            observer.leaderboardReceived(playerCount, rank, nicknames, scores);
+        }
+    }
+
+    /**
+     * Notify every observer of this lobby that the rank of a player has been
+     * received.
+     *
+     * @param nickname The nickname of the player.
+     * @param rank The rank of the player, from 1, or 0 if they are not
+     * connected.
+     * @param score The score of the player.
+     */
+    public void rankReceived(String nickname, int rank, int score) {
+        for(LobbyObserver observer : observers) {
+            observer.rankReceived(nickname, rank, score);
+        }
+    }
+
+    /**
+     * Notify every observer of this lobby that the local player has started
+     * or stopped waiting to be paired with another player.
+     *
+     * @param queued Whether the local player is now waiting to be paired.
+     * @param boardSize The width and height of the board of the game being
+     * waited for.
+     * @param winLength The number of tiles in a row needed to win that game.
+     */
+    public void matchStatusReceived(boolean queued, int boardSize, int winLength) {
+        for(LobbyObserver observer : observers) {
+            observer.matchStatusChanged(queued, boardSize, winLength);
+        }
+    }
+
+    /**
+     * Notify every observer of this lobby that the list of lobbies on the
+     * server has been received.
+     *
+     * @param names The names of the lobbies.
+     * @param playerCounts The number of players in each lobby.
+     */
+    public void lobbyListReceived(String[] names, int[] playerCounts) {
+        for(LobbyObserver observer : observers) {
+            observer.lobbyListReceived(names, playerCounts);
+        }
+    }
+
+    /**
+     * Move this lobby over to the server lobby the local player has joined.
+     * If it is not the lobby the local player was already in, every player
+     * of the previous lobby is removed first. Every observer is then
+     * notified.
+     *
+     * @param lobbyID The ID of the joined lobby.
+     * @param name The name of the joined lobby.
+     * @return {@code true} if the local player has moved to another lobby,
+     * whose players must now be fetched.
      */
-    public void sendGameRequest(String recipient) {
-        provider.sendGameRequest(this, recipient);
+    public boolean lobbyJoined(int lobbyID, String name) {
+        boolean moved = lobbyID != this.lobbyID;
+        if(moved) {
+            for(String nickname : getPlayers()) {
+                removePlayer(nickname);
+            }
+            this.lobbyID = lobbyID;
+        }
+        this.name = name;
+        for(LobbyObserver observer : observers) {
+            observer.lobbyJoined(name);
+        }
+        return moved;
     }
 
     /**
@@ -127,6 +287,18 @@ public class Lobby {
         }
     }
     
+    /**
+     * Notify every observer of this lobby that a game, in which the client
+     * is a player, has begun.
+     *
+     * @param game The game which has begun.
+     */
+    public void gameStarted(Game game) {
+        for(LobbyObserver observer : observers) {
+            observer.gameStarted(game);
+        }
+    }
+
     /**
      * Respond to a request to play a game with the given game ID.
      *
@@ -143,10 +315,12 @@ public class Lobby {
      *
      * @param sender The nickname of the client who sent the request.
      * @param gameID The ID of the game request received.
+     * @param boardSize The width and height of the board of the requested game.
+     * @param winLength The number of tiles in a row needed to win the requested game.
      */
-    public void gameRequestReceived(String sender, int gameID) {
+    public void gameRequestReceived(String sender, int gameID, int boardSize, int winLength) {
         for(LobbyObserver observer : observers) {
-            observer.gameRequestReceived(gameID, sender);
+            observer.gameRequestReceived(gameID, sender, boardSize, winLength);
         }
     }
 }
@@ -101,7 +101,7 @@ public class LobbyModel extends AbstractTableModel implements LobbyObserver {
     }
 
     @Override
-    public void gameRequestReceived(int gameID, String sender) {
+    public void gameRequestReceived(int gameID, String sender, int boardSize, int winLength) {
         // nothing
     }
 
@@ -114,4 +114,29 @@ public class LobbyModel extends AbstractTableModel implements LobbyObserver {
     public void gameStarted(Game game) {
         // nothing
     }
+
+    @Override
+    public void lobbyListReceived(String[] names, int[] playerCounts) {
+        // nothing
+    }
+
+    @Override
+    public void lobbyJoined(String name) {
+        // nothing
+    }
+
+    @Override
+    public void matchStatusChanged(boolean queued, int boardSize, int winLength) {
+        // nothing
+    }
+
+    @Override
+    public void leaderboardReceived(int playerCount, int rank, String[] nicknames, int[] scores) {
+        // nothing
+    }
+
+    @Override
+    public void rankReceived(String nickname, int rank, int score) {
+        // nothing
+    }
 }
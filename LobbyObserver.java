@@ -24,8 +24,10 @@ public interface LobbyObserver {
      *
      * @param gameID The ID of the game request.
      * @param sender The nickname of the player who sent the request to the local player.
+     * @param boardSize The width and height of the board of the requested game.
+     * @param winLength The number of tiles in a row needed to win the requested game.
      */
-    public void gameRequestReceived(int gameID, String sender);
+    public void gameRequestReceived(int gameID, String sender, int boardSize, int winLength);
 
     /**
      * Invoked when the local player has sent a game request to another player.
@@ -50,4 +52,54 @@ public interface LobbyObserver {
      * @param messageType A {@code *_MESSAGE} constant from {@link javax.swing.JOptionPane} indicating the type of the message.
      */
     public void messageReceived(String message, String title, int messageType);
+
+    /**
+     * Invoked when the client receives the list of lobbies on the server.
+     *
+     * @param names The names of the lobbies.
+     * @param playerCounts The number of players in each lobby.
+     */
+    public void lobbyListReceived(String[] names, int[] playerCounts);
+
+    /**
+     * Invoked when the local player has joined a lobby, including the
+     * server's default lobby upon connecting. The players of the previous
+     * lobby have already left by then.
+     *
+     * @param name The name of the lobby.
+     */
+    public void lobbyJoined(String name);
+
+    /**
+     * Invoked when the local player starts or stops waiting to be paired
+     * with an opponent by the server's matchmaker. A player who has been
+     * paired stops waiting just before their game starts.
+     *
+     * @param queued Whether the local player is now waiting to be paired.
+     * @param boardSize The width and height of the board of the game being
+     * waited for.
+     * @param winLength The number of tiles in a row needed to win that game.
+     */
+    public void matchStatusChanged(boolean queued, int boardSize, int winLength);
+
+    /**
+     * Invoked when the server has sent the players with the highest scores.
+     *
+     * @param playerCount The number of players on the server.
+     * @param rank The rank of the local player, from 1.
+     * @param nicknames The nicknames of the players, from the highest score
+     * to the lowest.
+     * @param scores The score of each player.
+     */
+    public void leaderboardReceived(int playerCount, int rank, String[] nicknames, int[] scores);
+
+    /**
+     * Invoked when the server has sent the rank of a player.
+     *
+     * @param nickname The nickname of the player.
+     * @param rank The rank of the player, from 1, or 0 if they are not
+     * connected.
+     * @param score The score of the player.
+     */
+    public void rankReceived(String nickname, int rank, int score);
 }
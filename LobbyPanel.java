@@ -2,6 +2,7 @@ import javax.swing.ListSelectionModel;
 import javax.swing.JPanel;
 import javax.swing.JFrame;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
@@ -14,8 +15,28 @@ import java.awt.BorderLayout;
  * @author Tom Galvin
  */
 public class LobbyPanel extends JPanel implements LobbyObserver {
+    /**
+     * The board variants which can be chosen when sending a challenge, each
+     * given as the board size followed by the win length.
+     */
+    private static final int[][] VARIANTS = {
+        { 3, 3 }, { 9, 5 }, { 15, 5 }, { 19, 5 }
+    };
+
+    /**
+     * The number of players shown on the leaderboard.
+     */
+    private static final int LEADERBOARD_SIZE = 10;
+
     private JTable playerTable;
+    private JComboBox<String> variantBox;
     private JLabel statusLabel;
+    private JButton matchButton;
+
+    /**
+     * Whether the local player is waiting to be paired by the matchmaker.
+     */
+    private boolean queued;
     private Lobby lobby;
     private String localNickname;
 
@@ -29,7 +50,7 @@ public class LobbyPanel extends JPanel implements LobbyObserver {
         JFrame frame = new JFrame(nickname + " - tictac2");
         frame.add(new LobbyPanel(lobby, nickname));
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(300, 340);
+        frame.setSize(300, 370);
         frame.setVisible(true);
     }
 
@@ -49,14 +70,56 @@ public class LobbyPanel extends JPanel implements LobbyObserver {
         this.playerTable.setFillsViewportHeight(true);
         this.playerTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         this.playerTable.getColumnModel().getColumn(1).setWidth(48);
+        this.playerTable.getSelectionModel().addListSelectionListener(e -> {
+            int selectedRow = playerTable.getSelectedRow();
+            if(!e.getValueIsAdjusting() && selectedRow != -1) {
+                lobby.requestRank(playerTable.getValueAt(selectedRow, 0).toString());
+            }
+        });
         this.lobby.addObserver(this);
 
         add(statusLabel = new JLabel("Welcome to TicTac2!"),
                 BorderLayout.NORTH);
 
+        String[] variantNames = new String[VARIANTS.length];
+        for(int i = 0; i < VARIANTS.length; i++) {
+            variantNames[i] = getVariantString(VARIANTS[i][0], VARIANTS[i][1]);
+        }
+        variantBox = new JComboBox<String>(variantNames);
+
         JButton challengeButton = new JButton("Send Challenge");
         challengeButton.addActionListener(e -> sendChallenge());
-        add(challengeButton, BorderLayout.SOUTH);
+
+        JButton lobbiesButton = new JButton("Lobbies...");
+        lobbiesButton.addActionListener(e -> lobby.requestLobbyList());
+
+        matchButton = new JButton("Find Match");
+        matchButton.addActionListener(e -> toggleMatch());
+
+        JButton leaderboardButton = new JButton("Leaderboard");
+        leaderboardButton.addActionListener(e -> lobby.requestLeaderboard(LEADERBOARD_SIZE));
+
+        JPanel matchPanel = new JPanel(new BorderLayout());
+        matchPanel.add(matchButton, BorderLayout.CENTER);
+        matchPanel.add(leaderboardButton, BorderLayout.EAST);
+
+        JPanel challengePanel = new JPanel(new BorderLayout());
+        challengePanel.add(variantBox, BorderLayout.CENTER);
+        challengePanel.add(challengeButton, BorderLayout.EAST);
+        challengePanel.add(lobbiesButton, BorderLayout.WEST);
+        challengePanel.add(matchPanel, BorderLayout.SOUTH);
+        add(challengePanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Gets the string describing a board variant.
+     *
+     * @param boardSize The width and height of the board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @return The description of the variant, such as "15x15, 5 in a row".
+     */
+    private static String getVariantString(int boardSize, int winLength) {
+        return String.format("%dx%d, %d in a row", boardSize, boardSize, winLength);
     }
 
     /**
@@ -75,7 +138,8 @@ public class LobbyPanel extends JPanel implements LobbyObserver {
             String recipientNickname = playerTable
                 .getValueAt(selectedRow, 0)
                 .toString();
-            lobby.sendGameRequest(recipientNickname);
+            int[] variant = VARIANTS[variantBox.getSelectedIndex()];
+            lobby.sendGameRequest(recipientNickname, variant[0], variant[1]);
             setStatus(String.format(
                         "Game request sent to %s...",
                         recipientNickname
@@ -83,6 +147,19 @@ public class LobbyPanel extends JPanel implements LobbyObserver {
         }
     }
 
+    /**
+     * Ask to be paired with an opponent on the selected board variant, or
+     * stop waiting to be paired.
+     */
+    private void toggleMatch() {
+        if(queued) {
+            lobby.leaveMatchQueue();
+        } else {
+            int[] variant = VARIANTS[variantBox.getSelectedIndex()];
+            lobby.queueForMatch(variant[0], variant[1]);
+        }
+    }
+
     /**
      * Set the status label text.
      *
@@ -123,12 +200,13 @@ public class LobbyPanel extends JPanel implements LobbyObserver {
     }
 
     @Override
-    public void gameRequestReceived(int gameID, String sender) {
+    public void gameRequestReceived(int gameID, String sender, int boardSize, int winLength) {
         int result = JOptionPane.showConfirmDialog(
                 this,
                 String.format(
-                    "%s has just challenged you to a game. Do you accept?",
-                    sender
+                    "%s has just challenged you to a game (%s). Do you accept?",
+                    sender,
+                    getVariantString(boardSize, winLength)
                     ),
                 "Game Request",
                 JOptionPane.YES_NO_OPTION,
@@ -160,4 +238,85 @@ public class LobbyPanel extends JPanel implements LobbyObserver {
     public void gameStarted(Game game) {
         GamePanel.openGame(game);
     }
+
+    @Override
+    public void lobbyListReceived(String[] names, int[] playerCounts) {
+        StringBuilder message = new StringBuilder("Lobbies on this server:\n");
+        for(int i = 0; i < names.length; i++) {
+            message.append(String.format(
+                        "%s (%d players)\n",
+                        names[i],
+                        playerCounts[i]
+                        ));
+        }
+        message.append("\nEnter the name of a lobby to join or create,\n" +
+                       "or leave it empty to return to the main lobby.");
+        String name = JOptionPane.showInputDialog(
+                this,
+                message.toString(),
+                lobby.getName());
+        if(name == null) {
+            return;
+        } else if(name.trim().isEmpty()) {
+            lobby.leaveLobby();
+        } else {
+            lobby.joinLobby(name.trim());
+        }
+    }
+
+    @Override
+    public void lobbyJoined(String name) {
+        setStatus(String.format(
+                    "You are in the %s lobby.",
+                    name
+                    ));
+    }
+
+    @Override
+    public void matchStatusChanged(boolean queued, int boardSize, int winLength) {
+        this.queued = queued;
+        matchButton.setText(queued ? "Stop Finding Match" : "Find Match");
+        if(queued) {
+            setStatus(String.format(
+                        "Finding an opponent (%s)...",
+                        getVariantString(boardSize, winLength)
+                        ));
+        }
+    }
+
+    @Override
+    public void leaderboardReceived(int playerCount, int rank, String[] nicknames, int[] scores) {
+        StringBuilder message = new StringBuilder("Top players on this server:\n");
+        for(int i = 0; i < nicknames.length; i++) {
+            message.append(String.format(
+                        "%d. %s (%d)\n",
+                        i + 1,
+                        nicknames[i],
+                        scores[i]
+                        ));
+        }
+        message.append(String.format(
+                    "\nYou are ranked %d of %d.",
+                    rank,
+                    playerCount
+                    ));
+        JOptionPane.showMessageDialog(
+                this,
+                message.toString(),
+                "Leaderboard",
+                JOptionPane.INFORMATION_MESSAGE
+                );
+    }
+
+    @Override
+    public void rankReceived(String nickname, int rank, int score) {
+        if(rank != 0) {
+            setStatus(String.format(
+                        "%s is ranked %d with a score of %d.",
+                        nickname,
+                        rank,
+                        score
+                        ));
+        }
+    }
 }
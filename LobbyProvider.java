@@ -9,8 +9,10 @@ public interface LobbyProvider {
      *
      * @param lobby The lobby in which the other client is in.
      * @param nickname The nickname of the recipient.
+     * @param boardSize The width and height of the board to play on.
+     * @param winLength The number of tiles in a row needed to win.
      */
-    public void sendGameRequest(Lobby lobby, String nickname);
+    public void sendGameRequest(Lobby lobby, String nickname, int boardSize, int winLength);
 
     /**
      * Respond to a game request from another client.
@@ -28,4 +30,57 @@ public interface LobbyProvider {
      * @param lobby The lobby to obtain player information from.
      */
     public void getInitialPlayers(Lobby lobby);
+
+    /**
+     * Request the server to send the names of every lobby on the server.
+     *
+     * @param lobby The lobby the local client is in.
+     */
+    public void getLobbies(Lobby lobby);
+
+    /**
+     * Move the local client into another lobby, which the server creates if
+     * it does not exist.
+     *
+     * @param lobby The lobby the local client is in.
+     * @param name The name of the lobby to join.
+     */
+    public void joinLobby(Lobby lobby, String name);
+
+    /**
+     * Move the local client back into the server's default lobby.
+     *
+     * @param lobby The lobby the local client is in.
+     */
+    public void leaveLobby(Lobby lobby);
+    /**
+     * Ask the server to pair the local client with another player of a
+     * similar score.
+     *
+     * @param lobby The lobby the local client is in.
+     * @param boardSize The width and height of the board to play on.
+     * @param winLength The number of tiles in a row needed to win.
+     */
+    public void queueForMatch(Lobby lobby, int boardSize, int winLength);
+    /**
+     * Stop waiting to be paired with another player.
+     *
+     * @param lobby The lobby the local client is in.
+     */
+    public void leaveMatchQueue(Lobby lobby);
+    /**
+     * Ask the server for the players with the highest scores, and the rank
+     * of the local client.
+     *
+     * @param lobby The lobby the local client is in.
+     * @param count The most players to get.
+     */
+    public void requestLeaderboard(Lobby lobby, int count);
+    /**
+     * Ask the server for the rank of a player.
+     *
+     * @param lobby The lobby the local client is in.
+     * @param nickname The nickname of the player.
+     */
+    public void requestRank(Lobby lobby, String nickname);
 }
@@ -0,0 +1,449 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs up players who ask for a game against anyone, so that a player need
+ * not know who to challenge.
+ * <p>
+ * Players queue for a board variant, and are only ever paired with players
+ * in the same lobby queuing for the same variant, as no game is made
+ * across lobbies, just as a player cannot challenge anyone outside their
+ * lobby. A player who moves to another lobby leaves the queue. A player's
+ * rating is their score when they
+ * queued. Each player is only paired with a player whose rating is within
+ * their rating window. The window starts at {@code --match-window} either
+ * side of their rating, and widens by {@code --match-widen} for every
+ * second they wait, so a player with no close rivals is still paired
+ * eventually.
+ * <p>
+ * Pairing is done in batches, once every tick. Each tick, the players of
+ * each lobby and variant are visited from the longest waiting, and each is paired
+ * with the closest-rated player within their window. The players are
+ * indexed by rating in a tree, so each partner is found in logarithmic
+ * time. Each pair is given a new game, which begins at once, with the
+ * longer waiting player moving first.
+ * <p>
+ * Every change to the queues, and every tick, runs on the matchmaker's own
+ * thread, so the queues need no locking.
+ *
+ * @author Tom Galvin
+ */
+public class Matchmaker {
+    private Server server;
+    private ScheduledThreadPoolExecutor executor;
+    private int tickMillis;
+    private int initialWindow;
+    private int widenPerSecond;
+
+    /**
+     * The queue of each board variant in each lobby, keyed by the lobby and
+     * then by {@code size * (Board.MAX_SIZE + 1) + winLength}. Pools are
+     * removed once they are empty, so lobbies which have gone are not kept.
+     */
+    private HashMap<ServerLobby, HashMap<Integer, Pool>> pools;
+
+    /**
+     * The ticket of every queued player.
+     */
+    private HashMap<ServerThread, Ticket> tickets;
+
+    /**
+     * The number of queued players, as of the last change to the queues.
+     */
+    private volatile int queuedCount;
+
+    /**
+     * A queued player.
+     */
+    private static class Ticket {
+        private ServerThread player;
+        private ServerLobby lobby;
+        private int rating;
+        private int boardSize;
+        private int winLength;
+        private long queuedAt;
+
+        /**
+         * Whether the player has been paired or has left the queue during
+         * the current tick, and so must be skipped.
+         */
+        private boolean removed;
+
+        public Ticket(ServerThread player, int boardSize, int winLength) {
+            this.player = player;
+            this.lobby = player.getLobby();
+            this.rating = player.getScore();
+            this.boardSize = boardSize;
+            this.winLength = winLength;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * The players queued for one board variant.
+     */
+    private static class Pool {
+        /**
+         * The queued players, by rating. Players with the same rating are
+         * held in the order they queued.
+         */
+        private TreeMap<Integer, ArrayDeque<Ticket>> byRating = new TreeMap<Integer, ArrayDeque<Ticket>>();
+
+        /**
+         * The queued players, in the order they queued.
+         */
+        private LinkedHashSet<Ticket> byWait = new LinkedHashSet<Ticket>();
+
+        /**
+         * Add a player to this pool.
+         *
+         * @param ticket The ticket of the player.
+         */
+        public void add(Ticket ticket) {
+            byRating.computeIfAbsent(ticket.rating, r -> new ArrayDeque<Ticket>()).add(ticket);
+            byWait.add(ticket);
+        }
+
+        /**
+         * Remove a player from the index by rating. The player must be
+         * removed from {@link #byWait} separately.
+         *
+         * @param ticket The ticket of the player.
+         */
+        public void removeRating(Ticket ticket) {
+            ArrayDeque<Ticket> rated = byRating.get(ticket.rating);
+            rated.remove(ticket);
+            if(rated.isEmpty()) {
+                byRating.remove(ticket.rating);
+            }
+        }
+    }
+
+    /**
+     * Create a new Matchmaker. It pairs no players until it is started.
+     *
+     * @param server The server on which to create the games of paired
+     * players.
+     * @param options The server options, giving the tick interval and the
+     * rating window.
+     */
+    public Matchmaker(Server server, ServerOptions options) {
+        this.server = server;
+        this.tickMillis = options.getMatchTickMillis();
+        this.initialWindow = options.getMatchWindow();
+        this.widenPerSecond = options.getMatchWiden();
+        this.pools = new HashMap<ServerLobby, HashMap<Integer, Pool>>();
+        this.tickets = new HashMap<ServerThread, Ticket>();
+        // The thread is only created once there is a task for it.
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "matchmaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start pairing players, once every tick.
+     */
+    public void start() {
+        executor.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop pairing players. Players still queued are not told.
+     */
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * Get the number of players waiting to be paired.
+     *
+     * @return The number of queued players.
+     */
+    public int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Queue a player for a game on the given board variant. If the player is
+     * already queued, they are moved to the back of the queue for the new
+     * variant. The player is sent a SERVER_MATCH_STATUS once they are
+     * queued.
+     *
+     * @param player The player to queue.
+     * @param boardSize The width and height of the board to play on.
+     * @param winLength The number of tiles in a row needed to win.
+     */
+    public void queue(ServerThread player, int boardSize, int winLength) {
+        executor.execute(() -> {
+            remove(tickets.get(player));
+            Ticket ticket = new Ticket(player, boardSize, winLength);
+            tickets.put(player, ticket);
+            pools.computeIfAbsent(ticket.lobby, l -> new HashMap<Integer, Pool>())
+                .computeIfAbsent(variantKey(boardSize, winLength), k -> new Pool())
+                .add(ticket);
+            queuedCount = tickets.size();
+            player.sendMatchStatus(true, boardSize, winLength);
+        });
+    }
+
+    /**
+     * Take a player out of the queue, at their request. The player is sent
+     * a SERVER_MATCH_STATUS once they have left the queue, even if they were
+     * not queued.
+     *
+     * @param player The player to take out of the queue.
+     */
+    public void leave(ServerThread player) {
+        executor.execute(() -> {
+            Ticket ticket = tickets.get(player);
+            remove(ticket);
+            if(ticket == null) {
+                player.sendMatchStatus(false, BitBoard.SIZE, BitBoard.SIZE);
+            } else {
+                player.sendMatchStatus(false, ticket.boardSize, ticket.winLength);
+            }
+        });
+    }
+
+    /**
+     * Take a player who has disconnected out of the queue, if they are
+     * queued.
+     *
+     * @param player The player who has disconnected.
+     */
+    public void disconnected(ServerThread player) {
+        executor.execute(() -> remove(tickets.get(player)));
+    }
+
+    /**
+     * Take a player who has moved to another lobby out of the queue, if
+     * they are queued, as they can no longer be paired with the players
+     * they queued alongside. The player is sent a SERVER_MATCH_STATUS if
+     * they were queued.
+     *
+     * @param player The player who has moved.
+     */
+    public void lobbyChanged(ServerThread player) {
+        executor.execute(() -> {
+            Ticket ticket = tickets.get(player);
+            if(ticket != null && ticket.lobby != player.getLobby()) {
+                remove(ticket);
+                player.sendMatchStatus(false, ticket.boardSize, ticket.winLength);
+            }
+        });
+    }
+
+    /**
+     * Take a player out of their pool and the queue. This is only called on
+     * the matchmaker's thread.
+     *
+     * @param ticket The ticket of the player, or {@code null} to do nothing.
+     */
+    private void remove(Ticket ticket) {
+        if(ticket == null || ticket.removed) {
+            return;
+        }
+        Pool pool = pools.get(ticket.lobby).get(variantKey(ticket.boardSize, ticket.winLength));
+        pool.removeRating(ticket);
+        pool.byWait.remove(ticket);
+        ticket.removed = true;
+        tickets.remove(ticket.player);
+        queuedCount = tickets.size();
+    }
+
+    /**
+     * Pair up as many queued players as can be paired. This runs on the
+     * matchmaker's thread once every tick.
+     */
+    private void tick() {
+        // An exception would cancel every later tick.
+        try {
+            long start = System.nanoTime();
+            int dequeued = 0;
+            Iterator<HashMap<Integer, Pool>> lobbies = pools.values().iterator();
+            while(lobbies.hasNext()) {
+                HashMap<Integer, Pool> variants = lobbies.next();
+                Iterator<Pool> it = variants.values().iterator();
+                while(it.hasNext()) {
+                    Pool pool = it.next();
+                    dequeued += pair(pool, start);
+                    if(pool.byWait.isEmpty()) {
+                        it.remove();
+                    }
+                }
+                if(variants.isEmpty()) {
+                    lobbies.remove();
+                }
+            }
+            if(dequeued > 0) {
+                queuedCount = tickets.size();
+            }
+            server.getMetrics().recordMatchTick(System.nanoTime() - start);
+        } catch(RuntimeException e) {
+            server.getLog().error("match.failed", e);
+        }
+    }
+
+    /**
+     * Pair up the players of one pool. Players who have disconnected or
+     * moved to another lobby, but whose removal from the queue has not run
+     * yet, are dropped rather than paired.
+     *
+     * @param pool The pool.
+     * @param now The time of this tick, from {@link System#nanoTime()}.
+     * @return The number of players taken out of the pool.
+     */
+    private int pair(Pool pool, long now) {
+        int dequeued = 0;
+        for(Ticket ticket : pool.byWait) {
+            if(ticket.removed) {
+                continue;
+            }
+            if(hasLeft(ticket)) {
+                drop(pool, ticket);
+                dequeued++;
+                continue;
+            }
+            long waited = now - ticket.queuedAt;
+            long window = initialWindow + widenPerSecond * waited / 1000000000L;
+            Ticket partner = closest(pool, ticket, window);
+            while(partner != null && hasLeft(partner)) {
+                drop(pool, partner);
+                dequeued++;
+                partner = closest(pool, ticket, window);
+            }
+            if(partner == null) {
+                continue;
+            }
+            dequeue(pool, ticket);
+            dequeue(pool, partner);
+            begin(ticket, partner, now);
+            dequeued += 2;
+        }
+        if(dequeued > 0) {
+            pool.byWait.removeIf(ticket -> ticket.removed);
+        }
+        return dequeued;
+    }
+
+    /**
+     * Determines whether a queued player has disconnected, or moved out of
+     * the lobby they queued in, and so must not be paired.
+     *
+     * @param ticket The ticket of the player.
+     * @return {@code true} if the player must be dropped from the queue.
+     */
+    private static boolean hasLeft(Ticket ticket) {
+        return ticket.player.isDisconnected() || ticket.player.getLobby() != ticket.lobby;
+    }
+
+    /**
+     * Take a player who has left out of the queue during a tick, telling
+     * them if they are still connected.
+     *
+     * @param pool The pool of the player.
+     * @param ticket The ticket of the player.
+     */
+    private void drop(Pool pool, Ticket ticket) {
+        dequeue(pool, ticket);
+        if(!ticket.player.isDisconnected()) {
+            ticket.player.sendMatchStatus(false, ticket.boardSize, ticket.winLength);
+        }
+    }
+
+    /**
+     * Take a player out of the queue during a tick. The player is left in
+     * {@link Pool#byWait}, to be removed once the tick has finished with
+     * the pool.
+     *
+     * @param pool The pool of the player.
+     * @param ticket The ticket of the player.
+     */
+    private void dequeue(Pool pool, Ticket ticket) {
+        pool.removeRating(ticket);
+        ticket.removed = true;
+        tickets.remove(ticket.player);
+    }
+
+    /**
+     * Find the queued player whose rating is closest to the rating of the
+     * given player, and within the given window of it. Of the players with
+     * that rating, the one who has waited longest is chosen.
+     *
+     * @param pool The pool to search.
+     * @param ticket The ticket of the player to find a partner for.
+     * @param window The greatest difference in ratings allowed.
+     * @return The ticket of the closest player, or {@code null} if there is
+     * none within the window.
+     */
+    private static Ticket closest(Pool pool, Ticket ticket, long window) {
+        int rating = ticket.rating;
+        ArrayDeque<Ticket> same = pool.byRating.get(rating);
+        if(same.size() > 1) {
+            for(Ticket other : same) {
+                if(other != ticket) {
+                    return other;
+                }
+            }
+        }
+        Map.Entry<Integer, ArrayDeque<Ticket>> lower = pool.byRating.lowerEntry(rating);
+        Map.Entry<Integer, ArrayDeque<Ticket>> higher = pool.byRating.higherEntry(rating);
+        long lowerDistance = lower == null ? Long.MAX_VALUE : (long)rating - lower.getKey();
+        long higherDistance = higher == null ? Long.MAX_VALUE : (long)higher.getKey() - rating;
+        if(Math.min(lowerDistance, higherDistance) > window) {
+            return null;
+        }
+        return (lowerDistance <= higherDistance ? lower : higher).getValue().peekFirst();
+    }
+
+    /**
+     * Give two paired players a new game, and begin it.
+     *
+     * @param first The player who has waited longer, who moves first.
+     * @param second The other player.
+     * @param now The time of this tick, from {@link System#nanoTime()}.
+     */
+    private void begin(Ticket first, Ticket second, long now) {
+        ServerMetrics metrics = server.getMetrics();
+        metrics.recordMatchWait(now - first.queuedAt);
+        metrics.recordMatchWait(now - second.queuedAt);
+        first.player.sendMatchStatus(false, first.boardSize, first.winLength);
+        second.player.sendMatchStatus(false, second.boardSize, second.winLength);
+        // The opponent of a game plays cross, which moves first.
+        ServerGame game = server.createGame(
+                second.player,
+                first.player,
+                first.boardSize,
+                first.winLength);
+        ServerLog.Event event = server.getLog().begin(ServerLog.LEVEL_INFO, "match.made");
+        if(event != null) {
+            event.with("game", game.getGameID())
+                .with("cross", first.player.getNickname())
+                .with("nought", second.player.getNickname())
+                .with("cross_rating", first.rating)
+                .with("nought_rating", second.rating)
+                .with("waited_ms", (now - first.queuedAt) / 1000000)
+                .publish();
+        }
+        game.begin();
+    }
+
+    /**
+     * Get the key of a board variant in {@link #pools}.
+     *
+     * @param boardSize The width and height of the board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @return The key of the variant.
+     */
+    private static int variantKey(int boardSize, int winLength) {
+        return boardSize * (Board.MAX_SIZE + 1) + winLength;
+    }
+}
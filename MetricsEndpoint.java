@@ -0,0 +1,307 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the {@link ServerMetrics} of a server over plain HTTP, in the
+ * Prometheus text format, so that a local scraper can poll them. The
+ * endpoint only listens on the loopback address, and serves the metrics at
+ * {@code /metrics}.
+ * <p>
+ * Histograms are given as summaries, with the 50th, 90th, 99th and 99.9th
+ * percentiles along with their sum and count. Times are given in seconds.
+ *
+ * @author Tom Galvin
+ */
+public class MetricsEndpoint {
+    /**
+     * The quantiles given for each histogram.
+     */
+    private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+
+    /**
+     * The names of the packets sent by the client, indexed by packet ID.
+     */
+    private static final String[] CLIENT_PACKET_NAMES = packetNames("CLIENT_");
+
+    /**
+     * The names of the packets sent by the server, indexed by packet ID.
+     */
+    private static final String[] SERVER_PACKET_NAMES = packetNames("SERVER_");
+
+    private Server server;
+    private int port;
+    private HttpServer httpServer;
+
+    /**
+     * Create a new MetricsEndpoint.
+     *
+     * @param server The server whose metrics to serve.
+     * @param port The port on which to listen for scrapers.
+     */
+    public MetricsEndpoint(Server server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Start listening for scrapers, on a thread of its own.
+     */
+    public void start() throws IOException {
+        httpServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                0);
+        httpServer.createContext("/metrics", this::handle);
+        httpServer.start();
+        server.getLog().log(ServerLog.LEVEL_INFO, "metrics.listening", "url", String.format(
+                    "http://%s:%d/metrics",
+                    InetAddress.getLoopbackAddress().getHostAddress(),
+                    port
+                    ));
+    }
+
+    /**
+     * Stop listening for scrapers.
+     */
+    public void stop() {
+        if(httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * Respond to one request for the metrics.
+     *
+     * @param exchange The request and its response.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = format().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Format the current metrics of the server in the Prometheus text
+     * format.
+     *
+     * @return The formatted metrics.
+     */
+    public String format() {
+        ServerMetrics metrics = server.getMetrics();
+        StringBuilder s = new StringBuilder();
+
+        gauge(s, "tictac2_clients", "Clients connected to the server.",
+                server.getClientCount());
+        gauge(s, "tictac2_games", "Games requested or in progress.",
+                server.getGameCount());
+        gauge(s, "tictac2_lobbies", "Lobbies on the server, including the default lobby.",
+                server.getLobbyCount());
+        gauge(s, "tictac2_match_queue", "Players queued for a match.",
+                server.getMatchmaker().getQueuedCount());
+        type(s, "tictac2_log_dropped_total", "counter", "Log events dropped because the log was full.");
+        sample(s, "tictac2_log_dropped_total", null, server.getLog().getDropped());
+
+        type(s, "tictac2_packets_received_total", "counter", "Packets received from clients.");
+        for(int id = 0; id <= ServerMetrics.PACKET_ID_LIMIT; id++) {
+            if(metrics.getPacketsIn(id) > 0) {
+                sample(s, "tictac2_packets_received_total", packetLabel(CLIENT_PACKET_NAMES, id),
+                        metrics.getPacketsIn(id));
+            }
+        }
+        type(s, "tictac2_bytes_received_total", "counter", "Bytes of packets received from clients.");
+        for(int id = 0; id <= ServerMetrics.PACKET_ID_LIMIT; id++) {
+            if(metrics.getPacketsIn(id) > 0) {
+                sample(s, "tictac2_bytes_received_total", packetLabel(CLIENT_PACKET_NAMES, id),
+                        metrics.getBytesIn(id));
+            }
+        }
+        type(s, "tictac2_packets_sent_total", "counter", "Packets sent to clients.");
+        for(int id = 0; id <= ServerMetrics.PACKET_ID_LIMIT; id++) {
+            if(metrics.getPacketsOut(id) > 0) {
+                sample(s, "tictac2_packets_sent_total", packetLabel(SERVER_PACKET_NAMES, id),
+                        metrics.getPacketsOut(id));
+            }
+        }
+        type(s, "tictac2_bytes_sent_total", "counter", "Bytes of packets sent to clients.");
+        for(int id = 0; id <= ServerMetrics.PACKET_ID_LIMIT; id++) {
+            if(metrics.getPacketsOut(id) > 0) {
+                sample(s, "tictac2_bytes_sent_total", packetLabel(SERVER_PACKET_NAMES, id),
+                        metrics.getBytesOut(id));
+            }
+        }
+
+        type(s, "tictac2_packet_handle_seconds", "summary",
+                "Time from a received packet being decoded to it having been handled.");
+        for(int id = 0; id <= ServerMetrics.PACKET_ID_LIMIT; id++) {
+            LatencyHistogram handleTimes = metrics.getHandleTimes(id);
+            if(handleTimes != null) {
+                summary(s, "tictac2_packet_handle_seconds", packetLabel(CLIENT_PACKET_NAMES, id),
+                        handleTimes, 1e9);
+            }
+        }
+
+        type(s, "tictac2_send_queue_depth", "summary",
+                "Packets waiting in a client's send queue when its send loop wakes up.");
+        summary(s, "tictac2_send_queue_depth", null, metrics.getSendQueueDepths(), 1);
+        type(s, "tictac2_send_queue_wait_seconds", "summary",
+                "Time from a packet being queued to it being encoded.");
+        summary(s, "tictac2_send_queue_wait_seconds", null, metrics.getSendQueueWaits(), 1e9);
+
+        type(s, "tictac2_slow_consumers_total", "counter",
+                "Times a client's send queue reached its high watermark.");
+        sample(s, "tictac2_slow_consumers_total", null, metrics.getSlowConsumers());
+        type(s, "tictac2_packets_coalesced_total", "counter",
+                "Lobby updates replaced by a later update about the same player before being sent.");
+        sample(s, "tictac2_packets_coalesced_total", null, metrics.getPacketsCoalesced());
+        type(s, "tictac2_packets_dropped_total", "counter", "Lobby updates for slow consumers dropped.");
+        sample(s, "tictac2_packets_dropped_total", null, metrics.getPacketsDropped());
+        type(s, "tictac2_slow_consumer_disconnects_total", "counter", "Slow consumers disconnected.");
+        sample(s, "tictac2_slow_consumer_disconnects_total", null, metrics.getSlowConsumerDisconnects());
+
+        FlushStatistics flushes = server.getFlushStatistics();
+        type(s, "tictac2_flushes_total", "counter", "Write calls made by send loops.");
+        sample(s, "tictac2_flushes_total", null, flushes.getFlushes());
+
+        type(s, "tictac2_game_duration_seconds", "summary", "Duration of finished games.");
+        summary(s, "tictac2_game_duration_seconds", null, metrics.getGameDurations(), 1e9);
+        type(s, "tictac2_game_moves", "summary", "Moves made in finished games.");
+        summary(s, "tictac2_game_moves", null, metrics.getGameMoves(), 1);
+        type(s, "tictac2_match_wait_seconds", "summary",
+                "Time from a player queuing for a match to them being paired.");
+        summary(s, "tictac2_match_wait_seconds", null, metrics.getMatchWaits(), 1e9);
+        type(s, "tictac2_match_tick_seconds", "summary", "Time taken by each tick of the matchmaker.");
+        summary(s, "tictac2_match_tick_seconds", null, metrics.getMatchTicks(), 1e9);
+        return s.toString();
+    }
+
+    /**
+     * Write the HELP and TYPE lines of a metric.
+     *
+     * @param s The builder to write to.
+     * @param name The name of the metric.
+     * @param type The type of the metric.
+     * @param help The description of the metric.
+     */
+    private static void type(StringBuilder s, String name, String type, String help) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write a gauge with a single value.
+     *
+     * @param s The builder to write to.
+     * @param name The name of the metric.
+     * @param help The description of the metric.
+     * @param value The value of the gauge.
+     */
+    private static void gauge(StringBuilder s, String name, String help, long value) {
+        type(s, name, "gauge", help);
+        sample(s, name, null, value);
+    }
+
+    /**
+     * Write one sample of a metric.
+     *
+     * @param s The builder to write to.
+     * @param name The name of the metric.
+     * @param labels The labels of the sample, such as {@code packet="X"}, or
+     * {@code null} for none.
+     * @param value The value of the sample.
+     */
+    private static void sample(StringBuilder s, String name, String labels, double value) {
+        s.append(name);
+        if(labels != null) {
+            s.append('{').append(labels).append('}');
+        }
+        s.append(' ');
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+            s.append((long)value);
+        } else {
+            s.append(value);
+        }
+        s.append('\n');
+    }
+
+    /**
+     * Write a histogram as a summary, with its percentiles, sum and count.
+     *
+     * @param s The builder to write to.
+     * @param name The name of the metric.
+     * @param labels The labels of the histogram, or {@code null} for none.
+     * @param histogram The histogram.
+     * @param scale The amount to divide each recorded value by, such as
+     * {@code 1e9} to give nanoseconds in seconds.
+     */
+    private static void summary(
+            StringBuilder s,
+            String name,
+            String labels,
+            LatencyHistogram histogram,
+            double scale) {
+        String prefix = labels == null ? "" : labels + ",";
+        for(String quantile : QUANTILES) {
+            double percentile = Double.parseDouble(quantile) * 100;
+            sample(s, name, prefix + "quantile=\"" + quantile + "\"",
+                    histogram.getCount() == 0 ? Double.NaN : histogram.getPercentile(percentile) / scale);
+        }
+        sample(s, name + "_sum", labels, histogram.getSum() / scale);
+        sample(s, name + "_count", labels, histogram.getCount());
+    }
+
+    /**
+     * Get the label identifying a packet type.
+     *
+     * @param names The names of the packet IDs of one side of the
+     * connection.
+     * @param packetID The packet ID, or {@link ServerMetrics#PACKET_ID_LIMIT}
+     * for every packet ID out of range.
+     * @return The label of the packet type.
+     */
+    private static String packetLabel(String[] names, int packetID) {
+        String name;
+        if(packetID == ServerMetrics.PACKET_ID_LIMIT) {
+            name = "OTHER";
+        } else if(names[packetID] != null) {
+            name = names[packetID];
+        } else {
+            name = String.valueOf(packetID);
+        }
+        return "packet=\"" + name + "\"";
+    }
+
+    /**
+     * Find the names of the packet ID constants in {@link Packet} with the
+     * given prefix.
+     *
+     * @param prefix The prefix of the constants, such as {@code CLIENT_}.
+     * @return The names of the constants, indexed by packet ID.
+     */
+    private static String[] packetNames(String prefix) {
+        String[] names = new String[ServerMetrics.PACKET_ID_LIMIT];
+        for(Field field : Packet.class.getFields()) {
+            if(Modifier.isStatic(field.getModifiers()) &&
+               field.getType() == int.class &&
+               field.getName().startsWith(prefix)) {
+                try {
+                    int packetID = field.getInt(null);
+                    if(packetID >= 0 && packetID < names.length) {
+                        names[packetID] = field.getName();
+                    }
+                } catch(IllegalAccessException e) {
+                    // public constants can always be read
+                }
+            }
+        }
+        return names;
+    }
+}
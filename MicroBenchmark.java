@@ -0,0 +1,245 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small harness for timing hot code paths, in the style of JMH. Each
+ * benchmark is run for a number of warm-up iterations, to let the JIT
+ * compiler settle, and then for a number of measured iterations of fixed
+ * duration, whose average time per operation is reported. The results can
+ * be written out in the JSON format produced by JMH, so that they can be
+ * compared between releases with the same tools.
+ *
+ * @author Tom Galvin
+ */
+public class MicroBenchmark {
+    /**
+     * The body of a benchmark, which performs one operation. The returned
+     * value is consumed by the harness so that the JIT compiler cannot
+     * remove the operation as dead code.
+     */
+    @FunctionalInterface
+    public interface Operation {
+        /**
+         * Perform one operation.
+         *
+         * @return Any value computed by the operation.
+         */
+        public int run() throws Exception;
+    }
+
+    /**
+     * The result of running one benchmark.
+     */
+    public static class Result {
+        private String name;
+        private double nanosPerOperation;
+        private double error;
+
+        private Result(String name, double nanosPerOperation, double error) {
+            this.name = name;
+            this.nanosPerOperation = nanosPerOperation;
+            this.error = error;
+        }
+
+        /**
+         * Get the name of the benchmark.
+         *
+         * @return The name of the benchmark.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the average time taken by one operation.
+         *
+         * @return The average time per operation, in nanoseconds.
+         */
+        public double getNanosPerOperation() {
+            return nanosPerOperation;
+        }
+
+        /**
+         * Get the standard deviation of the time per operation between the
+         * measured iterations.
+         *
+         * @return The standard deviation, in nanoseconds.
+         */
+        public double getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%-40s %12.1f ns/op  (+/- %.1f)",
+                    name,
+                    nanosPerOperation,
+                    error
+                    );
+        }
+    }
+
+    private int warmupIterations;
+    private int measurementIterations;
+    private long iterationNanos;
+    private List<Result> results;
+    private PrintStream out;
+
+    /**
+     * The sink into which every operation's result is folded.
+     */
+    private volatile int sink;
+
+    /**
+     * Create a new MicroBenchmark.
+     *
+     * @param warmupIterations The number of unmeasured iterations to run
+     * before measuring.
+     * @param measurementIterations The number of measured iterations.
+     * @param iterationMillis The duration of each iteration, in milliseconds.
+     */
+    public MicroBenchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this(warmupIterations, measurementIterations, iterationMillis, System.out);
+    }
+
+    /**
+     * Create a new MicroBenchmark which prints its results to the given
+     * stream.
+     *
+     * @param warmupIterations The number of unmeasured iterations to run
+     * before measuring.
+     * @param measurementIterations The number of measured iterations.
+     * @param iterationMillis The duration of each iteration, in milliseconds.
+     * @param out The stream to print each result to.
+     */
+    public MicroBenchmark(
+            int warmupIterations,
+            int measurementIterations,
+            long iterationMillis,
+            PrintStream out) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+        this.results = new ArrayList<Result>();
+        this.out = out;
+    }
+
+    /**
+     * Run a benchmark, print its result, and record it.
+     *
+     * @param name The name of the benchmark.
+     * @param operation The operation to time.
+     * @return The result of the benchmark.
+     */
+    public Result run(String name, Operation operation) throws Exception {
+        for(int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+
+        double[] samples = new double[measurementIterations];
+        double total = 0;
+        for(int i = 0; i < measurementIterations; i++) {
+            samples[i] = runIteration(operation);
+            total += samples[i];
+        }
+        double mean = total / measurementIterations;
+        double variance = 0;
+        for(double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = measurementIterations > 1 ?
+            Math.sqrt(variance / (measurementIterations - 1)) :
+            0;
+
+        Result result = new Result(name, mean, error);
+        results.add(result);
+        out.println(result);
+        return result;
+    }
+
+    /**
+     * Get the results of every benchmark run so far.
+     *
+     * @return The results, in the order the benchmarks were run.
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * Write the results of every benchmark run so far as a JSON array, in
+     * the format of JMH's JSON result output.
+     *
+     * @param json The stream to write the JSON to.
+     */
+    public void writeJson(PrintStream json) {
+        json.println("[");
+        for(int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.println("    {");
+            json.println("        \"benchmark\" : " + quote(result.getName()) + ",");
+            json.println("        \"mode\" : \"avgt\",");
+            json.println("        \"warmupIterations\" : " + warmupIterations + ",");
+            json.println("        \"measurementIterations\" : " + measurementIterations + ",");
+            json.println("        \"measurementTime\" : \"" + (iterationNanos / 1000000L) + " ms\",");
+            json.println("        \"primaryMetric\" : {");
+            json.println("            \"score\" : " + result.getNanosPerOperation() + ",");
+            json.println("            \"scoreError\" : " + result.getError() + ",");
+            json.println("            \"scoreUnit\" : \"ns/op\"");
+            json.println("        }");
+            json.println(i < results.size() - 1 ? "    }," : "    }");
+        }
+        json.println("]");
+        json.flush();
+    }
+
+    /**
+     * Quote a string for use in JSON.
+     *
+     * @param s The string to quote.
+     * @return The quoted and escaped string.
+     */
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char c : s.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if(c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Run the operation repeatedly for one iteration's duration.
+     *
+     * @param operation The operation to time.
+     * @return The average time per operation, in nanoseconds.
+     */
+    private double runIteration(Operation operation) throws Exception {
+        int accumulator = 0;
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        // Check the clock only every so often, so that reading it does not
+        // dominate the time of very short operations.
+        int batch = 1;
+        do {
+            for(int i = 0; i < batch; i++) {
+                accumulator += operation.run();
+            }
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+            if(batch < 1024) {
+                batch *= 2;
+            }
+        } while(elapsed < iterationNanos);
+        sink += accumulator;
+        return (double)elapsed / operations;
+    }
+}
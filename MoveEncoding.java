@@ -0,0 +1,195 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes the packets sent for every move of a game: CLIENT_GAME_MOVE,
+ * SERVER_GAME_MOVE and SERVER_GAME_UPDATE. These are written either in the
+ * original encoding, where every field is an {@code int}, or in the compact
+ * encoding negotiated with {@link Packet#EXTENSION_COMPACT_MOVES}:
+ * <ul>
+ *   <li>the game ID is a {@link VarInt};</li>
+ *   <li>a move is a {@link VarInt} holding the cell index
+ *   ({@code y * size + x}) shifted left by two bits, with the tile in the
+ *   low two bits, so that a move on a 3x3 board takes one byte and a move
+ *   on a 19x19 board takes at most two;</li>
+ *   <li>a game update is one byte, holding the game state in the low four
+ *   bits and whether the client can move in the top bit.</li>
+ * </ul>
+ *
+ * @author Tom Galvin
+ */
+public abstract class MoveEncoding {
+    /**
+     * Write a CLIENT_GAME_MOVE packet.
+     *
+     * @param o The stream to write the packet to.
+     * @param compact Whether to use the compact encoding.
+     * @param gameID The ID of the game in which the move is being made.
+     * @param boardSize The width and height of the game board.
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
+     */
+    public static void writeClientMove(
+            DataOutputStream o,
+            boolean compact,
+            int gameID,
+            int boardSize,
+            int x,
+            int y) throws IOException {
+        o.writeInt(Packet.CLIENT_GAME_MOVE);
+        if(compact) {
+            VarInt.write(o, gameID);
+            VarInt.write(o, packMove(boardSize, x, y, Game.TILE_SPACE));
+        } else {
+            o.writeInt(gameID);
+            o.writeInt(x);
+            o.writeInt(y);
+        }
+    }
+
+    /**
+     * Write a SERVER_GAME_MOVE packet.
+     *
+     * @param o The stream to write the packet to.
+     * @param compact Whether to use the compact encoding.
+     * @param gameID The ID of the game in which the move was made.
+     * @param boardSize The width and height of the game board.
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
+     * @param tileType The type of tile that was placed on the game board.
+     */
+    public static void writeServerMove(
+            DataOutputStream o,
+            boolean compact,
+            int gameID,
+            int boardSize,
+            int x,
+            int y,
+            int tileType) throws IOException {
+        o.writeInt(Packet.SERVER_GAME_MOVE);
+        if(compact) {
+            VarInt.write(o, gameID);
+            VarInt.write(o, packMove(boardSize, x, y, tileType));
+        } else {
+            o.writeInt(gameID);
+            o.writeInt(x);
+            o.writeInt(y);
+            o.writeInt(tileType);
+        }
+    }
+
+    /**
+     * Write a SERVER_GAME_UPDATE packet.
+     *
+     * @param o The stream to write the packet to.
+     * @param compact Whether to use the compact encoding.
+     * @param gameID The ID of the game whose state has changed.
+     * @param canMove Whether the client is now able to make a move.
+     * @param gameState The state of the game as a GAME_* constant.
+     */
+    public static void writeServerUpdate(
+            DataOutputStream o,
+            boolean compact,
+            int gameID,
+            boolean canMove,
+            int gameState) throws IOException {
+        o.writeInt(Packet.SERVER_GAME_UPDATE);
+        if(compact) {
+            VarInt.write(o, gameID);
+            o.writeByte((canMove ? 0x80 : 0) | (gameState & 0x0F));
+        } else {
+            o.writeInt(gameID);
+            o.writeBoolean(canMove);
+            o.writeInt(gameState);
+        }
+    }
+
+    /**
+     * Read the game ID at the start of a move or update packet.
+     *
+     * @param i The stream to read from.
+     * @param compact Whether the packet uses the compact encoding.
+     * @return The game ID.
+     */
+    public static int readGameID(DataInputStream i, boolean compact) throws IOException {
+        return compact ? VarInt.read(i) : i.readInt();
+    }
+
+    /**
+     * Read the packed move of a compact move packet. As the packed move
+     * cannot be unpacked without knowing the size of the board, this is
+     * read after the game has been looked up by its ID.
+     *
+     * @param i The stream to read from.
+     * @return The packed move.
+     */
+    public static int readMove(DataInputStream i) throws IOException {
+        return VarInt.read(i);
+    }
+
+    /**
+     * Pack the location and tile of a move into one int.
+     *
+     * @param boardSize The width and height of the game board.
+     * @param x The X co-ordinate (between 0 and the board size - 1).
+     * @param y The Y co-ordinate (between 0 and the board size - 1).
+     * @param tileType The type of tile placed, or TILE_SPACE if not known.
+     * @return The packed move.
+     */
+    public static int packMove(int boardSize, int x, int y, int tileType) {
+        return ((y * boardSize + x) << 2) | tileType;
+    }
+
+    /**
+     * Get the X co-ordinate of a packed move.
+     *
+     * @param move The packed move.
+     * @param boardSize The width and height of the game board.
+     * @return The X co-ordinate of the move.
+     */
+    public static int moveX(int move, int boardSize) {
+        return (move >>> 2) % boardSize;
+    }
+
+    /**
+     * Get the Y co-ordinate of a packed move.
+     *
+     * @param move The packed move.
+     * @param boardSize The width and height of the game board.
+     * @return The Y co-ordinate of the move.
+     */
+    public static int moveY(int move, int boardSize) {
+        return (move >>> 2) / boardSize;
+    }
+
+    /**
+     * Get the tile type of a packed move.
+     *
+     * @param move The packed move.
+     * @return The tile type of the move.
+     */
+    public static int moveTile(int move) {
+        return move & 0x03;
+    }
+
+    /**
+     * Get whether the client can move, from a packed game update.
+     *
+     * @param update The packed game update.
+     * @return Whether the client can move.
+     */
+    public static boolean updateCanMove(int update) {
+        return (update & 0x80) != 0;
+    }
+
+    /**
+     * Get the game state from a packed game update.
+     *
+     * @param update The packed game update.
+     * @return The game state as a GAME_* constant.
+     */
+    public static int updateState(int update) {
+        return update & 0x0F;
+    }
+}
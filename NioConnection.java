@@ -0,0 +1,307 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents one client connected to the NIO server engine. This decodes
+ * packets from a non-blocking channel as their bytes arrive, and hands
+ * complete packets to the {@link ServerThread} representing the client.
+ *
+ * @author Tom Galvin
+ */
+public class NioConnection {
+    /**
+     * The number of encoded bytes waiting to be written to the channel, after
+     * which no more packets are taken from the send queue. A client which
+     * reads slowly then backs up its send queue, which is bounded, rather
+     * than the outbound buffer, which is not.
+     */
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024;
+
+    private static final int STATE_HANDSHAKE = 0;
+    private static final int STATE_ACTIVE    = 1;
+    private static final int STATE_CLOSING   = 2;
+    private static final int STATE_CLOSED    = 3;
+
+    private Server server;
+    private NioEventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ServerThread thread;
+    private int state;
+
+    /**
+     * The codec used to decode received packets. This is unframed until the
+     * handshake has completed, and is then the codec negotiated by the
+     * client.
+     */
+    private PacketCodec codec;
+    private ByteBuffer inBuffer;
+    private ByteBufferOutputStream outStream;
+    private DataOutputStream out;
+
+    /**
+     * Whether this connection is already waiting for its event loop to flush
+     * its send queue, so that queueing many packets at once only wakes the
+     * event loop up once.
+     */
+    private AtomicBoolean flushScheduled;
+
+    /**
+     * Whether another thread has asked for this connection to be closed,
+     * which is then done by the event loop.
+     */
+    private AtomicBoolean closeRequested;
+
+    /**
+     * Create a new NioConnection.
+     *
+     * @param server The server that this client is connecting to.
+     * @param loop The event loop which this connection is pinned to.
+     * @param channel The channel used to communicate with the client.
+     */
+    public NioConnection(Server server, NioEventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.state = STATE_HANDSHAKE;
+
+        this.codec = new UnframedPacketCodec();
+        this.inBuffer = ByteBuffer.allocate(1024);
+        this.outStream = new ByteBufferOutputStream(1024);
+        this.out = new DataOutputStream(outStream);
+        this.flushScheduled = new AtomicBoolean(false);
+        this.closeRequested = new AtomicBoolean(false);
+    }
+
+    /**
+     * Set the selection key of this connection's channel. This must be
+     * called by the event loop before any events are handled.
+     *
+     * @param key The key of this connection's channel.
+     */
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Determines whether this connection is still open.
+     *
+     * @return {@code true} if this connection has not been closed.
+     */
+    public boolean isOpen() {
+        return state != STATE_CLOSED;
+    }
+
+    /**
+     * Handle the channel becoming readable, decoding and handling every
+     * complete packet that has been received.
+     */
+    public void handleRead() throws IOException {
+        int read = channel.read(inBuffer);
+        if(read == -1) {
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "client.quit");
+            if(event != null) {
+                event.publish();
+            }
+            close();
+            return;
+        }
+
+        inBuffer.flip();
+        while(state == STATE_HANDSHAKE || state == STATE_ACTIVE) {
+            int packetID = codec.decodePacket(inBuffer);
+            if(packetID == PacketCodec.NO_PACKET) {
+                break;
+            }
+            if(state == STATE_HANDSHAKE) {
+                handleHandshake(packetID);
+            } else {
+                thread.handlePacket(codec.getPayload(), packetID);
+            }
+        }
+        inBuffer.compact();
+
+        // If the buffer is too small for the partial packet in it, make room
+        // for the rest of it, all at once if its length is known.
+        int pendingLength = codec.getPendingLength();
+        if(pendingLength > inBuffer.capacity() || !inBuffer.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pendingLength, inBuffer.capacity() * 2));
+            inBuffer.flip();
+            grown.put(inBuffer);
+            inBuffer = grown;
+        }
+        flush();
+    }
+
+    /**
+     * Handle the CLIENT_CONNECT packet, which must be the first packet that
+     * the client sends.
+     *
+     * @param packetID The ID of the first packet.
+     */
+    private void handleHandshake(int packetID) throws IOException {
+        thread = server.handshake(
+                packetID,
+                codec.getPayload(),
+                out,
+                (nickname, clientCodec) -> new ServerThread(
+                    server,
+                    nickname,
+                    server.getStoredScore(nickname),
+                    clientCodec,
+                    this));
+        if(thread == null) {
+            state = STATE_CLOSING;
+        } else {
+            state = STATE_ACTIVE;
+            codec = thread.getCodec();
+            thread.connected();
+        }
+    }
+
+    /**
+     * Handle the channel becoming writable again.
+     */
+    public void handleWrite() throws IOException {
+        flush();
+    }
+
+    /**
+     * Invoked by the {@link ServerThread} of this connection, from any
+     * thread, when a packet has been queued to send to the client.
+     */
+    public void packetQueued() {
+        if(flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Invoked by the {@link ServerThread} of this connection, from any
+     * thread, to have the event loop close the connection.
+     */
+    public void requestClose() {
+        closeRequested.set(true);
+        loop.scheduleFlush(this);
+    }
+
+    /**
+     * Write queued packets into the outbound buffer, and then write as much
+     * of the outbound buffer to the channel as it will accept. Packets are
+     * left in the send queue once the outbound buffer holds
+     * {@link #MAX_BUFFERED_BYTES}. This must only be called from the event
+     * loop thread.
+     */
+    public void flush() throws IOException {
+        if(state == STATE_CLOSED) {
+            return;
+        }
+        if(closeRequested.get()) {
+            close();
+            return;
+        }
+        flushScheduled.set(false);
+        int packets = 0;
+        if(thread != null) {
+            ServerMetrics metrics = server.getMetrics();
+            int depth = thread.getSendQueueDepth();
+            if(depth > 0) {
+                metrics.recordSendQueueDepth(depth);
+            }
+            PacketCodec clientCodec = thread.getCodec();
+            PacketWriter writer;
+            while(outStream.size() < MAX_BUFFERED_BYTES &&
+                  (writer = thread.pollPacket()) != null) {
+                int start = outStream.size();
+                int packetID = clientCodec.writePacket(writer, out);
+                if(packetID != PacketCodec.NO_PACKET) {
+                    metrics.recordPacketOut(packetID, outStream.size() - start);
+                }
+                packets++;
+            }
+        }
+
+        if(outStream.size() > 0) {
+            int bytes = outStream.writeTo(channel);
+            server.getFlushStatistics().recordFlush(packets, bytes);
+        }
+        if(thread != null && packets > 0) {
+            thread.packetsSent();
+        }
+
+        // Packets left in the send queue are taken once the channel is
+        // writable again.
+        if(outStream.size() > 0 || (thread != null && thread.getSendQueueDepth() > 0)) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if(state == STATE_CLOSING) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Close this connection after failing to read from or write to it, and
+     * remove the client from the server.
+     *
+     * @param e The reason the connection failed.
+     */
+    public void close(IOException e) {
+        ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "client.disconnected");
+        if(event != null) {
+            event.with("reason", e.toString()).publish();
+        }
+        close();
+    }
+
+    /**
+     * Close this connection and remove the client from the server.
+     */
+    public void close() {
+        if(state == STATE_CLOSED) {
+            return;
+        }
+        state = STATE_CLOSED;
+        if(key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch(IOException e) {
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_WARN, "client.close_failed");
+            if(event != null) {
+                event.with(e).publish();
+            }
+        }
+        if(thread != null) {
+            thread.disconnected();
+        }
+    }
+
+    /**
+     * Begin logging an event about this client, identified by its nickname
+     * (or address, before the handshake has completed).
+     *
+     * @param level The level of the event, as a LEVEL_* constant in
+     * {@link ServerLog}.
+     * @param name The name of the event.
+     * @return The event to fill in and publish, or {@code null} if it is not
+     * logged.
+     */
+    private ServerLog.Event logEvent(int level, String name) {
+        ServerLog.Event event = server.getLog().begin(level, name);
+        if(event != null) {
+            if(thread != null) {
+                event.with("nickname", thread.getNickname());
+            } else {
+                event.with("address", String.valueOf(channel.socket().getRemoteSocketAddress()));
+            }
+        }
+        return event;
+    }
+}
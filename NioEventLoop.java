@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One event loop thread of the NIO server engine. Each event loop owns a
+ * {@link java.nio.channels.Selector} and services every connection which
+ * has been pinned to it, so that the number of threads used by the server
+ * does not grow with the number of connected clients.
+ *
+ * @author Tom Galvin
+ */
+public class NioEventLoop implements Runnable {
+    private Server server;
+    private Selector selector;
+    private ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+    private ConcurrentLinkedQueue<NioConnection> pendingFlushes;
+
+    /**
+     * Create a new event loop.
+     *
+     * @param server The server that this event loop belongs to.
+     */
+    public NioEventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<NioConnection>();
+    }
+
+    /**
+     * Hand a newly accepted channel to this event loop. This may be called
+     * from any thread.
+     *
+     * @param channel The channel of the newly connected client.
+     */
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask this event loop to flush the send queue of the given connection.
+     * This may be called from any thread.
+     *
+     * @param connection The connection with packets waiting to be sent.
+     */
+    public void scheduleFlush(NioConnection connection) {
+        pendingFlushes.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(server.isRunning()) {
+                selector.select(3000);
+                registerPendingChannels();
+                flushPendingConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection)key.attachment();
+                    try {
+                        if(key.isValid() && key.isReadable()) {
+                            connection.handleRead();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            connection.handleWrite();
+                        }
+                    } catch(IOException e) {
+                        connection.close(e);
+                    } catch(RuntimeException e) {
+                        // A bug handling one client's packets must not end
+                        // the loop, and with it every other client on it.
+                        server.getLog().error("connection.failed", e);
+                        connection.close();
+                    }
+                }
+            }
+        } catch(IOException e) {
+            server.getLog().error("loop.failed", e);
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                ((NioConnection)key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch(IOException e) {
+                server.getLog().error("loop.close_failed", e);
+            }
+        }
+    }
+
+    /**
+     * Register every channel handed to this event loop since the last
+     * iteration with the selector.
+     */
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while((channel = pendingChannels.poll()) != null) {
+            NioConnection connection = new NioConnection(server, this, channel);
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, server.getOptions().useTcpNoDelay());
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch(IOException e) {
+                server.getLog().error("client.register_failed", e);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Flush every connection which has had packets queued since the last
+     * iteration.
+     */
+    private void flushPendingConnections() {
+        NioConnection connection;
+        while((connection = pendingFlushes.poll()) != null) {
+            try {
+                connection.flush();
+            } catch(IOException e) {
+                connection.close(e);
+            } catch(RuntimeException e) {
+                server.getLog().error("connection.failed", e);
+                connection.close();
+            }
+        }
+    }
+}
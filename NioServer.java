@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The selector-based engine for the tictac2 server. Rather than starting
+ * two threads for every client, this accepts clients on the calling thread
+ * and spreads them over a fixed pool of {@link NioEventLoop}s.
+ *
+ * @author Tom Galvin
+ */
+public class NioServer implements Runnable {
+    private Server server;
+    private int port;
+    private NioEventLoop[] loops;
+
+    /**
+     * Create a new NIO server engine.
+     *
+     * @param server The server whose game logic this engine drives.
+     * @param port The port on which to listen for clients.
+     * @param eventLoops The number of event loop threads to use.
+     */
+    public NioServer(Server server, int port, int eventLoops) {
+        this.server = server;
+        this.port = port;
+        this.loops = new NioEventLoop[eventLoops];
+    }
+
+    @Override
+    public void run() {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            Selector acceptSelector = Selector.open()) {
+            for(int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(server);
+                Thread thread = new Thread(loops[i], "nio-loop-" + i);
+                thread.start();
+            }
+
+            serverChannel.bind(new InetSocketAddress(port), Server.ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            ServerLog.Event event = server.getLog().begin(ServerLog.LEVEL_INFO, "server.listening");
+            if(event != null) {
+                event.with("port", port)
+                    .with("engine", "nio")
+                    .with("loops", loops.length)
+                    .publish();
+            }
+
+            int nextLoop = 0;
+            while(server.isRunning()) {
+                // time out after a while, this allows the server thread to be
+                // stopped
+                acceptSelector.select(3000);
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel channel;
+                while((channel = serverChannel.accept()) != null) {
+                    server.getLog().log(ServerLog.LEVEL_INFO, "client.accepted",
+                            "address", channel.socket().getInetAddress().getHostAddress());
+                    loops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                }
+            }
+        } catch(IOException e) {
+            server.getLog().error("server.failed", e);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * A board of any supported size and win length, such as a 15x15 board with
+ * five in a row. Each cell is packed into two bits of a {@code long[]}, so a
+ * 19x19 board takes 96 bytes of tile data, and thousands of games on large
+ * boards fit comfortably in memory.
+ *
+ * @author Tom Galvin
+ */
+public class PackedBoard implements Board {
+    private static final int BITS_PER_CELL = 2;
+    private static final int CELLS_PER_WORD = 64 / BITS_PER_CELL;
+
+    private int size;
+    private int winLength;
+    private long[] cells;
+    private int occupied;
+
+    /**
+     * Create a new, empty board.
+     *
+     * @param size The width and height of the board.
+     * @param winLength The number of tiles in a row needed to win.
+     */
+    public PackedBoard(int size, int winLength) {
+        this.size = size;
+        this.winLength = winLength;
+        this.cells = new long[(size * size + CELLS_PER_WORD - 1) / CELLS_PER_WORD];
+        this.occupied = 0;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getWinLength() {
+        return winLength;
+    }
+
+    @Override
+    public boolean isOnBoard(int x, int y) {
+        return x >= 0 && x < size && y >= 0 && y < size;
+    }
+
+    @Override
+    public int getTile(int x, int y) {
+        int cell = y * size + x;
+        int shift = (cell % CELLS_PER_WORD) * BITS_PER_CELL;
+        return (int)(cells[cell / CELLS_PER_WORD] >>> shift) & 0x3;
+    }
+
+    @Override
+    public void setTile(int x, int y, int tile) {
+        int cell = y * size + x;
+        int word = cell / CELLS_PER_WORD;
+        int shift = (cell % CELLS_PER_WORD) * BITS_PER_CELL;
+        int previous = (int)(cells[word] >>> shift) & 0x3;
+        cells[word] = (cells[word] & ~(0x3L << shift)) | ((long)tile << shift);
+
+        if(previous == Game.TILE_SPACE && tile != Game.TILE_SPACE) {
+            occupied++;
+        } else if(previous != Game.TILE_SPACE && tile == Game.TILE_SPACE) {
+            occupied--;
+        }
+    }
+
+    @Override
+    public boolean isWinningMove(int x, int y) {
+        int tile = getTile(x, y);
+        if(tile == Game.TILE_SPACE) {
+            return false;
+        }
+        // Check the horizontal, vertical and two diagonal lines through the
+        // tile, counting along each line in both directions.
+        return isLine(x, y, 1, 0, tile) ||
+               isLine(x, y, 0, 1, tile) ||
+               isLine(x, y, 1, 1, tile) ||
+               isLine(x, y, 1, -1, tile);
+    }
+
+    /**
+     * Determines whether the line through the given location, in the given
+     * direction, contains enough tiles of the given value in a row to win.
+     *
+     * @param x The X co-ordinate of the tile.
+     * @param y The Y co-ordinate of the tile.
+     * @param dx The X step of the line.
+     * @param dy The Y step of the line.
+     * @param tile The value of the tile.
+     * @return {@code true} if the line is long enough to win.
+     */
+    private boolean isLine(int x, int y, int dx, int dy, int tile) {
+        return 1 + countRun(x, y, dx, dy, tile) + countRun(x, y, -dx, -dy, tile) >= winLength;
+    }
+
+    /**
+     * Count the tiles of the given value in a row from (but excluding) the
+     * given location, stopping after one less than the win length.
+     *
+     * @param x The X co-ordinate to start from.
+     * @param y The Y co-ordinate to start from.
+     * @param dx The X step of the direction to count in.
+     * @param dy The Y step of the direction to count in.
+     * @param tile The value of the tiles to count.
+     * @return The number of matching tiles in a row.
+     */
+    private int countRun(int x, int y, int dx, int dy, int tile) {
+        int count = 0;
+        x += dx;
+        y += dy;
+        while(count < winLength - 1 && isOnBoard(x, y) && getTile(x, y) == tile) {
+            count++;
+            x += dx;
+            y += dy;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isFull() {
+        return occupied == size * size;
+    }
+}
@@ -8,9 +8,53 @@ public abstract class Packet {
     /**
      * The current protocol version in use by tictac2. This mainly used to
      * detect when two mismatched, incompatible versions of tictac2 attempt to
-     * connect.
+     * connect. From version 2 onwards, every packet after the handshake is
+     * sent in a length-prefixed frame (see {@link FramedPacketCodec}).
      */
-    public static final int PROTOCOL_VERSION = 1;
+    public static final int PROTOCOL_VERSION = 2;
+
+    /**
+     * The original protocol version, in which packets are not framed (see
+     * {@link UnframedPacketCodec}). The server still accepts clients using
+     * this version. The CLIENT_CONNECT packet, and the SERVER_STATUS packet
+     * sent in response to it, are always unframed so that either version can
+     * be negotiated.
+     */
+    public static final int PROTOCOL_VERSION_UNFRAMED = 1;
+
+    public static final int
+    /**
+     * A flag in the extensions field of the CLIENT_CONNECT packet, requesting
+     * that game moves and updates use the compact encoding described in
+     * {@link MoveEncoding}. This is only accepted over the framed protocol.
+     */
+        EXTENSION_COMPACT_MOVES = 1,
+    /**
+     * A flag in the extensions field of the CLIENT_CONNECT packet, indicating
+     * that the client can play on boards other than 3x3. CLIENT_REQUEST_SEND,
+     * SERVER_REQUEST_RECEIVED and SERVER_GAME_BEGIN then end with two ints
+     * giving the board size and the number of tiles in a row needed to win
+     * (see {@link Board}). This is only accepted over the framed protocol.
+     */
+        EXTENSION_BOARD_VARIANTS = 2,
+    /**
+     * A flag in the extensions field of the CLIENT_CONNECT packet, indicating
+     * that the client keeps its list of players in sync with the versioned
+     * {@link Roster}, using CLIENT_ROSTER_QUERY and CLIENT_ROSTER_SUBSCRIBE,
+     * rather than CLIENT_PLAYER_GET_LIST. The server then sends it
+     * SERVER_ROSTER_DELTA packets in place of SERVER_PLAYER_UPDATE and
+     * SERVER_PLAYER_LEAVE. This is only accepted over the framed protocol.
+     */
+        EXTENSION_ROSTER = 4;
+
+    /**
+     * Every extension flag supported by this version of tictac2. If a client
+     * requests any extensions, the SERVER_STATUS packet it receives ends with
+     * an int holding the flags of the requested extensions that the server
+     * accepted.
+     */
+    public static final int SUPPORTED_EXTENSIONS =
+        EXTENSION_COMPACT_MOVES | EXTENSION_BOARD_VARIANTS | EXTENSION_ROSTER;
 
     public static final int
     /**
@@ -30,6 +74,19 @@ public abstract class Packet {
      * A packet sent by the client to get info on all connected players.
      */
         CLIENT_PLAYER_GET_LIST = 200,
+    /**
+     * A packet sent by the client to get one page of the players whose
+     * nicknames start with a given prefix, in nickname order. This is given
+     * as the prefix, the nickname of the last player of the previous page
+     * (or an empty string for the first page), and the most players to
+     * return.
+     */
+        CLIENT_ROSTER_QUERY = 202,
+    /**
+     * A packet sent by the client to be sent every change to the roster
+     * after the given version, which is a long.
+     */
+        CLIENT_ROSTER_SUBSCRIBE = 203,
     /**
      * A packet sent by the client to make a move at a given location in a game.
      */
@@ -37,7 +94,51 @@ public abstract class Packet {
     /**
      * A packet sent by the client to forfeit a game.
      */
-        CLIENT_GAME_FORFEIT = 301;
+        CLIENT_GAME_FORFEIT = 301,
+    /**
+     * A packet sent by the client to get the lobbies on the server. This is
+     * only accepted over the framed protocol.
+     */
+        CLIENT_LOBBY_GET_LIST = 400,
+    /**
+     * A packet sent by the client to move into the lobby with the given
+     * name, which is created if it does not exist. This is only accepted
+     * over the framed protocol.
+     */
+        CLIENT_LOBBY_JOIN = 401,
+    /**
+     * A packet sent by the client to leave its lobby, and return to the
+     * server's default lobby. This is only accepted over the framed protocol.
+     */
+        CLIENT_LOBBY_LEAVE = 402,
+    /**
+     * A packet sent by the client to be paired by the server's
+     * {@link Matchmaker} with another player of a similar score, given as
+     * the board size and the number of tiles in a row needed to win. The
+     * server replies with SERVER_MATCH_STATUS, and once the client is
+     * paired, sends SERVER_GAME_BEGIN for the new game. This is only
+     * accepted over the framed protocol.
+     */
+        CLIENT_MATCH_QUEUE = 500,
+    /**
+     * A packet sent by the client to stop waiting to be paired. The server
+     * replies with SERVER_MATCH_STATUS. This is only accepted over the
+     * framed protocol.
+     */
+        CLIENT_MATCH_LEAVE = 501,
+    /**
+     * A packet sent by the client to get the players with the highest
+     * scores on the server, given as the most players to get, which may be
+     * at most {@link Leaderboard#MAX_TOP}. The server replies with
+     * SERVER_LEADERBOARD. This is only accepted over the framed protocol.
+     */
+        CLIENT_LEADERBOARD_GET = 600,
+    /**
+     * A packet sent by the client to get the rank of the player with the
+     * given nickname. The server replies with SERVER_LEADERBOARD_RANK. This
+     * is only accepted over the framed protocol.
+     */
+        CLIENT_LEADERBOARD_RANK = 601;
 
     public static final int
     /**
@@ -76,6 +177,21 @@ public abstract class Packet {
      * nickname logged out of the server.
      */
         SERVER_PLAYER_LEAVE = 201,
+    /**
+     * A message sent to the client in response to CLIENT_ROSTER_QUERY,
+     * holding the version of the roster as a long, whether there are more
+     * matching players after this page, and the number of players followed
+     * by the nickname and score of each.
+     */
+        SERVER_ROSTER_PAGE = 202,
+    /**
+     * A message sent to a client subscribed to the roster, holding the
+     * versions of the roster it is from and up to as longs, whether the
+     * client must clear its roster and read it again, and the number of
+     * changes. Each change is a boolean which is {@code true} if the player
+     * left, the player's nickname, and, if they did not leave, their score.
+     */
+        SERVER_ROSTER_DELTA = 203,
     /**
      * A message sent to the client, indicating that a game in which they are
      * a participant has started.
@@ -92,5 +208,38 @@ public abstract class Packet {
      * game is in progress/won/lost/tied, and (if necessary) whose turn it is
      * to move.
      */
-        SERVER_GAME_UPDATE = 302;
+        SERVER_GAME_UPDATE = 302,
+    /**
+     * A message sent to the client in response to CLIENT_LOBBY_GET_LIST,
+     * holding the number of lobbies followed by the ID, name and number of
+     * players of each.
+     */
+        SERVER_LOBBY_LIST = 400,
+    /**
+     * A message sent to a client using the framed protocol once it has
+     * joined a lobby, including the default lobby when it connects, holding
+     * the ID and name of the lobby. From then on, the client is only told
+     * about the players in that lobby, and can only challenge them.
+     */
+        SERVER_LOBBY_JOINED = 401,
+    /**
+     * A message sent to the client when it starts or stops waiting to be
+     * paired by the matchmaker, holding whether it is now waiting, and the
+     * board size and win length of the game it is or was waiting for. A
+     * client which is paired is sent this just before SERVER_GAME_BEGIN.
+     */
+        SERVER_MATCH_STATUS = 500,
+    /**
+     * A message sent to the client in response to CLIENT_LEADERBOARD_GET,
+     * holding the number of players on the server, the rank of the client's
+     * own player, and the number of players sent followed by the nickname
+     * and score of each, from the highest score to the lowest.
+     */
+        SERVER_LEADERBOARD = 600,
+    /**
+     * A message sent to the client in response to CLIENT_LEADERBOARD_RANK,
+     * holding the nickname asked about, the rank of that player, or 0 if
+     * they are not connected, and their score.
+     */
+        SERVER_LEADERBOARD_RANK = 601;
 }
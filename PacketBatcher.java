@@ -0,0 +1,95 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes queued packets to a blocking output stream in batches. Rather than
+ * writing each field of each packet straight to the socket, every packet
+ * waiting in the send queue is drained into one reusable buffer, which is
+ * then written with a single call. This is used by the send loops of both
+ * the client and the blocking server engine.
+ *
+ * @author Tom Galvin
+ */
+public class PacketBatcher {
+    /**
+     * The number of buffered bytes after which a batch is written, even if
+     * more packets are waiting, to bound the size of the buffer.
+     */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private BlockingQueue<PacketWriter> sendQueue;
+    private PacketCodec codec;
+    private OutputStream outputStream;
+    private ByteBufferOutputStream buffer;
+    private DataOutputStream bufferStream;
+    private FlushStatistics statistics;
+    private ServerMetrics metrics;
+
+    /**
+     * Create a new PacketBatcher.
+     *
+     * @param sendQueue The queue of packets waiting to be sent.
+     * @param codec The codec with which to encode each packet.
+     * @param outputStream The stream to which to write each batch.
+     * @param statistics The statistics in which to record each batch.
+     */
+    public PacketBatcher(
+            BlockingQueue<PacketWriter> sendQueue,
+            PacketCodec codec,
+            OutputStream outputStream,
+            FlushStatistics statistics) {
+        this(sendQueue, codec, outputStream, statistics, null);
+    }
+
+    /**
+     * Create a new PacketBatcher for a send loop of the server.
+     *
+     * @param sendQueue The queue of packets waiting to be sent.
+     * @param codec The codec with which to encode each packet.
+     * @param outputStream The stream to which to write each batch.
+     * @param statistics The statistics in which to record each batch.
+     * @param metrics The server metrics in which to record each packet and
+     * the depth of the send queue, or {@code null} to record neither.
+     */
+    public PacketBatcher(
+            BlockingQueue<PacketWriter> sendQueue,
+            PacketCodec codec,
+            OutputStream outputStream,
+            FlushStatistics statistics,
+            ServerMetrics metrics) {
+        this.sendQueue = sendQueue;
+        this.codec = codec;
+        this.outputStream = outputStream;
+        this.statistics = statistics;
+        this.metrics = metrics;
+
+        this.buffer = new ByteBufferOutputStream(4096);
+        this.bufferStream = new DataOutputStream(buffer);
+    }
+
+    /**
+     * Wait for at least one packet to be queued, and then write it, along
+     * with every other packet queued by then, to the output stream.
+     */
+    public void sendBatch() throws IOException, InterruptedException {
+        PacketWriter writer = sendQueue.take();
+        if(metrics != null) {
+            metrics.recordSendQueueDepth(sendQueue.size() + 1);
+        }
+        int packets = 0;
+        do {
+            int start = buffer.size();
+            int packetID = codec.writePacket(writer, bufferStream);
+            if(metrics != null && packetID != PacketCodec.NO_PACKET) {
+                metrics.recordPacketOut(packetID, buffer.size() - start);
+            }
+            packets++;
+        } while(buffer.size() < MAX_BATCH_BYTES &&
+                (writer = sendQueue.poll()) != null);
+
+        int bytes = buffer.writeTo(outputStream);
+        statistics.recordFlush(packets, bytes);
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes packets onto, and decodes packets from, the wire format negotiated
+ * for one connection. An instance holds the reusable buffers of a single
+ * connection, so must not be shared between connections. Packets may be
+ * written by one thread while they are read by another, as the two
+ * directions use separate buffers.
+ *
+ * @author Tom Galvin
+ */
+public interface PacketCodec {
+    /**
+     * Returned by {@link #decodePacket(ByteBuffer)} when the buffer does not
+     * yet hold a complete packet.
+     */
+    public static final int NO_PACKET = -1;
+
+    /**
+     * Get the protocol version implemented by this codec.
+     *
+     * @return The protocol version, as sent in the CLIENT_CONNECT packet.
+     */
+    public int getProtocolVersion();
+
+    /**
+     * Encode a packet onto the given output stream.
+     *
+     * @param writer The writer of the packet. This always writes the packet
+     * ID as an {@code int}, followed by the packet's fields.
+     * @param out The stream to encode the packet onto.
+     * @return The ID of the packet, or {@link #NO_PACKET} if the writer wrote
+     * nothing, in which case nothing is encoded.
+     */
+    public int writePacket(PacketWriter writer, DataOutputStream out) throws IOException;
+
+    /**
+     * Read the next packet from a blocking input stream. The fields of the
+     * packet can then be read from {@link #getPayload()}.
+     *
+     * @param in The stream to read from.
+     * @return The ID of the packet.
+     */
+    public int readPacket(DataInputStream in) throws IOException;
+
+    /**
+     * Decode the packet at the position of the given buffer, if it has been
+     * received completely. If so, the position of the buffer is moved past
+     * the packet, and the fields of the packet can then be read from
+     * {@link #getPayload()} until the buffer is next modified.
+     *
+     * @param buffer The buffer of received bytes, ready to be read.
+     * @return The ID of the packet, or {@link #NO_PACKET} if the buffer does
+     * not hold a complete packet.
+     */
+    public int decodePacket(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Get the total length of the incomplete packet last seen by
+     * {@link #decodePacket(ByteBuffer)}, so that a buffer big enough to hold
+     * it can be allocated up front.
+     *
+     * @return The length of the incomplete packet in bytes, or {@code 0} if
+     * it is not known yet.
+     */
+    public int getPendingLength();
+
+    /**
+     * Get the number of bytes taken up on the wire by the last packet read
+     * or decoded, including its packet ID and any framing. For a format
+     * without framing, this is only known once every field of the packet
+     * has been read from {@link #getPayload()}.
+     *
+     * @return The length of the last packet in bytes.
+     */
+    public int getPacketLength();
+
+    /**
+     * Get the stream from which to read the fields of the last packet read
+     * or decoded.
+     *
+     * @return The stream holding the fields of the last packet.
+     */
+    public DataInputStream getPayload();
+}
@@ -0,0 +1,271 @@
+import java.util.Arrays;
+
+/**
+ * The perfect move in every position which can be reached in a game on a
+ * 3x3 board, so that a {@link ServerBot} playing on a 3x3 board finds its
+ * move with one lookup.
+ * <p>
+ * A position is encoded as a number in base 3, with one digit per cell
+ * holding its tile, the cell at {@code (x, y)} being digit
+ * {@code y * 3 + x}. Positions which are the same under one of the 8
+ * symmetries of the board, its rotations and reflections, share one entry
+ * in the table, keyed by the smallest code among them. The table is solved
+ * by searching every reachable position once, which takes a few
+ * milliseconds, so it is built when the server starts rather than being
+ * stored.
+ *
+ * @author Tom Galvin
+ */
+public class PerfectPlayTable {
+    private static final int SIZE = BitBoard.SIZE;
+    private static final int CELLS = SIZE * SIZE;
+
+    /**
+     * The number of codes of 3x3 positions, including unreachable ones.
+     */
+    private static final int CODES = 19683;
+
+    /**
+     * The score of winning with the last move, less the number of tiles
+     * then on the board, so that a quicker win scores higher.
+     */
+    private static final int WIN = CELLS + 1;
+
+    /**
+     * The 8 lines of three cells through which a game can be won.
+     */
+    private static final int[][] LINES = {
+        { 0, 1, 2 }, { 3, 4, 5 }, { 6, 7, 8 },
+        { 0, 3, 6 }, { 1, 4, 7 }, { 2, 5, 8 },
+        { 0, 4, 8 }, { 2, 4, 6 }
+    };
+
+    /**
+     * For each symmetry of the board, the cell to which each cell is moved
+     * by it.
+     */
+    private static final int[][] SYMMETRIES = new int[8][CELLS];
+
+    /**
+     * The value of each power of 3 up to the number of cells.
+     */
+    private static final int[] POWERS = new int[CELLS];
+
+    static {
+        for(int cell = 0; cell < CELLS; cell++) {
+            POWERS[cell] = cell == 0 ? 1 : POWERS[cell - 1] * 3;
+            int x = cell % SIZE, y = cell / SIZE, m = SIZE - 1;
+            int[][] moved = {
+                { x, y }, { m - y, x }, { m - x, m - y }, { y, m - x },
+                { m - x, y }, { x, m - y }, { y, x }, { m - y, m - x }
+            };
+            for(int s = 0; s < 8; s++) {
+                SYMMETRIES[s][cell] = moved[s][1] * SIZE + moved[s][0];
+            }
+        }
+    }
+
+    /**
+     * The best cell to play in each canonical position, in the orientation
+     * of that position, or -1 if the position is over or cannot be reached.
+     */
+    private byte[] bestMoves;
+
+    /**
+     * The score of each canonical position for the player to move, with
+     * perfect play from both sides.
+     */
+    private byte[] scores;
+    private boolean[] solved;
+    private int positions;
+
+    /**
+     * Create a new PerfectPlayTable, solving every reachable position.
+     */
+    public PerfectPlayTable() {
+        this.bestMoves = new byte[CODES];
+        this.scores = new byte[CODES];
+        this.solved = new boolean[CODES];
+        Arrays.fill(bestMoves, (byte)-1);
+        solve(new int[CELLS], 0);
+        // The table is only read from now on.
+        this.solved = null;
+    }
+
+    /**
+     * Get the number of distinct positions, up to symmetry, in the table.
+     *
+     * @return The number of positions.
+     */
+    public int getPositionCount() {
+        return positions;
+    }
+
+    /**
+     * Get the best move in a position on a 3x3 board, for whichever player's
+     * turn it is. Cross always moves first, so it is cross's turn when both
+     * players have placed the same number of tiles.
+     *
+     * @param board The board of the position.
+     * @return The cell to play, as {@code y * 3 + x}, or -1 if the game is
+     * already over.
+     */
+    public int getBestMove(Board board) {
+        int[] cells = new int[CELLS];
+        for(int cell = 0; cell < CELLS; cell++) {
+            cells[cell] = board.getTile(cell % SIZE, cell / SIZE);
+        }
+        int canonical = Integer.MAX_VALUE, symmetry = 0;
+        for(int s = 0; s < 8; s++) {
+            int transformed = transform(cells, s);
+            if(transformed < canonical) {
+                canonical = transformed;
+                symmetry = s;
+            }
+        }
+        int move = bestMoves[canonical];
+        if(move == -1) {
+            return -1;
+        }
+        // Map the move back from the canonical orientation.
+        for(int cell = 0; cell < CELLS; cell++) {
+            if(SYMMETRIES[symmetry][cell] == move) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the score of a position with perfect play from both sides.
+     *
+     * @param board The board of the position.
+     * @return A positive score if the player to move wins, zero if the game
+     * is drawn, or a negative score if the player to move loses. A quicker
+     * win has a higher score.
+     */
+    public int getScore(Board board) {
+        int[] cells = new int[CELLS];
+        for(int cell = 0; cell < CELLS; cell++) {
+            cells[cell] = board.getTile(cell % SIZE, cell / SIZE);
+        }
+        return scores[canonical(cells)];
+    }
+
+    /**
+     * Solve a position and every position reachable from it, filling in
+     * their entries in the table.
+     *
+     * @param cells The tile in each cell of the position, which is left as
+     * it was.
+     * @param tiles The number of tiles on the board.
+     * @return The score of the position for the player to move.
+     */
+    private int solve(int[] cells, int tiles) {
+        int canonical = canonical(cells);
+        if(solved[canonical]) {
+            return scores[canonical];
+        }
+        int tile = tiles % 2 == 0 ? Game.TILE_CROSS : Game.TILE_NOUGHT;
+        int best = Integer.MIN_VALUE, bestMove = -1;
+        for(int cell = 0; cell < CELLS; cell++) {
+            if(cells[cell] != Game.TILE_SPACE) {
+                continue;
+            }
+            cells[cell] = tile;
+            int score;
+            if(isWin(cells, cell)) {
+                score = WIN - (tiles + 1);
+                if(!solved[canonical(cells)]) {
+                    markSolved(cells, -score);
+                }
+            } else if(tiles + 1 == CELLS) {
+                score = 0;
+                if(!solved[canonical(cells)]) {
+                    markSolved(cells, 0);
+                }
+            } else {
+                score = -solve(cells, tiles + 1);
+            }
+            cells[cell] = Game.TILE_SPACE;
+            if(score > best) {
+                best = score;
+                bestMove = cell;
+            }
+        }
+
+        // Store the move in the orientation of the canonical position.
+        for(int s = 0; s < 8; s++) {
+            if(transform(cells, s) == canonical) {
+                bestMove = SYMMETRIES[s][bestMove];
+                break;
+            }
+        }
+        solved[canonical] = true;
+        scores[canonical] = (byte)best;
+        bestMoves[canonical] = (byte)bestMove;
+        positions++;
+        return best;
+    }
+
+    /**
+     * Record a position in which the game is over, and so has no move.
+     *
+     * @param cells The tile in each cell of the position.
+     * @param score The score of the position for the player to move.
+     */
+    private void markSolved(int[] cells, int score) {
+        int canonical = canonical(cells);
+        solved[canonical] = true;
+        scores[canonical] = (byte)score;
+        positions++;
+    }
+
+    /**
+     * Determine whether the tile just placed in a cell completes a line.
+     *
+     * @param cells The tile in each cell.
+     * @param cell The cell in which a tile was just placed.
+     * @return {@code true} if the tile completes a line.
+     */
+    private static boolean isWin(int[] cells, int cell) {
+        int tile = cells[cell];
+        for(int[] line : LINES) {
+            if((line[0] == cell || line[1] == cell || line[2] == cell) &&
+               cells[line[0]] == tile && cells[line[1]] == tile && cells[line[2]] == tile) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode a position after moving it by one of the symmetries of the
+     * board.
+     *
+     * @param cells The tile in each cell of the position.
+     * @param symmetry The index of the symmetry in {@link #SYMMETRIES}.
+     * @return The code of the moved position.
+     */
+    private static int transform(int[] cells, int symmetry) {
+        int code = 0;
+        for(int cell = 0; cell < CELLS; cell++) {
+            code += cells[cell] * POWERS[SYMMETRIES[symmetry][cell]];
+        }
+        return code;
+    }
+
+    /**
+     * Get the smallest code of a position under any symmetry of the board.
+     *
+     * @param cells The tile in each cell of the position.
+     * @return The canonical code of the position.
+     */
+    private static int canonical(int[] cells) {
+        int canonical = Integer.MAX_VALUE;
+        for(int s = 0; s < 8; s++) {
+            canonical = Math.min(canonical, transform(cells, s));
+        }
+        return canonical;
+    }
+}
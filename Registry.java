@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe map of objects tracked by the server, such as connected
+ * clients or games in progress. Lookups and updates go through a
+ * {@link java.util.concurrent.ConcurrentHashMap}, so they never block each
+ * other. Iteration goes through an immutable snapshot, which is only rebuilt
+ * when the registry has changed since the last snapshot was taken, so that
+ * broadcasting to every client does not copy the registry each time.
+ *
+ * @author Tom Galvin
+ */
+public class Registry<K, V> {
+    private ConcurrentHashMap<K, V> map;
+
+    /**
+     * Incremented after every change to the map, so that a snapshot can tell
+     * whether it is out of date.
+     */
+    private AtomicLong version;
+    private volatile Snapshot<V> snapshot;
+
+    /**
+     * An immutable list of the values in the registry, along with the
+     * version of the registry it was taken at.
+     */
+    private static class Snapshot<V> {
+        private final long version;
+        private final List<V> values;
+
+        private Snapshot(long version, List<V> values) {
+            this.version = version;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Create a new, empty registry.
+     */
+    public Registry() {
+        this.map = new ConcurrentHashMap<K, V>();
+        this.version = new AtomicLong(0);
+        this.snapshot = new Snapshot<V>(0, Collections.<V>emptyList());
+    }
+
+    /**
+     * Get the value with the given key.
+     *
+     * @param key The key of the value to get.
+     * @return The value with the given key, or {@code null} if there is none.
+     */
+    public V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Determines whether the registry has a value with the given key.
+     *
+     * @param key The key to look for.
+     * @return {@code true} if there is a value with the given key.
+     */
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Add the given value, unless there is already a value with the same key.
+     * This is atomic, so of several threads adding the same key at once,
+     * exactly one succeeds.
+     *
+     * @param key The key of the value.
+     * @param value The value to add.
+     * @return {@code true} if the value was added; {@code false} if there was
+     * already a value with the given key.
+     */
+    public boolean putIfAbsent(K key, V value) {
+        if(map.putIfAbsent(key, value) == null) {
+            version.incrementAndGet();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Remove the value with the given key.
+     *
+     * @param key The key of the value to remove.
+     * @return The value which was removed, or {@code null} if there was none.
+     */
+    public V remove(K key) {
+        V removed = map.remove(key);
+        if(removed != null) {
+            version.incrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Remove the value with the given key, only if it is currently the given
+     * value.
+     *
+     * @param key The key of the value to remove.
+     * @param value The value expected to have the given key.
+     * @return {@code true} if the value was removed.
+     */
+    public boolean remove(K key, V value) {
+        if(map.remove(key, value)) {
+            version.incrementAndGet();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of values in the registry.
+     *
+     * @return The number of values in the registry.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Get an immutable snapshot of the values in the registry. The snapshot
+     * reflects every change which completed before this method was called,
+     * and is unaffected by any change made while it is being iterated.
+     *
+     * @return An immutable list of the values in the registry.
+     */
+    public List<V> snapshot() {
+        long currentVersion = version.get();
+        Snapshot<V> current = snapshot;
+        if(current.version == currentVersion) {
+            return current.values;
+        }
+
+        List<V> values = Collections.unmodifiableList(new ArrayList<V>(map.values()));
+        snapshot = new Snapshot<V>(currentVersion, values);
+        return values;
+    }
+}
@@ -0,0 +1,490 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hammers a pair of {@link Registry} instances from many threads at once, in
+ * the way the server uses its registries of clients and games, and checks
+ * that they stay consistent.
+ * <p>
+ * Each worker thread repeatedly joins and leaves clients under nicknames
+ * drawn from a small shared pool, so that joins race each other for the
+ * same nickname, and creates and removes games with IDs from a shared
+ * counter. Broadcaster threads meanwhile iterate snapshots of both
+ * registries, and remove games they find there, as an opponent terminating
+ * a game would. Throughout, the harness checks that:
+ * <ul>
+ *   <li>only one client at a time holds each nickname, and it keeps it until
+ *   it leaves;</li>
+ *   <li>every game ID is only ever used once, and every game is removed
+ *   exactly once, however many threads try;</li>
+ *   <li>a snapshot never lists a value twice, cannot be changed, and
+ *   includes every change made before it was taken;</li>
+ *   <li>once every thread has stopped, the size and the snapshot of each
+ *   registry agree with what the threads recorded.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code java RegistryStress [options]}; see {@link #printUsage()}.
+ * The process exits with status 1 if any check failed.
+ *
+ * @author Tom Galvin
+ */
+public class RegistryStress {
+    /**
+     * The most failures printed at the end of a run.
+     */
+    private static final int MAX_REPORTED_FAILURES = 10;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int broadcasters = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    private int seconds = 5;
+    private int nicknames = 64;
+    private long seed = 1;
+
+    private Registry<String, Object> clients;
+    private Registry<Integer, StressGame> games;
+    private AtomicInteger nextGameID;
+    private volatile boolean running;
+
+    private LongAdder joins;
+    private LongAdder leaves;
+    private LongAdder refusedJoins;
+    private LongAdder gamesCreated;
+    private LongAdder gamesRemoved;
+    private LongAdder snapshots;
+    private ConcurrentLinkedQueue<String> failures;
+
+    /**
+     * A game in the games registry, which records whether it has been
+     * removed so that a second removal can be caught.
+     */
+    private static class StressGame {
+        private final int gameID;
+        private final AtomicBoolean removed = new AtomicBoolean(false);
+
+        private StressGame(int gameID) {
+            this.gameID = gameID;
+        }
+    }
+
+    /**
+     * Create a new RegistryStress with the default options.
+     */
+    public RegistryStress() {
+        this.clients = new Registry<String, Object>();
+        this.games = new Registry<Integer, StressGame>();
+        this.nextGameID = new AtomicInteger(0);
+        this.joins = new LongAdder();
+        this.leaves = new LongAdder();
+        this.refusedJoins = new LongAdder();
+        this.gamesCreated = new LongAdder();
+        this.gamesRemoved = new LongAdder();
+        this.snapshots = new LongAdder();
+        this.failures = new ConcurrentLinkedQueue<String>();
+    }
+
+    public static void main(String... args) throws Exception {
+        RegistryStress stress;
+        try {
+            stress = parse(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        System.exit(stress.run() ? 0 : 1);
+    }
+
+    /**
+     * Parse the command-line arguments of the stress harness, which are all
+     * options of the form {@code --name=value}.
+     *
+     * @param args The command-line arguments.
+     * @return The harness with the parsed options.
+     * @throws IllegalArgumentException If the arguments are not valid.
+     */
+    public static RegistryStress parse(String... args) {
+        RegistryStress stress = new RegistryStress();
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch(name) {
+                case "threads":
+                    stress.threads = parseInt(name, value);
+                    break;
+                case "broadcasters":
+                    stress.broadcasters = parseInt(name, value);
+                    break;
+                case "seconds":
+                    stress.seconds = parseInt(name, value);
+                    break;
+                case "nicknames":
+                    stress.nicknames = parseInt(name, value);
+                    break;
+                case "seed":
+                    stress.seed = parseInt(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if(stress.threads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is needed.");
+        }
+        if(stress.broadcasters < 0) {
+            throw new IllegalArgumentException("The number of broadcasters cannot be negative.");
+        }
+        if(stress.seconds < 1) {
+            throw new IllegalArgumentException("The run must last at least one second.");
+        }
+        if(stress.nicknames < 1) {
+            throw new IllegalArgumentException("At least one nickname is needed.");
+        }
+        return stress;
+    }
+
+    /**
+     * Print the usage of the stress harness's command-line options to the
+     * standard output.
+     */
+    public static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println();
+        System.out.println("java RegistryStress [options]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("--threads=<n>: The number of threads joining, leaving, creating and removing");
+        System.out.println("               (default is the number of available processors).");
+        System.out.println("--broadcasters=<n>: The number of threads iterating snapshots and removing");
+        System.out.println("                    games (default is a quarter of the processors).");
+        System.out.println("--seconds=<n>: How long to run for (default 5).");
+        System.out.println("--nicknames=<n>: The number of nicknames the clients race for (default 64).");
+        System.out.println("--seed=<n>: The seed of each thread's choice of operations (default 1).");
+    }
+
+    /**
+     * Parse an integer option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The parsed value.
+     */
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(
+                        "The value of %s must be a number, but was %s.",
+                        name,
+                        value
+                        ));
+        }
+    }
+
+    /**
+     * Run every thread for the configured time, check the registries once
+     * they have all stopped, and print the results.
+     *
+     * @return {@code true} if every check passed.
+     */
+    public boolean run() throws InterruptedException {
+        System.out.println(String.format(
+                    "Stressing registries with %d workers and %d broadcasters for %d s...",
+                    threads,
+                    broadcasters,
+                    seconds
+                    ));
+        List<Map<String, Object>> held = new ArrayList<Map<String, Object>>();
+        List<Thread> started = new ArrayList<Thread>();
+        running = true;
+        for(int i = 0; i < threads; i++) {
+            Map<String, Object> joined = new HashMap<String, Object>();
+            held.add(joined);
+            SplittableRandom random = new SplittableRandom(seed * 1000003 + i);
+            started.add(new Thread(() -> work(random, joined), "worker-" + i));
+        }
+        for(int i = 0; i < broadcasters; i++) {
+            SplittableRandom random = new SplittableRandom(seed * 1000003 + threads + i);
+            started.add(new Thread(() -> broadcast(random), "broadcaster-" + i));
+        }
+        long start = System.nanoTime();
+        for(Thread thread : started) {
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for(Thread thread : started) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        checkFinalState(held);
+
+        long operations = joins.sum() + refusedJoins.sum() + leaves.sum() +
+                          gamesCreated.sum() + gamesRemoved.sum();
+        System.out.println(String.format(
+                    "Operations:  %d (%.0f per second)",
+                    operations,
+                    operations / elapsed
+                    ));
+        System.out.println(String.format(
+                    "Clients:     %d joined, %d refused a taken nickname, %d left, %d still joined",
+                    joins.sum(),
+                    refusedJoins.sum(),
+                    leaves.sum(),
+                    clients.size()
+                    ));
+        System.out.println(String.format(
+                    "Games:       %d created, %d removed, %d still registered",
+                    gamesCreated.sum(),
+                    gamesRemoved.sum(),
+                    games.size()
+                    ));
+        System.out.println(String.format("Snapshots:   %d checked", snapshots.sum()));
+        if(failures.isEmpty()) {
+            System.out.println("The registries stayed consistent.");
+            return true;
+        }
+        System.out.println(String.format("%d checks failed, including:", failures.size()));
+        int reported = 0;
+        for(String failure : failures) {
+            if(reported++ == MAX_REPORTED_FAILURES) {
+                break;
+            }
+            System.out.println("  " + failure);
+        }
+        return false;
+    }
+
+    /**
+     * Join and leave clients, and create and remove games, until the run
+     * ends. This runs on each worker thread.
+     *
+     * @param random The source of this thread's choices.
+     * @param joined The clients joined by this thread, by nickname, which
+     * only this thread changes until the run ends.
+     */
+    private void work(SplittableRandom random, Map<String, Object> joined) {
+        List<StressGame> created = new ArrayList<StressGame>();
+        long operation = 0;
+        while(running) {
+            operation++;
+            switch(random.nextInt(4)) {
+                case 0: {
+                    String nickname = "player" + random.nextInt(nicknames);
+                    if(joined.containsKey(nickname)) {
+                        break;
+                    }
+                    Object client = new Object();
+                    if(clients.putIfAbsent(nickname, client)) {
+                        joined.put(nickname, client);
+                        joins.increment();
+                        // A snapshot must include a join which completed
+                        // before it was taken.
+                        if(operation % 16 == 0 && !containsIdentical(clients.snapshot(), client)) {
+                            fail("A snapshot taken after " + nickname + " joined does not include it.");
+                        }
+                    } else {
+                        refusedJoins.increment();
+                    }
+                    break;
+                }
+                case 1: {
+                    if(joined.isEmpty()) {
+                        break;
+                    }
+                    String nickname = joined.keySet().iterator().next();
+                    Object client = joined.remove(nickname);
+                    if(clients.get(nickname) != client) {
+                        fail("The nickname " + nickname + " was taken from the client holding it.");
+                    }
+                    if(!clients.remove(nickname, client)) {
+                        fail("The client holding " + nickname + " could not leave.");
+                    }
+                    leaves.increment();
+                    break;
+                }
+                case 2: {
+                    StressGame game = new StressGame(nextGameID.getAndIncrement());
+                    if(!games.putIfAbsent(game.gameID, game)) {
+                        fail("The game ID " + game.gameID + " was allocated twice.");
+                    }
+                    gamesCreated.increment();
+                    created.add(game);
+                    break;
+                }
+                case 3: {
+                    if(created.isEmpty()) {
+                        break;
+                    }
+                    StressGame game = created.remove(created.size() - 1);
+                    // A broadcaster may already have removed the game.
+                    removeGame(game);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterate snapshots of both registries, checking each, and remove some
+     * of the games found in them, until the run ends. This runs on each
+     * broadcaster thread.
+     *
+     * @param random The source of this thread's choices.
+     */
+    private void broadcast(SplittableRandom random) {
+        while(running) {
+            List<Object> clientSnapshot = clients.snapshot();
+            checkSnapshot("clients", clientSnapshot);
+            if(clientSnapshot.size() > nicknames) {
+                fail(String.format(
+                            "A snapshot lists %d clients, but there are only %d nicknames.",
+                            clientSnapshot.size(),
+                            nicknames
+                            ));
+            }
+            List<StressGame> gameSnapshot = games.snapshot();
+            checkSnapshot("games", gameSnapshot);
+            for(StressGame game : gameSnapshot) {
+                if(random.nextInt(8) == 0) {
+                    removeGame(game);
+                }
+            }
+            snapshots.add(2);
+        }
+    }
+
+    /**
+     * Remove a game, as either of its players might, and check that it is
+     * only ever removed once.
+     *
+     * @param game The game to remove.
+     */
+    private void removeGame(StressGame game) {
+        if(games.remove(game.gameID, game)) {
+            gamesRemoved.increment();
+            if(!game.removed.compareAndSet(false, true)) {
+                fail("The game " + game.gameID + " was removed twice.");
+            }
+        }
+    }
+
+    /**
+     * Check that a snapshot lists no value twice, and cannot be changed.
+     *
+     * @param name The name of the registry, used in failure messages.
+     * @param snapshot The snapshot to check.
+     */
+    private <V> void checkSnapshot(String name, List<V> snapshot) {
+        Set<V> seen = Collections.newSetFromMap(new IdentityHashMap<V, Boolean>());
+        for(V value : snapshot) {
+            if(!seen.add(value)) {
+                fail("A snapshot of the " + name + " lists the same value twice.");
+                break;
+            }
+        }
+        try {
+            snapshot.add(null);
+            fail("A snapshot of the " + name + " could be changed.");
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Check the registries against what the threads recorded, once every
+     * thread has stopped.
+     *
+     * @param held The clients still joined by each worker thread.
+     */
+    private void checkFinalState(List<Map<String, Object>> held) {
+        Set<Object> expected = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for(Map<String, Object> joined : held) {
+            for(Map.Entry<String, Object> entry : joined.entrySet()) {
+                expected.add(entry.getValue());
+                if(clients.get(entry.getKey()) != entry.getValue()) {
+                    fail("The nickname " + entry.getKey() + " is not held by the client which joined with it.");
+                }
+            }
+        }
+        List<Object> clientSnapshot = clients.snapshot();
+        if(clients.size() != expected.size() || clientSnapshot.size() != expected.size()) {
+            fail(String.format(
+                        "%d clients are still joined, but the registry has %d and its snapshot %d.",
+                        expected.size(),
+                        clients.size(),
+                        clientSnapshot.size()
+                        ));
+        }
+        for(Object client : clientSnapshot) {
+            if(!expected.contains(client)) {
+                fail("The final snapshot of the clients lists a client which left.");
+                break;
+            }
+        }
+
+        long registered = gamesCreated.sum() - gamesRemoved.sum();
+        List<StressGame> gameSnapshot = games.snapshot();
+        if(games.size() != registered || gameSnapshot.size() != registered) {
+            fail(String.format(
+                        "%d games were never removed, but the registry has %d and its snapshot %d.",
+                        registered,
+                        games.size(),
+                        gameSnapshot.size()
+                        ));
+        }
+        for(StressGame game : gameSnapshot) {
+            if(game.removed.get()) {
+                fail("The final snapshot of the games lists the removed game " + game.gameID + ".");
+                break;
+            }
+        }
+        if(nextGameID.get() != gamesCreated.sum()) {
+            fail(String.format(
+                        "%d game IDs were allocated for %d games.",
+                        nextGameID.get(),
+                        gamesCreated.sum()
+                        ));
+        }
+    }
+
+    /**
+     * Determine whether a list holds the given object itself.
+     *
+     * @param values The list.
+     * @param value The object.
+     * @return {@code true} if the object is in the list.
+     */
+    private static boolean containsIdentical(List<Object> values, Object value) {
+        for(Object v : values) {
+            if(v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a failed check.
+     *
+     * @param message The description of the failure.
+     */
+    private void fail(String message) {
+        failures.add(message);
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The versioned list of players in one {@link ServerLobby}, which clients
+ * using {@link Packet#EXTENSION_ROSTER} keep in sync with. Every change to
+ * the roster, a player joining, changing score or leaving, increments its
+ * version. A client first reads the roster a page at a time with
+ * CLIENT_ROSTER_QUERY, and then subscribes with CLIENT_ROSTER_SUBSCRIBE from
+ * the version of its first page. From then on, it is sent a
+ * SERVER_ROSTER_DELTA holding the latest state of every player which has
+ * changed since the version it has.
+ * <p>
+ * A subscriber only ever has one delta waiting in its send queue. The delta
+ * is worked out when it is encoded, so it takes in every change made while
+ * it waited, and a change made while a subscriber already has a delta
+ * waiting costs that subscriber nothing. Subscribers at the same version
+ * share the same encoded delta. The cost of keeping clients in sync then
+ * grows with the number of changes, rather than with the number of
+ * players.
+ * <p>
+ * The departures of players are kept for a while, so that they can be sent
+ * to subscribers which are behind. Once too many have been kept, the oldest
+ * are forgotten, and a subscriber from before them is sent a delta which
+ * resets its roster, after which it reads the roster again.
+ *
+ * @author Tom Galvin
+ */
+public class Roster {
+    /**
+     * The most players sent in one SERVER_ROSTER_PAGE.
+     */
+    public static final int PAGE_LIMIT = 500;
+
+    /**
+     * The most changes sent in one SERVER_ROSTER_DELTA. Any later changes
+     * follow in another delta.
+     */
+    public static final int DELTA_LIMIT = 1000;
+
+    /**
+     * The most departed players remembered, so that their departure can be
+     * sent to subscribers which are behind.
+     */
+    private static final int DEPARTED_LIMIT = 4096;
+
+    /**
+     * The latest state of one player on the roster.
+     */
+    private static class Entry {
+        private String nickname;
+        private int score;
+        private long version;
+        private boolean left;
+
+        private Entry(String nickname) {
+            this.nickname = nickname;
+        }
+    }
+
+    /**
+     * The version of the roster a subscriber has, and whether a delta is
+     * waiting to be sent to it.
+     */
+    private static class Subscription {
+        private long version;
+        private boolean pending;
+    }
+
+    /**
+     * The players on the roster, in nickname order.
+     */
+    private TreeMap<String, Entry> players;
+
+    /**
+     * The players which have left the roster and are still remembered, in
+     * the order they left.
+     */
+    private LinkedHashMap<String, Entry> departed;
+
+    /**
+     * Every player on the roster and every departed player remembered, by
+     * the version at which they last changed.
+     */
+    private TreeMap<Long, Entry> changes;
+    private long version;
+
+    /**
+     * The oldest version from which a delta can be sent. A subscriber from
+     * before this may have missed the departure of a forgotten player.
+     */
+    private long horizon;
+
+    private HashMap<ServerThread, Subscription> subscribers;
+
+    /**
+     * The subscribers which have no delta waiting to be sent, and so must
+     * be told about the next change.
+     */
+    private LinkedHashSet<ServerThread> idle;
+
+    /**
+     * The last delta encoded, along with the version it is from, the version
+     * of the roster when it was encoded, and the version it is up to.
+     */
+    private byte[] cachedDelta;
+    private long cachedFrom;
+    private long cachedAt;
+    private long cachedTo;
+
+    /**
+     * Create a new, empty Roster.
+     */
+    public Roster() {
+        this.players = new TreeMap<String, Entry>();
+        this.departed = new LinkedHashMap<String, Entry>();
+        this.changes = new TreeMap<Long, Entry>();
+        this.version = 0;
+        this.horizon = 0;
+        this.subscribers = new HashMap<ServerThread, Subscription>();
+        this.idle = new LinkedHashSet<ServerThread>();
+        this.cachedFrom = -1;
+    }
+
+    /**
+     * Get the current version of the roster.
+     *
+     * @return The version of the roster.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of players on the roster.
+     *
+     * @return The number of players.
+     */
+    public synchronized int size() {
+        return players.size();
+    }
+
+    /**
+     * Add a player to the roster, or update their score, and tell every
+     * idle subscriber about the change.
+     *
+     * @param nickname The nickname of the player.
+     * @param score The score of the player.
+     */
+    public void update(String nickname, int score) {
+        List<ServerThread> notify;
+        synchronized(this) {
+            Entry entry = players.get(nickname);
+            if(entry == null) {
+                entry = new Entry(nickname);
+                players.put(nickname, entry);
+                Entry previous = departed.remove(nickname);
+                if(previous != null) {
+                    changes.remove(previous.version);
+                }
+            } else if(entry.score == score) {
+                return;
+            } else {
+                changes.remove(entry.version);
+            }
+            entry.score = score;
+            entry.version = ++version;
+            changes.put(entry.version, entry);
+            notify = takeIdle();
+        }
+        queueDeltas(notify);
+    }
+
+    /**
+     * Remove a player from the roster, and tell every idle subscriber about
+     * the change.
+     *
+     * @param nickname The nickname of the player.
+     */
+    public void remove(String nickname) {
+        List<ServerThread> notify;
+        synchronized(this) {
+            Entry entry = players.remove(nickname);
+            if(entry == null) {
+                return;
+            }
+            changes.remove(entry.version);
+            entry.left = true;
+            entry.version = ++version;
+            changes.put(entry.version, entry);
+            departed.put(nickname, entry);
+
+            if(departed.size() > DEPARTED_LIMIT) {
+                Iterator<Entry> oldest = departed.values().iterator();
+                Entry forgotten = oldest.next();
+                oldest.remove();
+                changes.remove(forgotten.version);
+                horizon = forgotten.version;
+            }
+            notify = takeIdle();
+        }
+        queueDeltas(notify);
+    }
+
+    /**
+     * Take every idle subscriber, marking them as having a delta waiting.
+     * This must be called while holding the lock on this roster.
+     *
+     * @return The subscribers to queue a delta for.
+     */
+    private List<ServerThread> takeIdle() {
+        if(idle.isEmpty()) {
+            return null;
+        }
+        List<ServerThread> notify = new ArrayList<ServerThread>(idle);
+        for(ServerThread subscriber : notify) {
+            subscribers.get(subscriber).pending = true;
+        }
+        idle.clear();
+        return notify;
+    }
+
+    /**
+     * Queue a delta for each of the given subscribers. This is done without
+     * holding the lock on this roster.
+     *
+     * @param notify The subscribers, or {@code null} for none.
+     */
+    private void queueDeltas(List<ServerThread> notify) {
+        if(notify != null) {
+            for(ServerThread subscriber : notify) {
+                subscriber.queueRosterDelta(this);
+            }
+        }
+    }
+
+    /**
+     * Subscribe a client to changes to the roster, from the given version.
+     * If the client is already subscribed, its version is replaced.
+     *
+     * @param subscriber The client to subscribe.
+     * @param from The version of the roster the client has.
+     * @return {@code true} if a delta must be queued for the client now.
+     */
+    public synchronized boolean subscribe(ServerThread subscriber, long from) {
+        Subscription subscription = subscribers.get(subscriber);
+        if(subscription == null) {
+            subscription = new Subscription();
+            subscribers.put(subscriber, subscription);
+        }
+        subscription.version = from;
+        if(subscription.pending) {
+            // The delta already waiting is worked out from the new version.
+            return false;
+        }
+        if(from == version) {
+            idle.add(subscriber);
+            return false;
+        }
+        idle.remove(subscriber);
+        subscription.pending = true;
+        return true;
+    }
+
+    /**
+     * Stop sending changes to the roster to a client.
+     *
+     * @param subscriber The client to unsubscribe.
+     */
+    public synchronized void unsubscribe(ServerThread subscriber) {
+        subscribers.remove(subscriber);
+        idle.remove(subscriber);
+    }
+
+    /**
+     * Write a SERVER_ROSTER_PAGE packet, holding the players whose nicknames
+     * start with the given prefix, in nickname order.
+     *
+     * @param o The stream to write the packet to.
+     * @param prefix The prefix of the nicknames of the players to include,
+     * or an empty string for every player.
+     * @param after The nickname of the last player of the previous page, or
+     * an empty string for the first page.
+     * @param limit The most players to include, which is capped at
+     * {@link #PAGE_LIMIT}.
+     */
+    public synchronized void writePage(
+            DataOutputStream o,
+            String prefix,
+            String after,
+            int limit) throws IOException {
+        limit = Math.max(1, Math.min(limit, PAGE_LIMIT));
+        Map<String, Entry> view = after.compareTo(prefix) < 0 ?
+            players.tailMap(prefix, true) :
+            players.tailMap(after, false);
+
+        ArrayList<Entry> page = new ArrayList<Entry>();
+        boolean more = false;
+        for(Entry entry : view.values()) {
+            if(!entry.nickname.startsWith(prefix)) {
+                break;
+            }
+            if(page.size() == limit) {
+                more = true;
+                break;
+            }
+            page.add(entry);
+        }
+
+        o.writeInt(Packet.SERVER_ROSTER_PAGE);
+        o.writeLong(version);
+        o.writeBoolean(more);
+        o.writeInt(page.size());
+        for(Entry entry : page) {
+            o.writeUTF(entry.nickname);
+            o.writeInt(entry.score);
+        }
+    }
+
+    /**
+     * Write a SERVER_ROSTER_DELTA packet to a subscriber, holding every
+     * change since the version it has. If the subscriber is up to date,
+     * nothing is written.
+     *
+     * @param o The stream to write the packet to.
+     * @param subscriber The subscriber to write the delta for.
+     * @return {@code true} if there are more changes than fit in one delta,
+     * so another delta must be queued for the subscriber.
+     */
+    public synchronized boolean writeDelta(
+            DataOutputStream o,
+            ServerThread subscriber) throws IOException {
+        Subscription subscription = subscribers.get(subscriber);
+        if(subscription == null) {
+            return false;
+        }
+        long from = subscription.version;
+        if(from == version) {
+            subscription.pending = false;
+            idle.add(subscriber);
+            return false;
+        }
+        if(from < horizon || from > version) {
+            // The subscriber reads the roster again, and then subscribes
+            // afresh.
+            o.writeInt(Packet.SERVER_ROSTER_DELTA);
+            o.writeLong(from);
+            o.writeLong(version);
+            o.writeBoolean(true);
+            o.writeInt(0);
+            unsubscribe(subscriber);
+            return false;
+        }
+
+        if(from != cachedFrom || version != cachedAt) {
+            encodeDelta(from);
+        }
+        o.write(cachedDelta);
+        subscription.version = cachedTo;
+        if(cachedTo == version) {
+            subscription.pending = false;
+            idle.add(subscriber);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encode the delta from the given version, and keep it to be shared by
+     * every subscriber at that version. This must be called while holding
+     * the lock on this roster.
+     *
+     * @param from The version the delta is from.
+     */
+    private void encodeDelta(long from) throws IOException {
+        Map<Long, Entry> tail = changes.tailMap(from, false);
+        int count = Math.min(tail.size(), DELTA_LIMIT);
+        long to = version;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + count * 16);
+        DataOutputStream delta = new DataOutputStream(bytes);
+        delta.writeInt(Packet.SERVER_ROSTER_DELTA);
+        delta.writeLong(from);
+        // The version the delta is up to is only known once it is full.
+        delta.writeLong(0);
+        delta.writeBoolean(false);
+        delta.writeInt(count);
+        int written = 0;
+        for(Entry entry : tail.values()) {
+            if(written == count) {
+                break;
+            }
+            delta.writeBoolean(entry.left);
+            delta.writeUTF(entry.nickname);
+            if(!entry.left) {
+                delta.writeInt(entry.score);
+            }
+            to = entry.version;
+            written++;
+        }
+        if(written == tail.size()) {
+            to = version;
+        }
+
+        byte[] encoded = bytes.toByteArray();
+        // Fill in the version after the packet ID and the version it is from.
+        for(int i = 0; i < 8; i++) {
+            encoded[12 + i] = (byte)(to >>> (56 - 8 * i));
+        }
+        cachedDelta = encoded;
+        cachedFrom = from;
+        cachedAt = version;
+        cachedTo = to;
+    }
+}
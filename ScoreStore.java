@@ -0,0 +1,524 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * The durable store of player scores, keyed by nickname. Scores are kept in
+ * an in-memory index, backed by an append-only log of records in a
+ * memory-mapped file. Each record holds one nickname and its score, and a
+ * later record for the same nickname replaces an earlier one.
+ * <p>
+ * Updating a score only updates the index and marks the nickname as dirty,
+ * so it adds no disk access to the move path. One background thread appends
+ * a record for every dirty nickname at a fixed interval, then forces the
+ * file to disk once for all of them. A nickname whose score changes several
+ * times within one interval is only written once. Once the log holds far
+ * more records than there are players, the background thread compacts it,
+ * by writing the latest record of every player to a new file and moving it
+ * over the log.
+ * <p>
+ * At startup, the log is read straight through the mapping, record by
+ * record, which takes a few seconds even for millions of players. A record
+ * which was only partly written before a crash fails its checksum, and it
+ * and everything after it are discarded.
+ * <p>
+ * The file starts with a header of {@link #MAGIC} and {@link #FORMAT}, after
+ * which each record is a marker byte of {@link #RECORD_MARKER}, the length
+ * of the nickname in bytes as a short, the nickname in UTF-8, the score as
+ * an int, and the CRC-32 of everything before it in the record as an int.
+ * The rest of the file is zeroes. A nickname longer than
+ * {@link #MAX_NICKNAME_LENGTH} bytes is stored cut short, between two
+ * characters, and is looked up the same way.
+ * <p>
+ * A log in {@link #FORMAT_WIN_COUNTS}, from before scores were
+ * {@link EloRating Elo ratings}, is migrated when it is opened: every player
+ * in it starts again at {@link EloRating#INITIAL_RATING}, and the log is
+ * rewritten in the current format.
+ *
+ * @author Tom Galvin
+ */
+public class ScoreStore {
+    /**
+     * The first eight bytes of a score log, being "TT2SCORE" in ASCII.
+     */
+    public static final long MAGIC = 0x54543253434f5245L;
+
+    /**
+     * The version of the score log format, written after {@link #MAGIC}. In
+     * this format, each score is an Elo rating.
+     */
+    public static final int FORMAT = 2;
+
+    /**
+     * The score log format in which each score is the number of games the
+     * player has won. The records are laid out as in {@link #FORMAT}.
+     */
+    public static final int FORMAT_WIN_COUNTS = 1;
+
+    /**
+     * The first byte of every record. The byte after the last record is
+     * always zero.
+     */
+    private static final byte RECORD_MARKER = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * The size of a record, not counting its nickname.
+     */
+    private static final int RECORD_OVERHEAD = 11;
+
+    /**
+     * The most bytes of a nickname that fit in a record.
+     */
+    public static final int MAX_NICKNAME_LENGTH = 0xFFFF;
+
+    /**
+     * The size of the buffer records are gathered in while compacting. A
+     * record too big for it gets a buffer of its own size.
+     */
+    private static final int COMPACT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The size the log is mapped at when it is smaller than this. As the log
+     * grows, it is mapped at double its size.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    /**
+     * The log is compacted once it holds this many more records than twice
+     * the number of players.
+     */
+    private static final int COMPACT_SLACK = 4096;
+
+    private Path path;
+    private ServerLog log;
+    private long flushIntervalNanos;
+
+    /**
+     * The latest score of every player, including those not yet written.
+     */
+    private ConcurrentHashMap<String, Integer> scores;
+
+    /**
+     * The latest score of every player whose score has changed since it was
+     * last written. This is drained by the background thread.
+     */
+    private ConcurrentHashMap<String, Integer> dirty;
+
+    /**
+     * The file of the log, and its mapping. These are only used by the
+     * thread opening the store, and then by the background thread.
+     */
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private int writePosition;
+    private int records;
+    private CRC32 checksum;
+
+    private volatile boolean running;
+    private Thread flusherThread;
+
+    /**
+     * Create a new ScoreStore, which is not yet read or started.
+     *
+     * @param path The path of the score log.
+     * @param flushIntervalMillis The time between writes of changed scores,
+     * in milliseconds.
+     * @param log The server log, to which failed writes are reported.
+     */
+    private ScoreStore(Path path, long flushIntervalMillis, ServerLog log) {
+        this.path = path;
+        this.log = log;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.scores = new ConcurrentHashMap<String, Integer>();
+        this.dirty = new ConcurrentHashMap<String, Integer>();
+        this.checksum = new CRC32();
+    }
+
+    /**
+     * Open the score log at the given path, creating it if it does not
+     * exist, read every score in it, and start the background thread which
+     * writes changed scores.
+     *
+     * @param path The path of the score log.
+     * @param flushIntervalMillis The time between writes of changed scores,
+     * in milliseconds.
+     * @param log The server log, to which failed writes are reported.
+     * @return The opened score store.
+     * @throws IOException If the log cannot be opened, or is not a score
+     * log.
+     */
+    public static ScoreStore open(Path path, long flushIntervalMillis, ServerLog log) throws IOException {
+        ScoreStore store = new ScoreStore(path, flushIntervalMillis, log);
+        store.load();
+        store.running = true;
+        store.flusherThread = new Thread(() -> store.runFlusher(), "score-flusher");
+        store.flusherThread.setDaemon(true);
+        store.flusherThread.start();
+        return store;
+    }
+
+    /**
+     * Get the stored score of a player.
+     *
+     * @param nickname The nickname of the player.
+     * @param defaultScore The score to return if none is stored.
+     * @return The score of the player, or {@code defaultScore} if none is
+     * stored.
+     */
+    public int getScore(String nickname, int defaultScore) {
+        return scores.getOrDefault(toStoredNickname(nickname), defaultScore);
+    }
+
+    /**
+     * Store the score of a player. This returns straight away; the score is
+     * written to disk by the background thread.
+     *
+     * @param nickname The nickname of the player.
+     * @param score The score of the player.
+     */
+    public void putScore(String nickname, int score) {
+        String stored = toStoredNickname(nickname);
+        scores.put(stored, score);
+        dirty.put(stored, score);
+    }
+
+    /**
+     * Get the number of players with a stored score.
+     *
+     * @return The number of players in the store.
+     */
+    public int size() {
+        return scores.size();
+    }
+
+    /**
+     * Stop the background thread, once it has written every changed score,
+     * and close the log.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(flusherThread);
+        try {
+            flusherThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the nickname under which a player's score is stored, which is the
+     * nickname itself unless it is too long to fit in a record.
+     *
+     * @param nickname The nickname of the player.
+     * @return The stored nickname.
+     */
+    private static String toStoredNickname(String nickname) {
+        // No character takes more than three bytes in UTF-8, as those which
+        // take four are made of two chars.
+        if(nickname.length() * 3 <= MAX_NICKNAME_LENGTH) {
+            return nickname;
+        }
+        byte[] bytes = encodeNickname(nickname);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a nickname in UTF-8 for a record, cutting it short at
+     * {@link #MAX_NICKNAME_LENGTH} bytes if needed. The cut is made before
+     * the character that would cross the limit, so that the stored nickname
+     * is still valid UTF-8 and reads back the same every time.
+     *
+     * @param nickname The nickname of the player.
+     * @return The bytes of the nickname to store.
+     */
+    private static byte[] encodeNickname(String nickname) {
+        byte[] bytes = nickname.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length <= MAX_NICKNAME_LENGTH) {
+            return bytes;
+        }
+        int length = MAX_NICKNAME_LENGTH;
+        // Continuation bytes are 10xxxxxx, so back up until the first byte
+        // cut off starts a character.
+        while((bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Open and map the log, and read every record in it into the index.
+     */
+    private void load() throws IOException {
+        channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = channel.size();
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("The score log is too large to map: " + path);
+        }
+        map(Math.max(INITIAL_CAPACITY, (int)size));
+
+        if(size == 0) {
+            mapping.putLong(0, MAGIC);
+            mapping.putInt(8, FORMAT);
+            writePosition = HEADER_SIZE;
+            return;
+        }
+        if(size < HEADER_SIZE || mapping.getLong(0) != MAGIC) {
+            throw new IOException("Not a score log: " + path);
+        }
+        int format = mapping.getInt(8);
+        if(format != FORMAT && format != FORMAT_WIN_COUNTS) {
+            throw new IOException(String.format(
+                        "Unsupported score log format %d: %s",
+                        mapping.getInt(8),
+                        path));
+        }
+
+        ByteBuffer reader = mapping.duplicate();
+        byte[] nickname = new byte[MAX_NICKNAME_LENGTH];
+        int position = HEADER_SIZE;
+        int limit = mapping.capacity();
+        while(limit - position >= RECORD_OVERHEAD && mapping.get(position) == RECORD_MARKER) {
+            int length = mapping.getShort(position + 1) & 0xFFFF;
+            int end = position + RECORD_OVERHEAD + length;
+            if(end > limit || checksum(position, length) != mapping.getInt(end - 4)) {
+                break;
+            }
+            reader.position(position + 3);
+            reader.get(nickname, 0, length);
+            scores.put(
+                    new String(nickname, 0, length, StandardCharsets.UTF_8),
+                    mapping.getInt(end - 8));
+            records++;
+            position = end;
+        }
+        writePosition = position;
+
+        // Clear out anything left after the last whole record, so that the
+        // remains of a torn write can never be read back as a record. No
+        // record holds a run of zeroes as long as the largest record, so
+        // once one is seen, the rest of the file was never written. Only
+        // bytes which are not already zero are written, so that the clean
+        // part of the file is not dirtied.
+        int zeroes = 0;
+        for(int i = writePosition; i < size && zeroes < RECORD_OVERHEAD + MAX_NICKNAME_LENGTH; i++) {
+            if(mapping.get(i) == 0) {
+                zeroes++;
+            } else {
+                mapping.put(i, (byte)0);
+                zeroes = 0;
+            }
+        }
+
+        if(format == FORMAT_WIN_COUNTS) {
+            migrateWinCounts();
+        }
+    }
+
+    /**
+     * Replace the win counts read from a log in {@link #FORMAT_WIN_COUNTS}
+     * with ratings, and rewrite the log in the current format.
+     */
+    private void migrateWinCounts() throws IOException {
+        // A win count says how much someone has played more than how well,
+        // so it is no basis for a rating, and everyone starts again level.
+        scores.replaceAll((nickname, wins) -> EloRating.INITIAL_RATING);
+        compact();
+
+        ServerLog.Event event = log.begin(ServerLog.LEVEL_WARN, "scores.migrated");
+        if(event != null) {
+            event.with("from", FORMAT_WIN_COUNTS)
+                .with("to", FORMAT)
+                .with("players", scores.size())
+                .with("rating", EloRating.INITIAL_RATING)
+                .publish();
+        }
+    }
+
+    /**
+     * Map the log at the given capacity, growing the file if it is smaller.
+     *
+     * @param capacity The size of the mapping, in bytes.
+     */
+    private void map(int capacity) throws IOException {
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Work out the checksum of a record in the mapping.
+     *
+     * @param position The position of the record's marker.
+     * @param length The length of the record's nickname in bytes.
+     * @return The checksum of the record.
+     */
+    private int checksum(int position, int length) {
+        ByteBuffer record = mapping.duplicate();
+        record.position(position).limit(position + RECORD_OVERHEAD + length - 4);
+        checksum.reset();
+        checksum.update(record);
+        return (int)checksum.getValue();
+    }
+
+    /**
+     * Append a record to the log, growing the mapping if needed.
+     *
+     * @param nickname The nickname of the player.
+     * @param score The score of the player.
+     */
+    private void append(String nickname, int score) throws IOException {
+        byte[] bytes = encodeNickname(nickname);
+        int length = bytes.length;
+        int size = RECORD_OVERHEAD + length;
+        // Leave room for the zero byte marking the end of the log.
+        if((long)writePosition + size + 1 > mapping.capacity()) {
+            long capacity = Math.max((long)mapping.capacity() * 2, (long)writePosition + size + 1);
+            if(capacity > Integer.MAX_VALUE) {
+                throw new IOException("The score log is too large to map: " + path);
+            }
+            mapping.force();
+            map((int)capacity);
+        }
+
+        int position = writePosition;
+        mapping.put(position, RECORD_MARKER);
+        mapping.putShort(position + 1, (short)length);
+        ByteBuffer writer = mapping.duplicate();
+        writer.position(position + 3);
+        writer.put(bytes, 0, length);
+        mapping.putInt(position + 3 + length, score);
+        mapping.putInt(position + 7 + length, checksum(position, length));
+        writePosition += size;
+        records++;
+    }
+
+    /**
+     * The main body of the background thread, which writes changed scores
+     * at a fixed interval until the store is closed.
+     */
+    private void runFlusher() {
+        while(running) {
+            LockSupport.parkNanos(flushIntervalNanos);
+            flush();
+        }
+        flush();
+        try {
+            channel.close();
+        } catch(IOException e) {
+            log.error("scores.close_failed", e);
+        }
+    }
+
+    /**
+     * Append a record for every changed score, force them to disk together,
+     * and compact the log if it has grown too far.
+     */
+    private void flush() {
+        if(dirty.isEmpty()) {
+            return;
+        }
+        try {
+            for(String nickname : dirty.keySet()) {
+                // A score changed after this is marked dirty again, and
+                // written by the next flush.
+                Integer score = dirty.remove(nickname);
+                if(score != null) {
+                    append(nickname, score);
+                }
+            }
+            mapping.force();
+            if(records > 2 * scores.size() + COMPACT_SLACK) {
+                compact();
+            }
+        } catch(IOException e) {
+            log.error("scores.write_failed", e);
+        }
+    }
+
+    /**
+     * Write the latest score of every player to a new log, and move it over
+     * the current log.
+     */
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        int before = records;
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        int count = 0;
+        try(FileChannel out = FileChannel.open(
+                    compacted,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(COMPACT_BUFFER_SIZE);
+            buffer.putLong(MAGIC);
+            buffer.putInt(FORMAT);
+            for(Map.Entry<String, Integer> entry : scores.entrySet()) {
+                byte[] bytes = encodeNickname(entry.getKey());
+                int length = bytes.length;
+                if(buffer.remaining() < RECORD_OVERHEAD + length) {
+                    buffer.flip();
+                    while(buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                    if(buffer.capacity() < RECORD_OVERHEAD + length) {
+                        buffer = ByteBuffer.allocate(RECORD_OVERHEAD + length);
+                    }
+                }
+                int position = buffer.position();
+                buffer.put(RECORD_MARKER);
+                buffer.putShort((short)length);
+                buffer.put(bytes, 0, length);
+                buffer.putInt(entry.getValue());
+                checksum.reset();
+                checksum.update(buffer.array(), position, buffer.position() - position);
+                buffer.putInt((int)checksum.getValue());
+                count++;
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(
+                compacted,
+                path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException("The score log is too large to map: " + path);
+        }
+        map((int)Math.min(Integer.MAX_VALUE, Math.max(INITIAL_CAPACITY, size * 2)));
+        writePosition = (int)size;
+        records = count;
+
+        ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "scores.compacted");
+        if(event != null) {
+            event.with("before", before)
+                .with("after", count)
+                .with("millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+                .publish();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Plays games between computer players entirely within one process, with
+ * no sockets, to measure how many games the server's game logic can play
+ * and how the players fare against each other.
+ * <p>
+ * Every game is a real {@link ServerGame} on a real {@link Server}, so the
+ * rules, scoring and metrics are the server's own. The server is set up to
+ * run each game's mailbox on the thread which posts to it, and the players
+ * choose their moves on that same thread, so a whole game is played by the
+ * one call which begins it. Games are spread over the threads of a
+ * {@link ForkJoinPool}, each of which has its own pair of players, and the
+ * results are reported with the number of bytes allocated per move, as
+ * measured by the JVM for each thread.
+ * <p>
+ * Usage: {@code java SelfPlay [options]}; see {@link #printUsage()}.
+ *
+ * @author Tom Galvin
+ */
+public class SelfPlay {
+    /**
+     * The player type of a {@link ServerBot}.
+     */
+    private static final String PLAYER_BOT = "bot";
+
+    /**
+     * The player type of a player which moves to a random free cell.
+     */
+    private static final String PLAYER_RANDOM = "random";
+
+    private int gameCount = 1000000;
+    private int boardSize = BitBoard.SIZE;
+    private int winLength = BitBoard.SIZE;
+    private String crossType = PLAYER_BOT;
+    private String noughtType = PLAYER_RANDOM;
+    private int thinkMillis = 10;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long seed = 1;
+
+    private Server server;
+    private PerfectPlayTable perfectPlay;
+    private GameSearch search;
+
+    /**
+     * The players of the games played on each thread: nought, then cross.
+     */
+    private ThreadLocal<ServerThread[]> players;
+    private AtomicInteger playerThreads;
+    private LongAdder moves;
+    private LongAdder allocatedBytes;
+    private LongAdder unfinished;
+    private LongAdder[] results;
+
+    /**
+     * Create a new SelfPlay with the default options.
+     */
+    public SelfPlay() {
+        this.players = ThreadLocal.withInitial(this::createPlayers);
+        this.playerThreads = new AtomicInteger(0);
+        this.moves = new LongAdder();
+        this.allocatedBytes = new LongAdder();
+        this.unfinished = new LongAdder();
+        this.results = new LongAdder[4];
+        for(int i = 0; i < results.length; i++) {
+            results[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        SelfPlay selfPlay;
+        try {
+            selfPlay = parse(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        selfPlay.run();
+        System.exit(0);
+    }
+
+    /**
+     * Parse the command-line arguments of the self-play harness, which are
+     * all options of the form {@code --name=value}.
+     *
+     * @param args The command-line arguments.
+     * @return The harness with the parsed options.
+     * @throws IllegalArgumentException If the arguments are not valid.
+     */
+    public static SelfPlay parse(String... args) {
+        SelfPlay selfPlay = new SelfPlay();
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch(name) {
+                case "games":
+                    selfPlay.gameCount = parseInt(name, value);
+                    break;
+                case "board":
+                    selfPlay.boardSize = parseInt(name, value);
+                    break;
+                case "win":
+                    selfPlay.winLength = parseInt(name, value);
+                    break;
+                case "cross":
+                    selfPlay.crossType = parsePlayer(name, value);
+                    break;
+                case "nought":
+                    selfPlay.noughtType = parsePlayer(name, value);
+                    break;
+                case "think":
+                    selfPlay.thinkMillis = parseInt(name, value);
+                    break;
+                case "threads":
+                    selfPlay.threads = parseInt(name, value);
+                    break;
+                case "seed":
+                    selfPlay.seed = parseInt(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if(selfPlay.gameCount < 1) {
+            throw new IllegalArgumentException("At least one game must be played.");
+        }
+        if(selfPlay.thinkMillis < 1) {
+            throw new IllegalArgumentException("The bot's thinking time must be positive.");
+        }
+        if(selfPlay.threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed.");
+        }
+        if(!Board.isValidVariant(selfPlay.boardSize, selfPlay.winLength)) {
+            throw new IllegalArgumentException(String.format(
+                        "A %dx%d board with %d in a row is not supported.",
+                        selfPlay.boardSize,
+                        selfPlay.boardSize,
+                        selfPlay.winLength
+                        ));
+        }
+        return selfPlay;
+    }
+
+    /**
+     * Print the usage of the self-play harness's command-line options to
+     * the standard output.
+     */
+    public static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println();
+        System.out.println("java SelfPlay [options]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("--games=<n>: The number of games to play (default 1000000).");
+        System.out.println("--board=<n>: The width and height of the board (default 3).");
+        System.out.println("--win=<n>: The number of tiles in a row needed to win (default 3).");
+        System.out.println("--cross=bot|random: The player playing cross, which moves first (default bot).");
+        System.out.println("--nought=bot|random: The player playing nought (default random).");
+        System.out.println("--think=<ms>: The longest a bot thinks about a move on a board larger than 3x3");
+        System.out.println("              (default 10).");
+        System.out.println("--threads=<n>: The number of threads to play games on (default is the number");
+        System.out.println("               of available processors).");
+        System.out.println("--seed=<n>: The seed of the random players' moves (default 1).");
+    }
+
+    /**
+     * Parse an integer option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The parsed value.
+     */
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(
+                        "The value of %s must be a number, but was %s.",
+                        name,
+                        value
+                        ));
+        }
+    }
+
+    /**
+     * Parse a player type option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The player type.
+     */
+    private static String parsePlayer(String name, String value) {
+        if(!value.equals(PLAYER_BOT) && !value.equals(PLAYER_RANDOM)) {
+            throw new IllegalArgumentException(
+                    "The value of " + name + " must be bot or random, but was " + value + ".");
+        }
+        return value;
+    }
+
+    /**
+     * Play every game, and print the results.
+     */
+    public void run() throws InterruptedException, ExecutionException {
+        server = new Server(ServerOptions.parse(
+                    "0",
+                    "--lobby-shards=0",
+                    "--game-threads=0",
+                    "--log-level=off"));
+        perfectPlay = new PerfectPlayTable();
+        search = new GameSearch(new TranspositionTable(Server.BOT_TABLE_SIZE_BITS));
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        try {
+            pool.submit(() -> IntStream.range(0, gameCount).parallel().forEach(i -> playGame())).get();
+        } finally {
+            pool.shutdown();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        printResults(elapsed);
+    }
+
+    /**
+     * Create the players of the games played on the current thread.
+     *
+     * @return The nought player, then the cross player.
+     */
+    private ServerThread[] createPlayers() {
+        int thread = playerThreads.getAndIncrement();
+        return new ServerThread[] {
+            createPlayer(noughtType, "nought" + thread, seed + 2 * thread),
+            createPlayer(crossType, "cross" + thread, seed + 2 * thread + 1)
+        };
+    }
+
+    /**
+     * Create a player.
+     *
+     * @param type The type of player, as PLAYER_BOT or PLAYER_RANDOM.
+     * @param nickname The nickname of the player.
+     * @param seed The seed of the player's moves, if it is random.
+     * @return The player.
+     */
+    private ServerThread createPlayer(String type, String nickname, long seed) {
+        if(type.equals(PLAYER_BOT)) {
+            return new ServerBot(server, nickname, 0, perfectPlay, search, null, thinkMillis);
+        } else {
+            return new RandomPlayer(server, nickname, seed);
+        }
+    }
+
+    /**
+     * Play one game on the current thread, between the current thread's
+     * players, and record its result.
+     */
+    private void playGame() {
+        ServerThread[] pair = players.get();
+        long allocated = getAllocatedBytes();
+        ServerGame game = server.createGame(pair[0], pair[1], boardSize, winLength);
+        game.begin();
+        int result = game.getResult();
+        if(result == -1) {
+            // A player stopped moving, which would be a bug in the player.
+            unfinished.increment();
+            game.terminateGame(null, "The game did not finish.");
+        } else {
+            results[result].increment();
+            moves.add(game.getMoveCount());
+        }
+        if(allocated != -1) {
+            allocatedBytes.add(getAllocatedBytes() - allocated);
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated so far by the current thread.
+     *
+     * @return The number of bytes, or -1 if the JVM does not measure them.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if(threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Print the results of the games to the standard output.
+     *
+     * @param elapsed The time taken to play the games, in seconds.
+     */
+    private void printResults(double elapsed) {
+        long games = gameCount - unfinished.sum();
+        System.out.println(String.format(
+                    "%d games of %s (cross) against %s (nought) on %d threads, %dx%d board with %d in a row.",
+                    gameCount,
+                    crossType,
+                    noughtType,
+                    threads,
+                    boardSize,
+                    boardSize,
+                    winLength
+                    ));
+        System.out.println(String.format("Played in %.2f s.", elapsed));
+        System.out.println(String.format(
+                    "Games:  %10d (%.1f per second)",
+                    games,
+                    games / elapsed));
+        System.out.println(String.format(
+                    "Moves:  %10d (%.1f per second, %.2f per game)",
+                    moves.sum(),
+                    moves.sum() / elapsed,
+                    moves.sum() / (double)Math.max(games, 1)));
+        System.out.println(String.format("Unfinished: %d", unfinished.sum()));
+        System.out.println();
+        System.out.println("Results:");
+        String[] names = { "cross won", "nought won", "drawn", "terminated" };
+        for(int i = 0; i < results.length; i++) {
+            System.out.println(String.format(
+                        "  %-10s %10d (%.2f%%)",
+                        names[i],
+                        results[i].sum(),
+                        100.0 * results[i].sum() / Math.max(games, 1)));
+        }
+        System.out.println();
+        if(getAllocatedBytes() == -1) {
+            System.out.println("Allocation: not measured by this JVM.");
+        } else {
+            System.out.println(String.format(
+                        "Allocation: %.0f bytes per move, %.0f bytes per game",
+                        allocatedBytes.sum() / (double)Math.max(moves.sum(), 1),
+                        allocatedBytes.sum() / (double)Math.max(games, 1)));
+        }
+    }
+
+    /**
+     * A player which moves to a random free cell, choosing its move on the
+     * thread which processed its opponent's move.
+     */
+    private static class RandomPlayer extends ServerThread {
+        private SplittableRandom random;
+
+        /**
+         * The board of the game being played, as seen by this player. A
+         * random player only ever plays one game at once.
+         */
+        private Board board;
+
+        /**
+         * Create a new RandomPlayer.
+         *
+         * @param server The server the player is playing on.
+         * @param nickname The nickname of the player.
+         * @param seed The seed of the player's moves.
+         */
+        public RandomPlayer(Server server, String nickname, long seed) {
+            super(server, nickname, 0, new FramedPacketCodec(), (NioConnection)null);
+            this.random = new SplittableRandom(seed);
+            setExtensions(Packet.SUPPORTED_EXTENSIONS);
+        }
+
+        @Override
+        protected void queuePacket(PacketWriter writer) {
+        }
+
+        @Override
+        protected void queueLobbyPacket(String nickname, PacketWriter writer) {
+        }
+
+        @Override
+        public void sendGameBegin(ServerGame game, ServerThread opponent, int playingAs) {
+            board = Board.create(game.getBoardSize(), game.getWinLength());
+        }
+
+        @Override
+        public void sendGameMove(ServerGame game, int x, int y, int tileType) {
+            board.setTile(x, y, tileType);
+        }
+
+        @Override
+        public void sendGameUpdate(ServerGame game, boolean canMove, int gameState) {
+            if(!canMove || gameState != Game.GAME_IN_PROGRESS) {
+                return;
+            }
+            // Pick uniformly among the free cells, without listing them.
+            int size = board.getSize(), free = 0, move = -1;
+            for(int cell = 0; cell < size * size; cell++) {
+                if(board.getTile(cell % size, cell / size) == Game.TILE_SPACE &&
+                   random.nextInt(++free) == 0) {
+                    move = cell;
+                }
+            }
+            if(move != -1) {
+                game.makeMove(this, move % size, move / size);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The mailbox of a lightweight actor, such as a {@link ServerGame}. Tasks
+ * given to a SerialExecutor are run one at a time, in the order they were
+ * given, so the state they touch needs no locking. Rather than owning a
+ * thread, the mailbox is drained by a shared executor, so that any number
+ * of actors can make progress in parallel over a few threads.
+ * <p>
+ * At most one drain of the mailbox is scheduled at once. Whoever adds a
+ * task to an idle mailbox schedules the drain; everyone else just adds
+ * their task to the queue. When draining on a shared executor, a drain
+ * runs a limited number of tasks before scheduling itself again, so that
+ * one busy actor cannot hold on to a thread for long.
+ *
+ * @author Tom Galvin
+ */
+public class SerialExecutor implements Executor {
+    /**
+     * The most tasks run by one drain of the mailbox on a shared executor
+     * before it is scheduled again.
+     */
+    private static final int BATCH_LIMIT = 64;
+
+    private Executor executor;
+    private Consumer<RuntimeException> errorHandler;
+    private ConcurrentLinkedQueue<Runnable> mailbox;
+
+    /**
+     * Whether a drain of the mailbox is scheduled or running.
+     */
+    private AtomicBoolean scheduled;
+
+    /**
+     * Create a new, empty SerialExecutor.
+     *
+     * @param executor The shared executor which drains the mailbox, or
+     * {@code null} to drain it on the thread which gives a task to an idle
+     * mailbox.
+     * @param errorHandler Given any exception thrown by a task, after which
+     * the following tasks are still run.
+     */
+    public SerialExecutor(Executor executor, Consumer<RuntimeException> errorHandler) {
+        this.executor = executor;
+        this.errorHandler = errorHandler;
+        this.mailbox = new ConcurrentLinkedQueue<Runnable>();
+        this.scheduled = new AtomicBoolean(false);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mailbox.add(task);
+        if(scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Schedule a drain of the mailbox. This must only be called by the
+     * thread which set {@link #scheduled}.
+     */
+    private void schedule() {
+        if(executor == null) {
+            drain();
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch(RejectedExecutionException e) {
+            // The shared executor has shut down, so the tasks will never run.
+            mailbox.clear();
+        }
+    }
+
+    /**
+     * Run the tasks waiting in the mailbox, in order.
+     */
+    private void drain() {
+        int run = 0;
+        Runnable task;
+        while((executor == null || run < BATCH_LIMIT) && (task = mailbox.poll()) != null) {
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                errorHandler.accept(e);
+            }
+            run++;
+        }
+        scheduled.set(false);
+        // A task may have been added after the last poll, but before the
+        // drain was marked as finished, in which case nobody scheduled it.
+        if(!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+}
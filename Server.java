@@ -1,7 +1,21 @@
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.BiFunction;
+import javax.swing.JOptionPane;
 
 /**
  * The main class for the tictac2 server.
@@ -9,12 +23,121 @@ import java.util.function.Consumer;
  * @author Tom Galvin
  */
 public class Server implements Runnable {
+    /**
+     * The number of connections which may wait to be accepted. The default
+     * of 50 makes clients connecting all at once, such as the bots of the
+     * {@link LoadGenerator}, have their connections reset.
+     */
+    public static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * The name of the lobby which every client joins when it connects, and
+     * returns to when it leaves another lobby. This lobby is never removed.
+     */
+    public static final String DEFAULT_LOBBY_NAME = "Main";
+
+    /**
+     * The most lobbies which may exist on the server at once.
+     */
+    public static final int MAX_LOBBIES = 1024;
+
+    /**
+     * The longest allowed lobby name, in characters.
+     */
+    public static final int MAX_LOBBY_NAME_LENGTH = 32;
+
+    /**
+     * The time, in seconds, within which both players of a game recovered
+     * from the journal must reconnect before the game is terminated.
+     */
+    public static final int GAME_RESUME_TIMEOUT = 300;
+
+    /**
+     * The base 2 logarithm of the number of entries in the transposition
+     * table shared by the bot's searches, which take 16 bytes each.
+     */
+    public static final int BOT_TABLE_SIZE_BITS = 20;
+
+    private ServerOptions options;
+    private ClientThreadFactory threadFactory;
+    private FlushStatistics flushStatistics;
+    private ServerMetrics metrics;
+    private ServerLog log;
     private int port;
     private ServerSocket server;
-    private boolean running;
-    private HashMap<String, ServerThread> clients;
-    private HashMap<Integer, ServerGame> games;
-    private int currentGameID;
+    private volatile boolean running;
+    private Registry<String, ServerThread> clients;
+
+    /**
+     * The nicknames which clients in the middle of their handshake are
+     * trying to claim, so that each client is only created once it has a
+     * nickname nobody else is taking.
+     */
+    private Set<String> reservedNicknames;
+
+    /**
+     * The lobbies on the server, keyed by name.
+     */
+    private Registry<String, ServerLobby> lobbies;
+    private ServerLobby defaultLobby;
+    private AtomicInteger currentLobbyID;
+
+    /**
+     * The single-threaded executors which the lobbies are spread over, or
+     * an empty array if every change to a lobby runs on the thread which
+     * requested it.
+     */
+    private ExecutorService[] lobbyShards;
+
+    /**
+     * The executor shared by every game to drain its mailbox, or
+     * {@code null} if each game's mailbox is drained by the thread which
+     * posts to it.
+     */
+    private ForkJoinPool gameExecutor;
+    private Registry<Integer, ServerGame> games;
+    private AtomicInteger currentGameID;
+
+    /**
+     * The durable store of players' scores, or {@code null} if scores are
+     * not kept beyond a player's connection.
+     */
+    private ScoreStore scoreStore;
+
+    /**
+     * The journal of the games in progress, or {@code null} if games are
+     * not recovered after a restart.
+     */
+    private GameJournal journal;
+
+    /**
+     * The archive of finished games, or {@code null} if games are not
+     * archived.
+     */
+    private GameArchive archive;
+
+    /**
+     * The games recovered from the journal which are waiting for a player
+     * to reconnect, by the nickname of that player.
+     */
+    private ConcurrentHashMap<String, List<ServerGame>> suspendedGames;
+
+    /**
+     * The threads on which the bot chooses its moves, or {@code null} if the
+     * server hosts no bot, or the bot chooses its moves on the thread which
+     * processed its opponent's move.
+     */
+    private ExecutorService botExecutor;
+    private Matchmaker matchmaker;
+    private EloRating ratings;
+    private Leaderboard leaderboard;
+
+    /**
+     * The thread which tells each lobby of the ratings which changed, or
+     * {@code null} if the server is not running, or every change is sent at
+     * once.
+     */
+    private ScheduledThreadPoolExecutor ratingBroadcaster;
 
     /**
      * Initialise a new server with the given port to run on.
@@ -22,11 +145,55 @@ public class Server implements Runnable {
      * @param port The port on which to listen for clients.
      */
     public Server(int port) {
-        this.port = port;
-        this.clients = new HashMap<String, ServerThread>();
-        this.games = new HashMap<Integer, ServerGame>();
+        this(new ServerOptions(port));
+    }
 
-        this.currentGameID = 0;
+    /**
+     * Initialise a new server with the given startup options.
+     *
+     * @param options The options with which the server was started.
+     */
+    public Server(ServerOptions options) {
+        this.options = options;
+        this.port = options.getPort();
+        this.threadFactory = new ClientThreadFactory(options.useVirtualThreads());
+        this.flushStatistics = new FlushStatistics();
+        this.metrics = new ServerMetrics();
+        this.log = new ServerLog(
+                System.out,
+                options.getLogLevel(),
+                options.getLogBufferSize(),
+                options.getLogWhenFull());
+        this.clients = new Registry<String, ServerThread>();
+        this.reservedNicknames = ConcurrentHashMap.newKeySet();
+        this.lobbyShards = new ExecutorService[options.getLobbyShards()];
+        for(int i = 0; i < lobbyShards.length; i++) {
+            String threadName = "lobby-shard-" + i;
+            lobbyShards[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.lobbies = new Registry<String, ServerLobby>();
+        this.currentLobbyID = new AtomicInteger(0);
+        this.defaultLobby = getOrCreateLobby(DEFAULT_LOBBY_NAME);
+        // The pool's threads are daemons, and asynchronous mode suits the
+        // short tasks of game mailboxes, which are never joined.
+        this.gameExecutor = options.getGameThreads() == 0 ?
+            null :
+            new ForkJoinPool(
+                    options.getGameThreads(),
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                    null,
+                    true);
+        this.games = new Registry<Integer, ServerGame>();
+        this.suspendedGames = new ConcurrentHashMap<String, List<ServerGame>>();
+        this.matchmaker = new Matchmaker(this, options);
+        this.ratings = new EloRating();
+        this.leaderboard = new Leaderboard();
+
+        this.currentGameID = new AtomicInteger(0);
     }
 
     /**
@@ -37,11 +204,18 @@ public class Server implements Runnable {
      * if that client does not exist.
      */
     public ServerThread getClient(String nickname) {
-        if(clients.containsKey(nickname)) {
-            return clients.get(nickname);
-        } else {
-            return null;
-        }
+        return clients.get(nickname);
+    }
+
+    /**
+     * Create a new game on a standard 3x3 board with the given initiating and
+     * opposing client, and add it to the internal map of occurring games.
+     *
+     * @param initiator The client who initiated the game.
+     * @param opponent The client who accepted the game request.
+     */
+    public ServerGame createGame(ServerThread initiator, ServerThread opponent) {
+        return createGame(initiator, opponent, BitBoard.SIZE, BitBoard.SIZE);
     }
 
     /**
@@ -50,15 +224,169 @@ public class Server implements Runnable {
      *
      * @param initiator The client who initiated the game.
      * @param opponent The client who accepted the game request.
+     * @param boardSize The width and height of the game board.
+     * @param winLength The number of tiles in a row needed to win.
+     * @return The new game, which has already been terminated if either
+     * client has disconnected.
      */
-    public ServerGame createGame(ServerThread initiator, ServerThread opponent) {
-        ServerGame game = new ServerGame(this, currentGameID++, initiator, opponent);
-        games.put(game.getGameID(), game);
+    public ServerGame createGame(
+            ServerThread initiator,
+            ServerThread opponent,
+            int boardSize,
+            int winLength) {
+        ServerGame game = new ServerGame(
+                this,
+                currentGameID.getAndIncrement(),
+                initiator,
+                opponent,
+                boardSize,
+                winLength);
+        games.putIfAbsent(game.getGameID(), game);
         initiator.addToGame(game);
         opponent.addToGame(game);
+        // A player who disconnected while the game was being created may
+        // have had their games terminated before this one was added, so end
+        // it at once rather than leave the other player waiting.
+        if(initiator.isDisconnected()) {
+            game.terminateGame(initiator, initiator.getNickname() + " disconnected.");
+        } else if(opponent.isDisconnected()) {
+            game.terminateGame(opponent, opponent.getNickname() + " disconnected.");
+        }
         return game;
     }
 
+    /**
+     * Get the journal in which games record their progress.
+     *
+     * @return The game journal, or {@code null} if the server keeps none.
+     */
+    public GameJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Get the archive to which finished games are added.
+     *
+     * @return The game archive, or {@code null} if the server keeps none.
+     */
+    public GameArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Rebuild a game recovered from the journal, by replaying its moves on
+     * a new board.
+     *
+     * @param recovered The game recovered from the journal.
+     * @return The suspended game, or {@code null} if the game cannot be
+     * played on or had already finished.
+     */
+    private ServerGame recoverGame(GameJournal.RecoveredGame recovered) {
+        if(!Board.isValidVariant(recovered.getBoardSize(), recovered.getWinLength())) {
+            return null;
+        }
+        Board board = Board.create(recovered.getBoardSize(), recovered.getWinLength());
+        List<int[]> moves = recovered.getMoves();
+        for(int i = 0; i < moves.size(); i++) {
+            int x = moves.get(i)[0], y = moves.get(i)[1];
+            if(!board.isOnBoard(x, y) || board.getTile(x, y) != Game.TILE_SPACE) {
+                return null;
+            }
+            board.setTile(x, y, i % 2 == 0 ? Game.TILE_CROSS : Game.TILE_NOUGHT);
+            // The game ended, but the end was lost from the journal.
+            if(board.isWinningMove(x, y) || board.isFull()) {
+                return null;
+            }
+        }
+        return new ServerGame(
+                this,
+                recovered.getGameID(),
+                recovered.getNoughtNickname(),
+                recovered.getCrossNickname(),
+                board,
+                moves);
+    }
+
+    /**
+     * Give a newly connected client back its place in any games recovered
+     * from the journal.
+     *
+     * @param thread The newly connected client.
+     */
+    public void resumeGames(ServerThread thread) {
+        List<ServerGame> suspended = suspendedGames.remove(thread.getNickname());
+        if(suspended != null) {
+            for(ServerGame game : suspended) {
+                thread.addToGame(game);
+                game.resume(thread);
+            }
+        }
+    }
+
+    /**
+     * Get the executor shared by every game to drain its mailbox.
+     *
+     * @return The game executor, or {@code null} if each game's mailbox is
+     * drained by the thread which posts to it.
+     */
+    public ForkJoinPool getGameExecutor() {
+        return gameExecutor;
+    }
+
+    /**
+     * Get the matchmaker which pairs up the players queued for a match.
+     *
+     * @return The matchmaker.
+     */
+    public Matchmaker getMatchmaker() {
+        return matchmaker;
+    }
+
+    /**
+     * Get the rating system which updates the scores of players after each
+     * game.
+     *
+     * @return The rating system.
+     */
+    public EloRating getRatings() {
+        return ratings;
+    }
+
+    /**
+     * Get the leaderboard of the connected players, ranked by score.
+     *
+     * @return The leaderboard.
+     */
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Get the score stored for a player, with which a client connecting with
+     * that nickname starts.
+     *
+     * @param nickname The nickname of the player.
+     * @return The stored score, or {@link EloRating#INITIAL_RATING} if none
+     * is stored or scores are not kept.
+     */
+    public int getStoredScore(String nickname) {
+        return scoreStore == null ?
+            EloRating.INITIAL_RATING :
+            scoreStore.getScore(nickname, EloRating.INITIAL_RATING);
+    }
+
+    /**
+     * Store the current score of a client, if scores are kept. This never
+     * waits for the disk; the score is written in the background.
+     *
+     * @param thread The client whose score has changed.
+     */
+    public void saveScore(ServerThread thread) {
+        if(scoreStore != null) {
+            scoreStore.putScore(thread.getNickname(), thread.getScore());
+        }
+    }
+
     /**
      * Gets the game associated with the given game ID.
      *
@@ -67,24 +395,25 @@ public class Server implements Runnable {
      * {@code null} if no such game exists.
      */
     public ServerGame getGame(int gameID) {
-        if(games.containsKey(gameID)) {
-            return games.get(gameID);
-        } else {
-            return null;
-        }
+        return games.get(gameID);
     }
 
     /**
      * Removes the game with the given ID from the server.
-     * This also dissocates both participants from the game.
+     * This also dissocates both participants from the game. If several
+     * threads remove the same game at once, only one of them does so.
      *
      * @param game The game to remove.
      */
     public void removeGame(ServerGame game) {
-        if(games.containsKey(game.getGameID())) {
-            games.remove(game.getGameID());
-            game.getNought().removeFromGame(game);
-            game.getCross().removeFromGame(game);
+        if(games.remove(game.getGameID(), game)) {
+            // Either player may still be missing from a suspended game.
+            if(game.getNought() != null) {
+                game.getNought().removeFromGame(game);
+            }
+            if(game.getCross() != null) {
+                game.getCross().removeFromGame(game);
+            }
         }
     }
 
@@ -95,85 +424,585 @@ public class Server implements Runnable {
         running = false;
     }
 
+    /**
+     * Determines whether the server is running.
+     *
+     * @return {@code true} if the server has not been stopped.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the options with which the server was started.
+     *
+     * @return The options with which the server was started.
+     */
+    public ServerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Get the statistics of the packets and bytes written to every client,
+     * which show how well queued packets are coalesced into batches.
+     *
+     * @return The flush statistics of the server.
+     */
+    public FlushStatistics getFlushStatistics() {
+        return flushStatistics;
+    }
+
+    /**
+     * Get the metrics recorded by the server, such as the packets sent and
+     * received and the durations of games.
+     *
+     * @return The metrics of the server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the event log of the server.
+     *
+     * @return The log of the server.
+     */
+    public ServerLog getLog() {
+        return log;
+    }
+
+    /**
+     * Get the lobby which every client joins when it connects.
+     *
+     * @return The default lobby of the server.
+     */
+    public ServerLobby getDefaultLobby() {
+        return defaultLobby;
+    }
+
+    /**
+     * Get every lobby on the server, in the order they were created.
+     *
+     * @return A new list of the lobbies on the server.
+     */
+    public List<ServerLobby> getLobbies() {
+        List<ServerLobby> sorted = new ArrayList<ServerLobby>(lobbies.snapshot());
+        sorted.sort(Comparator.comparingInt(ServerLobby::getLobbyID));
+        return sorted;
+    }
+
+    /**
+     * Get the number of lobbies on the server, including the default lobby.
+     *
+     * @return The number of lobbies.
+     */
+    public int getLobbyCount() {
+        return lobbies.size();
+    }
+
+    /**
+     * Get the lobby with the given name, creating it if there is none. A
+     * new lobby is pinned to one of the server's lobby shards.
+     *
+     * @param name The name of the lobby.
+     * @return The lobby with the given name, or {@code null} if it does not
+     * exist and there are already {@link #MAX_LOBBIES} lobbies.
+     */
+    public ServerLobby getOrCreateLobby(String name) {
+        ServerLobby lobby = lobbies.get(name);
+        while(lobby == null) {
+            if(lobbies.size() >= MAX_LOBBIES) {
+                return null;
+            }
+            int lobbyID = currentLobbyID.getAndIncrement();
+            ServerLobby created = new ServerLobby(
+                    this,
+                    lobbyID,
+                    name,
+                    lobbyShards.length == 0 ? null : lobbyShards[lobbyID % lobbyShards.length]);
+            if(lobbies.putIfAbsent(name, created)) {
+                ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "lobby.created");
+                if(event != null) {
+                    event.with("lobby", lobbyID).with("name", name).publish();
+                }
+                return created;
+            }
+            lobby = lobbies.get(name);
+        }
+        return lobby;
+    }
+
+    /**
+     * Removes an empty lobby from the server. This is invoked by the lobby
+     * itself, on its shard, once its last player has left.
+     *
+     * @param lobby The lobby to remove.
+     */
+    public void removeLobby(ServerLobby lobby) {
+        if(lobbies.remove(lobby.getName(), lobby)) {
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "lobby.removed");
+            if(event != null) {
+                event.with("lobby", lobby.getLobbyID()).publish();
+            }
+        }
+    }
+
+    /**
+     * Move a client into the lobby with the given name, creating the lobby
+     * if there is none. The client is told if the name is not allowed, or if
+     * there are too many lobbies to create another.
+     *
+     * @param thread The client to move.
+     * @param name The name of the lobby to join.
+     */
+    public void joinLobby(ServerThread thread, String name) {
+        name = name.trim();
+        if(name.isEmpty() || name.length() > MAX_LOBBY_NAME_LENGTH) {
+            thread.sendMessage(
+                    null,
+                    String.format(
+                        "Lobby names must be between 1 and %d characters long.",
+                        MAX_LOBBY_NAME_LENGTH),
+                    "Lobby",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        ServerLobby lobby = getOrCreateLobby(name);
+        if(lobby == null) {
+            thread.sendMessage(
+                    null,
+                    "There are too many lobbies to create another.",
+                    "Lobby",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        joinLobby(thread, lobby);
+    }
+
+    /**
+     * Move a client into the given lobby. The client first leaves its
+     * current lobby, on that lobby's shard, and only then joins the new one,
+     * so that every lobby update it was due from its old lobby is queued
+     * before it is told that it has joined the new one. A client which is
+     * not yet in any lobby is also added to the server's map of clients.
+     *
+     * @param thread The client to move.
+     * @param lobby The lobby to join.
+     */
+    public void joinLobby(ServerThread thread, ServerLobby lobby) {
+        ServerLobby current = thread.getLobby();
+        if(current == lobby) {
+            thread.sendLobbyJoined(lobby);
+            return;
+        }
+        if(current == null) {
+            clients.putIfAbsent(thread.getNickname(), thread);
+            if(clients.get(thread.getNickname()) != thread) {
+                // The client has left, and its nickname has been taken since.
+                return;
+            }
+        }
+        thread.setLobby(lobby);
+        if(current == null) {
+            lobby.join(thread);
+        } else {
+            current.leave(thread, () -> lobby.join(thread));
+            matchmaker.lobbyChanged(thread);
+        }
+    }
+
+    /**
+     * Get the number of clients connected to the server.
+     *
+     * @return The number of connected clients.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Get the number of games on the server, including those which have
+     * been requested but not yet accepted.
+     *
+     * @return The number of games.
+     */
+    public int getGameCount() {
+        return games.size();
+    }
+
+    /**
+     * Create a new thread to run part of a client's connection, such as its
+     * reader or sender loop. Depending on the server options, this may be a
+     * virtual thread.
+     *
+     * @param runnable The body of the thread.
+     * @return The new, unstarted thread.
+     */
+    public Thread newClientThread(Runnable runnable) {
+        return threadFactory.newThread(runnable);
+    }
+
+    /**
+     * Performs the server side of the CLIENT_CONNECT handshake: checks the
+     * client's protocol version, assigns it a unique nickname, and writes the
+     * resulting SERVER_STATUS packet. This is shared by every server engine.
+     * The new client is added to the server's map of clients under its
+     * assigned nickname. The client may use either the current, framed
+     * protocol version or the original, unframed one; the handshake itself
+     * is always unframed.
+     *
+     * @param connectPacketID The ID of the first packet sent by the client.
+     * @param inputStream The stream from which to read the rest of the
+     * CLIENT_CONNECT packet.
+     * @param outputStream The stream to which to write the response.
+     * @param createClient Creates the {@link ServerThread} for the client,
+     * given its assigned nickname and the codec of its protocol version.
+     * @return The newly connected client, or {@code null} if the connection
+     * must be closed.
+     */
+    public ServerThread handshake(
+            int connectPacketID,
+            DataInputStream inputStream,
+            DataOutputStream outputStream,
+            BiFunction<String, PacketCodec, ServerThread> createClient) throws IOException {
+        // Check that the client sends the correct packet first
+        if(connectPacketID != Packet.CLIENT_CONNECT) {
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_WARN, "client.rejected");
+            if(event != null) {
+                event.with("reason", "first packet was not CLIENT_CONNECT")
+                    .with("packet", connectPacketID)
+                    .publish();
+            }
+            return null;
+        }
+
+        // Check that there is no version mismatch between client and server
+        int clientProtocolVersion = inputStream.readInt();
+        PacketCodec codec;
+        if(clientProtocolVersion == Packet.PROTOCOL_VERSION) {
+            codec = new FramedPacketCodec();
+        } else if(clientProtocolVersion == Packet.PROTOCOL_VERSION_UNFRAMED) {
+            codec = new UnframedPacketCodec();
+        } else {
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_WARN, "client.rejected");
+            if(event != null) {
+                event.with("reason", "version mismatch")
+                    .with("version", clientProtocolVersion)
+                    .publish();
+            }
+            outputStream.writeInt(Packet.SERVER_STATUS);
+            outputStream.writeBoolean(false);
+            outputStream.writeUTF(String.format(
+                        "The server version is %s than the client version.",
+                        Packet.PROTOCOL_VERSION > clientProtocolVersion ? "newer" : "older"
+                        ));
+            return null;
+        }
+
+        String nickname = inputStream.readUTF();
+        String requestedNickname = nickname;
+        int extensions = inputStream.readInt();
+        int acceptedExtensions = 0;
+        if(codec instanceof FramedPacketCodec) {
+            acceptedExtensions = extensions & Packet.SUPPORTED_EXTENSIONS;
+        }
+
+        // If needed, append a number onto the end of
+        // the client's nickname to avoid uniqueness
+        // issues. The client will be made aware of
+        // this upon login. Claiming the nickname is
+        // atomic, so two clients connecting with the
+        // same nickname at once cannot both get it.
+        // A nickname is reserved before the client is
+        // created, so that a client is only created
+        // for a nickname which is free, rather than
+        // once for every nickname already taken.
+        String replacementNickname = nickname;
+        ServerThread client = null;
+        int attempts = 0;
+        while(client == null) {
+            if(!clients.containsKey(replacementNickname) &&
+               reservedNicknames.add(replacementNickname)) {
+                try {
+                    ServerThread candidate = createClient.apply(replacementNickname, codec);
+                    candidate.setExtensions(acceptedExtensions);
+                    // The nickname may still have been taken
+                    // outside a handshake, such as by the bot.
+                    if(clients.putIfAbsent(replacementNickname, candidate)) {
+                        client = candidate;
+                    }
+                } finally {
+                    reservedNicknames.remove(replacementNickname);
+                }
+            }
+            if(client == null) {
+                replacementNickname = String.format(
+                        "%s [%d]",
+                        nickname,
+                        ++attempts
+                        );
+            }
+        }
+        nickname = replacementNickname;
+        ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "client.connected");
+        if(event != null) {
+            event.with("nickname", nickname);
+            if(attempts > 0) {
+                event.with("requested", requestedNickname);
+            }
+            event.with("version", clientProtocolVersion)
+                .with("extensions", acceptedExtensions)
+                .publish();
+        }
+
+        outputStream.writeInt(Packet.SERVER_STATUS);
+        outputStream.writeBoolean(true);
+        outputStream.writeUTF(nickname);
+        if(extensions != 0) {
+            outputStream.writeInt(acceptedExtensions);
+        }
+        return client;
+    }
+
     @Override
     public void run() {
+        if(!openStores()) {
+            log.close();
+            return;
+        }
+        if(options.getBotNickname() != null) {
+            startBot();
+        }
+        matchmaker.start();
+        startRatingBroadcaster();
         running = true;
+        MetricsEndpoint metricsEndpoint = null;
+        if(options.getMetricsPort() != -1) {
+            metricsEndpoint = new MetricsEndpoint(this, options.getMetricsPort());
+            try {
+                metricsEndpoint.start();
+            } catch(IOException e) {
+                log.error("metrics.failed", e);
+            }
+        }
+        try {
+            runEngine();
+        } finally {
+            for(ExecutorService shard : lobbyShards) {
+                shard.shutdown();
+            }
+            if(gameExecutor != null) {
+                gameExecutor.shutdown();
+            }
+            if(botExecutor != null) {
+                botExecutor.shutdown();
+            }
+            matchmaker.stop();
+            if(ratingBroadcaster != null) {
+                ratingBroadcaster.shutdown();
+            }
+            if(metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            closeStores();
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "server.stopped");
+            if(event != null) {
+                event.with("packets", flushStatistics.getPackets())
+                    .with("bytes", flushStatistics.getBytes())
+                    .with("writes", flushStatistics.getFlushes())
+                    .publish();
+            }
+            log.close();
+        }
+    }
+
+    /**
+     * Open the score store, game journal and game archive named in the
+     * server options, if any, and recover the games in progress from the
+     * journal. This is called when the server is run, before any client can
+     * connect.
+     *
+     * @return {@code false} if any could not be opened, in which case none
+     * are open.
+     */
+    public boolean openStores() {
+        if(options.getArchiveDirectory() != null) {
+            try {
+                archive = GameArchive.open(Paths.get(options.getArchiveDirectory()), log);
+            } catch(IOException e) {
+                log.error("archive.failed", e);
+                return false;
+            }
+        }
+        if(options.getScoreFile() != null) {
+            long start = System.nanoTime();
+            try {
+                scoreStore = ScoreStore.open(
+                        Paths.get(options.getScoreFile()),
+                        options.getScoreFlushMillis(),
+                        log);
+            } catch(IOException e) {
+                log.error("scores.failed", e);
+                closeStores();
+                return false;
+            }
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "scores.loaded");
+            if(event != null) {
+                event.with("players", scoreStore.size())
+                    .with("millis", (System.nanoTime() - start) / 1000000)
+                    .publish();
+            }
+        }
+        if(options.getJournalFile() != null) {
+            long start = System.nanoTime();
+            try {
+                journal = GameJournal.open(
+                        Paths.get(options.getJournalFile()),
+                        options.getJournalFlushMillis(),
+                        log);
+            } catch(IOException e) {
+                log.error("journal.failed", e);
+                closeStores();
+                return false;
+            }
+            if(currentGameID.get() <= journal.getLastGameID()) {
+                currentGameID.set(journal.getLastGameID() + 1);
+            }
+            List<ServerGame> recovered = new ArrayList<ServerGame>();
+            int discarded = 0;
+            for(GameJournal.RecoveredGame r : journal.getRecoveredGames()) {
+                ServerGame game = recoverGame(r);
+                if(game == null) {
+                    journal.end(r.getGameID());
+                    discarded++;
+                    continue;
+                }
+                games.putIfAbsent(game.getGameID(), game);
+                suspendedGames.computeIfAbsent(game.getNoughtNickname(), k -> new ArrayList<ServerGame>()).add(game);
+                suspendedGames.computeIfAbsent(game.getCrossNickname(), k -> new ArrayList<ServerGame>()).add(game);
+                recovered.add(game);
+            }
+            CompletableFuture.delayedExecutor(GAME_RESUME_TIMEOUT, TimeUnit.SECONDS).execute(() -> {
+                for(ServerGame game : recovered) {
+                    game.expire();
+                }
+            });
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "journal.recovered");
+            if(event != null) {
+                event.with("games", recovered.size())
+                    .with("discarded", discarded)
+                    .with("millis", (System.nanoTime() - start) / 1000000)
+                    .publish();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close the score store, game journal and game archive, if they are
+     * open, once every change to them has been written.
+     */
+    public void closeStores() {
+        if(scoreStore != null) {
+            scoreStore.close();
+            scoreStore = null;
+        }
+        if(journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if(archive != null) {
+            archive.close();
+            archive = null;
+        }
+    }
+
+    /**
+     * Start the computer player named in the server options, solving every
+     * position on a 3x3 board for it first, and add it to the default
+     * lobby.
+     */
+    private void startBot() {
+        long start = System.nanoTime();
+        PerfectPlayTable perfectPlay = new PerfectPlayTable();
+        ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "bot.ready");
+        if(event != null) {
+            event.with("nickname", options.getBotNickname())
+                .with("positions", perfectPlay.getPositionCount())
+                .with("millis", (System.nanoTime() - start) / 1000000)
+                .publish();
+        }
+        if(options.getBotThreads() > 0) {
+            AtomicInteger threadCount = new AtomicInteger(0);
+            botExecutor = Executors.newFixedThreadPool(options.getBotThreads(), runnable -> {
+                Thread thread = new Thread(runnable, "bot-thinker-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        ServerBot bot = new ServerBot(
+                this,
+                options.getBotNickname(),
+                getStoredScore(options.getBotNickname()),
+                perfectPlay,
+                new GameSearch(new TranspositionTable(BOT_TABLE_SIZE_BITS)),
+                botExecutor,
+                options.getBotThinkMillis());
+        clients.putIfAbsent(bot.getNickname(), bot);
+        bot.connected();
+    }
+
+    /**
+     * Accept and serve clients with the engine chosen in the server options,
+     * until the server is stopped.
+     */
+    private void runEngine() {
+        if(options.getEngine() == ServerOptions.ENGINE_NIO) {
+            new NioServer(this, port, options.getEventLoops()).run();
+            return;
+        }
         try {
-            System.out.println("Starting server...");
-            server = new ServerSocket(port);
-            System.out.println("Server listening on port " + port + ".");
+            server = new ServerSocket(port, ACCEPT_BACKLOG);
+            ServerLog.Event event = log.begin(ServerLog.LEVEL_INFO, "server.listening");
+            if(event != null) {
+                event.with("port", port)
+                    .with("engine", "blocking")
+                    .with("threads", threadFactory.isVirtual() ? "virtual" : "platform")
+                    .publish();
+            }
             server.setSoTimeout(3000);
 
             while(running) {
                 try {
                     Socket clientSocket = server.accept();
-                    InetAddress address = clientSocket.getInetAddress();
-                    System.out.println("New client inbound from " +
-                            address.getHostAddress() + 
-                            "(" + address.getHostName() + ").");
+                    clientSocket.setTcpNoDelay(options.useTcpNoDelay());
+                    // Only the address is logged, as looking up the host name
+                    // would hold up the accept loop.
+                    log.log(ServerLog.LEVEL_INFO, "client.accepted",
+                            "address", clientSocket.getInetAddress().getHostAddress());
                     try {
                         DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
                         DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
 
-                        // Check that the client sends the correct packet first
-                        int connectPacketID = inputStream.readInt();
-                        if(connectPacketID != Packet.CLIENT_CONNECT) {
-                            System.out.println(connectPacketID);
-                            System.out.println("Client did not send CLIENT_CONNECT packet, terminating connection.");
+                        ServerThread client = handshake(
+                                inputStream.readInt(),
+                                inputStream,
+                                outputStream,
+                                (nickname, codec) -> new ServerThread(
+                                    this,
+                                    nickname,
+                                    getStoredScore(nickname),
+                                    codec,
+                                    clientSocket,
+                                    inputStream,
+                                    outputStream));
+                        if(client == null) {
                             clientSocket.close();
                         } else {
-                            // Check that there is no version mismatch between client and server
-                            int clientProtocolVersion = inputStream.readInt();
-                            if(clientProtocolVersion != Packet.PROTOCOL_VERSION) {
-                                System.out.println("Client/server version mismatch.");
-                                outputStream.writeInt(Packet.SERVER_STATUS);
-                                outputStream.writeBoolean(false);
-                                outputStream.writeUTF(String.format(
-                                            "The server version is %s than the client version.",
-                                            Packet.PROTOCOL_VERSION > clientProtocolVersion ? "newer" : "older"
-                                            ));
-                                clientSocket.close();
-                            } else {
-                                String nickname = inputStream.readUTF();
-                                System.out.println("Client identifying as " + nickname + "...");
-                                int extensions = inputStream.readInt(); // unused for now
-                                
-                                // If needed, append a number onto the end of
-                                // the client's nickname to avoid uniqueness
-                                // issues. The client will be made aware of
-                                // this upon login.
-                                String replacementNickname = nickname;
-                                int attempts = 0;
-                                while(clients.containsKey(replacementNickname)) {
-                                    replacementNickname = String.format(
-                                            "%s [%d]",
-                                            nickname,
-                                            ++attempts
-                                            );
-                                }
-                                nickname = replacementNickname;
-                                if(attempts > 0) {
-                                    System.out.println("Client assigned replacement nickname " + nickname + ".");
-                                }
-
-                                outputStream.writeInt(Packet.SERVER_STATUS);
-                                outputStream.writeBoolean(true);
-                                outputStream.writeUTF(nickname);
-
-                                ServerThread client = new ServerThread(
-                                        this,
-                                        nickname,
-                                        0,
-                                        clientSocket,
-                                        inputStream,
-                                        outputStream);
-                                clients.put(nickname, client);
-                                new Thread(client).start();
-                            }
+                            newClientThread(client).start();
                         }
                     } catch(Exception e) {
-                        System.out.println("Error during connection initialization.");
-                        e.printStackTrace();
+                        log.error("client.handshake_failed", e);
                     }
                 } catch(SocketTimeoutException e) {
                     // connection timed out, this allows
@@ -181,76 +1010,125 @@ public class Server implements Runnable {
                 }
             }
         } catch(IOException e) {
-            System.out.println("IO Exception:");
-            e.printStackTrace();
+            log.error("server.failed", e);
         } finally {
             running = false;
             try {
                 server.close();
             } catch(IOException e) {
-                System.out.println("Error closing server.");
-                e.printStackTrace();
+                log.error("server.close_failed", e);
             }
         }
     }
 
     /**
      * Perform a specific action on all clients connected to the server.
+     * This iterates over a snapshot of the connected clients, so clients may
+     * safely join or leave while it is running.
      *
      * @param action The action to perform, as a {@link ServerThread} consumer.
      */
     public void doToAllClients(Consumer<ServerThread> action) {
-        for(ServerThread thread : clients.values()) {
+        for(ServerThread thread : clients.snapshot()) {
             action.accept(thread);
         }
     }
 
     /**
-     * Removes the given server thread from the server and notifies other
-     * clients that the user has left.
+     * Removes the given server thread from the server and notifies the other
+     * clients in its lobby that the user has left. The nickname of the
+     * client is only given up once it has left its lobby, so that a new
+     * client taking the nickname cannot join the lobby first.
      *
-     * @param _thread The thread of the leaving player.
+     * @param thread The thread of the leaving player.
      */
-    public void playerLeave(ServerThread _thread) {
-        final ServerThread thread = _thread;
-        if(clients.containsKey(_thread.getNickname())) {
-            clients.remove(thread.getNickname());
+    public void playerLeave(ServerThread thread) {
+        ServerLobby lobby = thread.getLobby();
+        thread.setLobby(null);
+        if(lobby == null) {
+            clients.remove(thread.getNickname(), thread);
+        } else {
+            lobby.leave(thread, () -> clients.remove(thread.getNickname(), thread));
         }
-
-        doToAllClients(t -> {
-            if(thread != t) {
-                t.sendPlayerLeave(thread);
-            }
-        });
     }
     
     /**
-     * Updates other clients about the current state of the client represented
-     * by {@code _thread}.
+     * Updates the other clients in the lobby of the client represented by
+     * {@code thread} about its current state.
      *
-     * @param _thread The thread of the client to inform other users about.
+     * @param thread The thread of the client to inform other users about.
      */
-    public void playerUpdate(ServerThread _thread) {
-        final ServerThread thread = _thread;
-        doToAllClients(t -> {
-            if(_thread != t) {
-                t.sendPlayerUpdate(thread);
-            }
-        });
+    public void playerUpdate(ServerThread thread) {
+        ServerLobby lobby = thread.getLobby();
+        if(lobby != null) {
+            lobby.playerUpdate(thread);
+        }
+    }
+
+    /**
+     * Note that the score of a client has changed. Unless every change is
+     * sent at once, the other clients in its lobby are only told with the
+     * next broadcast of ratings, so that a player whose rating changes
+     * several times between broadcasts is only sent once.
+     *
+     * @param thread The client whose score has changed.
+     */
+    public void ratingChanged(ServerThread thread) {
+        if(options.getRatingBroadcastMillis() == 0) {
+            playerUpdate(thread);
+            return;
+        }
+        ServerLobby lobby = thread.getLobby();
+        if(lobby != null) {
+            lobby.ratingChanged(thread);
+        }
+    }
+
+    /**
+     * Tell every lobby of the ratings of its players which have changed
+     * since the last broadcast. While the server runs, this is done
+     * periodically by the rating broadcaster.
+     */
+    public void broadcastRatings() {
+        for(ServerLobby lobby : lobbies.snapshot()) {
+            lobby.broadcastRatings();
+        }
+    }
 
-        if(!clients.containsKey(thread.getNickname())) {
-            clients.put(thread.getNickname(), thread);
+    /**
+     * Start broadcasting the ratings which changed periodically, unless
+     * every change is sent at once.
+     */
+    private void startRatingBroadcaster() {
+        int interval = options.getRatingBroadcastMillis();
+        if(interval == 0) {
+            return;
         }
+        ratingBroadcaster = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "rating-broadcaster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ratingBroadcaster.scheduleAtFixedRate(() -> {
+            // An exception would cancel every later broadcast.
+            try {
+                broadcastRatings();
+            } catch(RuntimeException e) {
+                log.error("rating.failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
     }
     
     public static void main(String... args) {
-        if(args.length != 1) {
-            System.out.println("Usage:");
+        ServerOptions options;
+        try {
+            options = ServerOptions.parse(args);
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
             System.out.println();
-            System.out.println("java Server <port>");
-            System.out.println("port: The port to listen on for clients.");
-        } else {
-            new Server(Integer.valueOf(args[0])).run();
+            ServerOptions.printUsage();
+            return;
         }
+        new Server(options).run();
     }
 }
@@ -0,0 +1,158 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A computer player hosted by the server, so that a player with nobody to
+ * play against never has to wait for an opponent.
+ * <p>
+ * The bot takes part in games as an ordinary client would, through the
+ * same {@link ServerThread} methods as a connected client, but rather than
+ * sending packets to a connection it acts on them. It accepts every game
+ * request, keeps its own copy of the board of each game it is playing, and
+ * when it is its turn it chooses a move and makes it through the game's
+ * mailbox, just like a move received from a client.
+ * <p>
+ * On a 3x3 board, every move is looked up in the {@link PerfectPlayTable},
+ * so the bot never loses. On a larger board, it searches for its move with
+ * a {@link GameSearch} for a bounded time. Searching is done on the bot's
+ * own executor, so that it never holds up the game executor which other
+ * games' moves are processed on.
+ *
+ * @author Tom Galvin
+ */
+public class ServerBot extends ServerThread {
+    private Server server;
+    private PerfectPlayTable perfectPlay;
+    private GameSearch search;
+    private ExecutorService executor;
+    private long thinkNanos;
+
+    /**
+     * The bot's copy of the board of each game it is playing, keyed by game
+     * ID. Each board is only changed from its game's mailbox.
+     */
+    private ConcurrentHashMap<Integer, Board> boards;
+
+    /**
+     * The tile the bot plays in each game it is playing, keyed by game ID.
+     */
+    private ConcurrentHashMap<Integer, Integer> tiles;
+
+    /**
+     * Create a new bot.
+     *
+     * @param server The server hosting the bot.
+     * @param nickname The nickname of the bot.
+     * @param score The score of the bot.
+     * @param perfectPlay The table of perfect moves on a 3x3 board.
+     * @param search The search for moves on larger boards.
+     * @param executor The executor on which to choose moves, or
+     * {@code null} to choose them on the thread which processed the
+     * opponent's move.
+     * @param thinkMillis The longest time to spend searching for a move, in
+     * milliseconds.
+     */
+    public ServerBot(
+            Server server,
+            String nickname,
+            int score,
+            PerfectPlayTable perfectPlay,
+            GameSearch search,
+            ExecutorService executor,
+            int thinkMillis) {
+        super(server, nickname, score, new FramedPacketCodec(), (NioConnection)null);
+        this.server = server;
+        this.perfectPlay = perfectPlay;
+        this.search = search;
+        this.executor = executor;
+        this.thinkNanos = thinkMillis * 1000000L;
+        this.boards = new ConcurrentHashMap<Integer, Board>();
+        this.tiles = new ConcurrentHashMap<Integer, Integer>();
+        setExtensions(Packet.SUPPORTED_EXTENSIONS);
+    }
+
+    /**
+     * The bot has no connection, so packets to it are discarded. The parts
+     * of them it needs are taken from the calls which would have sent them.
+     */
+    @Override
+    protected void queuePacket(PacketWriter writer) {
+    }
+
+    @Override
+    protected void queueLobbyPacket(String nickname, PacketWriter writer) {
+    }
+
+    @Override
+    public void sendGameRequestReceived(ServerGame game, String nickname) {
+        game.begin();
+    }
+
+    @Override
+    public void sendGameBegin(ServerGame game, ServerThread opponent, int playingAs) {
+        boards.put(game.getGameID(), Board.create(game.getBoardSize(), game.getWinLength()));
+        tiles.put(game.getGameID(), playingAs);
+    }
+
+    @Override
+    public void sendGameMove(ServerGame game, int x, int y, int tileType) {
+        Board board = boards.get(game.getGameID());
+        if(board != null) {
+            board.setTile(x, y, tileType);
+        }
+    }
+
+    @Override
+    public void sendGameUpdate(ServerGame game, boolean canMove, int gameState) {
+        if(gameState != Game.GAME_IN_PROGRESS) {
+            boards.remove(game.getGameID());
+            tiles.remove(game.getGameID());
+            return;
+        }
+        Board board = boards.get(game.getGameID());
+        if(!canMove || board == null) {
+            return;
+        }
+        // Think about a copy of the board, as the bot's own copy may only be
+        // touched from the game's mailbox.
+        int size = board.getSize();
+        Board position = Board.create(size, board.getWinLength());
+        for(int y = 0; y < size; y++) {
+            for(int x = 0; x < size; x++) {
+                position.setTile(x, y, board.getTile(x, y));
+            }
+        }
+        int tile = tiles.get(game.getGameID());
+        if(executor == null) {
+            play(game, position, tile);
+        } else {
+            executor.execute(() -> play(game, position, tile));
+        }
+    }
+
+    /**
+     * Choose a move in a game and make it.
+     *
+     * @param game The game in which to move.
+     * @param board The board of the game.
+     * @param tile The tile the bot plays.
+     */
+    private void play(ServerGame game, Board board, int tile) {
+        long start = System.nanoTime();
+        int size = board.getSize();
+        int move = size == BitBoard.SIZE && board.getWinLength() == BitBoard.SIZE ?
+                   perfectPlay.getBestMove(board) :
+                   search.chooseMove(board, tile, thinkNanos);
+        if(move == -1) {
+            return;
+        }
+        ServerLog.Event event = server.getLog().begin(ServerLog.LEVEL_DEBUG, "bot.moved");
+        if(event != null) {
+            event.with("game", game.getGameID())
+                .with("cell", move)
+                .with("micros", (System.nanoTime() - start) / 1000)
+                .publish();
+        }
+        game.makeMove(this, move % size, move / size);
+    }
+}
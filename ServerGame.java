@@ -1,7 +1,28 @@
+import java.util.Arrays;
+import java.util.List;
 import javax.swing.JOptionPane;
 
 /**
  * Holds information on the state of a game on the server.
+ * <p>
+ * Each game is a lightweight actor. Beginning the game, making a move and
+ * terminating the game may be requested at once by both players' threads
+ * and by a disconnecting client, so rather than being acted on straight
+ * away, each request is posted to the game's mailbox (see
+ * {@link SerialExecutor}). The mailbox is drained by the server's shared
+ * game executor, one request at a time, in the order they were posted. The
+ * state of the game is only ever touched from its mailbox, so it needs no
+ * locking, and different games progress in parallel.
+ * <p>
+ * If the server keeps a {@link GameJournal}, each game records in it when
+ * it begins, every move made in it, and when it ends. A game recovered from
+ * the journal after a restart is suspended until both of its players have
+ * reconnected, at which point they are sent the whole board, and the game
+ * carries on from where it was.
+ * <p>
+ * If the server keeps a {@link GameArchive}, every game which began is
+ * archived once it has finished, with its result and every move made in
+ * it.
  *
  * @author Tom Galvin
  */
@@ -9,9 +30,72 @@ public class ServerGame {
     private Server server;
     private ServerThread nought;
     private ServerThread cross;
-    private ServerThread currentPlayer = null;
+    private String noughtNickname;
+    private String crossNickname;
+
+    /**
+     * The player whose turn it is, or {@code null} if the game has not begun
+     * or is over. This is volatile so that {@link #isInProgress()} can be
+     * called from outside the game's mailbox.
+     */
+    private volatile ServerThread currentPlayer = null;
     private int gameID;
-    private int[][] gameBoard;
+    private Board gameBoard;
+    private SerialExecutor mailbox;
+
+    /**
+     * The journal in which this game records its progress, or {@code null}
+     * if the server keeps no journal.
+     */
+    private GameJournal journal;
+
+    /**
+     * The archive to which this game is added once it has finished, or
+     * {@code null} if the server keeps no archive.
+     */
+    private GameArchive archive;
+
+    /**
+     * The moves made so far, in turn starting with cross, each as the index
+     * {@code y * size + x} of its cell. The number of moves is
+     * {@link #moveCount}.
+     */
+    private short[] moves;
+
+    /**
+     * Whether this game has been recorded as beginning in the journal, and
+     * so must be recorded as ending.
+     */
+    private boolean journaled = false;
+
+    /**
+     * Whether this game was recovered from the journal, and is waiting for
+     * both of its players to reconnect. Until then, the player who has not
+     * reconnected is {@code null}.
+     */
+    private boolean suspended = false;
+
+    /**
+     * Whether this game has ended, been terminated or been declined, after
+     * which it can no longer begin.
+     */
+    private boolean finished = false;
+
+    /**
+     * The time at which this game began, or -1 if it has not begun yet or
+     * has already been recorded as finished.
+     */
+    private long beginTime = -1;
+    private int moveCount = 0;
+
+    /**
+     * The result of this game, as a RESULT_* constant in
+     * {@link GameArchive}, or -1 if it has not finished. This is volatile,
+     * and set only after every other change made by the game's last move, so
+     * that once it is seen from outside the game's mailbox, so is the rest
+     * of the finished game.
+     */
+    private volatile int result = -1;
 
     /**
      * Creates a new ServerGame.
@@ -20,39 +104,88 @@ public class ServerGame {
      * @param gameID The game ID for this game.
      * @param nought The player who is playing as nought.
      * @param cross The player who is playing as cross.
+     * @param boardSize The width and height of the game board.
+     * @param winLength The number of tiles in a row needed to win.
      */
     public ServerGame(
             Server server,
             int gameID,
             ServerThread nought,
-            ServerThread cross) {
+            ServerThread cross,
+            int boardSize,
+            int winLength) {
         this.server = server;
         this.gameID = gameID;
         this.nought = nought;
         this.cross = cross;
+        this.noughtNickname = nought.getNickname();
+        this.crossNickname = cross.getNickname();
         
-        this.gameBoard = new int[3][3];
-        for(int i = 0; i < 3; i++) {
-            for(int j = 0; j < 3; j++) {
-                gameBoard[i][j] = Game.TILE_SPACE;
-            }
+        this.gameBoard = Board.create(boardSize, winLength);
+        this.mailbox = new SerialExecutor(
+                server.getGameExecutor(),
+                e -> server.getLog().error("game.task_failed", e));
+        this.journal = server.getJournal();
+        this.archive = server.getArchive();
+        this.moves = new short[boardSize * boardSize];
+    }
+
+    /**
+     * Creates a ServerGame recovered from the server's journal, which is
+     * suspended until both of its players have reconnected and been given
+     * to {@link #resume}.
+     *
+     * @param server The Server on which the game is being played.
+     * @param gameID The game ID for this game.
+     * @param noughtNickname The nickname of the player playing as nought.
+     * @param crossNickname The nickname of the player playing as cross.
+     * @param gameBoard The board of the game, with every move made so far.
+     * @param moves The moves made so far, in turn starting with cross, each
+     * as its X and Y co-ordinates.
+     */
+    public ServerGame(
+            Server server,
+            int gameID,
+            String noughtNickname,
+            String crossNickname,
+            Board gameBoard,
+            List<int[]> moves) {
+        this.server = server;
+        this.gameID = gameID;
+        this.noughtNickname = noughtNickname;
+        this.crossNickname = crossNickname;
+        this.gameBoard = gameBoard;
+        this.mailbox = new SerialExecutor(
+                server.getGameExecutor(),
+                e -> server.getLog().error("game.task_failed", e));
+        this.journal = server.getJournal();
+        this.archive = server.getArchive();
+        this.journaled = true;
+        this.suspended = true;
+        this.moves = new short[gameBoard.getSize() * gameBoard.getSize()];
+        for(int[] move : moves) {
+            this.moves[moveCount++] = (short)(move[1] * gameBoard.getSize() + move[0]);
         }
     }
 
     /**
-     * Prints a message to the server's standard output, prefixed with the
-     * nicknames of the two participants of this game.
+     * Begin logging an event about this game, identified by its ID and the
+     * nicknames of its two participants.
      *
-     * @param s The message to print to the standard output.
+     * @param level The level of the event, as a LEVEL_* constant in
+     * {@link ServerLog}.
+     * @param name The name of the event.
+     * @return The event to fill in and publish, or {@code null} if it is not
+     * logged.
      */
-    private void print(String s) {
-        System.out.println(String.format(
-                    "<%d: %s, %s> %s",
-                    getGameID(),
-                    getNought().getNickname(),
-                    getCross().getNickname(),
-                    s
-                    ));
+    private ServerLog.Event logEvent(int level, String name) {
+        ServerLog.Event event = server.getLog().begin(level, name);
+        if(event != null) {
+            event.with("game", getGameID())
+                .with("nought", noughtNickname)
+                .with("cross", crossNickname);
+        }
+        return event;
     }
 
     /**
@@ -64,10 +197,48 @@ public class ServerGame {
         return gameID;
     }
 
+    /**
+     * Get the width and height of the board of this game.
+     *
+     * @return The size of the game board.
+     */
+    public int getBoardSize() {
+        return gameBoard.getSize();
+    }
+
+    /**
+     * Get the number of tiles in a row needed to win this game.
+     *
+     * @return The win length of this game.
+     */
+    public int getWinLength() {
+        return gameBoard.getWinLength();
+    }
+
+    /**
+     * Get the nickname of the player playing as nought.
+     *
+     * @return The nickname of nought.
+     */
+    public String getNoughtNickname() {
+        return noughtNickname;
+    }
+
+    /**
+     * Get the nickname of the player playing as cross.
+     *
+     * @return The nickname of cross.
+     */
+    public String getCrossNickname() {
+        return crossNickname;
+    }
+
     /**
      * Get the ServerThread for the player playing as nought.
      *
-     * @return The ServerThread for the player playing as nought.
+     * @return The ServerThread for the player playing as nought, or
+     * {@code null} if this game is suspended and nought has not yet
+     * reconnected.
      */
     public ServerThread getNought() {
         return nought;
@@ -76,7 +247,9 @@ public class ServerGame {
     /**
      * Get the ServerThread for the player playing as cross.
      *
-     * @return The ServerThread for the player playing as cross.
+     * @return The ServerThread for the player playing as cross, or
+     * {@code null} if this game is suspended and cross has not yet
+     * reconnected.
      */
     public ServerThread getCross() {
         return cross;
@@ -104,12 +277,66 @@ public class ServerGame {
     }
 
     /**
-     * Sets this game into motion, sending any relevant packets.
+     * Get the result of this game, once it has finished.
+     *
+     * @return The result, as a RESULT_* constant in {@link GameArchive}, or
+     * -1 if the game has not finished.
+     */
+    public int getResult() {
+        return result;
+    }
+
+    /**
+     * Get the number of moves made in this game. This may only be called
+     * from outside the game's mailbox once {@link #getResult()} shows that
+     * the game has finished.
+     *
+     * @return The number of moves made.
+     */
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    /**
+     * Sets this game into motion, sending any relevant packets. This is done
+     * through the game's mailbox.
      */
     public void begin() {
-        if(!isInProgress()) {
+        mailbox.execute(() -> beginGame());
+    }
+
+    /**
+     * Accepts this game on behalf of the client which was asked to play it,
+     * and sets it into motion. A request from any other client, including
+     * the one which asked, is refused as if the game did not exist. This is
+     * done through the game's mailbox.
+     *
+     * @param responder The client which accepted the game.
+     */
+    public void begin(ServerThread responder) {
+        mailbox.execute(() -> {
+            if(isChallenged(responder)) {
+                beginGame();
+            }
+        });
+    }
+
+    /**
+     * Sets this game into motion, if it has not begun or finished yet. This
+     * is only called from the game's mailbox.
+     */
+    private void beginGame() {
+        if(!isInProgress() && !finished && !suspended) {
             currentPlayer = cross;
-            print("Game beginning; " + currentPlayer.getNickname() + " to start.");
+            beginTime = System.nanoTime();
+            if(journal != null) {
+                journal.begin(gameID, getBoardSize(), getWinLength(), noughtNickname, crossNickname);
+                journaled = true;
+            }
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.began");
+            if(event != null) {
+                event.with("size", getBoardSize()).with("win", getWinLength()).publish();
+            }
             cross.sendGameBegin(
                     this,
                     nought,
@@ -125,61 +352,164 @@ public class ServerGame {
     }
 
     /**
-     * Ends the game.
+     * Give a reconnected player back their place in this suspended game.
+     * Once both players have reconnected, they are sent the game and every
+     * move made in it so far, and the game carries on with whoever's turn
+     * it was. This is done through the game's mailbox.
+     *
+     * @param player The reconnected player, which must already have been
+     * given this game with {@link ServerThread#addToGame}.
      */
-    public void end() {
-        currentPlayer = null;
-        server.removeGame(this);
+    public void resume(ServerThread player) {
+        mailbox.execute(() -> {
+            if(finished) {
+                player.removeFromGame(this);
+                return;
+            }
+            if(!suspended) {
+                return;
+            }
+            if(nought == null && player.getNickname().equals(noughtNickname)) {
+                nought = player;
+            } else if(cross == null && player.getNickname().equals(crossNickname)) {
+                cross = player;
+            }
+            if(nought == null || cross == null) {
+                player.sendMessage(
+                        null,
+                        String.format(
+                            "Your game with %s will carry on once they reconnect.",
+                            player == nought ? crossNickname : noughtNickname),
+                        "Game",
+                        JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+
+            suspended = false;
+            // Cross moves first, so it is cross's turn after an even number
+            // of moves.
+            currentPlayer = moveCount % 2 == 0 ? cross : nought;
+            beginTime = System.nanoTime();
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.resumed");
+            if(event != null) {
+                event.with("moves", moveCount).publish();
+            }
+            cross.sendGameBegin(this, nought, Game.TILE_CROSS);
+            nought.sendGameBegin(this, cross, Game.TILE_NOUGHT);
+            for(int x = 0; x < getBoardSize(); x++) {
+                for(int y = 0; y < getBoardSize(); y++) {
+                    int tile = gameBoard.getTile(x, y);
+                    if(tile != Game.TILE_SPACE) {
+                        cross.sendGameMove(this, x, y, tile);
+                        nought.sendGameMove(this, x, y, tile);
+                    }
+                }
+            }
+            sendGameUpdate();
+        });
     }
 
     /**
-     * Determines whether the game board is in a winning state.
-     * Checking this every move is sufficient to determine whether the
-     * previous move is a winner, and hence this can be used to determine
-     * the player of the winning move, simplifying the implementation of this
-     * function.
-     *
-     * @return Whether the game board is in a winning state.
-     */
-    private boolean isGameWon() {
-        // check vert. rows
-        for(int x = 0; x < 3; x++) {
-            if(gameBoard[x][0] != Game.TILE_SPACE &&
-                    gameBoard[x][0] == gameBoard[x][1] && gameBoard[x][1] == gameBoard[x][2]) {
-                return true;
+     * Terminates this game if it is still suspended, as one of its players
+     * has not reconnected in time. This is done through the game's mailbox.
+     */
+    public void expire() {
+        mailbox.execute(() -> {
+            if(suspended && !finished) {
+                terminate(null, "The other player did not reconnect in time.");
             }
-        }
-        // check hoz. rows
-        for(int y = 0; y < 3; y++) {
-            if(gameBoard[0][y] != Game.TILE_SPACE &&
-                    gameBoard[0][y] == gameBoard[1][y] && gameBoard[1][y] == gameBoard[2][y]) {
-                return true;
+        });
+    }
+
+    /**
+     * Declines this game, which has been requested but not begun, and
+     * removes it from the server. Only the client which was asked to play
+     * may decline it; a request from any other client is refused as if the
+     * game did not exist. This is done through the game's mailbox, so that
+     * it cannot race with the game being accepted.
+     *
+     * @param responder The client which declined the game.
+     */
+    public void decline(ServerThread responder) {
+        mailbox.execute(() -> {
+            if(isChallenged(responder) && !isInProgress() && !finished) {
+                finished = true;
+                server.removeGame(this);
             }
-        }
-        // check diagonals
-        if(gameBoard[0][0] != Game.TILE_SPACE &&
-           gameBoard[0][0] == gameBoard[1][1] && gameBoard[1][1] == gameBoard[2][2] ||
-           gameBoard[0][2] != Game.TILE_SPACE &&
-           gameBoard[0][2] == gameBoard[1][1] && gameBoard[1][1] == gameBoard[2][0]) {
+        });
+    }
+
+    /**
+     * Determines whether a client is the one which was asked to play this
+     * game, and so may accept or decline it, telling it otherwise. The
+     * client which asked plays as nought, and the one asked plays as cross.
+     * This is only called from the game's mailbox.
+     *
+     * @param responder The client which responded to the request.
+     * @return {@code true} if the client may respond to the request.
+     */
+    private boolean isChallenged(ServerThread responder) {
+        if(responder == cross && !suspended) {
             return true;
         }
+        responder.sendMessage(null, "That game does not exist.", "Game", JOptionPane.ERROR_MESSAGE);
         return false;
     }
 
     /**
-     * Check if every space on the game board is occupied by either a nought
-     * or a cross.
+     * Ends the game. This is only called from the game's mailbox.
+     */
+    private void end(int result) {
+        currentPlayer = null;
+        finished = true;
+        journalEnd();
+        archive(result);
+        recordFinished();
+        server.removeGame(this);
+        this.result = result;
+    }
+
+    /**
+     * Record this game as ending in the journal, if it was recorded as
+     * beginning.
+     */
+    private void journalEnd() {
+        if(journaled) {
+            journal.end(gameID);
+            journaled = false;
+        }
+    }
+
+    /**
+     * Add this game to the archive, if the server keeps one.
      *
-     * @return Whether the board is full of symbols or not.
+     * @param result The result of the game, as a RESULT_* constant in
+     * {@link GameArchive}.
      */
-    private boolean isBoardFull() {
-        for(int i = 0; i < 3; i++) {
-            for(int j = 0; j < 3; j++) {
-                if (gameBoard[i][j] == Game.TILE_SPACE) return false;
-            }
+    private void archive(int result) {
+        if(archive != null) {
+            archive.add(new GameArchive.ArchivedGame(
+                        gameID,
+                        System.currentTimeMillis(),
+                        noughtNickname,
+                        crossNickname,
+                        getBoardSize(),
+                        getWinLength(),
+                        result,
+                        Arrays.copyOf(moves, moveCount)));
         }
+    }
 
-        return true;
+    /**
+     * Record the duration of this game, and the number of moves made in it,
+     * in the server's metrics. This only records a game which has begun,
+     * and only records it once.
+     */
+    private void recordFinished() {
+        if(beginTime != -1) {
+            server.getMetrics().recordGame(System.nanoTime() - beginTime, moveCount);
+            beginTime = -1;
+        }
     }
 
     /**
@@ -193,6 +523,8 @@ public class ServerGame {
 
     /**
      * Terminates the current game, with the given user-at-fault and reason.
+     * This is done through the game's mailbox, and does nothing if the game
+     * has already finished by then.
      *
      * @param leaver The user who left in order to cause this game to be
      * terminated.
@@ -200,10 +532,31 @@ public class ServerGame {
      * presented to the other participant of this game.
      */
     public void terminateGame(ServerThread leaver, String reason) {
+        mailbox.execute(() -> {
+            if(!finished) {
+                terminate(leaver, reason);
+            }
+        });
+    }
+
+    /**
+     * Terminates the current game. This is only called from the game's
+     * mailbox.
+     *
+     * @param leaver The user who left in order to cause this game to be
+     * terminated, or {@code null} to tell both players.
+     * @param reason The reason for this game being terminated.
+     */
+    private void terminate(ServerThread leaver, String reason) {
         ServerThread[] players = { nought, cross };
         for(ServerThread player : players) {
-            if(player != leaver) {
-                print("Terminating game: " + reason);
+            // A suspended game may be terminated before both players are
+            // back.
+            if(player != null && player != leaver) {
+                ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.terminated");
+                if(event != null) {
+                    event.with("reason", reason).publish();
+                }
                 player.sendMessage(
                         this,
                         "This game has terminated early because:\n" + reason,
@@ -217,19 +570,75 @@ public class ServerGame {
                         );
             }
         }
+        // A player who leaves a game in play forfeits it. A game which was
+        // never accepted, or is waiting for a player to come back, is not
+        // rated.
+        if((leaver == cross || leaver == nought) && currentPlayer != null && !suspended) {
+            rate(leaver == cross ? EloRating.LOSS : EloRating.WIN);
+        }
+        // Only a game which began is archived, whether before or after a
+        // restart.
+        if(beginTime != -1 || suspended) {
+            archive(GameArchive.RESULT_TERMINATED);
+        }
+        currentPlayer = null;
+        finished = true;
+        journalEnd();
+        recordFinished();
         server.removeGame(this);
+        result = GameArchive.RESULT_TERMINATED;
+    }
+
+    /**
+     * Update the ratings of both players after the game has ended, and tell
+     * each of them their new rating.
+     *
+     * @param crossScore What cross scored, as {@link EloRating#WIN},
+     * {@link EloRating#DRAW} or {@link EloRating#LOSS}.
+     */
+    private void rate(double crossScore) {
+        // A player cannot gain or lose rating against themselves.
+        if(cross == nought) {
+            return;
+        }
+        int change = server.getRatings().recordResult(cross, nought, crossScore);
+        sendRating(cross, change);
+        sendRating(nought, -change);
+    }
+
+    /**
+     * Tell a player their rating after the game.
+     *
+     * @param player The player.
+     * @param change The change in their rating.
+     */
+    private void sendRating(ServerThread player, int change) {
+        player.sendMessage(
+                null,
+                String.format("Your rating is now %d (%+d).", player.getScore(), change),
+                "Rating",
+                -1
+                );
     }
 
     /**
      * Check for any scenarios where the game needs to end.
+     * Checking this every move is sufficient to determine whether the
+     * previous move is a winner, so only the lines through the previous
+     * move need to be checked.
      *
      * @param player The player who just made the previous move.
+     * @param x The X co-ordinate of the previous move.
+     * @param y The Y co-ordinate of the previous move.
      */
-    private boolean checkGameEndingCases(ServerThread player) {
-        if(isGameWon()) {
+    private boolean checkGameEndingCases(ServerThread player, int x, int y) {
+        if(gameBoard.isWinningMove(x, y)) {
             // If the game has won, terminate the game, remove it from
             // the server's memory, and inform the clients.
-            print("Game over: won by " + currentPlayer.getNickname());
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.won");
+            if(event != null) {
+                event.with("winner", currentPlayer.getNickname()).with("moves", moveCount).publish();
+            }
             cross.sendGameUpdate(
                     this,
                     false,
@@ -241,19 +650,15 @@ public class ServerGame {
                     currentPlayer == nought ? Game.GAME_WON : Game.GAME_LOST
                     );
 
-            int newScore = currentPlayer.getScore() + 1;
-            currentPlayer.setScore(newScore);
-            currentPlayer.sendMessage(
-                    null,
-                    String.format("Your score is now %d.", newScore),
-                    "Score",
-                    -1
-                    );
+            rate(currentPlayer == cross ? EloRating.WIN : EloRating.LOSS);
             return true;
-        } else if(isBoardFull()) {
+        } else if(gameBoard.isFull()) {
             // If no-one has won yet, but the board is full, then the game
             // is a draw.
-            print("Game over: tie.");
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.drawn");
+            if(event != null) {
+                event.with("moves", moveCount).publish();
+            }
             cross.sendGameUpdate(
                     this,
                     false,
@@ -264,6 +669,7 @@ public class ServerGame {
                     false,
                     Game.GAME_DRAW
                     );
+            rate(EloRating.DRAW);
             return true;
         } else {
             return false;
@@ -272,12 +678,25 @@ public class ServerGame {
 
     /**
      * Make a move on the game state on behalf of the given player's client.
+     * This is done through the game's mailbox.
      *
      * @param player The player who made the move.
-     * @param x The X co-ordinate on the board (between 0 and 2).
-     * @param y The Y co-ordinate on the board (between 0 and 2).
+     * @param x The X co-ordinate on the board (between 0 and the board size - 1).
+     * @param y The Y co-ordinate on the board (between 0 and the board size - 1).
      */
     public void makeMove(ServerThread player, int x, int y) {
+        mailbox.execute(() -> move(player, x, y));
+    }
+
+    /**
+     * Make a move on behalf of the given player's client. This is only
+     * called from the game's mailbox.
+     *
+     * @param player The player who made the move.
+     * @param x The X co-ordinate on the board.
+     * @param y The Y co-ordinate on the board.
+     */
+    private void move(ServerThread player, int x, int y) {
         if(player != currentPlayer) {
             player.sendMessage(
                     this,
@@ -285,19 +704,28 @@ public class ServerGame {
                     "Game",
                     JOptionPane.ERROR_MESSAGE);
         } else {
-            if(gameBoard[x][y] == Game.TILE_SPACE) {
-                int tileValue = gameBoard[x][y] = player == nought ?
+            if(gameBoard.isOnBoard(x, y) &&
+               gameBoard.getTile(x, y) == Game.TILE_SPACE) {
+                int tileValue = player == nought ?
                                       Game.TILE_NOUGHT :
                                       Game.TILE_CROSS;
+                gameBoard.setTile(x, y, tileValue);
+                moves[moveCount++] = (short)(y * getBoardSize() + x);
+                if(journaled) {
+                    journal.move(gameID, x, y);
+                }
                 nought.sendGameMove(this, x, y, tileValue);
                 cross.sendGameMove(this, x, y, tileValue);
 
-                if(checkGameEndingCases(player)) {
+                if(checkGameEndingCases(player, x, y)) {
                     // check if game-ending scenario occurred
                     // if so, end the game and remove it from
                     // the server's memory
-                    end();
-                    server.removeGame(this);
+                    end(!gameBoard.isWinningMove(x, y) ?
+                        GameArchive.RESULT_DRAWN :
+                        player == cross ?
+                        GameArchive.RESULT_CROSS_WON :
+                        GameArchive.RESULT_NOUGHT_WON);
                 } else {
                     // Otherwise, switch the player and update the clients.
                     switchCurrentPlayer();
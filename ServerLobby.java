@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One lobby hosted by the server, with its own members, {@link Roster} and
+ * broadcast domain. Players are only told about the players in the same
+ * lobby as them, so a player joining, leaving or changing score in one
+ * lobby costs nothing to the players of any other lobby.
+ * <p>
+ * Every change to the members of a lobby, and every broadcast to them, runs
+ * on the lobby's shard: one of a fixed pool of single-threaded executors
+ * which the server's lobbies are spread over. The changes to one lobby are
+ * then made one at a time, in the order they were requested, without
+ * holding up the thread which requested them, while lobbies on different
+ * shards are updated in parallel.
+ *
+ * @author Tom Galvin
+ */
+public class ServerLobby {
+    private Server server;
+    private int lobbyID;
+    private String name;
+
+    /**
+     * The executor on which every change to this lobby runs, or {@code null}
+     * to run each change on the thread which requested it.
+     */
+    private Executor shard;
+    private Registry<String, ServerThread> members;
+
+    /**
+     * The members which do not use {@link Packet#EXTENSION_ROSTER}, and so
+     * are sent a SERVER_PLAYER_UPDATE or SERVER_PLAYER_LEAVE for every change
+     * to the lobby.
+     */
+    private Registry<String, ServerThread> legacyMembers;
+    private Roster roster;
+
+    /**
+     * The members whose ratings have changed since the last broadcast of
+     * ratings.
+     */
+    private Set<ServerThread> changedRatings;
+
+    /**
+     * Whether this lobby has been removed from the server, as its last
+     * member left. This is only accessed on the lobby's shard.
+     */
+    private boolean closed;
+
+    /**
+     * Create a new, empty ServerLobby.
+     *
+     * @param server The server hosting the lobby.
+     * @param lobbyID The ID of the lobby.
+     * @param name The name of the lobby, by which clients join it.
+     * @param shard The executor on which every change to the lobby runs, or
+     * {@code null} to run each change on the thread which requested it.
+     */
+    public ServerLobby(Server server, int lobbyID, String name, Executor shard) {
+        this.server = server;
+        this.lobbyID = lobbyID;
+        this.name = name;
+        this.shard = shard;
+        this.members = new Registry<String, ServerThread>();
+        this.changedRatings = ConcurrentHashMap.newKeySet();
+        this.legacyMembers = new Registry<String, ServerThread>();
+        this.roster = new Roster();
+        this.closed = false;
+    }
+
+    /**
+     * Get the ID of this lobby.
+     *
+     * @return The ID of this lobby.
+     */
+    public int getLobbyID() {
+        return lobbyID;
+    }
+
+    /**
+     * Get the name of this lobby.
+     *
+     * @return The name of this lobby.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the versioned roster of the players in this lobby, which clients
+     * using {@link Packet#EXTENSION_ROSTER} keep in sync with.
+     *
+     * @return The roster of this lobby.
+     */
+    public Roster getRoster() {
+        return roster;
+    }
+
+    /**
+     * Get the number of players in this lobby.
+     *
+     * @return The number of players.
+     */
+    public int getPlayerCount() {
+        return members.size();
+    }
+
+    /**
+     * Get an immutable snapshot of the players in this lobby.
+     *
+     * @return The server threads of the players in this lobby.
+     */
+    public List<ServerThread> getMembers() {
+        return members.snapshot();
+    }
+
+    /**
+     * Run a change to this lobby on its shard. Any exception thrown by the
+     * change is logged, rather than stopping the shard.
+     *
+     * @param task The change to run.
+     */
+    private void execute(Runnable task) {
+        Runnable logged = () -> {
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                server.getLog().error("lobby.task_failed", e);
+            }
+        };
+        if(shard == null) {
+            logged.run();
+            return;
+        }
+        try {
+            shard.execute(logged);
+        } catch(RejectedExecutionException e) {
+            // The server is stopping, so the change no longer matters.
+        }
+    }
+
+    /**
+     * Add a client to this lobby, and tell the other players about it. The
+     * client must already have been given this lobby with
+     * {@link ServerThread#setLobby}; if it has moved on to another lobby by
+     * the time the change runs, it is not added.
+     *
+     * @param thread The client joining the lobby.
+     */
+    public void join(ServerThread thread) {
+        execute(() -> {
+            if(thread.getLobby() != this) {
+                return;
+            }
+            if(closed) {
+                // The lobby was removed after the client was given it, so
+                // join a new lobby of the same name instead.
+                server.joinLobby(thread, name);
+                return;
+            }
+            members.putIfAbsent(thread.getNickname(), thread);
+            roster.update(thread.getNickname(), thread.getScore());
+            for(ServerThread t : legacyMembers.snapshot()) {
+                if(thread != t) {
+                    t.sendPlayerUpdate(thread);
+                }
+            }
+            if(!thread.hasExtension(Packet.EXTENSION_ROSTER)) {
+                legacyMembers.putIfAbsent(thread.getNickname(), thread);
+            }
+
+            ServerLog.Event event = server.getLog().begin(ServerLog.LEVEL_DEBUG, "lobby.joined");
+            if(event != null) {
+                event.with("nickname", thread.getNickname())
+                    .with("lobby", lobbyID)
+                    .publish();
+            }
+            thread.sendLobbyJoined(this);
+        });
+    }
+
+    /**
+     * Remove a client from this lobby, and tell the other players about it.
+     * If no players are left, the lobby is removed from the server, unless
+     * it is the default lobby.
+     *
+     * @param thread The client leaving the lobby.
+     * @param then Run on the lobby's shard once the client has left, or
+     * {@code null} for nothing.
+     */
+    public void leave(ServerThread thread, Runnable then) {
+        execute(() -> {
+            roster.unsubscribe(thread);
+            if(members.get(thread.getNickname()) == thread) {
+                roster.remove(thread.getNickname());
+                members.remove(thread.getNickname(), thread);
+                legacyMembers.remove(thread.getNickname(), thread);
+                for(ServerThread t : legacyMembers.snapshot()) {
+                    t.sendPlayerLeave(thread);
+                }
+            }
+            if(!closed && members.size() == 0 && this != server.getDefaultLobby()) {
+                closed = true;
+                server.removeLobby(this);
+            }
+            if(then != null) {
+                then.run();
+            }
+        });
+    }
+
+    /**
+     * Tell the other players in this lobby about the current state of one of
+     * its players. If the client is no longer in this lobby by the time the
+     * change runs, nothing is sent.
+     *
+     * @param thread The client to tell the other players about.
+     */
+    public void playerUpdate(ServerThread thread) {
+        execute(() -> {
+            if(members.get(thread.getNickname()) != thread) {
+                return;
+            }
+            roster.update(thread.getNickname(), thread.getScore());
+            for(ServerThread t : legacyMembers.snapshot()) {
+                if(thread != t) {
+                    t.sendPlayerUpdate(thread);
+                }
+            }
+        });
+    }
+
+    /**
+     * Note that the rating of one of this lobby's players has changed, to be
+     * sent with the next broadcast of ratings.
+     *
+     * @param thread The client whose rating has changed.
+     */
+    public void ratingChanged(ServerThread thread) {
+        changedRatings.add(thread);
+    }
+
+    /**
+     * Tell the players in this lobby about every rating which has changed
+     * since the last broadcast, in one change to the lobby. The roster is
+     * updated once for each changed player, however many times their rating
+     * changed, so roster subscribers are sent them all in a single delta.
+     * Players who have left the lobby since their rating changed are
+     * skipped.
+     */
+    public void broadcastRatings() {
+        if(changedRatings.isEmpty()) {
+            return;
+        }
+        execute(() -> {
+            List<ServerThread> changed = new ArrayList<ServerThread>(changedRatings.size());
+            for(Iterator<ServerThread> it = changedRatings.iterator(); it.hasNext();) {
+                ServerThread thread = it.next();
+                it.remove();
+                if(members.get(thread.getNickname()) == thread) {
+                    roster.update(thread.getNickname(), thread.getScore());
+                    changed.add(thread);
+                }
+            }
+            for(ServerThread t : legacyMembers.snapshot()) {
+                for(ServerThread thread : changed) {
+                    if(thread != t) {
+                        t.sendPlayerUpdate(thread);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The asynchronous event log of the server. Rather than formatting and
+ * printing each message on the thread which logs it, an event is made up of
+ * a name and a few key/value fields, which are copied into a pre-allocated
+ * {@link Event} in a ring buffer. One background thread then formats each
+ * event as a line of {@code key=value} pairs, and writes it out.
+ * <p>
+ * An event is logged like so:
+ * <pre>
+ * ServerLog.Event event = log.begin(ServerLog.LEVEL_DEBUG, "game.move");
+ * if(event != null) {
+ *     event.with("game", gameID).with("x", x).with("y", y).publish();
+ * }
+ * </pre>
+ * {@link #begin} returns {@code null} if the level of the event is filtered
+ * out, so a disabled event costs one comparison. Any number of threads may
+ * log at once, without locking. If the ring buffer is full, the event is
+ * either dropped or the logging thread waits for room, depending on the
+ * policy the log was created with. Every event which is begun must be
+ * published, as the background thread writes events in order and waits for
+ * each one to be published.
+ *
+ * @author Tom Galvin
+ */
+public class ServerLog {
+    /**
+     * The level of detailed events, such as every move made in a game.
+     */
+    public static final int LEVEL_DEBUG = 0;
+    /**
+     * The level of normal events, such as clients connecting and games
+     * beginning.
+     */
+    public static final int LEVEL_INFO  = 1;
+    /**
+     * The level of unusual events, which do not stop the server working.
+     */
+    public static final int LEVEL_WARN  = 2;
+    /**
+     * The level of errors.
+     */
+    public static final int LEVEL_ERROR = 3;
+    /**
+     * A level above every other, which filters out every event.
+     */
+    public static final int LEVEL_OFF   = 4;
+
+    /**
+     * Drop events logged while the ring buffer is full, counting how many
+     * were dropped.
+     */
+    public static final int WHEN_FULL_DROP  = 0;
+    /**
+     * Make threads logging while the ring buffer is full wait for the
+     * background thread to make room.
+     */
+    public static final int WHEN_FULL_BLOCK = 1;
+
+    /**
+     * The most key/value fields an event can hold. Any more are ignored.
+     */
+    public static final int MAX_FIELDS = 8;
+
+    private static final String[] LEVEL_NAMES = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+    /**
+     * How long the background thread sleeps for when there are no events to
+     * write.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * One event in the ring buffer. An event is reused once it has been
+     * written, so must not be used after it is published.
+     */
+    public static class Event {
+        private volatile long published;
+        private long sequence;
+        private long time;
+        private int level;
+        private String name;
+        private int fieldCount;
+        private String[] keys;
+        private String[] texts;
+        private long[] numbers;
+        private Throwable exception;
+
+        /**
+         * Create a new, empty Event.
+         */
+        private Event() {
+            this.published = -1;
+            this.keys = new String[MAX_FIELDS];
+            this.texts = new String[MAX_FIELDS];
+            this.numbers = new long[MAX_FIELDS];
+        }
+
+        /**
+         * Add a text field to this event.
+         *
+         * @param key The name of the field.
+         * @param value The value of the field.
+         * @return This event.
+         */
+        public Event with(String key, String value) {
+            if(fieldCount < MAX_FIELDS) {
+                keys[fieldCount] = key;
+                texts[fieldCount] = value == null ? "null" : value;
+                fieldCount++;
+            }
+            return this;
+        }
+
+        /**
+         * Add a numeric field to this event.
+         *
+         * @param key The name of the field.
+         * @param value The value of the field.
+         * @return This event.
+         */
+        public Event with(String key, long value) {
+            if(fieldCount < MAX_FIELDS) {
+                keys[fieldCount] = key;
+                texts[fieldCount] = null;
+                numbers[fieldCount] = value;
+                fieldCount++;
+            }
+            return this;
+        }
+
+        /**
+         * Attach an exception to this event. Its stack trace is written after
+         * the event.
+         *
+         * @param exception The exception.
+         * @return This event.
+         */
+        public Event with(Throwable exception) {
+            this.exception = exception;
+            return with("exception", exception.toString());
+        }
+
+        /**
+         * Hand this event to the background thread to be written. The event
+         * must not be used afterwards.
+         */
+        public void publish() {
+            published = sequence;
+        }
+    }
+
+    private PrintStream out;
+    private volatile int level;
+    private int whenFull;
+    private Event[] ring;
+    private int mask;
+
+    /**
+     * The sequence number of the next event to be begun.
+     */
+    private AtomicLong claimed;
+
+    /**
+     * The sequence number of the next event to be written. Every event
+     * before it has been written, so its place in the ring buffer is free.
+     */
+    private volatile long written;
+    private LongAdder dropped;
+    private volatile boolean running;
+    private Thread writerThread;
+
+    /**
+     * Create a new ServerLog, and start its background thread.
+     *
+     * @param out The stream to write events to.
+     * @param level The lowest level of event to write, as a LEVEL_*
+     * constant.
+     * @param capacity The number of events the ring buffer holds. This is
+     * rounded up to a power of two.
+     * @param whenFull What to do when the ring buffer is full, as a
+     * WHEN_FULL_* constant.
+     */
+    public ServerLog(PrintStream out, int level, int capacity, int whenFull) {
+        this.out = out;
+        this.level = level;
+        this.whenFull = whenFull;
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.ring = new Event[size];
+        for(int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.claimed = new AtomicLong(0);
+        this.written = 0;
+        this.dropped = new LongAdder();
+
+        this.running = true;
+        this.writerThread = new Thread(() -> runWriter(), "log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Parse the name of a level, such as {@code debug}.
+     *
+     * @param name The name of the level, in any case, or {@code off}.
+     * @return The level, as a LEVEL_* constant.
+     * @throws IllegalArgumentException If there is no such level.
+     */
+    public static int parseLevel(String name) {
+        for(int i = 0; i < LEVEL_NAMES.length; i++) {
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        if(name.equalsIgnoreCase("off")) {
+            return LEVEL_OFF;
+        }
+        throw new IllegalArgumentException(String.format(
+                    "Unknown log level: %s",
+                    name
+                    ));
+    }
+
+    /**
+     * Determines whether events of the given level are written.
+     *
+     * @param level The level, as a LEVEL_* constant.
+     * @return {@code true} if events of the level are written.
+     */
+    public boolean isEnabled(int level) {
+        return level >= this.level;
+    }
+
+    /**
+     * Set the lowest level of event to write.
+     *
+     * @param level The level, as a LEVEL_* constant.
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Get the number of events dropped because the ring buffer was full.
+     *
+     * @return The number of events dropped.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Begin logging an event. The event's fields are then added with
+     * {@link Event#with}, and it is logged with {@link Event#publish()}.
+     *
+     * @param level The level of the event, as a LEVEL_* constant.
+     * @param name The name of the event, such as {@code game.move}.
+     * @return The event to fill in and publish, or {@code null} if events of
+     * the given level are not written, or the event was dropped.
+     */
+    public Event begin(int level, String name) {
+        if(level < this.level) {
+            return null;
+        }
+        long sequence;
+        while(true) {
+            sequence = claimed.get();
+            if(sequence - written >= ring.length) {
+                if(whenFull == WHEN_FULL_DROP || !running) {
+                    dropped.increment();
+                    return null;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            } else if(claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Event event = ring[(int)sequence & mask];
+        event.sequence = sequence;
+        event.time = System.currentTimeMillis();
+        event.level = level;
+        event.name = name;
+        event.fieldCount = 0;
+        event.exception = null;
+        return event;
+    }
+
+    /**
+     * Log an event with a single text field. This is a shorthand for
+     * messages which are not logged often enough to be worth filling in
+     * with {@link #begin}.
+     *
+     * @param level The level of the event, as a LEVEL_* constant.
+     * @param name The name of the event.
+     * @param key The name of the field.
+     * @param value The value of the field.
+     */
+    public void log(int level, String name, String key, String value) {
+        Event event = begin(level, name);
+        if(event != null) {
+            event.with(key, value).publish();
+        }
+    }
+
+    /**
+     * Log an error event with an exception, whose stack trace is written
+     * after the event.
+     *
+     * @param name The name of the event.
+     * @param exception The exception.
+     */
+    public void error(String name, Throwable exception) {
+        Event event = begin(LEVEL_ERROR, name);
+        if(event != null) {
+            event.with(exception).publish();
+        }
+    }
+
+    /**
+     * Stop the background thread, once it has written every event already
+     * published. Events begun afterwards are dropped if they do not fit.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The body of the background thread, which writes out the events in the
+     * ring buffer in order as they are published.
+     */
+    private void runWriter() {
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                64 * 1024);
+        StringBuilder line = new StringBuilder(256);
+        long reportedDropped = 0;
+        long next = 0;
+        try {
+            while(true) {
+                Event event = ring[(int)next & mask];
+                if(event.published != next) {
+                    // Nothing more to write for now, so make sure everything
+                    // written so far is seen, and report any dropped events.
+                    long droppedNow = dropped.sum();
+                    if(droppedNow != reportedDropped) {
+                        line.setLength(0);
+                        DateTimeFormatter.ISO_INSTANT.formatTo(
+                                Instant.ofEpochMilli(System.currentTimeMillis()),
+                                line);
+                        line.append(" WARN log.dropped count=")
+                            .append(droppedNow - reportedDropped).append('\n');
+                        writer.append(line);
+                        reportedDropped = droppedNow;
+                    }
+                    writer.flush();
+                    if(!running && claimed.get() == next) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+
+                line.setLength(0);
+                format(event, line);
+                writer.append(line);
+                Throwable exception = event.exception;
+                // Release the event's references before its place is reused.
+                for(int i = 0; i < event.fieldCount; i++) {
+                    event.texts[i] = null;
+                }
+                event.exception = null;
+                written = ++next;
+
+                if(exception != null) {
+                    writer.flush();
+                    exception.printStackTrace(out);
+                }
+            }
+        } catch(IOException e) {
+            out.println("Could not write the server log:");
+            e.printStackTrace(out);
+        }
+    }
+
+    /**
+     * Format one event as a line of {@code key=value} pairs.
+     *
+     * @param event The event to format.
+     * @param line The builder to format the event into.
+     */
+    private static void format(Event event, StringBuilder line) {
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(event.time), line);
+        line.append(' ').append(LEVEL_NAMES[event.level]);
+        line.append(' ').append(event.name);
+        for(int i = 0; i < event.fieldCount; i++) {
+            line.append(' ').append(event.keys[i]).append('=');
+            String text = event.texts[i];
+            if(text == null) {
+                line.append(event.numbers[i]);
+            } else {
+                appendValue(line, text);
+            }
+        }
+        line.append('\n');
+    }
+
+    /**
+     * Append a text value, in quotes if it contains any spaces, quotes,
+     * equals signs or line breaks.
+     *
+     * @param line The builder to append to.
+     * @param text The text value.
+     */
+    private static void appendValue(StringBuilder line, String text) {
+        boolean quote = text.isEmpty();
+        for(int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c == '\n' || c == '\\';
+        }
+        if(!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if(c == '\n') {
+                line.append("\\n");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,359 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records what the server is doing, for monitoring in production. Every
+ * record method can be called from any thread without locking, as the
+ * counters are atomic and the distributions are {@link LatencyHistogram}s.
+ * The server keeps one instance, which can be read over HTTP through a
+ * {@link MetricsEndpoint}.
+ * <p>
+ * The following are recorded:
+ * <ul>
+ *   <li>the number and total size of packets received and sent, for each
+ *   packet ID;</li>
+ *   <li>the time taken to handle each received packet, for each packet
+ *   ID;</li>
+ *   <li>the number of packets waiting in a client's send queue whenever
+ *   its send loop wakes up, and how long each packet waited;</li>
+ *   <li>the duration of each finished game, and the number of moves made
+ *   in it;</li>
+ *   <li>how long each player paired by the {@link Matchmaker} waited, and
+ *   how long each of its ticks took;</li>
+ *   <li>how many lobby updates are replaced by a later update about the
+ *   same player before being sent;</li>
+ *   <li>how often clients which read too slowly become slow consumers, and
+ *   how many of their packets are dropped, or how many of them are
+ *   disconnected.</li>
+ * </ul>
+ *
+ * @author Tom Galvin
+ */
+public class ServerMetrics {
+    /**
+     * Packet IDs from 0 up to (but not including) this are counted
+     * separately. Any other packet ID is counted under this limit instead.
+     */
+    public static final int PACKET_ID_LIMIT = 1024;
+
+    private AtomicLongArray packetsIn;
+    private AtomicLongArray bytesIn;
+    private AtomicLongArray packetsOut;
+    private AtomicLongArray bytesOut;
+
+    /**
+     * The time taken to handle received packets, for each packet ID. As a
+     * histogram is several kilobytes, these are only created once a packet
+     * with their ID has been received.
+     */
+    private AtomicReferenceArray<LatencyHistogram> handleTimes;
+    private LatencyHistogram sendQueueDepths;
+    private LatencyHistogram sendQueueWaits;
+    private LatencyHistogram gameDurations;
+    private LatencyHistogram gameMoves;
+    private LatencyHistogram matchWaits;
+    private LatencyHistogram matchTicks;
+    private LongAdder slowConsumers;
+    private LongAdder packetsCoalesced;
+    private LongAdder packetsDropped;
+    private LongAdder slowConsumerDisconnects;
+
+    /**
+     * Create a new, zeroed set of server metrics.
+     */
+    public ServerMetrics() {
+        this.packetsIn = new AtomicLongArray(PACKET_ID_LIMIT + 1);
+        this.bytesIn = new AtomicLongArray(PACKET_ID_LIMIT + 1);
+        this.packetsOut = new AtomicLongArray(PACKET_ID_LIMIT + 1);
+        this.bytesOut = new AtomicLongArray(PACKET_ID_LIMIT + 1);
+        this.handleTimes = new AtomicReferenceArray<LatencyHistogram>(PACKET_ID_LIMIT + 1);
+        this.sendQueueDepths = new LatencyHistogram();
+        this.sendQueueWaits = new LatencyHistogram();
+        this.gameDurations = new LatencyHistogram();
+        this.gameMoves = new LatencyHistogram();
+        this.matchWaits = new LatencyHistogram();
+        this.matchTicks = new LatencyHistogram();
+        this.slowConsumers = new LongAdder();
+        this.packetsCoalesced = new LongAdder();
+        this.packetsDropped = new LongAdder();
+        this.slowConsumerDisconnects = new LongAdder();
+    }
+
+    /**
+     * Get the index at which the metrics of the given packet ID are kept.
+     *
+     * @param packetID The packet ID.
+     * @return The packet ID, or {@link #PACKET_ID_LIMIT} if it is out of
+     * range.
+     */
+    private static int indexOf(int packetID) {
+        return packetID >= 0 && packetID < PACKET_ID_LIMIT ? packetID : PACKET_ID_LIMIT;
+    }
+
+    /**
+     * Record that a packet was received from a client and handled.
+     *
+     * @param packetID The ID of the packet.
+     * @param bytes The length of the packet on the wire.
+     * @param handleNanos The time from the packet being decoded to it having
+     * been handled, in nanoseconds.
+     */
+    public void recordPacketIn(int packetID, int bytes, long handleNanos) {
+        int index = indexOf(packetID);
+        packetsIn.incrementAndGet(index);
+        bytesIn.addAndGet(index, bytes);
+
+        LatencyHistogram handleTime = handleTimes.get(index);
+        if(handleTime == null) {
+            // If two threads get here at once, only one histogram is kept.
+            handleTimes.compareAndSet(index, null, new LatencyHistogram());
+            handleTime = handleTimes.get(index);
+        }
+        handleTime.record(handleNanos);
+    }
+
+    /**
+     * Record that a packet was encoded to send to a client.
+     *
+     * @param packetID The ID of the packet.
+     * @param bytes The length of the packet on the wire.
+     */
+    public void recordPacketOut(int packetID, int bytes) {
+        int index = indexOf(packetID);
+        packetsOut.incrementAndGet(index);
+        bytesOut.addAndGet(index, bytes);
+    }
+
+    /**
+     * Record the number of packets waiting in a client's send queue, when
+     * its send loop wakes up to send them.
+     *
+     * @param depth The number of packets waiting.
+     */
+    public void recordSendQueueDepth(int depth) {
+        sendQueueDepths.record(depth);
+    }
+
+    /**
+     * Record how long a packet waited in a client's send queue before it
+     * was encoded.
+     *
+     * @param waitNanos The time from the packet being queued to it being
+     * encoded, in nanoseconds.
+     */
+    public void recordSendQueueWait(long waitNanos) {
+        sendQueueWaits.record(waitNanos);
+    }
+
+    /**
+     * Record that a game has finished, whether it was won, drawn or
+     * terminated early.
+     *
+     * @param durationNanos The time from the game beginning to it finishing,
+     * in nanoseconds.
+     * @param moves The number of moves made in the game.
+     */
+    public void recordGame(long durationNanos, int moves) {
+        gameDurations.record(durationNanos);
+        gameMoves.record(moves);
+    }
+
+    /**
+     * Record that a player queued for a match has been paired.
+     *
+     * @param waitNanos The time from the player queuing to them being
+     * paired, in nanoseconds.
+     */
+    public void recordMatchWait(long waitNanos) {
+        matchWaits.record(waitNanos);
+    }
+
+    /**
+     * Record one tick of the matchmaker.
+     *
+     * @param durationNanos The time taken to pair the queued players, in
+     * nanoseconds.
+     */
+    public void recordMatchTick(long durationNanos) {
+        matchTicks.record(durationNanos);
+    }
+
+    /**
+     * Record that a client's send queue reached its high watermark.
+     */
+    public void recordSlowConsumer() {
+        slowConsumers.increment();
+    }
+
+    /**
+     * Record that a lobby update replaced an earlier update about the same
+     * player, which was still waiting to be sent.
+     */
+    public void recordPacketCoalesced() {
+        packetsCoalesced.increment();
+    }
+
+    /**
+     * Record that a packet for a slow consumer was dropped.
+     */
+    public void recordPacketDropped() {
+        packetsDropped.increment();
+    }
+
+    /**
+     * Record that a slow consumer was disconnected.
+     */
+    public void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /**
+     * Get the number of times a client's send queue reached its high
+     * watermark.
+     *
+     * @return The number of times a client became a slow consumer.
+     */
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    /**
+     * Get the number of lobby updates which were replaced by a later update
+     * about the same player before being sent.
+     *
+     * @return The number of lobby updates coalesced.
+     */
+    public long getPacketsCoalesced() {
+        return packetsCoalesced.sum();
+    }
+
+    /**
+     * Get the number of packets for slow consumers which were dropped.
+     *
+     * @return The number of packets dropped.
+     */
+    public long getPacketsDropped() {
+        return packetsDropped.sum();
+    }
+
+    /**
+     * Get the number of slow consumers which were disconnected.
+     *
+     * @return The number of slow consumers disconnected.
+     */
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    /**
+     * Get the number of packets received with the given ID.
+     *
+     * @param packetID The packet ID, or {@link #PACKET_ID_LIMIT} for every
+     * packet ID out of range.
+     * @return The number of packets received.
+     */
+    public long getPacketsIn(int packetID) {
+        return packetsIn.get(indexOf(packetID));
+    }
+
+    /**
+     * Get the total length of the packets received with the given ID.
+     *
+     * @param packetID The packet ID, or {@link #PACKET_ID_LIMIT} for every
+     * packet ID out of range.
+     * @return The number of bytes received.
+     */
+    public long getBytesIn(int packetID) {
+        return bytesIn.get(indexOf(packetID));
+    }
+
+    /**
+     * Get the number of packets sent with the given ID.
+     *
+     * @param packetID The packet ID, or {@link #PACKET_ID_LIMIT} for every
+     * packet ID out of range.
+     * @return The number of packets sent.
+     */
+    public long getPacketsOut(int packetID) {
+        return packetsOut.get(indexOf(packetID));
+    }
+
+    /**
+     * Get the total length of the packets sent with the given ID.
+     *
+     * @param packetID The packet ID, or {@link #PACKET_ID_LIMIT} for every
+     * packet ID out of range.
+     * @return The number of bytes sent.
+     */
+    public long getBytesOut(int packetID) {
+        return bytesOut.get(indexOf(packetID));
+    }
+
+    /**
+     * Get the time taken to handle the received packets with the given ID.
+     *
+     * @param packetID The packet ID, or {@link #PACKET_ID_LIMIT} for every
+     * packet ID out of range.
+     * @return The handling times in nanoseconds, or {@code null} if no such
+     * packet has been received.
+     */
+    public LatencyHistogram getHandleTimes(int packetID) {
+        return handleTimes.get(indexOf(packetID));
+    }
+
+    /**
+     * Get the number of packets waiting in send queues when their send
+     * loops woke up.
+     *
+     * @return The send queue depths.
+     */
+    public LatencyHistogram getSendQueueDepths() {
+        return sendQueueDepths;
+    }
+
+    /**
+     * Get the time packets waited in send queues before being encoded.
+     *
+     * @return The send queue waiting times in nanoseconds.
+     */
+    public LatencyHistogram getSendQueueWaits() {
+        return sendQueueWaits;
+    }
+
+    /**
+     * Get the durations of finished games.
+     *
+     * @return The game durations in nanoseconds.
+     */
+    public LatencyHistogram getGameDurations() {
+        return gameDurations;
+    }
+
+    /**
+     * Get the number of moves made in finished games.
+     *
+     * @return The moves made in each game.
+     */
+    public LatencyHistogram getGameMoves() {
+        return gameMoves;
+    }
+
+    /**
+     * Get the time players queued for a match waited to be paired.
+     *
+     * @return The matchmaking waiting times in nanoseconds.
+     */
+    public LatencyHistogram getMatchWaits() {
+        return matchWaits;
+    }
+
+    /**
+     * Get the time taken by each tick of the matchmaker.
+     *
+     * @return The matchmaking tick durations in nanoseconds.
+     */
+    public LatencyHistogram getMatchTicks() {
+        return matchTicks;
+    }
+}
@@ -0,0 +1,725 @@
+/**
+ * Holds the startup options given to the tictac2 server on the command line.
+ *
+ * @author Tom Galvin
+ */
+public class ServerOptions {
+    /**
+     * The classic server engine, which uses one thread to read from, and one
+     * thread to write to, each connected client.
+     */
+    public static final int ENGINE_BLOCKING = 0;
+    /**
+     * The selector-based server engine, which multiplexes every connected
+     * client over a small, fixed pool of event loop threads.
+     */
+    public static final int ENGINE_NIO      = 1;
+
+    /**
+     * While a client's send queue is above its high watermark, hold back
+     * lobby updates, keeping only the latest update for each player, and
+     * queue them once the send queue falls below its low watermark.
+     */
+    public static final int SLOW_CONSUMER_COALESCE   = 0;
+    /**
+     * While a client's send queue is above its high watermark, drop lobby
+     * updates sent to it.
+     */
+    public static final int SLOW_CONSUMER_DROP       = 1;
+    /**
+     * Disconnect a client as soon as its send queue reaches its high
+     * watermark.
+     */
+    public static final int SLOW_CONSUMER_DISCONNECT = 2;
+
+    private int port;
+    private int engine;
+    private int eventLoops;
+    private boolean virtualThreads;
+    private boolean tcpNoDelay;
+    private int metricsPort;
+    private int logLevel;
+    private int logBufferSize;
+    private int logWhenFull;
+    private int sendQueueCapacity;
+    private int sendQueueHighWatermark;
+    private int sendQueueLowWatermark;
+    private int slowConsumerPolicy;
+    private boolean coalesceLobbyUpdates;
+    private int lobbyShards;
+    private int gameThreads;
+    private String scoreFile;
+    private int scoreFlushMillis;
+    private String journalFile;
+    private int journalFlushMillis;
+    private String archiveDirectory;
+    private String botNickname;
+    private int botThinkMillis;
+    private int botThreads;
+    private int matchTickMillis;
+    private int matchWindow;
+    private int matchWiden;
+    private int ratingBroadcastMillis;
+
+    /**
+     * Create a new set of server options with the default values, listening
+     * on the given port.
+     *
+     * @param port The port on which to listen for clients.
+     */
+    public ServerOptions(int port) {
+        this.port = port;
+        this.engine = ENGINE_BLOCKING;
+        this.eventLoops = Runtime.getRuntime().availableProcessors();
+        this.virtualThreads = false;
+        this.tcpNoDelay = false;
+        this.metricsPort = -1;
+        this.logLevel = ServerLog.LEVEL_INFO;
+        this.logBufferSize = 8192;
+        this.logWhenFull = ServerLog.WHEN_FULL_DROP;
+        this.sendQueueCapacity = 4096;
+        this.sendQueueHighWatermark = 3072;
+        this.sendQueueLowWatermark = 1024;
+        this.slowConsumerPolicy = SLOW_CONSUMER_COALESCE;
+        this.coalesceLobbyUpdates = true;
+        this.lobbyShards = Runtime.getRuntime().availableProcessors();
+        this.gameThreads = Runtime.getRuntime().availableProcessors();
+        this.scoreFile = null;
+        this.scoreFlushMillis = 100;
+        this.journalFile = null;
+        this.journalFlushMillis = 10;
+        this.archiveDirectory = null;
+        this.botNickname = null;
+        this.botThinkMillis = 500;
+        this.botThreads = 1;
+        this.matchTickMillis = 100;
+        this.matchWindow = 50;
+        this.matchWiden = 50;
+        this.ratingBroadcastMillis = 1000;
+    }
+
+    /**
+     * Parse the server options from the given command-line arguments. The
+     * first argument is always the port; the remaining arguments are of the
+     * form {@code --name=value}.
+     *
+     * @param args The command-line arguments given to the server.
+     * @return The parsed server options.
+     * @throws IllegalArgumentException If any argument is missing or invalid.
+     */
+    public static ServerOptions parse(String... args) {
+        if(args.length < 1) {
+            throw new IllegalArgumentException("No port was given.");
+        }
+        ServerOptions options = new ServerOptions(parseInt("port", args[0]));
+
+        for(int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if(!arg.startsWith("--") || separator == -1) {
+                throw new IllegalArgumentException(String.format(
+                            "Invalid option: %s",
+                            arg
+                            ));
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+
+            switch(name) {
+                case "engine":
+                    if(value.equals("blocking")) {
+                        options.engine = ENGINE_BLOCKING;
+                    } else if(value.equals("nio")) {
+                        options.engine = ENGINE_NIO;
+                    } else {
+                        throw new IllegalArgumentException(String.format(
+                                    "Unknown engine: %s",
+                                    value
+                                    ));
+                    }
+                    break;
+                case "event-loops":
+                    options.eventLoops = parseInt(name, value);
+                    if(options.eventLoops < 1) {
+                        throw new IllegalArgumentException(
+                                "At least one event loop is required.");
+                    }
+                    break;
+                case "threads":
+                    if(value.equals("platform")) {
+                        options.virtualThreads = false;
+                    } else if(value.equals("virtual")) {
+                        if(!ClientThreadFactory.isVirtualSupported()) {
+                            throw new IllegalArgumentException(
+                                    "Virtual threads require JDK 21 or newer.");
+                        }
+                        options.virtualThreads = true;
+                    } else {
+                        throw new IllegalArgumentException(String.format(
+                                    "Unknown thread type: %s",
+                                    value
+                                    ));
+                    }
+                    break;
+                case "tcp-nodelay":
+                    options.tcpNoDelay = parseBoolean(name, value);
+                    break;
+                case "metrics-port":
+                    options.metricsPort = parseInt(name, value);
+                    if(options.metricsPort < 0 || options.metricsPort > 65535) {
+                        throw new IllegalArgumentException(String.format(
+                                    "Invalid metrics port: %d",
+                                    options.metricsPort
+                                    ));
+                    }
+                    break;
+                case "log-level":
+                    options.logLevel = ServerLog.parseLevel(value);
+                    break;
+                case "log-buffer":
+                    options.logBufferSize = parseInt(name, value);
+                    if(options.logBufferSize < 2) {
+                        throw new IllegalArgumentException(
+                                "The log buffer must hold at least two events.");
+                    }
+                    break;
+                case "log-when-full":
+                    if(value.equals("drop")) {
+                        options.logWhenFull = ServerLog.WHEN_FULL_DROP;
+                    } else if(value.equals("block")) {
+                        options.logWhenFull = ServerLog.WHEN_FULL_BLOCK;
+                    } else {
+                        throw new IllegalArgumentException(String.format(
+                                    "Unknown log policy: %s",
+                                    value
+                                    ));
+                    }
+                    break;
+                case "send-queue":
+                    options.sendQueueCapacity = parseInt(name, value);
+                    break;
+                case "send-queue-high":
+                    options.sendQueueHighWatermark = parseInt(name, value);
+                    break;
+                case "send-queue-low":
+                    options.sendQueueLowWatermark = parseInt(name, value);
+                    break;
+                case "slow-consumer":
+                    if(value.equals("coalesce")) {
+                        options.slowConsumerPolicy = SLOW_CONSUMER_COALESCE;
+                    } else if(value.equals("drop")) {
+                        options.slowConsumerPolicy = SLOW_CONSUMER_DROP;
+                    } else if(value.equals("disconnect")) {
+                        options.slowConsumerPolicy = SLOW_CONSUMER_DISCONNECT;
+                    } else {
+                        throw new IllegalArgumentException(String.format(
+                                    "Unknown slow consumer policy: %s",
+                                    value
+                                    ));
+                    }
+                    break;
+                case "coalesce-lobby":
+                    options.coalesceLobbyUpdates = parseBoolean(name, value);
+                    break;
+                case "lobby-shards":
+                    options.lobbyShards = parseInt(name, value);
+                    if(options.lobbyShards < 0) {
+                        throw new IllegalArgumentException(
+                                "The number of lobby shards cannot be negative.");
+                    }
+                    break;
+                case "game-threads":
+                    options.gameThreads = parseInt(name, value);
+                    if(options.gameThreads < 0) {
+                        throw new IllegalArgumentException(
+                                "The number of game threads cannot be negative.");
+                    }
+                    break;
+                case "score-file":
+                    options.scoreFile = value;
+                    break;
+                case "score-flush":
+                    options.scoreFlushMillis = parseInt(name, value);
+                    if(options.scoreFlushMillis <= 0) {
+                        throw new IllegalArgumentException(
+                                "The score flush interval must be positive.");
+                    }
+                    break;
+                case "journal":
+                    options.journalFile = value;
+                    break;
+                case "journal-flush":
+                    options.journalFlushMillis = parseInt(name, value);
+                    if(options.journalFlushMillis <= 0) {
+                        throw new IllegalArgumentException(
+                                "The journal flush interval must be positive.");
+                    }
+                    break;
+                case "archive":
+                    options.archiveDirectory = value;
+                    break;
+                case "bot":
+                    if(value.isEmpty()) {
+                        throw new IllegalArgumentException(
+                                "The nickname of the bot cannot be empty.");
+                    }
+                    options.botNickname = value;
+                    break;
+                case "bot-think":
+                    options.botThinkMillis = parseInt(name, value);
+                    if(options.botThinkMillis <= 0) {
+                        throw new IllegalArgumentException(
+                                "The bot's thinking time must be positive.");
+                    }
+                    break;
+                case "bot-threads":
+                    options.botThreads = parseInt(name, value);
+                    if(options.botThreads < 0) {
+                        throw new IllegalArgumentException(
+                                "The number of bot threads cannot be negative.");
+                    }
+                    break;
+                case "match-tick":
+                    options.matchTickMillis = parseInt(name, value);
+                    if(options.matchTickMillis <= 0) {
+                        throw new IllegalArgumentException(
+                                "The matchmaking tick must be positive.");
+                    }
+                    break;
+                case "match-window":
+                    options.matchWindow = parseInt(name, value);
+                    if(options.matchWindow < 0) {
+                        throw new IllegalArgumentException(
+                                "The matchmaking rating window cannot be negative.");
+                    }
+                    break;
+                case "match-widen":
+                    options.matchWiden = parseInt(name, value);
+                    if(options.matchWiden < 0) {
+                        throw new IllegalArgumentException(
+                                "The matchmaking window cannot narrow over time.");
+                    }
+                    break;
+                case "rating-broadcast":
+                    options.ratingBroadcastMillis = parseInt(name, value);
+                    if(options.ratingBroadcastMillis < 0) {
+                        throw new IllegalArgumentException(
+                                "The rating broadcast interval cannot be negative.");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format(
+                                "Unknown option: %s",
+                                name
+                                ));
+            }
+        }
+        if(options.sendQueueLowWatermark < 0 ||
+           options.sendQueueLowWatermark >= options.sendQueueHighWatermark ||
+           options.sendQueueHighWatermark > options.sendQueueCapacity) {
+            throw new IllegalArgumentException(
+                    "The send queue watermarks must satisfy 0 <= low < high <= capacity.");
+        }
+        return options;
+    }
+
+    /**
+     * Print the usage of the server's command-line options to the standard
+     * output.
+     */
+    public static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println();
+        System.out.println("java Server <port> [options]");
+        System.out.println("port: The port to listen on for clients.");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("--engine=blocking|nio: The networking engine to use (default blocking).");
+        System.out.println("--event-loops=<n>: The number of event loop threads used by the nio engine");
+        System.out.println("                   (default is the number of available processors).");
+        System.out.println("--threads=platform|virtual: The type of thread used by the blocking engine for");
+        System.out.println("                            each client (default platform). Virtual threads");
+        System.out.println("                            require JDK 21, and report any pinned carrier threads.");
+        System.out.println("--tcp-nodelay=true|false: Whether to disable Nagle's algorithm on client");
+        System.out.println("                          sockets (default false).");
+        System.out.println("--metrics-port=<port>: Serve metrics over HTTP at http://127.0.0.1:<port>/metrics");
+        System.out.println("                       (default off).");
+        System.out.println("--log-level=debug|info|warn|error|off: The lowest level of event to log");
+        System.out.println("                                       (default info). Every move is logged at debug.");
+        System.out.println("--log-buffer=<n>: The number of events the log can hold before they are");
+        System.out.println("                  written (default 8192).");
+        System.out.println("--log-when-full=drop|block: Whether events logged while the log is full are");
+        System.out.println("                            dropped, or wait for room (default drop).");
+        System.out.println("--send-queue=<n>: The most packets waiting to be sent to one client (default");
+        System.out.println("                  4096). A client whose game packets do not fit is disconnected.");
+        System.out.println("--send-queue-high=<n>: The send queue depth at which a client is treated as a");
+        System.out.println("                       slow consumer (default 3072).");
+        System.out.println("--send-queue-low=<n>: The send queue depth below which a slow consumer");
+        System.out.println("                      recovers (default 1024).");
+        System.out.println("--slow-consumer=coalesce|drop|disconnect: What to do with a slow consumer:");
+        System.out.println("                      hold back lobby updates and send only the latest for each");
+        System.out.println("                      player, drop lobby updates, or disconnect it (default");
+        System.out.println("                      coalesce).");
+        System.out.println("--coalesce-lobby=true|false: Whether a lobby update waiting to be sent is");
+        System.out.println("                             replaced by a later update about the same player,");
+        System.out.println("                             rather than both being sent (default true).");
+        System.out.println("--lobby-shards=<n>: The number of threads which the lobbies are spread over");
+        System.out.println("                    (default is the number of available processors). With 0,");
+        System.out.println("                    each change to a lobby runs on the thread which made it.");
+        System.out.println("--game-threads=<n>: The number of threads shared by every game to process its");
+        System.out.println("                    moves, one at a time per game (default is the number of");
+        System.out.println("                    available processors). With 0, each move is processed");
+        System.out.println("                    by the thread which received it.");
+        System.out.println("--score-file=<path>: Keep players' scores in the given file, so that they");
+        System.out.println("                     outlast reconnects and restarts (default off).");
+        System.out.println("--score-flush=<ms>: The time between writes of changed scores to the score");
+        System.out.println("                    file (default 100).");
+        System.out.println("--journal=<path>: Record the games in progress in the given file, so that");
+        System.out.println("                  they carry on once their players reconnect after a");
+        System.out.println("                  restart (default off).");
+        System.out.println("--journal-flush=<ms>: The time between writes to the game journal (default");
+        System.out.println("                      10). Moves made within this time of a crash are lost.");
+        System.out.println("--archive=<directory>: Archive every finished game in the given directory, in");
+        System.out.println("                       one file per day, to be read with GameArchiveReader");
+        System.out.println("                       (default off).");
+        System.out.println("--bot=<nickname>: Host a computer player with the given nickname, which");
+        System.out.println("                  accepts every game request (default off).");
+        System.out.println("--bot-think=<ms>: The longest the bot thinks about a move on a board larger");
+        System.out.println("                  than 3x3 (default 500). Moves on 3x3 are looked up at once.");
+        System.out.println("--bot-threads=<n>: The number of threads on which the bot thinks (default 1).");
+        System.out.println("                   With 0, the bot thinks on the thread which processed the");
+        System.out.println("                   opponent's move.");
+        System.out.println("--match-tick=<ms>: The time between pairings of the players queued for a");
+        System.out.println("                   match (default 100).");
+        System.out.println("--match-window=<n>: The most a queued player's rating may differ from their");
+        System.out.println("                    opponent's when they first queue (default 50).");
+        System.out.println("--match-widen=<n>: How much the rating difference allowed grows for every");
+        System.out.println("                   second a player waits in the queue (default 50).");
+        System.out.println("--rating-broadcast=<ms>: The time between telling each lobby of the ratings");
+        System.out.println("                         which changed (default 1000). With 0, every change");
+        System.out.println("                         is sent at once.");
+    }
+
+    /**
+     * Parse an integer option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The parsed value.
+     */
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException(String.format(
+                        "The value of %s must be a number, but was %s.",
+                        name,
+                        value
+                        ));
+        }
+    }
+
+    /**
+     * Parse a boolean option value.
+     *
+     * @param name The name of the option, used in the error message.
+     * @param value The value of the option.
+     * @return The parsed value.
+     */
+    private static boolean parseBoolean(String name, String value) {
+        if(value.equals("true")) {
+            return true;
+        } else if(value.equals("false")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException(String.format(
+                        "The value of %s must be true or false, but was %s.",
+                        name,
+                        value
+                        ));
+        }
+    }
+
+    /**
+     * Get the port on which to listen for clients.
+     *
+     * @return The port on which to listen for clients.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the networking engine to use.
+     *
+     * @return The networking engine to use, as an ENGINE_* constant.
+     */
+    public int getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the number of event loop threads used by the NIO engine.
+     *
+     * @return The number of event loop threads.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Determines whether the blocking engine should run each client on
+     * virtual threads.
+     *
+     * @return {@code true} to use virtual threads; {@code false} to use
+     * platform threads.
+     */
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Determines whether Nagle's algorithm should be disabled on client
+     * sockets, by setting {@code TCP_NODELAY}. As packets are already
+     * coalesced into batches by the send loops, this mainly lowers latency.
+     *
+     * @return {@code true} to set {@code TCP_NODELAY} on client sockets.
+     */
+    public boolean useTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Get the port on which to serve the server's metrics to local
+     * scrapers, through a {@link MetricsEndpoint}.
+     *
+     * @return The port of the metrics endpoint, or {@code -1} if the
+     * metrics are not served.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Get the lowest level of event written to the server log.
+     *
+     * @return The log level, as a LEVEL_* constant in {@link ServerLog}.
+     */
+    public int getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Get the number of events the server log can hold before they are
+     * written.
+     *
+     * @return The size of the log's ring buffer.
+     */
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    /**
+     * Get what the server log does with events logged while it is full.
+     *
+     * @return The policy, as a WHEN_FULL_* constant in {@link ServerLog}.
+     */
+    public int getLogWhenFull() {
+        return logWhenFull;
+    }
+
+    /**
+     * Get the most packets which may wait to be sent to one client.
+     *
+     * @return The capacity of each client's send queue.
+     */
+    public int getSendQueueCapacity() {
+        return sendQueueCapacity;
+    }
+
+    /**
+     * Get the send queue depth at which a client is treated as a slow
+     * consumer.
+     *
+     * @return The high watermark of each client's send queue.
+     */
+    public int getSendQueueHighWatermark() {
+        return sendQueueHighWatermark;
+    }
+
+    /**
+     * Get the send queue depth below which a slow consumer recovers.
+     *
+     * @return The low watermark of each client's send queue.
+     */
+    public int getSendQueueLowWatermark() {
+        return sendQueueLowWatermark;
+    }
+
+    /**
+     * Get what is done with a client whose send queue reaches its high
+     * watermark.
+     *
+     * @return The policy, as a SLOW_CONSUMER_* constant.
+     */
+    public int getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Determines whether a lobby update waiting in a client's send queue is
+     * replaced by a later update about the same player, so that only the
+     * latest state of each player is sent. The lobby updates of slow
+     * consumers are coalesced either way.
+     *
+     * @return {@code true} to coalesce lobby updates.
+     */
+    public boolean coalescesLobbyUpdates() {
+        return coalesceLobbyUpdates;
+    }
+
+    /**
+     * Get the number of single-threaded executors which the server's lobbies
+     * are spread over. Every change to a lobby, and every broadcast to its
+     * players, runs on its executor.
+     *
+     * @return The number of lobby shards, or 0 if every change to a lobby
+     * runs on the thread which made it.
+     */
+    public int getLobbyShards() {
+        return lobbyShards;
+    }
+
+    /**
+     * Get the number of threads shared by every game to drain its mailbox.
+     * The requests made of one game are always handled one at a time.
+     *
+     * @return The number of game threads, or 0 if each request is handled
+     * by the thread which made it.
+     */
+    public int getGameThreads() {
+        return gameThreads;
+    }
+
+    /**
+     * Get the path of the file in which players' scores are kept.
+     *
+     * @return The path of the score file, or {@code null} if scores are not
+     * kept.
+     */
+    public String getScoreFile() {
+        return scoreFile;
+    }
+
+    /**
+     * Get the time between writes of changed scores to the score file. Every
+     * score changed within this time is written, and forced to disk, at
+     * once.
+     *
+     * @return The score flush interval, in milliseconds.
+     */
+    public int getScoreFlushMillis() {
+        return scoreFlushMillis;
+    }
+
+    /**
+     * Get the path of the journal in which the games in progress are
+     * recorded.
+     *
+     * @return The path of the game journal, or {@code null} if games are not
+     * recorded.
+     */
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Get the time between writes to the game journal. Every move made
+     * within this time is written, and forced to disk, at once.
+     *
+     * @return The journal flush interval, in milliseconds.
+     */
+    public int getJournalFlushMillis() {
+        return journalFlushMillis;
+    }
+
+    /**
+     * Get the directory in which every finished game is archived.
+     *
+     * @return The archive directory, or {@code null} if games are not
+     * archived.
+     */
+    public String getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    /**
+     * Get the nickname of the computer player hosted by the server.
+     *
+     * @return The nickname of the bot, or {@code null} if the server hosts
+     * no bot.
+     */
+    public String getBotNickname() {
+        return botNickname;
+    }
+
+    /**
+     * Get the longest time the bot spends searching for a move on a board
+     * larger than 3x3.
+     *
+     * @return The bot's thinking time, in milliseconds.
+     */
+    public int getBotThinkMillis() {
+        return botThinkMillis;
+    }
+
+    /**
+     * Get the number of threads on which the bot searches for its moves.
+     *
+     * @return The number of bot threads, where 0 means the bot searches on
+     * the thread which processed its opponent's move.
+     */
+    public int getBotThreads() {
+        return botThreads;
+    }
+
+    /**
+     * Get the time between pairings of the players queued for a match.
+     *
+     * @return The matchmaking tick, in milliseconds.
+     */
+    public int getMatchTickMillis() {
+        return matchTickMillis;
+    }
+
+    /**
+     * Get the most a queued player's rating may differ from their opponent's
+     * when they first queue for a match.
+     *
+     * @return The initial rating window.
+     */
+    public int getMatchWindow() {
+        return matchWindow;
+    }
+
+    /**
+     * Get how much the rating difference allowed between a queued player and
+     * their opponent grows for every second the player waits.
+     *
+     * @return The growth of the rating window per second.
+     */
+    public int getMatchWiden() {
+        return matchWiden;
+    }
+
+    /**
+     * Get the time between broadcasts of the ratings which changed in each
+     * lobby.
+     *
+     * @return The broadcast interval in milliseconds, or 0 if every change
+     * is broadcast at once.
+     */
+    public int getRatingBroadcastMillis() {
+        return ratingBroadcastMillis;
+    }
+}
@@ -1,7 +1,11 @@
 import java.io.*;
 import java.net.*;
 import javax.swing.JOptionPane;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -11,14 +15,87 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @author Tom Galvin
  */
 public class ServerThread implements Runnable {
+    /**
+     * A lobby update waiting to be sent, which always writes the latest
+     * update queued about its player. While it waits, a later update about
+     * the same player replaces its packet rather than being queued behind
+     * it.
+     */
+    private class LobbyUpdate implements PacketWriter {
+        private String nickname;
+        private PacketWriter latest;
+
+        /**
+         * Create a new LobbyUpdate.
+         *
+         * @param nickname The nickname of the player the update is about.
+         * @param writer The writer of the update's packet.
+         */
+        public LobbyUpdate(String nickname, PacketWriter writer) {
+            this.nickname = nickname;
+            this.latest = writer;
+        }
+
+        @Override
+        public void writePacket(DataOutputStream o) throws IOException {
+            PacketWriter writer;
+            synchronized(pendingUpdates) {
+                // Later updates about the player are queued afresh from now.
+                pendingUpdates.remove(nickname, this);
+                writer = latest;
+            }
+            writer.writePacket(o);
+        }
+    }
+
     private Server server;
     private Socket client;
     private DataInputStream in;
     private DataOutputStream out;
-    private LinkedBlockingQueue<PacketWriter> sendQueue;
+    private NioConnection connection;
+    private PacketCodec codec;
+    private int extensions;
+    /**
+     * The packets waiting to be sent. This is linked, rather than backed by
+     * an array of its full capacity, so that an idle client only holds
+     * memory for the packets it actually has waiting.
+     */
+    private BlockingQueue<PacketWriter> sendQueue;
+
+    /**
+     * Whether the send queue has reached its high watermark, and not yet
+     * fallen back below its low watermark.
+     */
+    private volatile boolean slowConsumer;
+
+    /**
+     * The lobby updates which have not yet been sent, keyed by the nickname
+     * of the player they are about. This is also the lock over the lobby
+     * updates and the slow consumer state.
+     */
+    private HashMap<String, LobbyUpdate> pendingUpdates;
+
+    /**
+     * The lobby updates held back while this client is a slow consumer, in
+     * the order they were first made.
+     */
+    private ArrayDeque<PacketWriter> heldBack;
+    private volatile boolean evicted;
+
+    /**
+     * Whether this client's connection has closed, set before its games are
+     * terminated.
+     */
+    private volatile boolean disconnected;
     private String nickname;
-    private int score;
-    private ArrayList<ServerGame> currentGames;
+    private volatile int score;
+
+    /**
+     * The lobby this client is in, or is moving into, or {@code null} if it
+     * has not yet joined a lobby or has disconnected.
+     */
+    private volatile ServerLobby lobby;
+    private List<ServerGame> currentGames;
 
     /**
      * Create a new server thread.
@@ -26,7 +103,8 @@ public class ServerThread implements Runnable {
      * @param server The server that this client is connected to.
      * @param nickname The chosen (possibly adjusted) nickname that 
      * this client is using.
-     * @param score The current score of this client, usually starting at 0.
+     * @param score The current score of this client, usually its stored rating.
+     * @param codec The codec of the protocol version used by this client.
      * @param client The socket this client is using for communication.
      * @param inputStream The data input stream being used.
      * @param outputstream The data output stream being used.
@@ -35,32 +113,82 @@ public class ServerThread implements Runnable {
             Server server,
             String nickname,
             int score,
+            PacketCodec codec,
             Socket client,
             DataInputStream inputStream,
             DataOutputStream outputStream) {
         this.server = server;
         this.nickname = nickname;
         this.score = score;
+        this.codec = codec;
         this.client = client;
         this.in = inputStream;
         this.out = outputStream;
 
-        this.currentGames = new ArrayList<ServerGame>();
-        this.sendQueue = new LinkedBlockingQueue<PacketWriter>();
+        this.currentGames = new CopyOnWriteArrayList<ServerGame>();
+        this.sendQueue = new LinkedBlockingQueue<PacketWriter>(
+                server.getOptions().getSendQueueCapacity());
+        this.pendingUpdates = new HashMap<String, LobbyUpdate>();
+        this.heldBack = new ArrayDeque<PacketWriter>();
     }
 
     /**
-     * Prints a message to the server's standard output, prefixed with this
-     * client's nickname.
+     * Create a new server thread for a client connected to the NIO server
+     * engine. The reading and sending of packets is then driven by the
+     * connection's event loop, rather than by {@link #run()}.
      *
-     * @param s The message to print to the standard output.
+     * @param server The server that this client is connected to.
+     * @param nickname The chosen (possibly adjusted) nickname that 
+     * this client is using.
+     * @param score The current score of this client, usually its stored rating.
+     * @param codec The codec of the protocol version used by this client.
+     * @param connection The non-blocking connection to the client, or
+     * {@code null} for a client simulated within the server process, whose
+     * queued packets are only ever taken with {@link #pollPacket()}.
      */
-    private void print(String s) {
-        System.out.println(String.format(
-                    "[%s] %s",
-                    nickname,
-                    s
-                    ));
+    public ServerThread(
+            Server server,
+            String nickname,
+            int score,
+            PacketCodec codec,
+            NioConnection connection) {
+        this.server = server;
+        this.nickname = nickname;
+        this.score = score;
+        this.codec = codec;
+        this.connection = connection;
+
+        this.currentGames = new CopyOnWriteArrayList<ServerGame>();
+        this.sendQueue = new LinkedBlockingQueue<PacketWriter>(
+                server.getOptions().getSendQueueCapacity());
+        this.pendingUpdates = new HashMap<String, LobbyUpdate>();
+        this.heldBack = new ArrayDeque<PacketWriter>();
+    }
+
+    /**
+     * Begin logging an event about this client, identified by its nickname.
+     *
+     * @param level The level of the event, as a LEVEL_* constant in
+     * {@link ServerLog}.
+     * @param name The name of the event.
+     * @return The event to fill in and publish, or {@code null} if it is not
+     * logged.
+     */
+    private ServerLog.Event logEvent(int level, String name) {
+        ServerLog.Event event = server.getLog().begin(level, name);
+        if(event != null) {
+            event.with("nickname", nickname);
+        }
+        return event;
+    }
+
+    /**
+     * Determine whether this client's connection has closed.
+     *
+     * @return {@code true} if the client has disconnected.
+     */
+    public boolean isDisconnected() {
+        return disconnected;
     }
 
     /**
@@ -90,6 +218,58 @@ public class ServerThread implements Runnable {
         return nickname;
     }
 
+    /**
+     * Get the codec of the protocol version negotiated by this client.
+     *
+     * @return The codec used to encode and decode this client's packets.
+     */
+    public PacketCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the protocol extensions negotiated by this client. This must be
+     * called before the client is made visible to other threads.
+     *
+     * @param extensions The flags of the negotiated extensions, as
+     * EXTENSION_* constants in {@link Packet}.
+     */
+    public void setExtensions(int extensions) {
+        this.extensions = extensions;
+    }
+
+    /**
+     * Determines whether this client negotiated the given protocol
+     * extension.
+     *
+     * @param extension The flag of the extension, as an EXTENSION_* constant
+     * in {@link Packet}.
+     * @return {@code true} if the extension is in use by this client.
+     */
+    public boolean hasExtension(int extension) {
+        return (extensions & extension) != 0;
+    }
+
+    /**
+     * Get the lobby this client is in. While the client is moving between
+     * lobbies, this is the lobby it is moving into.
+     *
+     * @return The lobby of this client, or {@code null} if it is not in one.
+     */
+    public ServerLobby getLobby() {
+        return lobby;
+    }
+
+    /**
+     * Set the lobby this client is in. This is done by the {@link Server}
+     * when the client joins or leaves a lobby.
+     *
+     * @param lobby The lobby of this client, or {@code null} for none.
+     */
+    public void setLobby(ServerLobby lobby) {
+        this.lobby = lobby;
+    }
+
     /**
      * Gets the current score of this client.
      *
@@ -100,54 +280,397 @@ public class ServerThread implements Runnable {
     }
 
     /**
-     * Updates the score of this client and informs other
-     * connected users.
+     * Updates the score of this client, stores it if the server keeps
+     * scores, and informs other connected users with the next broadcast of
+     * ratings.
      *
      * @param score The score that this client now has.
      */
     public void setScore(int score) {
         this.score = score;
-        server.playerUpdate(this);
+        server.saveScore(this);
+        server.getLeaderboard().update(nickname, score);
+        server.ratingChanged(this);
     }
     
     @Override
     public void run() {
         try {
-            new Thread(() -> runSendThread()).start();
-            server.playerUpdate(this);
+            server.newClientThread(() -> runSendThread()).start();
+            connected();
             while(client.isConnected()) {
-                int packetID = in.readInt();
-                handlePacket(packetID);
+                int packetID = codec.readPacket(in);
+                handlePacket(codec.getPayload(), packetID);
             }
-            server.playerLeave(this);
         } catch(EOFException e) {
-            print("Client quit. (EOF)");
-            server.playerLeave(this);
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "client.quit");
+            if(event != null) {
+                event.publish();
+            }
         } catch(IOException e) {
-            print("Client disconnected. (IOException: " + e.getMessage() + ")");
-            e.printStackTrace();
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "client.disconnected");
+            if(event != null) {
+                event.with("reason", e.toString()).publish();
+            }
+        } catch(RuntimeException e) {
+            server.getLog().error("connection.failed", e);
+        } finally {
+            // However the connection ended, free the nickname, and leave the
+            // lobby, the matchmaking queue and any games.
+            disconnected();
+
+            // Close the socket and wake the send thread up, so that it
+            // finishes rather than waiting on the send queue forever. If the
+            // queue is full, the send thread is not waiting on it anyway.
+            try {
+                client.close();
+            } catch(IOException e) {
+                ServerLog.Event event = logEvent(ServerLog.LEVEL_WARN, "client.close_failed");
+                if(event != null) {
+                    event.with(e).publish();
+                }
+            }
+            sendQueue.offer(o -> {});
         }
+    }
+
+    /**
+     * Invoked once this client has completed the connection handshake, to
+     * add it to the server's default lobby and inform the other users there,
+     * and to carry on any of its games which were recovered after a restart.
+     */
+    public void connected() {
+        server.getLeaderboard().add(nickname, score);
+        server.joinLobby(this, server.getDefaultLobby());
+        server.resumeGames(this);
+    }
+
+    /**
+     * Invoked once this client's connection has closed, to remove the client
+     * from the server and the matchmaking queue, and terminate any games it
+     * was participating in.
+     */
+    public void disconnected() {
+        disconnected = true;
+        // Leave the leaderboard before the nickname is freed for another
+        // client to take.
+        server.getLeaderboard().remove(nickname);
+        server.playerLeave(this);
+        server.getMatchmaker().disconnected(this);
+        // Terminating a game removes it from currentGames, possibly while
+        // this is iterating, which is safe as iterating a
+        // CopyOnWriteArrayList uses a snapshot of it.
         for(ServerGame game : currentGames) {
             game.terminateGame(this, getNickname() + " disconnected.");
         }
     }
 
+    /**
+     * Wrap the writer of a packet to record, once the packet is encoded, the
+     * time it spent waiting to be sent in the server's metrics.
+     *
+     * @param writer The writer of the packet.
+     * @return The wrapped writer.
+     */
+    private PacketWriter timed(PacketWriter writer) {
+        ServerMetrics metrics = server.getMetrics();
+        long queuedAt = System.nanoTime();
+        return o -> {
+            metrics.recordSendQueueWait(System.nanoTime() - queuedAt);
+            writer.writePacket(o);
+        };
+    }
+
+    /**
+     * Queue a packet which must reach the client, such as a game packet, to
+     * be sent. If the send queue is full, the client is disconnected, as it
+     * can no longer be kept in step with its games. Packets for a client
+     * which has already been disconnected are ignored. A client played by
+     * the server itself, such as a {@link ServerBot}, overrides this to
+     * discard the packet.
+     *
+     * @param writer The writer of the packet to send.
+     */
+    protected void queuePacket(PacketWriter writer) {
+        if(evicted) {
+            return;
+        }
+        if(!sendQueue.offer(timed(writer))) {
+            evict("send queue full");
+            return;
+        }
+        packetQueued();
+    }
+
+    /**
+     * Queue a lobby update about the given player to be sent. If an update
+     * about the same player is still waiting to be sent, it is replaced
+     * instead, so that only the latest state of each player is sent. If
+     * this client is a slow consumer, the update is handled according to
+     * the server's slow consumer policy.
+     *
+     * @param nickname The nickname of the player the update is about.
+     * @param writer The writer of the packet to send.
+     */
+    protected void queueLobbyPacket(String nickname, PacketWriter writer) {
+        if(evicted) {
+            return;
+        }
+        LobbyUpdate update;
+        PacketWriter queued;
+        synchronized(pendingUpdates) {
+            LobbyUpdate pending = pendingUpdates.get(nickname);
+            if(pending != null && (server.getOptions().coalescesLobbyUpdates() || slowConsumer)) {
+                pending.latest = writer;
+                server.getMetrics().recordPacketCoalesced();
+                return;
+            }
+            update = new LobbyUpdate(nickname, writer);
+            queued = timed(update);
+            if(slowConsumer) {
+                holdBack(update, queued);
+                return;
+            }
+            pendingUpdates.put(nickname, update);
+        }
+        if(!sendQueue.offer(queued)) {
+            // The queue can fill up before reaching the high watermark if the
+            // watermark is set to the capacity of the queue.
+            enterSlowConsumer();
+            synchronized(pendingUpdates) {
+                if(slowConsumer &&
+                   server.getOptions().getSlowConsumerPolicy() != ServerOptions.SLOW_CONSUMER_DROP) {
+                    heldBack.add(queued);
+                    return;
+                }
+                pendingUpdates.remove(nickname, update);
+            }
+            server.getMetrics().recordPacketDropped();
+            return;
+        }
+        packetQueued();
+    }
+
+    /**
+     * Invoked once a packet has been added to the send queue, to wake the
+     * sender up and check the depth of the queue.
+     */
+    private void packetQueued() {
+        if(connection != null) {
+            connection.packetQueued();
+        }
+        if(!slowConsumer && sendQueue.size() >= server.getOptions().getSendQueueHighWatermark()) {
+            enterSlowConsumer();
+        }
+    }
+
+    /**
+     * Hold back, or drop, a new lobby update while this client is a slow
+     * consumer. This must be called while holding the lock on
+     * {@link #pendingUpdates}.
+     *
+     * @param update The lobby update.
+     * @param queued The writer to add to the send queue once the client
+     * recovers.
+     */
+    private void holdBack(LobbyUpdate update, PacketWriter queued) {
+        if(server.getOptions().getSlowConsumerPolicy() == ServerOptions.SLOW_CONSUMER_DROP) {
+            server.getMetrics().recordPacketDropped();
+        } else {
+            pendingUpdates.put(update.nickname, update);
+            heldBack.add(queued);
+        }
+    }
+
+    /**
+     * Treat this client as a slow consumer, as its send queue has reached
+     * its high watermark.
+     */
+    private void enterSlowConsumer() {
+        int policy = server.getOptions().getSlowConsumerPolicy();
+        if(policy == ServerOptions.SLOW_CONSUMER_DISCONNECT) {
+            evict("slow consumer");
+            return;
+        }
+        synchronized(pendingUpdates) {
+            if(slowConsumer) {
+                return;
+            }
+            slowConsumer = true;
+        }
+        server.getMetrics().recordSlowConsumer();
+        ServerLog.Event event = logEvent(ServerLog.LEVEL_WARN, "client.slow");
+        if(event != null) {
+            event.with("queued", sendQueue.size()).publish();
+        }
+    }
+
+    /**
+     * Invoked by the sender after sending packets to the client. If this
+     * client is a slow consumer whose send queue has fallen below its low
+     * watermark, the lobby updates held back are queued, and the client
+     * recovers once they all fit below the high watermark.
+     */
+    public void packetsSent() {
+        if(!slowConsumer ||
+           sendQueue.size() > server.getOptions().getSendQueueLowWatermark()) {
+            return;
+        }
+        int highWatermark = server.getOptions().getSendQueueHighWatermark();
+        boolean recovered;
+        synchronized(pendingUpdates) {
+            while(!heldBack.isEmpty() && sendQueue.size() < highWatermark) {
+                sendQueue.offer(heldBack.poll());
+            }
+            recovered = heldBack.isEmpty();
+            if(recovered) {
+                slowConsumer = false;
+            }
+        }
+        if(connection != null) {
+            connection.packetQueued();
+        }
+        if(recovered) {
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "client.recovered");
+            if(event != null) {
+                event.with("queued", sendQueue.size()).publish();
+            }
+        }
+    }
+
+    /**
+     * Get the number of lobby updates waiting to be sent to this client,
+     * whether queued or held back.
+     *
+     * @return The number of lobby updates waiting to be sent.
+     */
+    public int getPendingUpdateCount() {
+        synchronized(pendingUpdates) {
+            return pendingUpdates.size();
+        }
+    }
+
+    /**
+     * Disconnect this client, as it has not kept up with the packets sent
+     * to it.
+     *
+     * @param reason The reason for disconnecting the client.
+     */
+    private void evict(String reason) {
+        synchronized(pendingUpdates) {
+            if(evicted) {
+                return;
+            }
+            evicted = true;
+        }
+        server.getMetrics().recordSlowConsumerDisconnect();
+        ServerLog.Event event = logEvent(ServerLog.LEVEL_WARN, "client.evicted");
+        if(event != null) {
+            event.with("reason", reason).with("queued", sendQueue.size()).publish();
+        }
+        if(connection != null) {
+            connection.requestClose();
+        } else if(client != null) {
+            // The reader thread then fails, and removes the client.
+            try {
+                client.close();
+            } catch(IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Take the next packet waiting to be sent to the client, without
+     * blocking. This is used by the NIO server engine to drain the send
+     * queue.
+     *
+     * @return The writer of the next packet to send, or {@code null} if
+     * there are none waiting.
+     */
+    public PacketWriter pollPacket() {
+        return sendQueue.poll();
+    }
+
+    /**
+     * Get the number of packets waiting to be sent to the client.
+     *
+     * @return The number of packets in the send queue.
+     */
+    public int getSendQueueDepth() {
+        return sendQueue.size();
+    }
+
     /**
      * Handles the packet with the given packet ID.
      * It does this by reading the remainder of the packet components
-     * from the {@link java.io.DataInputStream} passed to the server
-     * thread upon construction.
+     * from the given {@link java.io.DataInputStream}. The packet, and the
+     * time taken to handle it, are recorded in the server's metrics.
      *
+     * @param in The {@link java.io.DataInputStream} from which to read
+     * the remainder of the packet.
      * @param packetID The ID of the packet to handle.
      */
-    private void handlePacket(int packetID) throws IOException {
+    public void handlePacket(DataInputStream in, int packetID) throws IOException {
+        long start = System.nanoTime();
+        dispatchPacket(in, packetID);
+        server.getMetrics().recordPacketIn(
+                packetID,
+                codec.getPacketLength(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the rest of the packet with the given packet ID, and acts on it.
+     *
+     * @param in The {@link java.io.DataInputStream} from which to read
+     * the remainder of the packet.
+     * @param packetID The ID of the packet to handle.
+     */
+    private void dispatchPacket(DataInputStream in, int packetID) throws IOException {
+        if(codec.getProtocolVersion() == Packet.PROTOCOL_VERSION_UNFRAMED && isFramedOnly(packetID)) {
+            // The NIO engine's codec rejects these itself, but a blocking
+            // reader does not know which packets an unframed client may send.
+            throw new ProtocolException(String.format(
+                        "Packet %d is only accepted over the framed protocol.",
+                        packetID
+                        ));
+        }
         switch(packetID) {
             case Packet.CLIENT_REQUEST_SEND: {
                 String nickname = in.readUTF();
+                int boardSize = BitBoard.SIZE, winLength = BitBoard.SIZE;
+                if(hasExtension(Packet.EXTENSION_BOARD_VARIANTS)) {
+                    boardSize = in.readInt();
+                    winLength = in.readInt();
+                }
                 ServerThread opponent = server.getClient(nickname);
-                if(opponent != null) {
-                    print("Sent a game request to " + nickname + ".");
-                    ServerGame newGame = server.createGame(this, opponent);
+                if(opponent != null && opponent.getLobby() != lobby) {
+                    // Players can only challenge the players in their lobby.
+                    opponent = null;
+                }
+                if(opponent == this) {
+                    sendMessage(null, "You cannot challenge yourself.", "Game", JOptionPane.ERROR_MESSAGE);
+                } else if(!Board.isValidVariant(boardSize, winLength)) {
+                    sendMessage(null, "That board size is not supported.", "Game", JOptionPane.ERROR_MESSAGE);
+                } else if(opponent != null &&
+                          (boardSize != BitBoard.SIZE || winLength != BitBoard.SIZE) &&
+                          !opponent.hasExtension(Packet.EXTENSION_BOARD_VARIANTS)) {
+                    sendMessage(
+                            null,
+                            nickname + " can only play on a 3x3 board.",
+                            "Game",
+                            JOptionPane.ERROR_MESSAGE);
+                } else if(opponent != null) {
+                    ServerGame newGame = server.createGame(this, opponent, boardSize, winLength);
+                    ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.requested");
+                    if(event != null) {
+                        event.with("game", newGame.getGameID())
+                            .with("opponent", nickname)
+                            .with("size", boardSize)
+                            .with("win", winLength)
+                            .publish();
+                    }
                     sendGameRequestSent(newGame, nickname);
                     opponent.sendGameRequestReceived(newGame, getNickname());
                 } else {
@@ -160,11 +683,18 @@ public class ServerThread implements Runnable {
                 boolean accept = in.readBoolean();
                 ServerGame game = server.getGame(gameID);
                 if(game != null) {
-                    print("Responded to game ID " + gameID + ".");
+                    ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.responded");
+                    if(event != null) {
+                        event.with("game", gameID)
+                            .with("accepted", accept ? "true" : "false")
+                            .publish();
+                    }
+                    // The game checks that this client is the one which was
+                    // asked, in its mailbox.
                     if(accept) {
-                        game.begin();
+                        game.begin(this);
                     } else {
-                        server.removeGame(game);
+                        game.decline(this);
                     }
                 } else {
                     sendMessage(null, "That game does not exist.", "Game", JOptionPane.ERROR_MESSAGE);
@@ -172,20 +702,96 @@ public class ServerThread implements Runnable {
                 break;
             }
             case Packet.CLIENT_PLAYER_GET_LIST: {
-                server.doToAllClients(t -> {
-                    if(this != t) {
-                        this.sendPlayerUpdate(t);
+                ServerLobby current = lobby;
+                if(current != null) {
+                    for(ServerThread t : current.getMembers()) {
+                        if(this != t) {
+                            this.sendPlayerUpdate(t);
+                        }
+                    }
+                }
+                break;
+            }
+            case Packet.CLIENT_ROSTER_QUERY: {
+                String prefix = in.readUTF();
+                String after = in.readUTF();
+                int limit = in.readInt();
+                sendRosterPage(prefix, after, limit);
+                break;
+            }
+            case Packet.CLIENT_ROSTER_SUBSCRIBE: {
+                long version = in.readLong();
+                ServerLobby current = lobby;
+                if(current != null && current.getRoster().subscribe(this, version)) {
+                    queueRosterDelta(current.getRoster());
+                }
+                break;
+            }
+            case Packet.CLIENT_LOBBY_GET_LIST: {
+                sendLobbyList(server.getLobbies());
+                break;
+            }
+            case Packet.CLIENT_LOBBY_JOIN: {
+                String name = in.readUTF();
+                server.joinLobby(this, name);
+                break;
+            }
+            case Packet.CLIENT_LOBBY_LEAVE: {
+                server.joinLobby(this, server.getDefaultLobby());
+                break;
+            }
+            case Packet.CLIENT_MATCH_QUEUE: {
+                int boardSize = in.readInt();
+                int winLength = in.readInt();
+                if(!Board.isValidVariant(boardSize, winLength) ||
+                   ((boardSize != BitBoard.SIZE || winLength != BitBoard.SIZE) &&
+                    !hasExtension(Packet.EXTENSION_BOARD_VARIANTS))) {
+                    sendMessage(null, "That board size is not supported.", "Game", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "match.queued");
+                    if(event != null) {
+                        event.with("size", boardSize)
+                            .with("win", winLength)
+                            .with("rating", score)
+                            .publish();
                     }
-                });
+                    server.getMatchmaker().queue(this, boardSize, winLength);
+                }
+                break;
+            }
+            case Packet.CLIENT_MATCH_LEAVE: {
+                server.getMatchmaker().leave(this);
+                break;
+            }
+            case Packet.CLIENT_LEADERBOARD_GET: {
+                int count = in.readInt();
+                sendLeaderboard(Math.max(0, Math.min(Leaderboard.MAX_TOP, count)));
+                break;
+            }
+            case Packet.CLIENT_LEADERBOARD_RANK: {
+                String rankNickname = in.readUTF();
+                sendLeaderboardRank(rankNickname);
                 break;
             }
             case Packet.CLIENT_GAME_MOVE: {
-                int gameID = in.readInt();
-                int x = in.readInt();
-                int y = in.readInt();
+                boolean compact = hasExtension(Packet.EXTENSION_COMPACT_MOVES);
+                int gameID = MoveEncoding.readGameID(in, compact);
                 ServerGame game = server.getGame(gameID);
+                int x, y;
+                if(compact) {
+                    int move = MoveEncoding.readMove(in);
+                    int boardSize = game != null ? game.getBoardSize() : BitBoard.SIZE;
+                    x = MoveEncoding.moveX(move, boardSize);
+                    y = MoveEncoding.moveY(move, boardSize);
+                } else {
+                    x = in.readInt();
+                    y = in.readInt();
+                }
                 if(game != null) {
-                    print("Placed symbol at (" + x + ", " + y + ") in game " + gameID + ".");
+                    ServerLog.Event event = logEvent(ServerLog.LEVEL_DEBUG, "game.move");
+                    if(event != null) {
+                        event.with("game", gameID).with("x", x).with("y", y).publish();
+                    }
                     game.makeMove(this, x, y);
                 } else {
                     sendMessage(null, "That game does not exist.", "Game", JOptionPane.ERROR_MESSAGE);
@@ -195,14 +801,59 @@ public class ServerThread implements Runnable {
             case Packet.CLIENT_GAME_FORFEIT: {
                 int gameID = in.readInt();
                 ServerGame game = server.getGame(gameID);
-                if(game != null) {
-                    print("Forfeited from game " + gameID + ".");
+                // Only a player of a game may forfeit it.
+                if(game != null && (game.getNought() == this || game.getCross() == this)) {
+                    ServerLog.Event event = logEvent(ServerLog.LEVEL_INFO, "game.forfeited");
+                    if(event != null) {
+                        event.with("game", gameID).publish();
+                    }
                     game.terminateGame(this, getNickname() + " forfeit.");
                 } else {
                     sendMessage(null, "That game does not exist.", "Game", JOptionPane.ERROR_MESSAGE);
                 }
                 break;
             }
+            default: {
+                // A framed packet from a newer client can be skipped, as its
+                // frame says where the next packet starts. An unframed one
+                // cannot, so the rest of the stream can no longer be read.
+                if(codec.getProtocolVersion() == Packet.PROTOCOL_VERSION_UNFRAMED) {
+                    throw new ProtocolException(String.format(
+                                "Unknown packet ID: %d",
+                                packetID
+                                ));
+                }
+                ServerLog.Event event = logEvent(ServerLog.LEVEL_WARN, "packet.unknown");
+                if(event != null) {
+                    event.with("packet", packetID).publish();
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Determines whether a client packet is only accepted over the framed
+     * protocol, either by itself or because it belongs to an extension which
+     * is never accepted over the unframed protocol.
+     *
+     * @param packetID The ID of the packet.
+     * @return {@code true} if an unframed client may not send the packet.
+     */
+    private static boolean isFramedOnly(int packetID) {
+        switch(packetID) {
+            case Packet.CLIENT_ROSTER_QUERY:
+            case Packet.CLIENT_ROSTER_SUBSCRIBE:
+            case Packet.CLIENT_LOBBY_GET_LIST:
+            case Packet.CLIENT_LOBBY_JOIN:
+            case Packet.CLIENT_LOBBY_LEAVE:
+            case Packet.CLIENT_MATCH_QUEUE:
+            case Packet.CLIENT_MATCH_LEAVE:
+            case Packet.CLIENT_LEADERBOARD_GET:
+            case Packet.CLIENT_LEADERBOARD_RANK:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -220,7 +871,7 @@ public class ServerThread implements Runnable {
      */
     public void sendMessage(ServerGame game, String message, String title, int messageType) {
         int gameID = game == null ? -1 : game.getGameID();
-        sendQueue.add(o -> {
+        queuePacket(o -> {
             o.writeInt(Packet.SERVER_MESSAGE);
             o.writeInt(gameID);
             o.writeUTF(message);
@@ -237,11 +888,15 @@ public class ServerThread implements Runnable {
      * @param playingAs The tile that this player will place onto the board.
      */
     public void sendGameBegin(ServerGame game, ServerThread opponent, int playingAs) {
-        sendQueue.add(o -> {
+        queuePacket(o -> {
             o.writeInt(Packet.SERVER_GAME_BEGIN);
             o.writeInt(game.getGameID());
             o.writeUTF(opponent.getNickname());
             o.writeInt(playingAs);
+            if(hasExtension(Packet.EXTENSION_BOARD_VARIANTS)) {
+                o.writeInt(game.getBoardSize());
+                o.writeInt(game.getWinLength());
+            }
         });
     }
 
@@ -250,18 +905,20 @@ public class ServerThread implements Runnable {
      * client, has successfully made a move on the game board.
      *
      * @param game The game in which the move took place.
-     * @param x The X co-ordinate of the location on the board (between 0 and 2).
-     * @param y The Y co-ordinate of the location on the board (between 0 and 2).
+     * @param x The X co-ordinate of the location on the board (between 0 and the board size - 1).
+     * @param y The Y co-ordinate of the location on the board (between 0 and the board size - 1).
      * @param tileType The type of tile that was placed on the game board.
      */
     public void sendGameMove(ServerGame game, int x, int y, int tileType) {
-        sendQueue.add(o -> {
-            o.writeInt(Packet.SERVER_GAME_MOVE);
-            o.writeInt(game.getGameID());
-            o.writeInt(x);
-            o.writeInt(y);
-            o.writeInt(tileType);
-        });
+        boolean compact = hasExtension(Packet.EXTENSION_COMPACT_MOVES);
+        queuePacket(o -> MoveEncoding.writeServerMove(
+                    o,
+                    compact,
+                    game.getGameID(),
+                    game.getBoardSize(),
+                    x,
+                    y,
+                    tileType));
     }
 
     /**
@@ -273,12 +930,13 @@ public class ServerThread implements Runnable {
      * @param gameState The state of the game as a GAME_* constant.
      */
     public void sendGameUpdate(ServerGame game, boolean canMove, int gameState) {
-        sendQueue.add(o -> {
-            o.writeInt(Packet.SERVER_GAME_UPDATE);
-            o.writeInt(game.getGameID());
-            o.writeBoolean(canMove);
-            o.writeInt(gameState);
-        });
+        boolean compact = hasExtension(Packet.EXTENSION_COMPACT_MOVES);
+        queuePacket(o -> MoveEncoding.writeServerUpdate(
+                    o,
+                    compact,
+                    game.getGameID(),
+                    canMove,
+                    gameState));
     }
 
     /**
@@ -293,7 +951,7 @@ public class ServerThread implements Runnable {
      * to oppose.
      */
     public void sendGameRequestSent(ServerGame game, String nickname) {
-        sendQueue.add(o -> {
+        queuePacket(o -> {
             o.writeInt(Packet.SERVER_REQUEST_SENT);
             o.writeInt(game == null ? -1 : game.getGameID());
             o.writeUTF(nickname);
@@ -309,10 +967,142 @@ public class ServerThread implements Runnable {
      * @param nickname The nickname of the client who sent the request.
      */
     public void sendGameRequestReceived(ServerGame game, String nickname) {
-        sendQueue.add(o -> {
+        queuePacket(o -> {
             o.writeInt(Packet.SERVER_REQUEST_RECEIVED);
             o.writeInt(game.getGameID());
             o.writeUTF(nickname);
+            if(hasExtension(Packet.EXTENSION_BOARD_VARIANTS)) {
+                o.writeInt(game.getBoardSize());
+                o.writeInt(game.getWinLength());
+            }
+        });
+    }
+
+    /**
+     * Send a packet telling the client whether it is waiting to be paired by
+     * the matchmaker.
+     *
+     * @param queued Whether the client is now waiting to be paired.
+     * @param boardSize The width and height of the board of the game the
+     * client is or was waiting for.
+     * @param winLength The number of tiles in a row needed to win that game.
+     */
+    public void sendMatchStatus(boolean queued, int boardSize, int winLength) {
+        queuePacket(o -> {
+            o.writeInt(Packet.SERVER_MATCH_STATUS);
+            o.writeBoolean(queued);
+            o.writeInt(boardSize);
+            o.writeInt(winLength);
+        });
+    }
+
+    /**
+     * Send the players with the highest scores on the server, and the rank
+     * of this client, to this client.
+     *
+     * @param count The most players to send.
+     */
+    public void sendLeaderboard(int count) {
+        Leaderboard leaderboard = server.getLeaderboard();
+        // Read everything now, as the packet may only be written once the
+        // leaderboard has changed.
+        int playerCount = leaderboard.size();
+        int rank = leaderboard.getRank(nickname);
+        List<Leaderboard.Entry> top = leaderboard.getTop(count);
+        queuePacket(o -> {
+            o.writeInt(Packet.SERVER_LEADERBOARD);
+            o.writeInt(playerCount);
+            o.writeInt(rank);
+            o.writeInt(top.size());
+            for(Leaderboard.Entry entry : top) {
+                o.writeUTF(entry.getNickname());
+                o.writeInt(entry.getScore());
+            }
+        });
+    }
+
+    /**
+     * Send the rank and score of a player to this client.
+     *
+     * @param rankNickname The nickname of the player.
+     */
+    public void sendLeaderboardRank(String rankNickname) {
+        Leaderboard leaderboard = server.getLeaderboard();
+        int rank = leaderboard.getRank(rankNickname);
+        int rankScore = leaderboard.getScore(rankNickname);
+        queuePacket(o -> {
+            o.writeInt(Packet.SERVER_LEADERBOARD_RANK);
+            o.writeUTF(rankNickname);
+            o.writeInt(rank);
+            o.writeInt(rankScore);
+        });
+    }
+
+    /**
+     * Sends one page of the roster of this client's lobby to this client.
+     *
+     * @param prefix The prefix of the nicknames of the players to send.
+     * @param after The nickname of the last player of the previous page, or
+     * an empty string for the first page.
+     * @param limit The most players to send.
+     */
+    public void sendRosterPage(String prefix, String after, int limit) {
+        ServerLobby current = lobby;
+        if(current == null) {
+            return;
+        }
+        Roster roster = current.getRoster();
+        queuePacket(o -> roster.writePage(o, prefix, after, limit));
+    }
+
+    /**
+     * Queue a SERVER_ROSTER_DELTA to be sent to this client, holding every
+     * change to the roster made before it is encoded. This is invoked by a
+     * {@link Roster} when this client is subscribed to it, and has no delta
+     * waiting to be sent.
+     *
+     * @param roster The roster the delta is from.
+     */
+    public void queueRosterDelta(Roster roster) {
+        queuePacket(o -> {
+            if(roster.writeDelta(o, this)) {
+                queueRosterDelta(roster);
+            }
+        });
+    }
+
+    /**
+     * Send a packet listing the lobbies on the server to the client.
+     *
+     * @param lobbies The lobbies on the server.
+     */
+    public void sendLobbyList(List<ServerLobby> lobbies) {
+        queuePacket(o -> {
+            o.writeInt(Packet.SERVER_LOBBY_LIST);
+            o.writeInt(lobbies.size());
+            for(ServerLobby lobby : lobbies) {
+                o.writeInt(lobby.getLobbyID());
+                o.writeUTF(lobby.getName());
+                o.writeInt(lobby.getPlayerCount());
+            }
+        });
+    }
+
+    /**
+     * Send a packet telling the client that it has joined a lobby. Clients
+     * using the unframed protocol are never sent this, as they can only be
+     * in the default lobby.
+     *
+     * @param lobby The lobby the client has joined.
+     */
+    public void sendLobbyJoined(ServerLobby lobby) {
+        if(codec.getProtocolVersion() == Packet.PROTOCOL_VERSION_UNFRAMED) {
+            return;
+        }
+        queuePacket(o -> {
+            o.writeInt(Packet.SERVER_LOBBY_JOINED);
+            o.writeInt(lobby.getLobbyID());
+            o.writeUTF(lobby.getName());
         });
     }
 
@@ -323,7 +1113,7 @@ public class ServerThread implements Runnable {
      * this client.
      */
     public void sendPlayerUpdate(ServerThread thread) {
-        sendQueue.add(o -> {
+        queueLobbyPacket(thread.getNickname(), o -> {
             o.writeInt(Packet.SERVER_PLAYER_UPDATE);
             o.writeUTF(thread.getNickname());
             o.writeInt(thread.getScore());
@@ -337,7 +1127,7 @@ public class ServerThread implements Runnable {
      * @param thread The thread of the user who left the server.
      */
     public void sendPlayerLeave(ServerThread thread) {
-        sendQueue.add(o -> {
+        queueLobbyPacket(thread.getNickname(), o -> {
             o.writeInt(Packet.SERVER_PLAYER_LEAVE);
             o.writeUTF(thread.getNickname());
         });
@@ -350,16 +1140,31 @@ public class ServerThread implements Runnable {
      * keep similar concerns together in the same class.
      */
     private void runSendThread() {
+        PacketBatcher batcher = new PacketBatcher(
+                sendQueue,
+                codec,
+                out,
+                server.getFlushStatistics(),
+                server.getMetrics());
         try {
-            while(client.isConnected()) {
-                PacketWriter writer = sendQueue.take();
-                writer.writePacket(out);
+            while(!client.isClosed()) {
+                batcher.sendBatch();
+                packetsSent();
             }
         } catch(IOException e) {
-            System.out.println("IOException in Send Thread.");
-            e.printStackTrace();
+            // The socket is closed on purpose when the client disconnects.
+            if(!client.isClosed()) {
+                ServerLog.Event event = logEvent(ServerLog.LEVEL_ERROR, "client.send_failed");
+                if(event != null) {
+                    event.with(e).publish();
+                }
+            }
         } catch(InterruptedException e) {
-            System.out.println("Interrupted in Send Thread.");
+            ServerLog.Event event = logEvent(ServerLog.LEVEL_ERROR, "client.send_interrupted");
+            if(event != null) {
+                event.publish();
+            }
+            server.getLog().close();
             System.exit(255);
         }
     }
@@ -0,0 +1,136 @@
+/**
+ * A fixed-size table of the results of searching positions, shared by every
+ * {@link GameSearch} running at once, so that a position reached by one
+ * search, or by an earlier move of the same game, need not be searched
+ * again.
+ * <p>
+ * The table needs no locking. Each entry is two longs: the entry's data, and
+ * the Zobrist key of its position XORed with its data. A lookup only trusts
+ * an entry if XORing its two longs gives back the key being looked up, so
+ * an entry torn by two threads writing it at once is simply a miss. A new
+ * entry always replaces whatever was in its slot.
+ *
+ * @author Tom Galvin
+ */
+public class TranspositionTable {
+    /**
+     * The score of the entry is the exact score of the position.
+     */
+    public static final int EXACT = 0;
+
+    /**
+     * The score of the entry is a lower bound, as the search was cut off by
+     * a move scoring at least beta.
+     */
+    public static final int LOWER = 1;
+
+    /**
+     * The score of the entry is an upper bound, as no move scored more than
+     * alpha.
+     */
+    public static final int UPPER = 2;
+
+    /**
+     * Set in the data of every entry, so that data is never zero, which
+     * marks a miss.
+     */
+    private static final long PRESENT = 1L << 31;
+
+    private long[] entries;
+    private int mask;
+
+    /**
+     * Create a new, empty TranspositionTable.
+     *
+     * @param sizeBits The base 2 logarithm of the number of entries. Each
+     * entry takes 16 bytes.
+     */
+    public TranspositionTable(int sizeBits) {
+        this.entries = new long[2 << sizeBits];
+        this.mask = (1 << sizeBits) - 1;
+    }
+
+    /**
+     * Look up the entry for a position.
+     *
+     * @param key The Zobrist key of the position.
+     * @return The data of the entry, to be read with the static getters of
+     * this class, or 0 if there is no entry for the position.
+     */
+    public long get(long key) {
+        int slot = slot(key);
+        long data = entries[slot + 1];
+        return (entries[slot] ^ data) == key ? data : 0;
+    }
+
+    /**
+     * Store the result of searching a position.
+     *
+     * @param key The Zobrist key of the position.
+     * @param score The score of the position.
+     * @param depth The depth to which the position was searched.
+     * @param bound The type of score, as {@link #EXACT}, {@link #LOWER} or
+     * {@link #UPPER}.
+     * @param move The best move found, as a cell index, or -1 for none.
+     */
+    public void put(long key, int score, int depth, int bound, int move) {
+        long data = ((long)score << 32) |
+                    PRESENT |
+                    ((long)bound << 24) |
+                    ((long)(depth & 0xFF) << 16) |
+                    ((move + 1) & 0xFFFF);
+        int slot = slot(key);
+        entries[slot] = key ^ data;
+        entries[slot + 1] = data;
+    }
+
+    /**
+     * Get the index of the first long of the slot of a key.
+     *
+     * @param key The Zobrist key.
+     * @return The index of the slot.
+     */
+    private int slot(long key) {
+        return ((int)(key ^ (key >>> 32)) & mask) << 1;
+    }
+
+    /**
+     * Get the score of an entry.
+     *
+     * @param data The data of the entry.
+     * @return The score.
+     */
+    public static int getScore(long data) {
+        return (int)(data >> 32);
+    }
+
+    /**
+     * Get the depth to which the position of an entry was searched.
+     *
+     * @param data The data of the entry.
+     * @return The depth.
+     */
+    public static int getDepth(long data) {
+        return (int)(data >>> 16) & 0xFF;
+    }
+
+    /**
+     * Get the type of score of an entry.
+     *
+     * @param data The data of the entry.
+     * @return {@link #EXACT}, {@link #LOWER} or {@link #UPPER}.
+     */
+    public static int getBound(long data) {
+        return (int)(data >>> 24) & 0x3;
+    }
+
+    /**
+     * Get the best move of an entry.
+     *
+     * @param data The data of the entry.
+     * @return The best move, as a cell index, or -1 for none.
+     */
+    public static int getMove(long data) {
+        return (int)(data & 0xFFFF) - 1;
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original, unframed tictac2 wire format (protocol version 1), in which
+ * each packet is an {@code int} packet ID followed directly by its fields.
+ * As there is no length prefix, a reader must know the layout of every
+ * packet, and an unknown packet ID cannot be skipped.
+ *
+ * @author Tom Galvin
+ */
+public class UnframedPacketCodec implements PacketCodec {
+    /**
+     * Counts the bytes read through it, so that the length of a packet read
+     * from a blocking stream is known once its fields have been read.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private int count;
+
+        /**
+         * Create a new CountingInputStream.
+         *
+         * @param in The stream to read from.
+         */
+        public CountingInputStream(InputStream in) {
+            super(in);
+            this.count = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if(b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = in.read(bytes, offset, length);
+            if(read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += (int)skipped;
+            return skipped;
+        }
+    }
+
+    private ByteBufferOutputStream scratch;
+    private DataOutputStream scratchStream;
+    private ByteBufferInputStream bufferStream;
+    private DataInputStream bufferPayload;
+    private int bufferPacketLength;
+    private InputStream countedStream;
+    private CountingInputStream counter;
+    private DataInputStream countedPayload;
+    private DataInputStream payload;
+
+    /**
+     * Create a new UnframedPacketCodec.
+     */
+    public UnframedPacketCodec() {
+        this.scratch = new ByteBufferOutputStream(256);
+        this.scratchStream = new DataOutputStream(scratch);
+        this.bufferStream = new ByteBufferInputStream();
+        this.bufferPayload = new DataInputStream(bufferStream);
+        this.bufferPacketLength = 0;
+        this.payload = bufferPayload;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return Packet.PROTOCOL_VERSION_UNFRAMED;
+    }
+
+    @Override
+    public int writePacket(PacketWriter writer, DataOutputStream out) throws IOException {
+        // The packet is written into a scratch buffer first, so that its
+        // packet ID can be read back.
+        scratch.clear();
+        writer.writePacket(scratchStream);
+        if(scratch.size() == 0) {
+            return NO_PACKET;
+        }
+        scratch.copyTo(out, 0);
+        return scratch.getInt(0);
+    }
+
+    @Override
+    public int readPacket(DataInputStream in) throws IOException {
+        if(in != countedStream) {
+            countedStream = in;
+            counter = new CountingInputStream(in);
+            countedPayload = new DataInputStream(counter);
+        }
+        counter.count = 0;
+        payload = countedPayload;
+        return payload.readInt();
+    }
+
+    /**
+     * {@inheritDoc}
+     * As this format is not framed, only client packets can be decoded in
+     * this way.
+     *
+     * @throws ProtocolException If the packet ID is not a known client packet.
+     */
+    @Override
+    public int decodePacket(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int length = measurePacket(buffer, start, buffer.limit());
+        if(length == -1) {
+            return NO_PACKET;
+        }
+        bufferStream.reset(buffer, start, length);
+        buffer.position(start + length);
+        bufferPacketLength = length;
+        payload = bufferPayload;
+        return payload.readInt();
+    }
+
+    @Override
+    public int getPendingLength() {
+        return 0;
+    }
+
+    @Override
+    public int getPacketLength() {
+        return payload == countedPayload ? counter.count : bufferPacketLength;
+    }
+
+    @Override
+    public DataInputStream getPayload() {
+        return payload;
+    }
+
+    /**
+     * Determine the length of the client packet starting at {@code start} in
+     * the given buffer, if all of its bytes have been received.
+     *
+     * @param buffer The buffer holding the received bytes.
+     * @param start The index of the first byte of the packet.
+     * @param limit The index after the last received byte.
+     * @return The length of the packet in bytes, or {@code -1} if the packet
+     * has not been received completely yet.
+     * @throws ProtocolException If the packet ID is not a known client packet.
+     */
+    private static int measurePacket(ByteBuffer buffer, int start, int limit) throws ProtocolException {
+        if(limit - start < 4) {
+            return -1;
+        }
+        int packetID = buffer.getInt(start);
+        int end = start + 4;
+        switch(packetID) {
+            case Packet.CLIENT_CONNECT:
+                end = skipUTF(buffer, end + 4, limit);
+                end = end == -1 ? -1 : end + 4;
+                break;
+            case Packet.CLIENT_REQUEST_SEND:
+                end = skipUTF(buffer, end, limit);
+                break;
+            case Packet.CLIENT_REQUEST_RESPOND:
+                end += 5;
+                break;
+            case Packet.CLIENT_PLAYER_GET_LIST:
+                break;
+            case Packet.CLIENT_GAME_MOVE:
+                end += 12;
+                break;
+            case Packet.CLIENT_GAME_FORFEIT:
+                end += 4;
+                break;
+            default:
+                throw new ProtocolException(String.format(
+                            "Unknown packet ID: %d",
+                            packetID
+                            ));
+        }
+        return end == -1 || end > limit ? -1 : end - start;
+    }
+
+    /**
+     * Skip over a string written with {@link java.io.DataOutputStream#writeUTF}.
+     *
+     * @param buffer The buffer holding the received bytes.
+     * @param offset The index of the string's length prefix.
+     * @param limit The index after the last received byte.
+     * @return The index after the string, or {@code -1} if the length prefix
+     * has not been received yet.
+     */
+    private static int skipUTF(ByteBuffer buffer, int offset, int limit) {
+        if(limit - offset < 2) {
+            return -1;
+        }
+        return offset + 2 + (buffer.getShort(offset) & 0xFFFF);
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes variable-length integers, as used by the framed tictac2
+ * wire format. Each byte holds seven bits of the value, least significant
+ * first, with the top bit set on every byte except the last. Small values,
+ * such as packet IDs, therefore take only one or two bytes.
+ *
+ * @author Tom Galvin
+ */
+public abstract class VarInt {
+    /**
+     * The largest number of bytes used to encode a 32-bit value.
+     */
+    public static final int MAX_SIZE = 5;
+
+    /**
+     * Get the number of bytes used to encode the given value.
+     *
+     * @param value The value to encode.
+     * @return The number of bytes in the encoded value.
+     */
+    public static int size(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write a value to the given output.
+     *
+     * @param out The output to write to.
+     * @param value The value to write.
+     */
+    public static void write(DataOutput out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Read a value from the given input.
+     *
+     * @param in The input to read from.
+     * @return The value which was read.
+     * @throws ProtocolException If the value is longer than {@link #MAX_SIZE}
+     * bytes.
+     */
+    public static int read(DataInput in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 7 * MAX_SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Variable-length integer is too long.");
+    }
+
+    /**
+     * Read a value from the given buffer, if all of its bytes are present.
+     * Neither the position nor the limit of the buffer are changed.
+     *
+     * @param buffer The buffer to read from.
+     * @param offset The index of the first byte of the value.
+     * @param limit The index after the last readable byte.
+     * @return The value, or {@code -1} if not all of its bytes are present.
+     * Only non-negative values can be read in this way.
+     * @throws ProtocolException If the value is longer than {@link #MAX_SIZE}
+     * bytes, or is negative.
+     */
+    public static int peek(ByteBuffer buffer, int offset, int limit) throws ProtocolException {
+        int value = 0;
+        for(int i = 0; i < MAX_SIZE; i++) {
+            if(offset + i >= limit) {
+                return -1;
+            }
+            int b = buffer.get(offset + i);
+            value |= (b & 0x7F) << (7 * i);
+            if((b & 0x80) == 0) {
+                if(value < 0) {
+                    throw new ProtocolException("Variable-length integer is negative.");
+                }
+                return value;
+            }
+        }
+        throw new ProtocolException("Variable-length integer is too long.");
+    }
+}